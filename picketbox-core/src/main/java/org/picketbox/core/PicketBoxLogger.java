@@ -80,4 +80,44 @@ public interface PicketBoxLogger extends BasicLogger {
     @Message(id = 509, value = "ALL RESOURCES WILL BE PROTECTED. MAYBE YOU DID NOT DEFINE WHICH RESOURCES SHOULD BE PROTECTED.")
     void allResourcesWillBeProteced();
 
-}
\ No newline at end of file
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 510, value = "Error executing scheduled task: %s")
+    void errorExecutingTimeout(String task, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 511, value = "Error expiring session %s")
+    void errorExpiringSession(String sessionId, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 512, value = "Error writing session journal in %s")
+    void errorWritingSessionJournal(String directory, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 513, value = "Error flushing session %s to the store")
+    void errorFlushingSession(String sessionId, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 514, value = "Error invalidating session %s")
+    void errorInvalidatingSession(String sessionId, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 515, value = "Error replicating sessions to node %s")
+    void errorReplicatingSessions(String node, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 516, value = "Error applying sessions replicated from node %s")
+    void errorApplyingReplicatedSessions(String node, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 517, value = "Error notifying the listeners of session %s")
+    void errorDispatchingSessionEvent(String sessionId, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 518, value = "Error passivating sessions to %s")
+    void errorPassivatingSessions(String directory, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 519, value = "Error writing session snapshot in %s")
+    void errorWritingSessionSnapshot(String directory, @Cause Throwable throwable);
+
+}
@@ -22,6 +22,7 @@
 package org.picketbox.core;
 
 import java.io.IOException;
+import java.io.Serializable;
 
 import org.jboss.logging.Cause;
 import org.jboss.logging.Message;
@@ -169,4 +170,13 @@ public interface PicketBoxMessages {
 
     @Message(id = 50, value = "Invalid Level: %s")
     IllegalStateException invalidLevel(String level);
+
+    @Message(id = 51, value = "Duplicate session id: %s")
+    IllegalStateException duplicateSessionId(Serializable id);
+
+    @Message(id = 52, value = "Session %s is too large to be stored: %s bytes")
+    IllegalStateException sessionTooLarge(Serializable id, int size);
+
+    @Message(id = 53, value = "Session store is full: %s")
+    IllegalStateException sessionStoreFull(String store);
 }
\ No newline at end of file
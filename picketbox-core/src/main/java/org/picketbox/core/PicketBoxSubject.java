@@ -21,6 +21,8 @@
  */
 package org.picketbox.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.security.Principal;
 import java.util.ArrayList;
@@ -67,6 +69,7 @@ public class PicketBoxSubject implements Serializable {
         this.session = new PicketBoxSession(sessionId);
     }
 
+
     /**
      * get the user
      *
@@ -162,6 +165,27 @@ public class PicketBoxSubject implements Serializable {
         this.authenticated = isAuthenticated;
     }
 
+    /**
+     * <p>
+     * Restores a subject read back from a session store or a session token, whose authentication happened when it was
+     * written. Like {@link #setAuthenticated(boolean)}, it is only available to subclasses.
+     * </p>
+     *
+     * @param user
+     * @param roleNames
+     * @param authenticated whether the subject was authenticated when it was written
+     * @return
+     */
+    protected static PicketBoxSubject restore(Principal user, List<String> roleNames, boolean authenticated) {
+        PicketBoxSubject subject = new PicketBoxSubject();
+
+        subject.user = user;
+        subject.roleNames.addAll(roleNames);
+        subject.authenticated = authenticated;
+
+        return subject;
+    }
+
     /**
      * @return
      */
@@ -193,6 +217,11 @@ public class PicketBoxSubject implements Serializable {
         this.user = null;
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.contextData = new HashMap<String, Object>();
+    }
+
     /**
      * <p>Checks if this subject has the specified role.</p>
      *
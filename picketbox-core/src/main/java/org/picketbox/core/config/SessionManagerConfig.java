@@ -24,8 +24,11 @@ package org.picketbox.core.config;
 
 import java.util.List;
 
+import org.picketbox.core.session.AsyncSessionEventDispatcher.OverflowPolicy;
 import org.picketbox.core.session.PicketBoxSessionListener;
+import org.picketbox.core.session.SessionIdGenerator;
 import org.picketbox.core.session.SessionManager;
+import org.picketbox.core.session.SessionSnapshotter;
 import org.picketbox.core.session.SessionStore;
 
 /**
@@ -38,6 +41,14 @@ public class SessionManagerConfig {
     private SessionStore store;
     private List<PicketBoxSessionListener> listeners;
     private int sessionTimeout;
+    private long sessionIdleTimeout;
+    private long writeBehindInterval;
+    private int maxSessionsPerPrincipal;
+    private SessionIdGenerator sessionIdGenerator;
+    private int listenerThreads;
+    private int listenerQueueCapacity;
+    private OverflowPolicy listenerOverflowPolicy;
+    private SessionSnapshotter snapshotter;
 
     public SessionManagerConfig(SessionManager manager, SessionStore store, List<PicketBoxSessionListener> listeners,
             int sessionTimeout) {
@@ -59,8 +70,118 @@ public class SessionManagerConfig {
         return listeners;
     }
 
+    /**
+     * Get the absolute session lifetime, in minutes
+     *
+     * @return
+     */
     public int getSessionTimeout() {
         return this.sessionTimeout;
     }
 
+    /**
+     * Get the session idle timeout, in milliseconds
+     *
+     * @return
+     */
+    public long getSessionIdleTimeout() {
+        return this.sessionIdleTimeout;
+    }
+
+    public void setSessionIdleTimeout(long sessionIdleTimeout) {
+        this.sessionIdleTimeout = sessionIdleTimeout;
+    }
+
+    /**
+     * Get the interval between two flushes of the modified sessions to the store, in milliseconds. Sessions are written to the
+     * store on every change if the interval is 0.
+     *
+     * @return
+     */
+    public long getWriteBehindInterval() {
+        return this.writeBehindInterval;
+    }
+
+    public void setWriteBehindInterval(long writeBehindInterval) {
+        this.writeBehindInterval = writeBehindInterval;
+    }
+
+    /**
+     * Get the maximum number of concurrent sessions of a principal, or 0 if unlimited
+     *
+     * @return
+     */
+    public int getMaxSessionsPerPrincipal() {
+        return this.maxSessionsPerPrincipal;
+    }
+
+    public void setMaxSessionsPerPrincipal(int maxSessionsPerPrincipal) {
+        this.maxSessionsPerPrincipal = maxSessionsPerPrincipal;
+    }
+
+    /**
+     * Get the generator of session identifiers, or null to use the default one
+     *
+     * @return
+     */
+    public SessionIdGenerator getSessionIdGenerator() {
+        return this.sessionIdGenerator;
+    }
+
+    public void setSessionIdGenerator(SessionIdGenerator sessionIdGenerator) {
+        this.sessionIdGenerator = sessionIdGenerator;
+    }
+
+    /**
+     * Get the number of threads notifying the listeners, or 0 if the listeners are notified by the thread raising the events
+     *
+     * @return
+     */
+    public int getListenerThreads() {
+        return this.listenerThreads;
+    }
+
+    public void setListenerThreads(int listenerThreads) {
+        this.listenerThreads = listenerThreads;
+    }
+
+    /**
+     * Get the maximum number of events waiting to be delivered by each listener thread
+     *
+     * @return
+     */
+    public int getListenerQueueCapacity() {
+        return this.listenerQueueCapacity;
+    }
+
+    public void setListenerQueueCapacity(int listenerQueueCapacity) {
+        this.listenerQueueCapacity = listenerQueueCapacity;
+    }
+
+    /**
+     * Get what to do with the events raised when the queue of their listener thread is full
+     *
+     * @return
+     */
+    public OverflowPolicy getListenerOverflowPolicy() {
+        return this.listenerOverflowPolicy;
+    }
+
+    public void setListenerOverflowPolicy(OverflowPolicy listenerOverflowPolicy) {
+        this.listenerOverflowPolicy = listenerOverflowPolicy;
+    }
+
+    /**
+     * Get the snapshotter taking background snapshots of the store, if any
+     *
+     * @return
+     */
+    public SessionSnapshotter getSnapshotter() {
+        return this.snapshotter;
+    }
+
+    public void setSnapshotter(SessionSnapshotter snapshotter) {
+        this.snapshotter = snapshotter;
+    }
+
 }
@@ -24,13 +24,34 @@ package org.picketbox.core.config;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.picketbox.core.PicketBoxMessages;
+import org.picketbox.core.session.AsyncSessionEventDispatcher;
+import org.picketbox.core.session.AsyncSessionEventDispatcher.OverflowPolicy;
+import org.picketbox.core.session.AbstractSessionStore;
+import org.picketbox.core.session.BoundedSessionStore;
+import org.picketbox.core.session.BoundedSessionStore.EvictionPolicy;
 import org.picketbox.core.session.FileSessionStore;
 import org.picketbox.core.session.InMemorySessionStore;
+import org.picketbox.core.session.JournaledFileSessionStore;
+import org.picketbox.core.session.NearCacheSessionStore;
+import org.picketbox.core.session.OffHeapSessionStore;
+import org.picketbox.core.session.PartitionedSessionStore;
+import org.picketbox.core.session.PicketBoxSession;
 import org.picketbox.core.session.PicketBoxSessionListener;
+import org.picketbox.core.session.ReplicatedSessionStore;
+import org.picketbox.core.session.SecureSessionIdGenerator;
+import org.picketbox.core.session.SessionClusterMembership;
+import org.picketbox.core.session.SessionIdGenerator;
+import org.picketbox.core.session.SessionInvalidationChannel;
+import org.picketbox.core.session.SessionKeyRing;
 import org.picketbox.core.session.SessionManager;
+import org.picketbox.core.session.SessionReplicationTransport;
+import org.picketbox.core.session.SessionSnapshotter;
 import org.picketbox.core.session.SessionStore;
+import org.picketbox.core.session.StatelessSessionManager;
+import org.picketbox.core.session.TieredSessionStore;
 
 /**
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
@@ -42,6 +63,23 @@ public class SessionManagerConfigurationBuilder extends AbstractConfigurationBui
     private SessionStore store;
     private List<PicketBoxSessionListener> listeners = new ArrayList<PicketBoxSessionListener>();
     private int sessionTimeout;
+    private long sessionIdleTimeout;
+    private long writeBehindInterval;
+    private int maxSessionsPerPrincipal;
+    private SessionIdGenerator sessionIdGenerator;
+    private int nearCacheSize;
+    private long nearCacheTimeToLive;
+    private SessionInvalidationChannel invalidationChannel;
+    private String replicationNodeId;
+    private SessionReplicationTransport replicationTransport;
+    private int replicationBackups;
+    private int maxPendingReplications;
+    private int listenerThreads;
+    private int listenerQueueCapacity;
+    private OverflowPolicy listenerOverflowPolicy;
+    private String snapshotDirectory;
+    private long snapshotInterval;
+    private int snapshotPartitions;
 
     public SessionManagerConfigurationBuilder(ConfigurationBuilder configurationBuilder) {
         super(configurationBuilder);
@@ -91,27 +129,372 @@ public class SessionManagerConfigurationBuilder extends AbstractConfigurationBui
         return this;
     }
 
+    /**
+     * Create a {@link JournaledFileSessionStore}
+     *
+     * @param directory directory where the session snapshot and journal are kept
+     * @return
+     */
+    public SessionManagerConfigurationBuilder journaledFileSessionStore(String directory) {
+        if (this.store == null) {
+            this.store = new JournaledFileSessionStore(directory);
+        }
+        if (this.store instanceof JournaledFileSessionStore == false) {
+            throw PicketBoxMessages.MESSAGES.wrongSessionStore(this.store.getClass().getName());
+        }
+
+        return this;
+    }
+
+    /**
+     * Create a {@link BoundedSessionStore}
+     *
+     * @param maxEntries the maximum number of sessions, or 0 for no limit
+     * @param maxBytes the maximum estimated size of all sessions, or 0 for no limit
+     * @param policy the policy choosing the evicted sessions
+     * @return
+     */
+    public SessionManagerConfigurationBuilder boundedSessionStore(int maxEntries, long maxBytes, EvictionPolicy policy) {
+        if (this.store == null) {
+            this.store = new BoundedSessionStore(maxEntries, maxBytes, policy);
+        }
+        if (this.store instanceof BoundedSessionStore == false) {
+            throw PicketBoxMessages.MESSAGES.wrongSessionStore(this.store.getClass().getName());
+        }
+
+        return this;
+    }
+
+    /**
+     * Create an {@link OffHeapSessionStore}
+     *
+     * @param maxMemory the maximum memory used by the sessions, in bytes
+     * @param maxSessions the maximum number of sessions
+     * @param cacheSize the maximum number of sessions kept on the heap
+     * @return
+     */
+    public SessionManagerConfigurationBuilder offHeapSessionStore(long maxMemory, int maxSessions, int cacheSize) {
+        if (this.store == null) {
+            this.store = new OffHeapSessionStore(maxMemory, maxSessions, cacheSize);
+        }
+        if (this.store instanceof OffHeapSessionStore == false) {
+            throw PicketBoxMessages.MESSAGES.wrongSessionStore(this.store.getClass().getName());
+        }
+
+        return this;
+    }
+
+    /**
+     * Create a {@link TieredSessionStore}
+     *
+     * @param directory the directory where idle sessions are passivated
+     * @param idleTime the time after which a session that was not accessed is passivated
+     * @param unit the unit of the idle time
+     * @param maxActiveSessions the maximum number of sessions kept in memory, or 0 for no limit
+     * @return
+     */
+    public SessionManagerConfigurationBuilder tieredSessionStore(String directory, long idleTime, TimeUnit unit,
+            int maxActiveSessions) {
+        if (this.store == null) {
+            this.store = new TieredSessionStore(directory, idleTime, unit, maxActiveSessions);
+        }
+        if (this.store instanceof TieredSessionStore == false) {
+            throw PicketBoxMessages.MESSAGES.wrongSessionStore(this.store.getClass().getName());
+        }
+
+        return this;
+    }
+
+    /**
+     * Create a {@link PartitionedSessionStore} keeping the sessions of this node in memory
+     *
+     * @param nodeId the name of this node
+     * @param membership the members of the cluster
+     * @param virtualNodes the number of points of each node on the hash ring
+     * @param backups the number of nodes holding a copy of a session besides its owner
+     * @return
+     */
+    public SessionManagerConfigurationBuilder partitionedSessionStore(String nodeId, SessionClusterMembership membership,
+            int virtualNodes, int backups) {
+        if (this.store == null) {
+            this.store = new PartitionedSessionStore(nodeId, new InMemorySessionStore(), membership, virtualNodes, backups);
+        }
+        if (this.store instanceof PartitionedSessionStore == false) {
+            throw PicketBoxMessages.MESSAGES.wrongSessionStore(this.store.getClass().getName());
+        }
+
+        return this;
+    }
+
     public SessionManagerConfigurationBuilder store(SessionStore store) {
         this.store = store;
         return this;
     }
 
+    public SessionManagerConfigurationBuilder manager(SessionManager manager) {
+        this.manager = manager;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Uses a {@link StatelessSessionManager}, whose session identifiers are signed tokens verified without any store.
+     * </p>
+     *
+     * @param keyRing the keys signing the tokens
+     * @param timeToLive how long a token is valid
+     * @param unit
+     * @return
+     */
+    public SessionManagerConfigurationBuilder statelessSessions(SessionKeyRing keyRing, long timeToLive, TimeUnit unit) {
+        return manager(new StatelessSessionManager(keyRing, timeToLive, unit, this.listeners));
+    }
+
     public SessionManagerConfigurationBuilder listener(PicketBoxSessionListener picketBoxSessionListener) {
         this.listeners.add(picketBoxSessionListener);
         return this;
     }
 
+    /**
+     * <p>
+     * Takes background snapshots of the store through a {@link SessionSnapshotter}, and restores the latest one on start. The
+     * store must keep its sessions in memory, defaulting to an {@link InMemorySessionStore}.
+     * </p>
+     *
+     * @param directory the directory where the snapshots are kept
+     * @param interval the time between two snapshots, which bounds the sessions lost by a crash
+     * @param unit the unit of the interval
+     * @param partitions the number of files each snapshot is written to, and read from in parallel on start
+     * @return
+     */
+    public SessionManagerConfigurationBuilder snapshots(String directory, long interval, TimeUnit unit, int partitions) {
+        this.snapshotDirectory = directory;
+        this.snapshotInterval = unit.toMillis(interval);
+        this.snapshotPartitions = partitions;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Notifies the listeners from background threads through an {@link AsyncSessionEventDispatcher}. The events of a session
+     * are always delivered by the same thread, in order.
+     * </p>
+     *
+     * @param threads the number of threads notifying the listeners
+     * @param queueCapacity the maximum number of events waiting to be delivered by each thread
+     * @param overflowPolicy what to do with an event when the queue of its thread is full
+     * @return
+     */
+    public SessionManagerConfigurationBuilder asyncListeners(int threads, int queueCapacity, OverflowPolicy overflowPolicy) {
+        this.listenerThreads = threads;
+        this.listenerQueueCapacity = queueCapacity;
+        this.listenerOverflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the absolute lifetime of sessions. Sessions expire once this time elapsed since their creation, regardless of their
+     * activity.
+     * </p>
+     *
+     * @param timeoutInMinutes
+     * @return
+     */
     public SessionManagerConfigurationBuilder sessionTimeout(int timeoutInMinutes) {
         this.sessionTimeout = timeoutInMinutes;
         return this;
     }
 
+    /**
+     * <p>
+     * Sets the idle timeout of sessions. Sessions expire when they were not accessed for this time. It can be combined with
+     * {@link #sessionTimeout(int)} to also bound the total lifetime of a session.
+     * </p>
+     *
+     * @param timeoutInMinutes
+     * @return
+     */
+    public SessionManagerConfigurationBuilder sessionIdleTimeout(int timeoutInMinutes) {
+        return sessionIdleTimeout(timeoutInMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * <p>
+     * Sets the idle timeout of sessions.
+     * </p>
+     *
+     * @param timeout
+     * @param unit
+     * @return
+     * @see #sessionIdleTimeout(int)
+     */
+    public SessionManagerConfigurationBuilder sessionIdleTimeout(long timeout, TimeUnit unit) {
+        this.sessionIdleTimeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * <p>
+     * Enables the write-behind of session changes. Instead of updating the store on every attribute change, modified sessions
+     * are written once per interval, or when flushed with {@link SessionManager#flush(PicketBoxSession)}.
+     * </p>
+     *
+     * @param interval
+     * @param unit
+     * @return
+     */
+    public SessionManagerConfigurationBuilder writeBehind(long interval, TimeUnit unit) {
+        this.writeBehindInterval = unit.toMillis(interval);
+        return this;
+    }
+
+    /**
+     * <p>
+     * Limits the number of concurrent sessions of a principal. When a principal creates a session over the limit, its oldest
+     * sessions are invalidated.
+     * </p>
+     *
+     * @param maxSessions the maximum number of sessions, or 0 for no limit
+     * @return
+     */
+    public SessionManagerConfigurationBuilder maxSessionsPerPrincipal(int maxSessions) {
+        this.maxSessionsPerPrincipal = maxSessions;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the generator of session identifiers. Defaults to a {@link SecureSessionIdGenerator}.
+     * </p>
+     *
+     * @param generator
+     * @return
+     */
+    public SessionManagerConfigurationBuilder sessionIdGenerator(SessionIdGenerator generator) {
+        this.sessionIdGenerator = generator;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Generates session identifiers embedding the given node identifier, so load balancers can route requests to the node
+     * owning the session.
+     * </p>
+     *
+     * @param nodeId
+     * @return
+     */
+    public SessionManagerConfigurationBuilder nodeId(String nodeId) {
+        return sessionIdGenerator(new SecureSessionIdGenerator(nodeId));
+    }
+
+    /**
+     * <p>
+     * Puts a {@link NearCacheSessionStore} in front of the configured store, defaulting to an {@link InMemorySessionStore}.
+     * </p>
+     *
+     * @param maxEntries the maximum number of cached sessions
+     * @param timeToLive how long a session is cached
+     * @param unit
+     * @return
+     */
+    public SessionManagerConfigurationBuilder nearCache(int maxEntries, long timeToLive, TimeUnit unit) {
+        return nearCache(maxEntries, timeToLive, unit, null);
+    }
+
+    /**
+     * <p>
+     * Puts a {@link NearCacheSessionStore} in front of the configured store, defaulting to an {@link InMemorySessionStore},
+     * invalidating the sessions cached by other nodes through the given channel.
+     * </p>
+     *
+     * @param maxEntries the maximum number of cached sessions
+     * @param timeToLive how long a session is cached
+     * @param unit
+     * @param channel
+     * @return
+     */
+    public SessionManagerConfigurationBuilder nearCache(int maxEntries, long timeToLive, TimeUnit unit,
+            SessionInvalidationChannel channel) {
+        this.nearCacheSize = maxEntries;
+        this.nearCacheTimeToLive = unit.toMillis(timeToLive);
+        this.invalidationChannel = channel;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Replicates the sessions of the configured store to backup nodes, through a {@link ReplicatedSessionStore}. The store
+     * defaults to an {@link InMemorySessionStore}.
+     * </p>
+     *
+     * @param nodeId the name of this node
+     * @param transport
+     * @param backups the number of nodes holding a copy of the sessions of this node
+     * @param maxPendingOperations the maximum number of operations waiting to be replicated
+     * @return
+     */
+    public SessionManagerConfigurationBuilder replication(String nodeId, SessionReplicationTransport transport, int backups,
+            int maxPendingOperations) {
+        this.replicationNodeId = nodeId;
+        this.replicationTransport = transport;
+        this.replicationBackups = backups;
+        this.maxPendingReplications = maxPendingOperations;
+        return this;
+    }
+
     @Override
     protected void setDefaults() {
     }
 
     @Override
     protected SessionManagerConfig doBuild() {
-        return new SessionManagerConfig(this.manager, this.store, this.listeners, this.sessionTimeout);
+        SessionStore store = this.store;
+        SessionSnapshotter snapshotter = null;
+
+        if (this.snapshotDirectory != null) {
+            if (store == null) {
+                store = new InMemorySessionStore();
+            }
+
+            if (store instanceof AbstractSessionStore == false) {
+                throw PicketBoxMessages.MESSAGES.wrongSessionStore(store.getClass().getName());
+            }
+
+            snapshotter = new SessionSnapshotter((AbstractSessionStore) store, this.snapshotDirectory, this.snapshotInterval,
+                    TimeUnit.MILLISECONDS, this.snapshotPartitions);
+        }
+
+        if (this.replicationTransport != null) {
+            if (store == null) {
+                store = new InMemorySessionStore();
+            }
+
+            store = new ReplicatedSessionStore(store, this.replicationNodeId, this.replicationTransport,
+                    this.replicationBackups, this.maxPendingReplications);
+        }
+
+        if (this.nearCacheSize > 0) {
+            if (store == null) {
+                store = new InMemorySessionStore();
+            }
+
+            store = new NearCacheSessionStore(store, this.nearCacheSize, this.nearCacheTimeToLive, TimeUnit.MILLISECONDS,
+                    this.invalidationChannel);
+        }
+
+        SessionManagerConfig config = new SessionManagerConfig(this.manager, store, this.listeners, this.sessionTimeout);
+
+        config.setSessionIdleTimeout(this.sessionIdleTimeout);
+        config.setWriteBehindInterval(this.writeBehindInterval);
+        config.setMaxSessionsPerPrincipal(this.maxSessionsPerPrincipal);
+        config.setSessionIdGenerator(this.sessionIdGenerator);
+        config.setListenerThreads(this.listenerThreads);
+        config.setListenerQueueCapacity(this.listenerQueueCapacity);
+        config.setListenerOverflowPolicy(this.listenerOverflowPolicy);
+        config.setSnapshotter(snapshotter);
+
+        return config;
     }
 }
\ No newline at end of file
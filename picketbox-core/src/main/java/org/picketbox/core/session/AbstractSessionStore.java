@@ -22,13 +22,35 @@
 package org.picketbox.core.session;
 
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxMessages;
 
 /**
- * Abstract class for implementations of {@link SessionStore}
+ * <p>
+ * Abstract class for implementations of {@link SessionStore}.
+ * </p>
+ * <p>
+ * Sessions are kept in a {@link ConcurrentMap} whose segments are locked independently, so reads never block and writes from
+ * different request threads only contend when they hit the same segment. The concurrency level defaults to a multiple of the
+ * available processors and can be tuned by subclasses.
+ * </p>
+ * <p>
+ * The map stores the identifiers of {@link SecureSessionIdGenerator} and {@link java.util.UUID} as two longs in open-addressing
+ * tables, with no per-entry key objects. Keys must be the identifier of the session they map to.
+ * </p>
+ * <p>
+ * A snapshot of the store is taken without blocking writers: while it runs, the first write to a session records the
+ * session it replaces, so the snapshot holds the sessions stored when it started, each one as the instance stored then. The
+ * snapshot is consistent per session id, not across sessions: a session whose attributes are changed in place while the
+ * snapshot runs may be written with some of the changes.
+ * </p>
  *
  * @author Pedro Silva
  * @author anil saldhana
@@ -36,7 +58,30 @@ import org.picketbox.core.AbstractPicketBoxLifeCycle;
  */
 public abstract class AbstractSessionStore extends AbstractPicketBoxLifeCycle implements SessionStore {
 
-    protected Map<Serializable, PicketBoxSession> sessions = new HashMap<Serializable, PicketBoxSession>();
+    private static final int DEFAULT_CONCURRENCY_LEVEL = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+
+    // markers of the sessions a snapshot must skip
+    private static final Object ABSENT = new Object();
+    private static final Object VISITED = new Object();
+
+    protected final ConcurrentMap<Serializable, PicketBoxSession> sessions;
+
+    /**
+     * The sessions written while a snapshot runs, as the instances stored before their first write, or null if no snapshot
+     * runs.
+     */
+    private volatile ConcurrentMap<Serializable, Object> preImages;
+
+    public AbstractSessionStore() {
+        this(DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param concurrencyLevel the estimated number of threads concurrently writing to the store
+     */
+    protected AbstractSessionStore(int concurrencyLevel) {
+        this.sessions = new CompactSessionIndex(concurrencyLevel);
+    }
 
     /*
      * (non-Javadoc)
@@ -55,7 +100,25 @@ public abstract class AbstractSessionStore extends AbstractPicketBoxLifeCycle im
      */
     @Override
     public void store(PicketBoxSession session) {
-        this.sessions.put(session.getId().getId(), session);
+        preserve(session.getId().getId());
+
+        PicketBoxSession existing = this.sessions.putIfAbsent(session.getId().getId(), session);
+
+        if (existing != null && existing != session) {
+            throw PicketBoxMessages.MESSAGES.duplicateSessionId(session.getId().getId());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#storeIfAbsent(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public boolean storeIfAbsent(PicketBoxSession session) {
+        preserve(session.getId().getId());
+
+        return this.sessions.putIfAbsent(session.getId().getId(), session) == null;
     }
 
     /*
@@ -65,6 +128,7 @@ public abstract class AbstractSessionStore extends AbstractPicketBoxLifeCycle im
      */
     @Override
     public void remove(SessionId<? extends Serializable> id) {
+        preserve(id.getId());
         this.sessions.remove(id.getId());
     }
 
@@ -75,7 +139,215 @@ public abstract class AbstractSessionStore extends AbstractPicketBoxLifeCycle im
      */
     @Override
     public void update(PicketBoxSession session) {
-        this.sessions.put(session.getId().getId(), session);
+        // only replaces live entries, a late update must not resurrect a session removed by another thread
+        replace(session);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, long expectedVersion) {
+        return replace(session, expectedVersion);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession,
+     * org.picketbox.core.session.SessionDelta, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion) {
+        // the session is kept as is, there is nothing to gain from the delta
+        return update(session, expectedVersion);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#getVersion(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public long getVersion(SessionId<? extends Serializable> id) {
+        PicketBoxSession session = this.sessions.get(id.getId());
+
+        return session != null ? session.version : -1;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#cursor()
+     */
+    @Override
+    public Iterator<PicketBoxSession> cursor() {
+        return SessionCursor.of(this, this.sessions.values().iterator());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#count()
+     */
+    @Override
+    public int count() {
+        return this.sessions.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#removeIf(org.picketbox.core.session.SessionPredicate)
+     */
+    @Override
+    public int removeIf(SessionPredicate predicate) {
+        return SessionCursor.removeIf(this, predicate);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#forEachBatch(int,
+     * org.picketbox.core.session.SessionBatchHandler)
+     */
+    @Override
+    public void forEachBatch(int batchSize, SessionBatchHandler handler) {
+        SessionCursor.forEachBatch(this, batchSize, handler);
+    }
+
+    /**
+     * <p>
+     * Replaces a stored session with the given one and gives it the next version. The version is set before the session is
+     * published, and restored if the session could not be stored.
+     * </p>
+     *
+     * @param session
+     * @return true if the session was stored
+     */
+    protected boolean replace(PicketBoxSession session) {
+        preserve(session.getId().getId());
+
+        PicketBoxSession previous = this.sessions.get(session.getId().getId());
+
+        while (previous != null) {
+            long version = session.version;
+
+            session.version = previous.version + 1;
+
+            if (this.sessions.replace(session.getId().getId(), previous, session)) {
+                return true;
+            }
+
+            session.version = version;
+            previous = this.sessions.get(session.getId().getId());
+        }
+
+        return false;
+    }
+
+    /**
+     * <p>
+     * Replaces a stored session with the given one if the stored version is the expected one, and gives it the next version.
+     * </p>
+     * <p>
+     * Conditional replacements of a session are serialized on the stored instance, and the new version is set before the new
+     * instance is published, so two of them can never both succeed from the same version.
+     * </p>
+     *
+     * @param session
+     * @param expectedVersion
+     * @return true if the session was stored
+     */
+    protected boolean replace(PicketBoxSession session, long expectedVersion) {
+        Serializable key = session.getId().getId();
+
+        preserve(key);
+
+        PicketBoxSession previous = this.sessions.get(key);
+
+        while (previous != null) {
+            synchronized (previous) {
+                if (previous.version != expectedVersion) {
+                    return false;
+                }
+
+                long version = session.version;
+
+                session.version = expectedVersion + 1;
+
+                if (this.sessions.replace(key, previous, session)) {
+                    return true;
+                }
+
+                session.version = version;
+            }
+
+            previous = this.sessions.get(key);
+        }
+
+        return false;
+    }
+
+    /**
+     * <p>
+     * Records the stored session before it is written, if a snapshot is running. Subclasses writing to {@link #sessions}
+     * directly call it before every write.
+     * </p>
+     *
+     * @param key
+     */
+    protected void preserve(Serializable key) {
+        ConcurrentMap<Serializable, Object> preImages = this.preImages;
+
+        if (preImages != null && !preImages.containsKey(key)) {
+            PicketBoxSession session = this.sessions.get(key);
+
+            // the first recorded session is always the one stored when the snapshot started, as writers record before writing
+            preImages.putIfAbsent(key, session != null ? session : ABSENT);
+        }
+    }
+
+    /**
+     * <p>
+     * Goes through the sessions stored when this method is called, in batches, without blocking writers. Sessions stored
+     * meanwhile are skipped, and sessions replaced or removed meanwhile are returned as the instance stored before. Only one
+     * snapshot runs at a time.
+     * </p>
+     *
+     * @param batchSize
+     * @param handler
+     */
+    synchronized void snapshot(int batchSize, SessionBatchHandler handler) {
+        ConcurrentMap<Serializable, Object> preImages = new ConcurrentHashMap<Serializable, Object>();
+        List<PicketBoxSession> batch = new ArrayList<PicketBoxSession>(batchSize);
+
+        this.preImages = preImages;
+
+        try {
+            for (Map.Entry<Serializable, PicketBoxSession> entry : this.sessions.entrySet()) {
+                PicketBoxSession session = entry.getValue();
+
+                // a session not written before this point is still the one stored when the snapshot started
+                if (preImages.putIfAbsent(entry.getKey(), VISITED) == null) {
+                    addToBatch(batch, session, batchSize, handler);
+                }
+            }
+
+            for (Object preImage : preImages.values()) {
+                if (preImage instanceof PicketBoxSession) {
+                    addToBatch(batch, (PicketBoxSession) preImage, batchSize, handler);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                handler.handle(batch);
+            }
+        } finally {
+            this.preImages = null;
+        }
     }
 
     @Override
@@ -85,6 +357,15 @@ public abstract class AbstractSessionStore extends AbstractPicketBoxLifeCycle im
     @Override
     protected void doStop() {
         this.sessions.clear();
-        this.sessions = null;
     }
-}
\ No newline at end of file
+
+    private static void addToBatch(List<PicketBoxSession> batch, PicketBoxSession session, int batchSize,
+            SessionBatchHandler handler) {
+        batch.add(session);
+
+        if (batch.size() == batchSize) {
+            handler.handle(batch);
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxLogger;
+
+/**
+ * <p>
+ * A {@link PicketBoxSessionListener} forwarding the session events to other listeners from background threads, so slow
+ * listeners do not delay the requests or the expiration of sessions.
+ * </p>
+ * <p>
+ * Events are partitioned by session identifier over a fixed number of threads, each consuming a bounded queue. All the events
+ * of a session are handled by the same thread, in the order they were raised. When a queue is full the configured
+ * {@link OverflowPolicy} applies. Until the dispatcher is started, and after it is stopped, events are delivered on the
+ * calling thread.
+ * </p>
+ * <p>
+ * Listeners receive the session itself, not a copy of it: a listener running late sees its current state, for example the
+ * attributes of an invalidated session are already cleared.
+ * </p>
+ */
+public class AsyncSessionEventDispatcher extends AbstractPicketBoxLifeCycle implements PicketBoxSessionAttributeListener {
+
+    /**
+     * What to do with an event when the queue of its partition is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Wait for room in the queue. Ordering is kept, the calling thread is slowed down to the pace of the listeners.
+         */
+        BLOCK,
+
+        /**
+         * Drop the event and count it.
+         */
+        DISCARD,
+
+        /**
+         * Deliver the event on the calling thread. The event may be handled before older events of the same session.
+         */
+        CALLER_RUNS
+    }
+
+    private static final int CREATE = 0;
+    private static final int SET_ATTRIBUTE = 1;
+    private static final int GET_ATTRIBUTE = 2;
+    private static final int INVALIDATE = 3;
+    private static final int EXPIRATION = 4;
+    private static final int REMOVE_ATTRIBUTE = 5;
+    private static final long STOP_TIMEOUT = 1000;
+
+    private static final Event STOP = new Event(-1, null, null, null);
+
+    private final PicketBoxSessionListenerRegistry listeners;
+    private final Partition[] partitions;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong discardedEvents = new AtomicLong();
+    private final AtomicLong callerRunsEvents = new AtomicLong();
+    private volatile boolean running;
+
+    /**
+     * @param listeners the listeners the events are forwarded to
+     * @param threads the number of dispatching threads
+     * @param queueCapacity the maximum number of events waiting in the queue of each thread
+     * @param overflowPolicy
+     */
+    public AsyncSessionEventDispatcher(PicketBoxSessionListenerRegistry listeners, int threads, int queueCapacity,
+            OverflowPolicy overflowPolicy) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        }
+
+        this.listeners = listeners;
+        this.overflowPolicy = overflowPolicy;
+        this.partitions = new Partition[threads];
+
+        for (int i = 0; i < threads; i++) {
+            this.partitions[i] = new Partition(queueCapacity);
+        }
+    }
+
+    @Override
+    public void onCreate(PicketBoxSession session) {
+        dispatch(new Event(CREATE, session, null, null));
+    }
+
+    @Override
+    public void onSetAttribute(PicketBoxSession session, String key, Object value) {
+        dispatch(new Event(SET_ATTRIBUTE, session, key, value));
+    }
+
+    @Override
+    public void onRemoveAttribute(PicketBoxSession session, String key) {
+        dispatch(new Event(REMOVE_ATTRIBUTE, session, key, null));
+    }
+
+    @Override
+    public void onInvalidate(PicketBoxSession session) {
+        dispatch(new Event(INVALIDATE, session, null, null));
+    }
+
+    @Override
+    public void onExpiration(PicketBoxSession session) {
+        dispatch(new Event(EXPIRATION, session, null, null));
+    }
+
+    @Override
+    public void onGetAttribute(PicketBoxSession picketBoxSession) {
+        dispatch(new Event(GET_ATTRIBUTE, picketBoxSession, null, null));
+    }
+
+    /**
+     * @return the listeners the events are forwarded to
+     */
+    public PicketBoxSessionListenerRegistry getListeners() {
+        return this.listeners;
+    }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+
+        for (Partition partition : this.partitions) {
+            depth += partition.queue.size();
+        }
+
+        return depth;
+    }
+
+    /**
+     * @return the number of events waiting in the fullest queue
+     */
+    public int getMaxQueueDepth() {
+        int depth = 0;
+
+        for (Partition partition : this.partitions) {
+            depth = Math.max(depth, partition.queue.size());
+        }
+
+        return depth;
+    }
+
+    /**
+     * @return the number of events delivered by the dispatching threads
+     */
+    public long getDispatchedEvents() {
+        long dispatched = 0;
+
+        for (Partition partition : this.partitions) {
+            dispatched += partition.dispatched;
+        }
+
+        return dispatched;
+    }
+
+    /**
+     * @return the number of events dropped because their queue was full
+     */
+    public long getDiscardedEvents() {
+        return this.discardedEvents.get();
+    }
+
+    /**
+     * @return the number of events delivered on the calling thread because their queue was full
+     */
+    public long getCallerRunsEvents() {
+        return this.callerRunsEvents.get();
+    }
+
+    /**
+     * Get the average time between the moment an event is raised and the moment all the listeners handled it
+     *
+     * @param unit
+     * @return
+     */
+    public long getAverageDispatchLatency(TimeUnit unit) {
+        long dispatched = 0;
+        long latency = 0;
+
+        for (Partition partition : this.partitions) {
+            dispatched += partition.dispatched;
+            latency += partition.totalLatency;
+        }
+
+        return dispatched == 0 ? 0 : unit.convert(latency / dispatched, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the longest time between the moment an event is raised and the moment all the listeners handled it
+     *
+     * @param unit
+     * @return
+     */
+    public long getMaxDispatchLatency(TimeUnit unit) {
+        long latency = 0;
+
+        for (Partition partition : this.partitions) {
+            latency = Math.max(latency, partition.maxLatency);
+        }
+
+        return unit.convert(latency, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    protected void doStart() {
+        DaemonThreadFactory threadFactory = new DaemonThreadFactory("PicketBox Session Events");
+
+        for (final Partition partition : this.partitions) {
+            synchronized (partition) {
+                partition.stopped = false;
+            }
+
+            partition.thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    partition.run();
+                }
+            });
+        }
+
+        this.running = true;
+
+        for (Partition partition : this.partitions) {
+            partition.thread.start();
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        this.running = false;
+
+        // the threads deliver the events queued so far before stopping
+        for (Partition partition : this.partitions) {
+            try {
+                partition.queue.put(STOP);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        for (Partition partition : this.partitions) {
+            try {
+                partition.thread.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        // events queued by callers that saw the dispatcher running, after the threads stopped
+        for (Partition partition : this.partitions) {
+            partition.drainIfStopped();
+        }
+    }
+
+    private void dispatch(Event event) {
+        Partition partition = getPartition(event.session);
+
+        // events raised by the listeners themselves are handled right away, waiting for their own queue could deadlock
+        if (!this.running || partition.thread == Thread.currentThread()) {
+            deliver(event);
+            return;
+        }
+
+        if (partition.queue.offer(event)) {
+            drainIfStopped(partition);
+            return;
+        }
+
+        if (this.overflowPolicy == OverflowPolicy.BLOCK) {
+            try {
+                partition.queue.put(event);
+                drainIfStopped(partition);
+            } catch (InterruptedException e) {
+                this.discardedEvents.incrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+        } else if (this.overflowPolicy == OverflowPolicy.CALLER_RUNS) {
+            this.callerRunsEvents.incrementAndGet();
+            deliver(event);
+        } else {
+            this.discardedEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * <p>
+     * Delivers an event queued while the dispatcher was stopping, if the thread of its partition is already gone.
+     * </p>
+     */
+    private void drainIfStopped(Partition partition) {
+        if (!this.running) {
+            partition.drainIfStopped();
+        }
+    }
+
+    private Partition getPartition(PicketBoxSession session) {
+        SessionId<? extends Serializable> id = session.getId();
+        int hash = id == null || id.getId() == null ? 0 : id.getId().hashCode();
+
+        // spreads the bits of poor hash codes before reducing them to a partition
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return this.partitions[(hash & Integer.MAX_VALUE) % this.partitions.length];
+    }
+
+    private void deliver(Event event) {
+        PicketBoxSessionListener[] listeners = this.listeners.getListeners();
+
+        for (int i = 0; i < listeners.length; i++) {
+            try {
+                deliver(event, listeners[i]);
+            } catch (RuntimeException e) {
+                PicketBoxLogger.LOGGER.errorDispatchingSessionEvent(String.valueOf(event.session.getId()), e);
+            }
+        }
+    }
+
+    private void deliver(Event event, PicketBoxSessionListener listener) {
+        switch (event.type) {
+            case CREATE:
+                listener.onCreate(event.session);
+                break;
+            case SET_ATTRIBUTE:
+                listener.onSetAttribute(event.session, event.key, event.value);
+                break;
+            case GET_ATTRIBUTE:
+                listener.onGetAttribute(event.session);
+                break;
+            case REMOVE_ATTRIBUTE:
+                if (listener instanceof PicketBoxSessionAttributeListener) {
+                    ((PicketBoxSessionAttributeListener) listener).onRemoveAttribute(event.session, event.key);
+                }
+                break;
+            case INVALIDATE:
+                listener.onInvalidate(event.session);
+                break;
+            default:
+                listener.onExpiration(event.session);
+                break;
+        }
+    }
+
+    /**
+     * <p>
+     * A queue and the thread consuming it. The metrics are only written by that thread.
+     * </p>
+     * <p>
+     * When it gets the stop event, the thread delivers what is left in the queue and marks the partition as stopped, under the
+     * lock of the partition. Events queued later are delivered by whoever queued them, or by the stopping thread, so none of
+     * them stays in the queue.
+     * </p>
+     */
+    private final class Partition {
+
+        private final BlockingQueue<Event> queue;
+        private volatile Thread thread;
+        private boolean stopped;
+        private volatile long dispatched;
+        private volatile long totalLatency;
+        private volatile long maxLatency;
+
+        private Partition(int queueCapacity) {
+            this.queue = new ArrayBlockingQueue<Event>(queueCapacity);
+        }
+
+        private void run() {
+            while (true) {
+                Event event;
+
+                try {
+                    event = this.queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                if (event == STOP) {
+                    synchronized (this) {
+                        drain();
+                        this.stopped = true;
+                    }
+
+                    return;
+                }
+
+                deliver(event);
+
+                long latency = System.nanoTime() - event.raisedAt;
+
+                this.totalLatency += latency;
+                this.dispatched++;
+
+                if (latency > this.maxLatency) {
+                    this.maxLatency = latency;
+                }
+            }
+        }
+
+        private synchronized void drainIfStopped() {
+            if (this.stopped) {
+                drain();
+            }
+        }
+
+        private void drain() {
+            Event event;
+
+            while ((event = this.queue.poll()) != null) {
+                if (event != STOP) {
+                    deliver(event);
+                }
+            }
+        }
+    }
+
+    private static final class Event {
+
+        private final int type;
+        private final PicketBoxSession session;
+        private final String key;
+        private final Object value;
+        private final long raisedAt = System.nanoTime();
+
+        private Event(int type, PicketBoxSession session, String key, Object value) {
+            this.type = type;
+            this.session = session;
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
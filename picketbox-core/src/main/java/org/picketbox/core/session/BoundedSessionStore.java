@@ -0,0 +1,667 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.picketbox.core.PicketBoxLogger;
+import org.picketbox.core.PicketBoxMessages;
+import org.picketbox.core.exceptions.PicketBoxSessionException;
+
+/**
+ * <p>
+ * An in-memory {@link SessionStore} holding a bounded number of sessions, or sessions up to an estimated memory budget, so a
+ * burst of logins can not exhaust the heap.
+ * </p>
+ * <p>
+ * When the store is over its bounds, sessions are evicted according to an {@link EvictionPolicy}. Evicted sessions are
+ * expired after the store released its locks, so the {@link PicketBoxSessionListener#onExpiration(PicketBoxSession)} event is
+ * raised for them as if their timeout had elapsed.
+ * </p>
+ * <p>
+ * Loads read the sessions from a concurrent map without locking; the accesses are recorded in a lossy buffer which is replayed
+ * on the eviction policy in batches, by the thread that manages to take the policy lock. Writes update the policy under that
+ * lock. Every policy operation takes constant time.
+ * </p>
+ * <p>
+ * The size of a session is estimated as the size of its encoded form, see {@link PicketBoxSessionCodec}.
+ * </p>
+ */
+public class BoundedSessionStore extends AbstractSessionStore {
+
+    /**
+     * The policy choosing which session is evicted
+     */
+    public enum EvictionPolicy {
+
+        /**
+         * Evicts the least recently used session
+         */
+        LRU,
+
+        /**
+         * <p>
+         * Window TinyLFU: new sessions enter a small LRU window, and when they leave it they are only admitted in the main area
+         * if they were used more often than the session they would replace. Access frequencies are estimated with a count-min
+         * sketch that is periodically halved, so old popularity fades. This keeps the sessions in active use when a flood of
+         * sessions are created and never used again.
+         * </p>
+         */
+        TINY_LFU
+    }
+
+    private static final int READ_BUFFER_SIZE = 256;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int DRAIN_THRESHOLD = 32;
+
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+    private final EvictionPolicy policy;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicReferenceArray<Serializable> readBuffer = new AtomicReferenceArray<Serializable>(READ_BUFFER_SIZE);
+    private final AtomicLong readBufferWrites = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long readBufferReads;
+
+    // guarded by the eviction lock
+    private final Map<Serializable, Node> nodes = new HashMap<Serializable, Node>();
+    private final NodeList window = new NodeList();
+    private final NodeList probation = new NodeList();
+    private final NodeList protectedList = new NodeList();
+    private final FrequencySketch sketch;
+    private long weight;
+
+    /**
+     * @param maxEntries the maximum number of sessions, or 0 for no limit
+     * @param maxBytes the maximum estimated size of all sessions, or 0 for no limit
+     * @param policy the eviction policy
+     */
+    public BoundedSessionStore(int maxEntries, long maxBytes, EvictionPolicy policy) {
+        if (policy == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("policy");
+        }
+
+        if (maxEntries < 0 || maxBytes < 0 || (maxEntries == 0 && maxBytes == 0)) {
+            throw new IllegalArgumentException("Invalid session store bounds: " + maxEntries + " sessions, " + maxBytes
+                    + " bytes");
+        }
+
+        this.policy = policy;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+
+        // the policy areas are sized by weight, which is the estimated size if there is a memory budget and 1 otherwise
+        this.capacity = maxBytes > 0 ? maxBytes : maxEntries;
+
+        if (policy == EvictionPolicy.TINY_LFU) {
+            this.windowCapacity = Math.max(1, this.capacity / 100);
+            this.protectedCapacity = (this.capacity - this.windowCapacity) * 8 / 10;
+            this.sketch = new FrequencySketch(maxEntries > 0 ? maxEntries : (int) Math.min(maxBytes / 1024, 1 << 24));
+        } else {
+            this.windowCapacity = this.capacity;
+            this.protectedCapacity = 0;
+            this.sketch = null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#load(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public PicketBoxSession load(SessionId<? extends Serializable> key) {
+        PicketBoxSession session = super.load(key);
+
+        if (session != null) {
+            recordRead(key.getId());
+        }
+
+        return session;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void store(PicketBoxSession session) {
+        store(session, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#storeIfAbsent(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public boolean storeIfAbsent(PicketBoxSession session) {
+        return store(session, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        update(session, false, 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#update(org.picketbox.core.session.PicketBoxSession, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, long expectedVersion) {
+        return update(session, true, expectedVersion);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        this.evictionLock.lock();
+
+        try {
+            drainReadBuffer();
+
+            super.remove(id);
+
+            Node node = this.nodes.remove(id.getId());
+
+            if (node != null) {
+                listOf(node).remove(node);
+                this.weight -= node.weight;
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of sessions in the store
+     */
+    public int size() {
+        return this.sessions.size();
+    }
+
+    /**
+     * @return the estimated size of all sessions if the store has a memory budget, otherwise the number of sessions
+     */
+    public long getWeight() {
+        this.evictionLock.lock();
+
+        try {
+            return this.weight;
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of sessions evicted so far
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    @Override
+    protected void doStop() {
+        this.evictionLock.lock();
+
+        try {
+            super.doStop();
+            this.nodes.clear();
+            this.window.clear();
+            this.probation.clear();
+            this.protectedList.clear();
+            this.weight = 0;
+
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                this.readBuffer.set(i, null);
+            }
+
+            this.readBufferReads = this.readBufferWrites.get();
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    private boolean store(PicketBoxSession session, boolean onlyIfAbsent) {
+        Serializable id = session.getId().getId();
+        long sessionWeight = weigh(session);
+        List<PicketBoxSession> evicted;
+
+        this.evictionLock.lock();
+
+        try {
+            drainReadBuffer();
+
+            if (this.nodes.containsKey(id)) {
+                if (!onlyIfAbsent) {
+                    super.store(session);
+                }
+
+                return false;
+            }
+
+            super.store(session);
+
+            Node node = new Node(id, sessionWeight);
+
+            this.nodes.put(id, node);
+            this.window.addLast(node);
+            this.weight += sessionWeight;
+
+            if (this.sketch != null) {
+                this.sketch.increment(id);
+            }
+
+            evicted = evict();
+        } finally {
+            this.evictionLock.unlock();
+        }
+
+        expire(evicted);
+
+        return true;
+    }
+
+    private boolean update(PicketBoxSession session, boolean conditional, long expectedVersion) {
+        Serializable id = session.getId().getId();
+        long sessionWeight = weigh(session);
+        List<PicketBoxSession> evicted;
+
+        this.evictionLock.lock();
+
+        try {
+            drainReadBuffer();
+
+            Node node = this.nodes.get(id);
+
+            if (node == null || !(conditional ? replace(session, expectedVersion) : replace(session))) {
+                return false;
+            }
+
+            this.weight += sessionWeight - node.weight;
+            listOf(node).weight += sessionWeight - node.weight;
+            node.weight = sessionWeight;
+
+            onAccess(node);
+
+            evicted = evict();
+        } finally {
+            this.evictionLock.unlock();
+        }
+
+        expire(evicted);
+
+        return true;
+    }
+
+    private long weigh(PicketBoxSession session) {
+        return this.maxBytes > 0 ? this.codec.encode(session).length : 1;
+    }
+
+    /**
+     * <p>
+     * Records a read in the buffer, dropping it if the buffer is full, and replays the buffer if enough reads are pending.
+     * </p>
+     */
+    private void recordRead(Serializable id) {
+        long writes = this.readBufferWrites.get();
+        long pending = writes - this.readBufferReads;
+
+        if (pending < READ_BUFFER_SIZE && this.readBufferWrites.compareAndSet(writes, writes + 1)) {
+            this.readBuffer.lazySet((int) (writes & READ_BUFFER_MASK), id);
+            pending++;
+        }
+
+        if (pending >= DRAIN_THRESHOLD && this.evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Must be called holding the eviction lock.
+     */
+    private void drainReadBuffer() {
+        long reads = this.readBufferReads;
+        long writes = this.readBufferWrites.get();
+
+        for (; reads < writes; reads++) {
+            int index = (int) (reads & READ_BUFFER_MASK);
+            Serializable id = this.readBuffer.get(index);
+
+            if (id == null) {
+                // the reader claimed the index but did not publish it yet
+                break;
+            }
+
+            this.readBuffer.lazySet(index, null);
+
+            Node node = this.nodes.get(id);
+
+            if (node != null) {
+                onAccess(node);
+            }
+        }
+
+        this.readBufferReads = reads;
+    }
+
+    private void onAccess(Node node) {
+        if (this.sketch != null) {
+            this.sketch.increment(node.id);
+        }
+
+        NodeList list = listOf(node);
+
+        if (list == this.probation) {
+            // a second access promotes the session to the protected area
+            this.probation.remove(node);
+            this.protectedList.addLast(node);
+
+            while (this.protectedList.weight > this.protectedCapacity && this.protectedList.head != null) {
+                Node demoted = this.protectedList.head;
+
+                this.protectedList.remove(demoted);
+                this.probation.addLast(demoted);
+            }
+        } else {
+            list.moveToLast(node);
+        }
+    }
+
+    /**
+     * @return the evicted sessions. Must be called holding the eviction lock.
+     */
+    private List<PicketBoxSession> evict() {
+        List<PicketBoxSession> evicted = null;
+
+        if (this.policy == EvictionPolicy.TINY_LFU) {
+            // sessions leaving the window become candidates for the main area
+            while (this.window.weight > this.windowCapacity && this.window.head != this.window.tail) {
+                Node candidate = this.window.head;
+
+                this.window.remove(candidate);
+                this.probation.addLast(candidate);
+            }
+        }
+
+        while (isOverCapacity()) {
+            Node victim = selectVictim();
+
+            if (victim == null) {
+                break;
+            }
+
+            listOf(victim).remove(victim);
+            this.nodes.remove(victim.id);
+            this.weight -= victim.weight;
+
+            preserve(victim.id);
+
+            PicketBoxSession session = this.sessions.remove(victim.id);
+
+            if (session != null) {
+                if (evicted == null) {
+                    evicted = new ArrayList<PicketBoxSession>();
+                }
+
+                evicted.add(session);
+                this.evictions.incrementAndGet();
+            }
+        }
+
+        return evicted;
+    }
+
+    private boolean isOverCapacity() {
+        return (this.maxEntries > 0 && this.nodes.size() > this.maxEntries)
+                || (this.maxBytes > 0 && this.weight > this.maxBytes);
+    }
+
+    private Node selectVictim() {
+        if (this.policy == EvictionPolicy.LRU) {
+            return this.window.head;
+        }
+
+        Node victim = this.probation.head;
+        Node candidate = this.probation.tail;
+
+        if (victim == null) {
+            return this.protectedList.head != null ? this.protectedList.head : this.window.head;
+        }
+
+        // the most recent candidate is only admitted if it is used more often than the session it would replace
+        if (candidate != victim && this.sketch.frequency(candidate.id) <= this.sketch.frequency(victim.id)) {
+            return candidate;
+        }
+
+        return victim;
+    }
+
+    private NodeList listOf(Node node) {
+        return node.list;
+    }
+
+    private void expire(List<PicketBoxSession> evicted) {
+        if (evicted == null) {
+            return;
+        }
+
+        for (PicketBoxSession session : evicted) {
+            try {
+                if (session.isValid()) {
+                    session.expire();
+                }
+            } catch (PicketBoxSessionException e) {
+                PicketBoxLogger.LOGGER.errorExpiringSession(String.valueOf(session.getId().getId()), e);
+            }
+        }
+    }
+
+    private static final class Node {
+
+        private final Serializable id;
+        private long weight;
+        private NodeList list;
+        private Node previous;
+        private Node next;
+
+        Node(Serializable id, long weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * <p>
+     * An intrusive doubly linked list of nodes, from the least to the most recently used, tracking its total weight.
+     * </p>
+     */
+    private static final class NodeList {
+
+        private Node head;
+        private Node tail;
+        private long weight;
+
+        void addLast(Node node) {
+            node.list = this;
+            node.previous = this.tail;
+            node.next = null;
+
+            if (this.tail == null) {
+                this.head = node;
+            } else {
+                this.tail.next = node;
+            }
+
+            this.tail = node;
+            this.weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.previous == null) {
+                this.head = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+
+            if (node.next == null) {
+                this.tail = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+
+            node.list = null;
+            node.previous = null;
+            node.next = null;
+            this.weight -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if (this.tail != node) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            this.head = null;
+            this.tail = null;
+            this.weight = 0;
+        }
+    }
+
+    /**
+     * <p>
+     * A count-min sketch of 4-bit counters estimating how often each session was used. Every counter is halved once the number
+     * of recorded accesses reaches ten times the table size, so the estimates favor recent activity.
+     * </p>
+     */
+    private static final class FrequencySketch {
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int[] SEEDS = { 0x97CB3127, 0xB492B66F, 0x9AE16A3B, 0xC3A5C85C };
+
+        private final long[] table;
+        private final int sampleSize;
+        private int size;
+
+        FrequencySketch(int expectedEntries) {
+            int length = 1;
+
+            while (length < Math.max(16, expectedEntries)) {
+                length <<= 1;
+            }
+
+            this.table = new long[length];
+            this.sampleSize = 10 * length;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                int offset = counterOffset(hash, i);
+
+                frequency = Math.min(frequency, (int) ((this.table[index] >>> offset) & 0xF));
+            }
+
+            return frequency;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                int offset = counterOffset(hash, i);
+
+                if (((this.table[index] >>> offset) & 0xF) != 0xF) {
+                    this.table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+
+            if (added && ++this.size == this.sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < this.table.length; i++) {
+                this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+            }
+
+            this.size /= 2;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + (long) SEEDS[i]) * SEEDS[i];
+
+            h += h >>> 32;
+
+            return (int) h & (this.table.length - 1);
+        }
+
+        private static int counterOffset(int hash, int i) {
+            // each counter of the row uses its own nibble of the word
+            return (((hash >>> (i << 3)) & 3) << 2) + (i << 4);
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45D9F3B;
+            hash = ((hash >>> 16) ^ hash) * 0x45D9F3B;
+
+            return (hash >>> 16) ^ hash;
+        }
+    }
+}
@@ -0,0 +1,705 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * A {@link ConcurrentMap} of sessions keyed by the identifier of the session they map to, which stores the identifiers
+ * generated by {@link SecureSessionIdGenerator} and {@link java.util.UUID} as two longs instead of {@link String} keys.
+ * </p>
+ * <p>
+ * Parsed identifiers live in segmented open-addressing tables holding the 128 bits of each identifier and the hash code of the
+ * identifier string in a <code>long</code> array, next to the session in a parallel array, so entries cost no key, node or
+ * boxed hash objects and lookups parse the identifier without allocating. A hit is confirmed by the hash code, which tells
+ * apart identifiers sharing the same 128 bits with a different node suffix without reading the stored session. Writes compare
+ * the identifiers themselves. Identifiers that do not parse, and the unlikely identifiers colliding with a stored one, are kept
+ * in {@link ConcurrentHashMap}s. Colliding identifiers are always handled under the lock of the segment owning their bits, so
+ * an identifier is never in both places.
+ * </p>
+ * <p>
+ * Reads never block: segments are only locked by writers, and readers validate their lookup against a stamp the writers
+ * change when they move entries.
+ * </p>
+ */
+final class CompactSessionIndex extends AbstractMap<Serializable, PicketBoxSession> implements
+        ConcurrentMap<Serializable, PicketBoxSession> {
+
+    private static final int BASE64_LENGTH = SecureSessionIdGenerator.ID_LENGTH;
+    private static final int UUID_LENGTH = 36;
+    private static final int NOT_PARSABLE = 0;
+    private static final int BASE64 = 1;
+    private static final int UUID = 2;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+    private static final int KEY_STRIDE = 3;
+    private static final int MAX_OPTIMISTIC_READS = 4;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final ConcurrentMap<Serializable, PicketBoxSession> fallback;
+    private final ConcurrentMap<String, PicketBoxSession> collisions = new ConcurrentHashMap<String, PicketBoxSession>();
+    private final Set<Map.Entry<Serializable, PicketBoxSession>> entrySet = new EntrySet();
+
+    /**
+     * @param concurrencyLevel the estimated number of threads concurrently writing to the index
+     */
+    CompactSessionIndex(int concurrencyLevel) {
+        int segmentCount = Integer.highestOneBit(Math.max(1, concurrencyLevel - 1)) << 1;
+
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment();
+        }
+
+        this.fallback = new ConcurrentHashMap<Serializable, PicketBoxSession>(16, 0.75f, concurrencyLevel);
+    }
+
+    @Override
+    public PicketBoxSession get(Object key) {
+        int format = format(key);
+
+        if (format == NOT_PARSABLE) {
+            return this.fallback.get(key);
+        }
+
+        String id = (String) key;
+        long high = high(id, format);
+        long low = low(id, format);
+
+        return segmentFor(high, low).get(id, high, low);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public PicketBoxSession put(Serializable key, PicketBoxSession value) {
+        return put(key, value, false);
+    }
+
+    @Override
+    public PicketBoxSession putIfAbsent(Serializable key, PicketBoxSession value) {
+        return put(key, value, true);
+    }
+
+    @Override
+    public PicketBoxSession remove(Object key) {
+        return remove(key, null);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (value == null) {
+            return false;
+        }
+
+        return remove(key, (PicketBoxSession) value) != null;
+    }
+
+    @Override
+    public boolean replace(Serializable key, PicketBoxSession oldValue, PicketBoxSession newValue) {
+        if (oldValue == null || newValue == null) {
+            throw new NullPointerException();
+        }
+
+        int format = format(key);
+
+        if (format == NOT_PARSABLE) {
+            return this.fallback.replace(key, oldValue, newValue);
+        }
+
+        String id = (String) key;
+        long high = high(id, format);
+        long low = low(id, format);
+
+        return segmentFor(high, low).replace(id, high, low, oldValue, newValue) != null;
+    }
+
+    @Override
+    public PicketBoxSession replace(Serializable key, PicketBoxSession value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+
+        int format = format(key);
+
+        if (format == NOT_PARSABLE) {
+            return this.fallback.replace(key, value);
+        }
+
+        String id = (String) key;
+        long high = high(id, format);
+        long low = low(id, format);
+
+        return segmentFor(high, low).replace(id, high, low, null, value);
+    }
+
+    @Override
+    public int size() {
+        long size = this.fallback.size() + this.collisions.size();
+
+        for (Segment segment : this.segments) {
+            size += segment.size;
+        }
+
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+
+        this.fallback.clear();
+        this.collisions.clear();
+    }
+
+    /**
+     * <p>
+     * Returns a view of the entries, whose iterator is weakly consistent and supports removal.
+     * </p>
+     */
+    @Override
+    public Set<Map.Entry<Serializable, PicketBoxSession>> entrySet() {
+        return this.entrySet;
+    }
+
+    private PicketBoxSession put(Serializable key, PicketBoxSession value, boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+
+        int format = format(key);
+
+        if (format == NOT_PARSABLE) {
+            return onlyIfAbsent ? this.fallback.putIfAbsent(key, value) : this.fallback.put(key, value);
+        }
+
+        String id = (String) key;
+        long high = high(id, format);
+        long low = low(id, format);
+
+        return segmentFor(high, low).put(id, high, low, value, onlyIfAbsent);
+    }
+
+    private PicketBoxSession remove(Object key, PicketBoxSession expected) {
+        int format = format(key);
+
+        if (format == NOT_PARSABLE) {
+            if (expected == null) {
+                return this.fallback.remove(key);
+            }
+
+            return this.fallback.remove(key, expected) ? expected : null;
+        }
+
+        String id = (String) key;
+        long high = high(id, format);
+        long low = low(id, format);
+
+        return segmentFor(high, low).remove(id, high, low, expected);
+    }
+
+    private Segment segmentFor(long high, long low) {
+        return this.segments[(int) (hash(high, low) >>> 32) >>> this.segmentShift & (this.segments.length - 1)];
+    }
+
+    /**
+     * @param high
+     * @param low
+     * @return a well mixed hash of the identifier bits, which are not all random for version 4 UUIDs
+     */
+    static long hash(long high, long low) {
+        long hash = high * 0x9E3779B97F4A7C15L ^ low;
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+
+        return hash ^ hash >>> 33;
+    }
+
+    /**
+     * @param key
+     * @return the format of the given key, checking all the characters that are parsed
+     */
+    static int format(Object key) {
+        if (!(key instanceof String)) {
+            return NOT_PARSABLE;
+        }
+
+        String id = (String) key;
+        int length = id.length();
+
+        if (length == BASE64_LENGTH || (length > BASE64_LENGTH && id.charAt(BASE64_LENGTH) == '.')) {
+            for (int i = 0; i < BASE64_LENGTH; i++) {
+                if (SecureSessionIdGenerator.decode(id.charAt(i)) < 0) {
+                    return NOT_PARSABLE;
+                }
+            }
+
+            return BASE64;
+        }
+
+        if (length == UUID_LENGTH) {
+            for (int i = 0; i < UUID_LENGTH; i++) {
+                char c = id.charAt(i);
+
+                if (i == 8 || i == 13 || i == 18 || i == 23) {
+                    if (c != '-') {
+                        return NOT_PARSABLE;
+                    }
+                } else if (Character.digit(c, 16) < 0 || c >= 128) {
+                    return NOT_PARSABLE;
+                }
+            }
+
+            return UUID;
+        }
+
+        return NOT_PARSABLE;
+    }
+
+    /**
+     * @param id
+     * @param format
+     * @return the 64 most significant bits of an identifier
+     */
+    static long high(String id, int format) {
+        if (format == BASE64) {
+            long bits = 0;
+
+            // ten characters hold 60 bits, the eleventh gives its four most significant bits
+            for (int i = 0; i < 10; i++) {
+                bits = bits << 6 | SecureSessionIdGenerator.decode(id.charAt(i));
+            }
+
+            return bits << 4 | SecureSessionIdGenerator.decode(id.charAt(10)) >>> 2;
+        }
+
+        return hex(id, 0, 8) << 32 | hex(id, 9, 13) << 16 | hex(id, 14, 18);
+    }
+
+    /**
+     * @param id
+     * @param format
+     * @return the 64 least significant bits of an identifier
+     */
+    static long low(String id, int format) {
+        if (format == BASE64) {
+            long bits = SecureSessionIdGenerator.decode(id.charAt(10)) & 0x3;
+
+            for (int i = 11; i < 21; i++) {
+                bits = bits << 6 | SecureSessionIdGenerator.decode(id.charAt(i));
+            }
+
+            // the last character only carries two bits
+            return bits << 2 | SecureSessionIdGenerator.decode(id.charAt(21)) >>> 4;
+        }
+
+        return hex(id, 19, 23) << 48 | hex(id, 24, 36);
+    }
+
+    private static long hex(String id, int start, int end) {
+        long bits = 0;
+
+        for (int i = start; i < end; i++) {
+            bits = bits << 4 | Character.digit(id.charAt(i), 16);
+        }
+
+        return bits;
+    }
+
+    /**
+     * <p>
+     * A linear probing table of identifier bits and sessions, with backward shift deletion so no tombstones are left behind.
+     * </p>
+     * <p>
+     * Writers hold the lock of the segment. Readers do not lock: the arrays of the table are atomic arrays published through a
+     * volatile field, a new entry publishes its key before its session, and a resized table is filled before it is published.
+     * The only change that can hide an entry from a reader is a removal shifting entries back, which makes the stamp of the
+     * segment odd while it runs. Readers check that the stamp did not change during their lookup, and take the lock after a
+     * few failed attempts.
+     * </p>
+     */
+    private final class Segment {
+
+        private volatile Table table = new Table(INITIAL_SEGMENT_CAPACITY);
+        private volatile int stamp;
+        private volatile int size;
+
+        PicketBoxSession get(String id, long high, long low) {
+            int hash = id.hashCode();
+
+            for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+                int stamp = this.stamp;
+
+                if ((stamp & 1) != 0) {
+                    continue;
+                }
+
+                Table table = this.table;
+                int slot = table.find(high, low);
+                PicketBoxSession value = slot >= 0 ? table.values.get(slot) : null;
+                boolean exact = slot >= 0 && table.keys.get(slot * KEY_STRIDE + 2) == hash;
+
+                if (this.stamp == stamp && (slot < 0 || value != null)) {
+                    if (slot < 0) {
+                        return null;
+                    }
+
+                    return exact ? value : collisions.get(id);
+                }
+            }
+
+            synchronized (this) {
+                Table table = this.table;
+                int slot = table.find(high, low);
+
+                if (slot < 0) {
+                    return null;
+                }
+
+                return table.keys.get(slot * KEY_STRIDE + 2) == hash ? table.values.get(slot) : collisions.get(id);
+            }
+        }
+
+        synchronized PicketBoxSession put(String id, long high, long low, PicketBoxSession value, boolean onlyIfAbsent) {
+            Table table = this.table;
+            int slot = table.find(high, low);
+
+            if (slot >= 0) {
+                PicketBoxSession existing = table.values.get(slot);
+
+                if (!id.equals(existing.getId().getId())) {
+                    return onlyIfAbsent ? collisions.putIfAbsent(id, value) : collisions.put(id, value);
+                }
+
+                if (!onlyIfAbsent) {
+                    table.values.set(slot, value);
+                }
+
+                return existing;
+            }
+
+            if (this.size >= table.capacity - (table.capacity >>> 2)) {
+                table = resize();
+                slot = table.find(high, low);
+            }
+
+            table.insert(-slot - 1, high, low, id.hashCode(), value);
+            this.size++;
+
+            return null;
+        }
+
+        synchronized PicketBoxSession replace(String id, long high, long low, PicketBoxSession expected,
+                PicketBoxSession value) {
+            Table table = this.table;
+            int slot = table.find(high, low);
+
+            if (slot < 0) {
+                return null;
+            }
+
+            PicketBoxSession existing = table.values.get(slot);
+
+            if (!id.equals(existing.getId().getId())) {
+                if (expected == null) {
+                    return collisions.replace(id, value);
+                }
+
+                return collisions.replace(id, expected, value) ? expected : null;
+            }
+
+            if (expected != null && !expected.equals(existing)) {
+                return null;
+            }
+
+            table.values.set(slot, value);
+
+            return existing;
+        }
+
+        synchronized PicketBoxSession remove(String id, long high, long low, PicketBoxSession expected) {
+            Table table = this.table;
+            int slot = table.find(high, low);
+
+            if (slot < 0) {
+                return null;
+            }
+
+            PicketBoxSession existing = table.values.get(slot);
+
+            if (!id.equals(existing.getId().getId())) {
+                if (expected == null) {
+                    return collisions.remove(id);
+                }
+
+                return collisions.remove(id, expected) ? expected : null;
+            }
+
+            if (expected != null && !expected.equals(existing)) {
+                return null;
+            }
+
+            this.stamp++;
+
+            try {
+                table.delete(slot);
+            } finally {
+                this.stamp++;
+            }
+
+            this.size--;
+
+            // a colliding identifier takes over the slot, so it is found without looking at the collisions first
+            if (!collisions.isEmpty()) {
+                for (Map.Entry<String, PicketBoxSession> entry : collisions.entrySet()) {
+                    String other = entry.getKey();
+                    int format = format(other);
+
+                    if (high(other, format) == high && low(other, format) == low
+                            && collisions.remove(other, entry.getValue())) {
+                        put(other, high, low, entry.getValue(), false);
+                        break;
+                    }
+                }
+            }
+
+            return existing;
+        }
+
+        synchronized void clear() {
+            this.table = new Table(INITIAL_SEGMENT_CAPACITY);
+            this.size = 0;
+        }
+
+        void copyTo(List<Map.Entry<Serializable, PicketBoxSession>> entries) {
+            Table table = this.table;
+
+            for (int i = 0; i < table.capacity; i++) {
+                PicketBoxSession value = table.values.get(i);
+
+                if (value != null) {
+                    entries.add(new SimpleImmutableEntry<Serializable, PicketBoxSession>(value.getId().getId(), value));
+                }
+            }
+        }
+
+        /**
+         * @return a table twice as large holding the same entries, which replaces the current one once it is filled
+         */
+        private Table resize() {
+            Table current = this.table;
+            Table resized = new Table(current.capacity * 2);
+
+            for (int i = 0; i < current.capacity; i++) {
+                PicketBoxSession value = current.values.get(i);
+
+                if (value != null) {
+                    long high = current.keys.get(i * KEY_STRIDE);
+                    long low = current.keys.get(i * KEY_STRIDE + 1);
+
+                    resized.insert(-resized.find(high, low) - 1, high, low, current.keys.get(i * KEY_STRIDE + 2), value);
+                }
+            }
+
+            this.table = resized;
+
+            return resized;
+        }
+    }
+
+    /**
+     * <p>
+     * The arrays of a {@link Segment}. For each slot, the keys hold the two longs of the identifier and the hash code of the
+     * identifier string, which tells apart identifiers sharing the same bits with a different node suffix without reading the
+     * stored session.
+     * </p>
+     */
+    private static final class Table {
+
+        private final int capacity;
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<PicketBoxSession> values;
+
+        Table(int capacity) {
+            this.capacity = capacity;
+            this.keys = new AtomicLongArray(capacity * KEY_STRIDE);
+            this.values = new AtomicReferenceArray<PicketBoxSession>(capacity);
+        }
+
+        /**
+         * @return the slot holding the given bits, or -(insertion slot + 1)
+         */
+        int find(long high, long low) {
+            int mask = this.capacity - 1;
+            int slot = (int) hash(high, low) & mask;
+
+            // bounded, a reader may race with writers filling the slots it goes through
+            for (int i = 0; i < this.capacity && this.values.get(slot) != null; i++) {
+                if (this.keys.get(slot * KEY_STRIDE) == high && this.keys.get(slot * KEY_STRIDE + 1) == low) {
+                    return slot;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            return -slot - 1;
+        }
+
+        /**
+         * <p>
+         * Fills an empty slot. The key is written first, so a reader seeing the session also sees its key.
+         * </p>
+         */
+        void insert(int slot, long high, long low, long hash, PicketBoxSession value) {
+            this.keys.set(slot * KEY_STRIDE, high);
+            this.keys.set(slot * KEY_STRIDE + 1, low);
+            this.keys.set(slot * KEY_STRIDE + 2, hash);
+            this.values.set(slot, value);
+        }
+
+        void delete(int slot) {
+            int mask = this.capacity - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+
+            while (this.values.get(next) != null) {
+                long high = this.keys.get(next * KEY_STRIDE);
+                long low = this.keys.get(next * KEY_STRIDE + 1);
+                int home = (int) hash(high, low) & mask;
+
+                // moves the entry back if the hole lies between its home slot and its current slot
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    this.keys.set(hole * KEY_STRIDE, high);
+                    this.keys.set(hole * KEY_STRIDE + 1, low);
+                    this.keys.set(hole * KEY_STRIDE + 2, this.keys.get(next * KEY_STRIDE + 2));
+                    this.values.set(hole, this.values.get(next));
+                    hole = next;
+                }
+
+                next = (next + 1) & mask;
+            }
+
+            this.values.set(hole, null);
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<Serializable, PicketBoxSession>> {
+
+        @Override
+        public Iterator<Map.Entry<Serializable, PicketBoxSession>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return CompactSessionIndex.this.size();
+        }
+    }
+
+    /**
+     * <p>
+     * A weakly consistent iterator. Segments are copied one at a time while holding their lock, so only a small part of the
+     * index is copied at once and writers are only blocked for the time of a copy. The fallback and colliding entries are
+     * iterated directly.
+     * </p>
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<Serializable, PicketBoxSession>> {
+
+        private final List<Map.Entry<Serializable, PicketBoxSession>> segmentEntries =
+                new ArrayList<Map.Entry<Serializable, PicketBoxSession>>();
+        private final Iterator<Map.Entry<Serializable, PicketBoxSession>> fallbackEntries = fallback.entrySet().iterator();
+        private final Iterator<Map.Entry<String, PicketBoxSession>> collidingEntries = collisions.entrySet().iterator();
+        private int segment;
+        private int position;
+        private Map.Entry<Serializable, PicketBoxSession> current;
+
+        @Override
+        public boolean hasNext() {
+            while (this.position == this.segmentEntries.size() && this.segment < segments.length) {
+                this.segmentEntries.clear();
+                this.position = 0;
+                segments[this.segment++].copyTo(this.segmentEntries);
+            }
+
+            return this.position < this.segmentEntries.size() || this.fallbackEntries.hasNext()
+                    || this.collidingEntries.hasNext();
+        }
+
+        @Override
+        public Map.Entry<Serializable, PicketBoxSession> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            if (this.position < this.segmentEntries.size()) {
+                this.current = this.segmentEntries.get(this.position++);
+            } else if (this.fallbackEntries.hasNext()) {
+                this.current = new SimpleImmutableEntry<Serializable, PicketBoxSession>(this.fallbackEntries.next());
+            } else {
+                Map.Entry<String, PicketBoxSession> entry = this.collidingEntries.next();
+
+                this.current = new SimpleImmutableEntry<Serializable, PicketBoxSession>(entry.getKey(), entry.getValue());
+            }
+
+            return this.current;
+        }
+
+        @Override
+        public void remove() {
+            if (this.current == null) {
+                throw new IllegalStateException();
+            }
+
+            CompactSessionIndex.this.remove(this.current.getKey(), this.current.getValue());
+            this.current = null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * <p>
+ * An immutable consistent hash ring mapping session ids to the nodes owning them. Each node is placed at several points of the
+ * ring, its virtual nodes, so the sessions spread evenly and adding or removing a node only moves the sessions of the arcs it
+ * gains or loses. The points are kept in a sorted <code>long[]</code> searched by bisection.
+ * </p>
+ */
+final class ConsistentHashRing {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long[] points;
+    private final String[] nodes;
+    private final int nodeCount;
+
+    /**
+     * @param members the names of the nodes
+     * @param virtualNodes the number of points of each node on the ring
+     */
+    ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        List<Point> points = new ArrayList<Point>(members.size() * virtualNodes);
+
+        for (String member : members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.add(new Point(hash((member + "#" + i).getBytes(UTF_8)), member));
+            }
+        }
+
+        // ties, only possible on 64-bit collisions, are broken by name so all the nodes build the same ring
+        Collections.sort(points);
+
+        this.points = new long[points.size()];
+        this.nodes = new String[points.size()];
+        this.nodeCount = new HashSet<String>(members).size();
+
+        for (int i = 0; i < this.points.length; i++) {
+            this.points[i] = points.get(i).hash;
+            this.nodes[i] = points.get(i).node;
+        }
+    }
+
+    /**
+     * @param id
+     * @param count
+     * @return the first distinct nodes following the id on the ring, at most count of them. The first one is the primary owner.
+     */
+    List<String> getOwners(Serializable id, int count) {
+        int wanted = Math.min(count, this.nodeCount);
+        List<String> owners = new ArrayList<String>(wanted);
+
+        if (wanted == 0) {
+            return owners;
+        }
+
+        int index = Arrays.binarySearch(this.points, hash(PicketBoxSessionCodec.encodeKey(id)));
+
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        for (int i = 0; i < this.points.length && owners.size() < wanted; i++) {
+            String node = this.nodes[(index + i) % this.points.length];
+
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+
+        return owners;
+    }
+
+    /**
+     * @return the FNV-1a hash of the bytes, with its bits mixed so close inputs land far apart on the ring
+     */
+    static long hash(byte[] bytes) {
+        long hash = 0xCBF29CE484222325L;
+
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    private static final class Point implements Comparable<Point> {
+
+        private final long hash;
+        private final String node;
+
+        private Point(long hash, String node) {
+            this.hash = hash;
+            this.node = node;
+        }
+
+        @Override
+        public int compareTo(Point other) {
+            if (this.hash != other.hash) {
+                return this.hash < other.hash ? -1 : 1;
+            }
+
+            return this.node.compareTo(other.node);
+        }
+    }
+}
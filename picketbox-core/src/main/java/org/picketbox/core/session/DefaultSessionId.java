@@ -22,13 +22,11 @@
 
 package org.picketbox.core.session;
 
-import java.util.UUID;
-
 /**
  * <p>
  * Default implementation for {@link SessionId}. Instances can be created using the no-arg constructor or by using the
  * constructor that expects a {@link String} as the identifier. If the no-arg constructor is used a random identifier will be
- * generated.
+ * generated by the default {@link SecureSessionIdGenerator}.
  * </p>
  *
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
@@ -41,7 +39,7 @@ public class DefaultSessionId implements SessionId<String> {
     private String id;
 
     public DefaultSessionId() {
-        this.id = UUID.randomUUID().toString();
+        this.id = SecureSessionIdGenerator.getDefault().generateId();
     }
 
     public DefaultSessionId(String id) {
@@ -23,11 +23,20 @@
 package org.picketbox.core.session;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxLogger;
 import org.picketbox.core.PicketBoxSubject;
 import org.picketbox.core.config.PicketBoxConfiguration;
+import org.picketbox.core.exceptions.PicketBoxSessionException;
+import org.picketbox.core.session.AsyncSessionEventDispatcher.OverflowPolicy;
 
 /**
  * Default implementation of the {@link SessionManager}
@@ -38,7 +47,13 @@ public class DefaultSessionManager extends AbstractPicketBoxLifeCycle implements
 
     private SessionStore sessionStore;
     private final SessionExpirationManager sessionExpirationManager;
-    private final List<PicketBoxSessionListener> listeners;
+    private final SessionWriteBehindManager sessionWriteBehindManager;
+    private final PicketBoxSessionListenerRegistry listenerRegistry;
+    private final AsyncSessionEventDispatcher eventDispatcher;
+    private final SessionSnapshotter snapshotter;
+    private final PrincipalSessionIndex principalIndex = new PrincipalSessionIndex();
+    private final int maxSessionsPerPrincipal;
+    private final SessionIdGenerator sessionIdGenerator;
 
     /**
      * Construct the session manager
@@ -46,15 +61,52 @@ public class DefaultSessionManager extends AbstractPicketBoxLifeCycle implements
      * @param configuration PicketBox Configuration
      */
     public DefaultSessionManager(PicketBoxConfiguration configuration) {
-        this.sessionExpirationManager = new SessionExpirationManager(configuration);
+        this.sessionExpirationManager = new SessionExpirationManager(configuration, this);
         this.sessionStore = configuration.getSessionManager().getStore();
 
         if (this.sessionStore == null) {
             this.sessionStore = new InMemorySessionStore();
         }
 
-        this.listeners = configuration.getSessionManager().getListeners();
-        this.listeners.add(new PicketBoxSessionStoreListener(this));
+        long writeBehindInterval = configuration.getSessionManager().getWriteBehindInterval();
+
+        if (writeBehindInterval > 0) {
+            this.sessionWriteBehindManager = new SessionWriteBehindManager(this.sessionStore, writeBehindInterval);
+        } else {
+            this.sessionWriteBehindManager = null;
+        }
+
+        this.snapshotter = configuration.getSessionManager().getSnapshotter();
+        this.maxSessionsPerPrincipal = configuration.getSessionManager().getMaxSessionsPerPrincipal();
+
+        SessionIdGenerator sessionIdGenerator = configuration.getSessionManager().getSessionIdGenerator();
+
+        if (sessionIdGenerator == null) {
+            sessionIdGenerator = SecureSessionIdGenerator.getDefault();
+        }
+
+        this.sessionIdGenerator = sessionIdGenerator;
+        int listenerThreads = configuration.getSessionManager().getListenerThreads();
+
+        if (listenerThreads > 0) {
+            OverflowPolicy overflowPolicy = configuration.getSessionManager().getListenerOverflowPolicy();
+
+            if (overflowPolicy == null) {
+                overflowPolicy = OverflowPolicy.BLOCK;
+            }
+
+            this.eventDispatcher = new AsyncSessionEventDispatcher(new PicketBoxSessionListenerRegistry(
+                    configuration.getSessionManager().getListeners()), listenerThreads,
+                    configuration.getSessionManager().getListenerQueueCapacity(), overflowPolicy);
+            this.listenerRegistry = new PicketBoxSessionListenerRegistry();
+            this.listenerRegistry.add(this.eventDispatcher);
+        } else {
+            this.eventDispatcher = null;
+            this.listenerRegistry = new PicketBoxSessionListenerRegistry(configuration.getSessionManager().getListeners());
+        }
+
+        // the store is always kept up to date by the thread changing the session
+        this.listenerRegistry.add(new PicketBoxSessionStoreListener(this));
     }
 
     /*
@@ -66,26 +118,37 @@ public class DefaultSessionManager extends AbstractPicketBoxLifeCycle implements
     public PicketBoxSession create(PicketBoxSubject authenticatedSubject) {
         PicketBoxSession session = doCreateSession(authenticatedSubject);
 
-        for (PicketBoxSessionListener listener : this.listeners) {
-            session.addListener(listener);
-            listener.onCreate(session);
+        session.setListenerRegistry(this.listenerRegistry);
+
+        PicketBoxSessionListener[] listeners = this.listenerRegistry.getListeners();
+
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onCreate(session);
         }
 
         if (session.getId() == null || session.getId().getId() == null) {
             throw new IllegalStateException("Invalid session id: " + session.getId());
         }
 
-        // checks for duplicate session id
-        if (this.sessionStore.load(session.getId()) != null) {
+        // a single atomic operation detects duplicate session ids
+        if (!this.sessionStore.storeIfAbsent(session)) {
             throw new IllegalStateException("Duplicate session id: " + session.getId());
         }
 
         authenticatedSubject.setSession(session);
 
-        this.sessionStore.store(session);
-
         this.sessionExpirationManager.setTimer(session);
 
+        String principalName = session.getPrincipalName();
+
+        if (principalName != null) {
+            // the oldest sessions over the limit are invalidated, the new one is always kept
+            for (SessionId<? extends Serializable> evicted : this.principalIndex.add(principalName, session.getId(),
+                    this.maxSessionsPerPrincipal)) {
+                invalidate(evicted);
+            }
+        }
+
         return session;
     }
 
@@ -96,10 +159,30 @@ public class DefaultSessionManager extends AbstractPicketBoxLifeCycle implements
      */
     @Override
     public PicketBoxSession retrieve(SessionId<? extends Serializable> id) {
-        PicketBoxSession session = this.sessionStore.load(id);
+        PicketBoxSession session = load(id);
 
-        if (session != null && !session.hasListener(PicketBoxSessionStoreListener.class)) {
-            session.addListener(new PicketBoxSessionStoreListener(this));
+        if (session == null) {
+            return null;
+        }
+
+        if (!this.sessionExpirationManager.isScheduled(id) && !schedule(session)) {
+            // written to the store by another node, and its timeout passed before this node saw it
+            return null;
+        }
+
+        long accessedTime = session.getLastAccessedTime();
+
+        session.touch();
+
+        if (session.getLastAccessedTime() != accessedTime) {
+            recordAccess(session);
+        }
+
+        String principalName = session.getPrincipalName();
+
+        if (principalName != null && !this.principalIndex.contains(id)) {
+            // written to the store by another node, for example replicated from the node that created it
+            index(session);
         }
 
         return session;
@@ -113,22 +196,407 @@ public class DefaultSessionManager extends AbstractPicketBoxLifeCycle implements
     @Override
     public void remove(PicketBoxSession session) {
         if (session != null) {
-            this.sessionStore.remove(session.getId());
+            removeById(session.getId());
         }
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionManager#retrieveByPrincipal(java.lang.String)
+     */
+    @Override
+    public List<PicketBoxSession> retrieveByPrincipal(String principalName) {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (SessionId<? extends Serializable> id : this.principalIndex.get(principalName)) {
+            PicketBoxSession session = retrieve(id);
+
+            if (session != null) {
+                sessions.add(session);
+            }
+        }
+
+        return sessions;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionManager#removeAllForPrincipal(java.lang.String)
+     */
+    @Override
+    public void removeAllForPrincipal(String principalName) {
+        for (SessionId<? extends Serializable> id : this.principalIndex.removeAll(principalName)) {
+            invalidate(id);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionManager#update(org.picketbox.core.session.PicketBoxSession)
+     */
     @Override
     public void update(PicketBoxSession session) {
-        this.sessionStore.update(session);
+        if (this.sessionWriteBehindManager != null) {
+            this.sessionWriteBehindManager.markDirty(session);
+        } else {
+            this.sessionStore.update(session);
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the attribute changes of a session to the store as a {@link SessionDelta}. If the session was updated meanwhile
+     * through another copy, the changes are applied to the stored session instead of overwriting it, and the given copy takes
+     * the merged attributes.
+     * </p>
+     *
+     * @param session
+     */
+    void updateAttributes(PicketBoxSession session) {
+        if (this.sessionWriteBehindManager != null) {
+            this.sessionWriteBehindManager.markDirty(session);
+            return;
+        }
+
+        SessionDelta delta = session.takeDelta();
+
+        if (delta.isEmpty()) {
+            // already written by a concurrent change
+            return;
+        }
+
+        while (!this.sessionStore.update(session, delta, session.getVersion())) {
+            PicketBoxSession latest = this.sessionStore.load(session.getId());
+
+            if (latest == null) {
+                // removed meanwhile
+                return;
+            }
+
+            if (latest != session) {
+                // the stored session is shared, its attributes only change through a successful update
+                ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<String, Object>(latest.getAttributeMap());
+
+                delta.applyTo(attributes);
+                session.setAttributeMap(attributes);
+                session.version = latest.version;
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionManager#flush(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void flush(PicketBoxSession session) {
+        if (this.sessionWriteBehindManager != null) {
+            this.sessionWriteBehindManager.flush(session);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the {@link SessionWriteBehindManager}, which exposes the write-behind metrics, or null if the write-behind is
+     * disabled.
+     * </p>
+     *
+     * @return
+     */
+    public SessionWriteBehindManager getSessionWriteBehindManager() {
+        return this.sessionWriteBehindManager;
+    }
+
+    /**
+     * <p>
+     * Returns the listeners shared by all the sessions of this manager. Listeners registered here are notified of the events
+     * of the existing sessions too.
+     * </p>
+     *
+     * @return
+     */
+    public PicketBoxSessionListenerRegistry getListenerRegistry() {
+        return this.listenerRegistry;
+    }
+
+    /**
+     * <p>
+     * Returns the {@link AsyncSessionEventDispatcher} notifying the configured listeners, which exposes the dispatching
+     * metrics, or null if the listeners are notified by the thread raising the events.
+     * </p>
+     *
+     * @return
+     */
+    public AsyncSessionEventDispatcher getEventDispatcher() {
+        return this.eventDispatcher;
+    }
+
+    /**
+     * <p>
+     * Checks if the given session has changes that were not written to the store yet.
+     * </p>
+     *
+     * @param session
+     * @return
+     */
+    boolean hasPendingChanges(PicketBoxSession session) {
+        return this.sessionWriteBehindManager != null && this.sessionWriteBehindManager.isDirty(session.getId());
+    }
+
+    /**
+     * <p>
+     * Checks if the stored version of the given session is newer than the given copy, probing the store without loading the
+     * session.
+     * </p>
+     *
+     * @param session
+     * @return
+     */
+    boolean isStale(PicketBoxSession session) {
+        long version = this.sessionStore.getVersion(session.getId());
+
+        return version >= 0 && version != session.getVersion();
+    }
+
+    /**
+     * <p>
+     * Writes the access time of a session back to the store, which may hold a copy of it. The expiration reads the access
+     * time from the store. A newer access time already stored is kept.
+     * </p>
+     *
+     * @param session
+     */
+    private void recordAccess(PicketBoxSession session) {
+        if (this.sessionWriteBehindManager != null) {
+            this.sessionWriteBehindManager.markDirty(session);
+            return;
+        }
+
+        long accessedTime = session.getLastAccessedTime();
+        PicketBoxSession latest = session;
+
+        while (!this.sessionStore.update(latest, latest.getVersion())) {
+            latest = this.sessionStore.load(session.getId());
+
+            if (latest == null || latest.getLastAccessedTime() >= accessedTime) {
+                // removed, or accessed later through another copy
+                return;
+            }
+
+            latest.lastAccessedTime = accessedTime;
+        }
+    }
+
+    /**
+     * <p>
+     * Loads a session from the store, without touching it.
+     * </p>
+     *
+     * @param id
+     * @return
+     */
+    PicketBoxSession load(SessionId<? extends Serializable> id) {
+        PicketBoxSession session = this.sessionStore.load(id);
+
+        if (session != null && session.getListenerRegistry() != this.listenerRegistry) {
+            session.setListenerRegistry(this.listenerRegistry);
+        }
+
+        return session;
+    }
+
+    /**
+     * <p>
+     * Indexes a session this manager did not create, which was found in the store. The limit of sessions per principal is
+     * enforced by the next session created for the principal.
+     * </p>
+     *
+     * @param session
+     */
+    private void index(PicketBoxSession session) {
+        SessionId<? extends Serializable> id = session.getId();
+
+        this.principalIndex.add(session.getPrincipalName(), id, 0);
+
+        if (this.sessionStore.getVersion(id) < 0) {
+            // removed concurrently, after or while removeById cleaned the index
+            this.principalIndex.remove(id);
+        }
+    }
+
+    /**
+     * <p>
+     * Schedules the expiration of a valid session this manager did not create, which was found in the store. A session whose
+     * timeout already passed is expired instead, so its listeners are notified and it is removed.
+     * </p>
+     *
+     * @param session
+     * @return true if the session is still valid
+     */
+    private boolean schedule(PicketBoxSession session) {
+        if (!session.isValid()) {
+            return true;
+        }
+
+        if (this.sessionExpirationManager.isExpired(session)) {
+            expire(session);
+            return false;
+        }
+
+        this.sessionExpirationManager.setTimer(session);
+
+        if (this.sessionStore.getVersion(session.getId()) < 0) {
+            // removed concurrently, after or while removeById cancelled the timer
+            this.sessionExpirationManager.cancelTimer(session.getId());
+        }
+
+        return true;
+    }
+
+    /**
+     * <p>
+     * Takes over the sessions the store already holds when this manager starts, such as the sessions loaded from disk,
+     * replayed from a journal or restored from a snapshot. Sessions whose timeout passed meanwhile are expired, the others are
+     * scheduled for expiration and indexed. Sessions are indexed from the oldest to the newest, so the oldest sessions of a
+     * principal over the limit are the ones invalidated.
+     * </p>
+     * <p>
+     * The store is read through its cursor and only the identifiers, principals and creation times are kept, so stores keeping
+     * their sessions off the heap or on other nodes are not loaded in memory.
+     * </p>
+     */
+    private void adoptStoredSessions() {
+        List<StoredSession> sessions = new ArrayList<StoredSession>();
+        List<SessionId<? extends Serializable>> expired = new ArrayList<SessionId<? extends Serializable>>();
+
+        for (Iterator<PicketBoxSession> cursor = this.sessionStore.cursor(); cursor.hasNext();) {
+            PicketBoxSession session = cursor.next();
+
+            if (!session.isValid()) {
+                continue;
+            }
+
+            if (this.sessionExpirationManager.isExpired(session)) {
+                expired.add(session.getId());
+                continue;
+            }
+
+            this.sessionExpirationManager.setTimer(session);
+
+            String principalName = session.getPrincipalName();
+
+            if (principalName != null) {
+                sessions.add(new StoredSession(session.getId(), principalName, session.getCreationTime()));
+            }
+        }
+
+        for (SessionId<? extends Serializable> id : expired) {
+            PicketBoxSession session = load(id);
+
+            if (session != null && session.isValid()) {
+                expire(session);
+            }
+        }
+
+        Collections.sort(sessions, new Comparator<StoredSession>() {
+            @Override
+            public int compare(StoredSession session, StoredSession other) {
+                return session.creationTime < other.creationTime ? -1 : (session.creationTime == other.creationTime ? 0 : 1);
+            }
+        });
+
+        for (StoredSession session : sessions) {
+            for (SessionId<? extends Serializable> evicted : this.principalIndex.add(session.principalName, session.id,
+                    this.maxSessionsPerPrincipal)) {
+                invalidate(evicted);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Removes a session from the store and from the indexes and schedules of this manager. The session is removed from the
+     * store first, so a concurrent {@link #retrieve(SessionId)} indexing it again finds out it is gone.
+     * </p>
+     *
+     * @param id
+     */
+    private void removeById(SessionId<? extends Serializable> id) {
+        if (this.sessionWriteBehindManager != null) {
+            this.sessionWriteBehindManager.discard(id);
+        }
+
+        this.sessionStore.remove(id);
+        this.sessionExpirationManager.cancelTimer(id);
+        this.principalIndex.remove(id);
+    }
+
+    /**
+     * <p>
+     * Invalidates a session, so its listeners are notified, and removes it.
+     * </p>
+     *
+     * @param id
+     */
+    private void invalidate(SessionId<? extends Serializable> id) {
+        PicketBoxSession session = load(id);
+
+        if (session != null && session.isValid()) {
+            try {
+                session.invalidate();
+            } catch (PicketBoxSessionException e) {
+                // invalidated concurrently
+                PicketBoxLogger.LOGGER.errorInvalidatingSession(String.valueOf(id.getId()), e);
+            }
+        }
+
+        removeById(id);
+    }
+
+    /**
+     * <p>
+     * Expires a session whose timeout passed while no timer was scheduled for it, so its listeners are notified and it is
+     * removed.
+     * </p>
+     *
+     * @param session
+     */
+    private void expire(PicketBoxSession session) {
+        try {
+            session.expire();
+        } catch (PicketBoxSessionException e) {
+            // invalidated concurrently
+            PicketBoxLogger.LOGGER.errorExpiringSession(String.valueOf(session.getId().getId()), e);
+        }
     }
 
     protected PicketBoxSession doCreateSession(PicketBoxSubject authenticatedSubject) {
-        return new PicketBoxSession(authenticatedSubject, new DefaultSessionId());
+        return new PicketBoxSession(authenticatedSubject, new DefaultSessionId(this.sessionIdGenerator.generateId()));
     }
 
     @Override
     protected void doStart() {
         this.sessionStore.start();
+
+        if (this.snapshotter != null) {
+            this.snapshotter.start();
+        }
+
+        if (this.eventDispatcher != null) {
+            this.eventDispatcher.start();
+        }
+
+        if (this.sessionWriteBehindManager != null) {
+            this.sessionWriteBehindManager.start();
+        }
+
+        this.sessionExpirationManager.start();
+
+        adoptStoredSessions();
     }
 
     /*
@@ -138,6 +606,39 @@ public class DefaultSessionManager extends AbstractPicketBoxLifeCycle implements
      */
     @Override
     protected void doStop() {
+        this.sessionExpirationManager.stop();
+        this.principalIndex.clear();
+
+        if (this.eventDispatcher != null) {
+            this.eventDispatcher.stop();
+        }
+
+        if (this.sessionWriteBehindManager != null) {
+            this.sessionWriteBehindManager.stop();
+        }
+
+        if (this.snapshotter != null) {
+            this.snapshotter.stop();
+        }
+
         this.sessionStore.stop();
     }
-}
\ No newline at end of file
+
+    /**
+     * <p>
+     * What {@link #adoptStoredSessions()} needs to know of a stored session to index it.
+     * </p>
+     */
+    private static final class StoredSession {
+
+        private final SessionId<? extends Serializable> id;
+        private final String principalName;
+        private final long creationTime;
+
+        private StoredSession(SessionId<? extends Serializable> id, String principalName, long creationTime) {
+            this.id = id;
+            this.principalName = principalName;
+            this.creationTime = creationTime;
+        }
+    }
+}
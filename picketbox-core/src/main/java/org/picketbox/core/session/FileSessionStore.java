@@ -21,25 +21,38 @@
  */
 package org.picketbox.core.session;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.picketbox.core.PicketBoxMessages;
+import org.picketbox.core.session.PicketBoxSessionCodec.Decoder;
+import org.picketbox.core.session.PicketBoxSessionCodec.Encoder;
 import org.picketbox.core.util.StreamUtil;
 
 /**
- * A {@link SessionStore} that serializes/deserializes sessions from a file
+ * A {@link SessionStore} that serializes/deserializes sessions from a file, using the format of
+ * {@link PicketBoxSessionCodec}. Files written by previous versions with Java serialization are still read.
  *
  * @author anil saldhana
  * @since Aug 22, 2012
  */
 public class FileSessionStore extends AbstractSessionStore {
+    private static final int MAGIC = 0x50424653;
+
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+
     private String sessionFileName = "PBOXSESSION.DAT";
 
     public FileSessionStore() {
@@ -56,39 +69,64 @@ public class FileSessionStore extends AbstractSessionStore {
 
     @Override
     protected void doStop() {
-        super.doStop();
         storeToFile();
+        super.doStop();
     }
 
-    @SuppressWarnings("unchecked")
     protected void loadFromFile() {
-        ObjectInputStream ois = null;
+        DataInputStream input = null;
         try {
             File file = new File(sessionFileName);
             if (file.exists() == false) {
                 return; // If there is no session file, return as the store will create one
             }
-            ois = new ObjectInputStream(new FileInputStream(file));
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            input.mark(4);
             this.sessions.clear();
-            this.sessions.putAll((Map<? extends Serializable, ? extends PicketBoxSession>) ois.readObject());
+            if (input.readInt() != MAGIC) {
+                // a file written by a previous version, holding the serialized session map
+                input.reset();
+                loadSerialized(input);
+                return;
+            }
+            Decoder decoder = this.codec.newDecoder();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                PicketBoxSession session = decoder.readLazySession(input);
+                this.sessions.put(session.getId().getId(), session);
+            }
         } catch (IOException e) {
             throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(sessionFileName, e);
+        } finally {
+            StreamUtil.safeClose(input);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadSerialized(InputStream input) throws IOException {
+        try {
+            ObjectInputStream ois = new ObjectInputStream(input);
+            this.sessions.putAll((Map<? extends Serializable, ? extends PicketBoxSession>) ois.readObject());
         } catch (ClassNotFoundException e) {
             throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(sessionFileName, e);
-        } finally {
-            StreamUtil.safeClose(ois);
         }
     }
 
     protected void storeToFile() {
-        ObjectOutputStream oos = null;
+        DataOutputStream output = null;
         try {
-            oos = new ObjectOutputStream(new FileOutputStream(sessionFileName));
-            oos.writeObject(this.sessions);
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sessionFileName)));
+            List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>(this.sessions.values());
+            Encoder encoder = this.codec.newEncoder();
+            output.writeInt(MAGIC);
+            output.writeInt(sessions.size());
+            for (PicketBoxSession session : sessions) {
+                encoder.writeSession(output, session);
+            }
         } catch (IOException e) {
             throw PicketBoxMessages.MESSAGES.unableToStoreToFile(sessionFileName, e);
         } finally {
-            StreamUtil.safeClose(oos);
+            StreamUtil.safeClose(output);
         }
     }
-}
\ No newline at end of file
+}
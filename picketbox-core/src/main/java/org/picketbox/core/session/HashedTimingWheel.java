@@ -0,0 +1,459 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketbox.core.PicketBoxLogger;
+import org.picketbox.core.PicketBoxMessages;
+
+/**
+ * <p>
+ * A hashed timing wheel used to schedule session related tasks, such as expiration.
+ * </p>
+ * <p>
+ * Scheduling and cancellation are O(1): new timeouts are queued and moved into their bucket by the worker thread on the next
+ * tick, cancelled timeouts release their task immediately and are unlinked from their bucket on the next tick. Timeouts only
+ * fire with tick granularity, which is good enough for session lifetimes measured in minutes.
+ * </p>
+ * <p>
+ * The worker thread is started lazily when the first timeout is scheduled and is terminated by {@link #stop()}.
+ * </p>
+ */
+public class HashedTimingWheel {
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static final int STATE_INIT = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_SHUTDOWN = 2;
+
+    private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+    private final AtomicLong pendingTimeouts = new AtomicLong();
+    private final Queue<WheelTimeout> scheduledTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final Queue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final WheelBucket[] wheel;
+    private final int mask;
+    private final long tickDuration;
+    private final Thread workerThread;
+
+    private volatile long startTime;
+    private long tick;
+
+    /**
+     * <p>
+     * Creates a wheel with 100 milliseconds ticks and 512 buckets.
+     * </p>
+     *
+     * @param name the name of the worker thread
+     */
+    public HashedTimingWheel(String name) {
+        this(name, 100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * @param name the name of the worker thread
+     * @param tickDuration the duration between ticks
+     * @param unit the unit of the tick duration
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two
+     */
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+        }
+
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel must be between 1 and 2^30: " + ticksPerWheel);
+        }
+
+        int size = 1;
+
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+
+        this.wheel = new WheelBucket[size];
+
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new WheelBucket();
+        }
+
+        this.mask = size - 1;
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.workerThread = new Thread(new Worker(), name);
+        this.workerThread.setDaemon(true);
+    }
+
+    /**
+     * <p>
+     * Schedules the given task for one-time execution after the given delay.
+     * </p>
+     *
+     * @param task the task to execute in the worker thread
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return a handle that can be used to cancel the task
+     * @throws IllegalStateException if the wheel was already stopped
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("task");
+        }
+
+        start();
+
+        long deadline = System.nanoTime() + unit.toNanos(delay) - this.startTime;
+        WheelTimeout timeout = new WheelTimeout(this, task, deadline);
+
+        this.pendingTimeouts.incrementAndGet();
+        this.scheduledTimeouts.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * <p>
+     * Returns the number of scheduled timeouts that did not fire and were not cancelled yet.
+     * </p>
+     *
+     * @return
+     */
+    public long pendingTimeouts() {
+        return this.pendingTimeouts.get();
+    }
+
+    /**
+     * <p>
+     * Stops the worker thread. Pending timeouts are discarded and the wheel can not be used anymore.
+     * </p>
+     */
+    public void stop() {
+        if (this.state.getAndSet(STATE_SHUTDOWN) != STATE_STARTED) {
+            return;
+        }
+
+        if (Thread.currentThread() == this.workerThread) {
+            return;
+        }
+
+        this.workerThread.interrupt();
+
+        boolean interrupted = false;
+
+        while (this.workerThread.isAlive()) {
+            try {
+                this.workerThread.join(100);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void start() {
+        switch (this.state.get()) {
+            case STATE_INIT:
+                if (this.state.compareAndSet(STATE_INIT, STATE_STARTED)) {
+                    long now = System.nanoTime();
+
+                    // zero is used to detect an uninitialized start time
+                    this.startTime = now == 0 ? 1 : now;
+                    this.workerThread.start();
+                }
+                break;
+            case STATE_STARTED:
+                break;
+            default:
+                throw PicketBoxMessages.MESSAGES.instanceAlreadyStopped();
+        }
+
+        // the start time is set by the thread that won the race, wait until it is visible
+        while (this.startTime == 0) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * <p>
+     * A handle for a task scheduled in a {@link HashedTimingWheel}.
+     * </p>
+     */
+    public interface Timeout {
+
+        /**
+         * <p>
+         * Cancels the task. The task reference is released immediately.
+         * </p>
+         *
+         * @return false if the task already fired or was already cancelled.
+         */
+        boolean cancel();
+
+        /**
+         * @return true if the task was cancelled.
+         */
+        boolean isCancelled();
+
+        /**
+         * @return true if the task already fired.
+         */
+        boolean isExpired();
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (state.get() == STATE_STARTED) {
+                long deadline = waitForNextTick();
+
+                if (deadline > 0) {
+                    processCancelledTimeouts();
+                    transferScheduledTimeouts();
+                    wheel[(int) (tick & mask)].expireTimeouts(deadline);
+                    tick++;
+                }
+            }
+
+            for (WheelBucket bucket : wheel) {
+                bucket.clear();
+            }
+
+            scheduledTimeouts.clear();
+            cancelledTimeouts.clear();
+            pendingTimeouts.set(0);
+        }
+
+        private long waitForNextTick() {
+            long deadline = tickDuration * (tick + 1);
+
+            for (;;) {
+                long currentTime = System.nanoTime() - startTime;
+                long sleepTimeMs = (deadline - currentTime + 999999) / 1000000;
+
+                if (sleepTimeMs <= 0) {
+                    return currentTime;
+                }
+
+                try {
+                    Thread.sleep(sleepTimeMs);
+                } catch (InterruptedException e) {
+                    if (state.get() == STATE_SHUTDOWN) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        private void transferScheduledTimeouts() {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                WheelTimeout timeout = scheduledTimeouts.poll();
+
+                if (timeout == null) {
+                    break;
+                }
+
+                if (timeout.isCancelled()) {
+                    continue;
+                }
+
+                long calculated = timeout.deadline / tickDuration;
+
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+
+                // timeouts whose deadline already passed go to the current bucket
+                long ticks = Math.max(calculated, tick);
+
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+
+        private void processCancelledTimeouts() {
+            for (;;) {
+                WheelTimeout timeout = cancelledTimeouts.poll();
+
+                if (timeout == null) {
+                    break;
+                }
+
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+    }
+
+    private static final class WheelTimeout implements Timeout {
+
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE_UPDATER = AtomicIntegerFieldUpdater.newUpdater(
+                WheelTimeout.class, "state");
+
+        private final HashedTimingWheel timer;
+        private final long deadline;
+
+        private volatile Runnable task;
+        private volatile int state = ST_INIT;
+
+        // only accessed by the worker thread
+        private long remainingRounds;
+        private WheelTimeout next;
+        private WheelTimeout prev;
+        private WheelBucket bucket;
+
+        WheelTimeout(HashedTimingWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+
+            this.task = null;
+            this.timer.pendingTimeouts.decrementAndGet();
+            this.timer.cancelledTimeouts.add(this);
+
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return this.state == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return this.state == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+
+            Runnable task = this.task;
+
+            this.task = null;
+            this.timer.pendingTimeouts.decrementAndGet();
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                PicketBoxLogger.LOGGER.errorExecutingTimeout(String.valueOf(task), t);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * A doubly linked list of timeouts, only accessed by the worker thread.
+     * </p>
+     */
+    private static final class WheelBucket {
+
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+
+            if (this.head == null) {
+                this.head = timeout;
+                this.tail = timeout;
+            } else {
+                this.tail.next = timeout;
+                timeout.prev = this.tail;
+                this.tail = timeout;
+            }
+        }
+
+        void expireTimeouts(long deadline) {
+            WheelTimeout timeout = this.head;
+
+            while (timeout != null) {
+                WheelTimeout next = timeout.next;
+
+                if (timeout.remainingRounds <= 0) {
+                    if (timeout.deadline <= deadline) {
+                        remove(timeout);
+                        timeout.expire();
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+
+        void remove(WheelTimeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+
+            WheelTimeout next = timeout.next;
+
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+
+            if (timeout == this.head) {
+                this.head = next;
+            }
+
+            if (timeout == this.tail) {
+                this.tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void clear() {
+            this.head = null;
+            this.tail = null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>
+ * A {@link SessionInvalidationChannel} connecting the {@link NearCacheSessionStore} instances of a single JVM, which is mostly
+ * useful to test several nodes in one process. Listeners are notified synchronously by the publishing thread.
+ * </p>
+ */
+public class InJvmSessionInvalidationChannel implements SessionInvalidationChannel {
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionInvalidationChannel#publish(
+     * org.picketbox.core.session.SessionInvalidationChannel.Listener, org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void publish(Listener sender, SessionId<? extends Serializable> id) {
+        for (Listener listener : this.listeners) {
+            if (listener != sender) {
+                listener.onInvalidation(id);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionInvalidationChannel#subscribe(
+     * org.picketbox.core.session.SessionInvalidationChannel.Listener)
+     */
+    @Override
+    public void subscribe(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionInvalidationChannel#unsubscribe(
+     * org.picketbox.core.session.SessionInvalidationChannel.Listener)
+     */
+    @Override
+    public void unsubscribe(Listener listener) {
+        this.listeners.remove(listener);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * A {@link SessionReplicationTransport} connecting the {@link ReplicatedSessionStore} instances of a single JVM, which is
+ * mostly useful to test several nodes in one process. Messages are delivered synchronously by the sending thread.
+ * </p>
+ */
+public class InJvmSessionReplicationTransport implements SessionReplicationTransport {
+
+    private final ConcurrentMap<String, Receiver> receivers = new ConcurrentHashMap<String, Receiver>();
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionReplicationTransport#connect(java.lang.String,
+     * org.picketbox.core.session.SessionReplicationTransport.Receiver)
+     */
+    @Override
+    public void connect(String nodeId, Receiver receiver) {
+        this.receivers.put(nodeId, receiver);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionReplicationTransport#disconnect(java.lang.String)
+     */
+    @Override
+    public void disconnect(String nodeId) {
+        this.receivers.remove(nodeId);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionReplicationTransport#getMembers()
+     */
+    @Override
+    public Set<String> getMembers() {
+        return Collections.unmodifiableSet(new TreeSet<String>(this.receivers.keySet()));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionReplicationTransport#send(java.lang.String, java.lang.String, byte[])
+     */
+    @Override
+    public void send(String sender, String target, byte[] message) throws IOException {
+        Receiver receiver = this.receivers.get(target);
+
+        if (receiver == null) {
+            throw new IOException("Node " + target + " is not connected");
+        }
+
+        receiver.onMessage(sender, message);
+    }
+}
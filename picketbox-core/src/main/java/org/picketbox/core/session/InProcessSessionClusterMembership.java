@@ -0,0 +1,241 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+
+/**
+ * <p>
+ * A {@link SessionClusterMembership} whose members live in the same process, which is mostly useful to test several nodes in
+ * one JVM. Sessions crossing nodes are copied with the {@link PicketBoxSessionCodec}, as they would be on the wire, so two
+ * nodes never share a session instance. Listeners are notified synchronously by the joining or leaving thread.
+ * </p>
+ */
+public class InProcessSessionClusterMembership implements SessionClusterMembership {
+
+    private final Map<String, Member> members = new LinkedHashMap<String, Member>();
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionClusterMembership#join(java.lang.String,
+     * org.picketbox.core.session.SessionStore, org.picketbox.core.session.SessionClusterMembership.Listener)
+     */
+    @Override
+    public void join(String nodeId, SessionStore localStore, Listener listener) {
+        synchronized (this.members) {
+            this.members.put(nodeId, new Member(new CopyingSessionStore(localStore), listener));
+            notifyListeners();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionClusterMembership#leave(java.lang.String)
+     */
+    @Override
+    public void leave(String nodeId) {
+        synchronized (this.members) {
+            if (this.members.remove(nodeId) != null) {
+                notifyListeners();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionClusterMembership#getMembers()
+     */
+    @Override
+    public Set<String> getMembers() {
+        synchronized (this.members) {
+            return Collections.unmodifiableSet(new TreeSet<String>(this.members.keySet()));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionClusterMembership#getStore(java.lang.String)
+     */
+    @Override
+    public SessionStore getStore(String nodeId) {
+        synchronized (this.members) {
+            Member member = this.members.get(nodeId);
+
+            return member != null ? member.store : null;
+        }
+    }
+
+    private void notifyListeners() {
+        Set<String> names = Collections.unmodifiableSet(new TreeSet<String>(this.members.keySet()));
+
+        for (Member member : this.members.values()) {
+            member.listener.onMembershipChange(names);
+        }
+    }
+
+    private PicketBoxSession copy(PicketBoxSession session) {
+        if (session == null) {
+            return null;
+        }
+
+        try {
+            PicketBoxSession copy = this.codec.decode(this.codec.encode(session));
+
+            copy.version = session.version;
+
+            return copy;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Member {
+
+        private final SessionStore store;
+        private final Listener listener;
+
+        private Member(SessionStore store, Listener listener) {
+            this.store = store;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * <p>
+     * The view of the local store of a member from the other nodes.
+     * </p>
+     */
+    private final class CopyingSessionStore extends AbstractPicketBoxLifeCycle implements SessionStore {
+
+        private final SessionStore target;
+
+        private CopyingSessionStore(SessionStore target) {
+            this.target = target;
+        }
+
+        @Override
+        public PicketBoxSession load(SessionId<? extends Serializable> key) {
+            return copy(this.target.load(key));
+        }
+
+        @Override
+        public void store(PicketBoxSession session) {
+            this.target.store(copy(session));
+        }
+
+        @Override
+        public void remove(SessionId<? extends Serializable> id) {
+            this.target.remove(id);
+        }
+
+        @Override
+        public void update(PicketBoxSession session) {
+            this.target.update(copy(session));
+        }
+
+        @Override
+        public boolean storeIfAbsent(PicketBoxSession session) {
+            return this.target.storeIfAbsent(copy(session));
+        }
+
+        @Override
+        public boolean update(PicketBoxSession session, long expectedVersion) {
+            PicketBoxSession copy = copy(session);
+
+            if (!this.target.update(copy, expectedVersion)) {
+                return false;
+            }
+
+            session.version = copy.version;
+
+            return true;
+        }
+
+        @Override
+        public boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion) {
+            PicketBoxSession copy = copy(session);
+
+            if (!this.target.update(copy, delta, expectedVersion)) {
+                return false;
+            }
+
+            session.version = copy.version;
+
+            return true;
+        }
+
+        @Override
+        public long getVersion(SessionId<? extends Serializable> id) {
+            return this.target.getVersion(id);
+        }
+
+        @Override
+        public Iterator<PicketBoxSession> cursor() {
+            final Iterator<PicketBoxSession> sessions = this.target.cursor();
+
+            return new SessionCursor(this) {
+                @Override
+                protected PicketBoxSession advance() {
+                    return sessions.hasNext() ? copy(sessions.next()) : null;
+                }
+            };
+        }
+
+        @Override
+        public int count() {
+            return this.target.count();
+        }
+
+        @Override
+        public int removeIf(SessionPredicate predicate) {
+            return SessionCursor.removeIf(this, predicate);
+        }
+
+        @Override
+        public void forEachBatch(int batchSize, SessionBatchHandler handler) {
+            SessionCursor.forEachBatch(this, batchSize, handler);
+        }
+
+        @Override
+        protected void doStart() {
+        }
+
+        @Override
+        protected void doStop() {
+        }
+    }
+}
@@ -0,0 +1,991 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.picketbox.core.PicketBoxLogger;
+import org.picketbox.core.PicketBoxMessages;
+import org.picketbox.core.session.PicketBoxSessionCodec.Decoder;
+import org.picketbox.core.session.PicketBoxSessionCodec.Encoder;
+import org.picketbox.core.util.StreamUtil;
+
+/**
+ * <p>
+ * A {@link SessionStore} that journals every change to an append-only log, so sessions survive a crash of the JVM.
+ * </p>
+ * <p>
+ * Sessions are served from memory. Each store, update or remove appends a checksummed record to the current log file; a single
+ * writer thread drains all pending records at once and, when required, issues a single <code>fsync</code> for the whole batch
+ * (group commit). When the log grows past the compaction threshold the writer switches to a new log file and the live sessions
+ * are written to a snapshot in the background, after which older logs are deleted. On start the store loads the latest
+ * snapshot and replays the logs written after it, so recovery time is proportional to the live data. Sessions are written in
+ * the compact format of {@link PicketBoxSessionCodec}, and attribute changes written with
+ * {@link #update(PicketBoxSession, SessionDelta, long)} only journal the changed attributes.
+ * </p>
+ * <p>
+ * The {@link Durability} can be configured for the whole store or for each write:
+ * <ul>
+ * <li>{@link Durability#NONE}: the record is handed to the writer and never explicitly synced to disk.</li>
+ * <li>{@link Durability#BATCHED}: the record is synced to disk by the writer within the group commit interval.</li>
+ * <li>{@link Durability#SYNC}: the caller waits until the record is synced to disk.</li>
+ * </ul>
+ * </p>
+ */
+public class JournaledFileSessionStore extends AbstractSessionStore {
+
+    /**
+     * Durability guarantee of a write
+     */
+    public enum Durability {
+        NONE, BATCHED, SYNC
+    }
+
+    static final String SNAPSHOT_FILE = "sessions.snapshot";
+    static final String LOG_FILE_PREFIX = "sessions.";
+    static final String LOG_FILE_SUFFIX = ".log";
+
+    private static final int MAGIC = 0x50424A4C;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final int LOCK_STRIPES = 64;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte END = 3;
+    private static final byte DELTA = 4;
+
+    private final File directory;
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+    private final ReentrantLock[] locks;
+    private final BlockingQueue<JournalRecord> queue = new LinkedBlockingQueue<JournalRecord>();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private Durability durability = Durability.BATCHED;
+    private long groupCommitInterval = 100;
+    private long compactionThreshold = 64 * 1024 * 1024;
+
+    private volatile boolean running;
+    private volatile boolean compactionRequested;
+    private volatile IOException logFailure;
+    private Thread writer;
+    private ExecutorService compactor;
+
+    // only accessed by the writer thread once started
+    private FileOutputStream logStream;
+    private FileChannel log;
+    private long generation;
+    private long logSize;
+
+    /**
+     * @param directory the directory where the snapshot and log files are kept. It is created if it does not exist.
+     */
+    public JournaledFileSessionStore(String directory) {
+        if (directory == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("directory");
+        }
+
+        this.directory = new File(directory);
+        this.locks = new ReentrantLock[LOCK_STRIPES];
+
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * <p>
+     * Sets the default {@link Durability} of writes. Defaults to {@link Durability#BATCHED}.
+     * </p>
+     *
+     * @param durability
+     */
+    public void setDurability(Durability durability) {
+        if (durability == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("durability");
+        }
+
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return this.durability;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum time, in milliseconds, a {@link Durability#BATCHED} write stays unsynced. Defaults to 100ms.
+     * </p>
+     *
+     * @param groupCommitInterval
+     */
+    public void setGroupCommitInterval(long groupCommitInterval) {
+        this.groupCommitInterval = groupCommitInterval;
+    }
+
+    /**
+     * <p>
+     * Sets the size, in bytes, of the log that triggers a background compaction. Defaults to 64MB.
+     * </p>
+     *
+     * @param compactionThreshold
+     */
+    public void setCompactionThreshold(long compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void store(PicketBoxSession session) {
+        store(session, this.durability);
+    }
+
+    /**
+     * <p>
+     * Stores a {@link PicketBoxSession} with the given {@link Durability}.
+     * </p>
+     *
+     * @param session
+     * @param durability
+     */
+    public void store(PicketBoxSession session, Durability durability) {
+        checkIfStarted();
+
+        Serializable key = session.getId().getId();
+        ReentrantLock lock = lockFor(key);
+        JournalRecord record;
+
+        lock.lock();
+
+        try {
+            super.store(session);
+            record = append(PUT, session.getId(), session, durability);
+        } finally {
+            lock.unlock();
+        }
+
+        record.await();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#storeIfAbsent(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public boolean storeIfAbsent(PicketBoxSession session) {
+        checkIfStarted();
+
+        Serializable key = session.getId().getId();
+        ReentrantLock lock = lockFor(key);
+        JournalRecord record = null;
+
+        lock.lock();
+
+        try {
+            if (super.storeIfAbsent(session)) {
+                record = append(PUT, session.getId(), session, this.durability);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (record == null) {
+            return false;
+        }
+
+        record.await();
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        update(session, this.durability);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#update(org.picketbox.core.session.PicketBoxSession, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, long expectedVersion) {
+        checkIfStarted();
+
+        Serializable key = session.getId().getId();
+        ReentrantLock lock = lockFor(key);
+        JournalRecord record = null;
+
+        lock.lock();
+
+        try {
+            if (replace(session, expectedVersion)) {
+                record = append(PUT, session.getId(), session, this.durability);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (record == null) {
+            return false;
+        }
+
+        record.await();
+
+        return true;
+    }
+
+    /**
+     * <p>
+     * Journals only the attribute changes of the session, instead of the whole session.
+     * </p>
+     */
+    @Override
+    public boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion) {
+        checkIfStarted();
+
+        Serializable key = session.getId().getId();
+        ReentrantLock lock = lockFor(key);
+        JournalRecord record = null;
+
+        lock.lock();
+
+        try {
+            if (replace(session, expectedVersion)) {
+                record = appendDelta(delta, this.durability);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (record == null) {
+            return false;
+        }
+
+        record.await();
+
+        return true;
+    }
+
+    /**
+     * <p>
+     * Updates a {@link PicketBoxSession} with the given {@link Durability}.
+     * </p>
+     *
+     * @param session
+     * @param durability
+     */
+    public void update(PicketBoxSession session, Durability durability) {
+        checkIfStarted();
+
+        Serializable key = session.getId().getId();
+        ReentrantLock lock = lockFor(key);
+        JournalRecord record = null;
+
+        lock.lock();
+
+        try {
+            if (replace(session)) {
+                record = append(PUT, session.getId(), session, durability);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (record != null) {
+            record.await();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.AbstractSessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        remove(id, this.durability);
+    }
+
+    /**
+     * <p>
+     * Removes a {@link PicketBoxSession} with the given {@link Durability}.
+     * </p>
+     *
+     * @param id
+     * @param durability
+     */
+    public void remove(SessionId<? extends Serializable> id, Durability durability) {
+        checkIfStarted();
+
+        Serializable key = id.getId();
+        ReentrantLock lock = lockFor(key);
+        JournalRecord record = null;
+
+        lock.lock();
+
+        try {
+            preserve(key);
+
+            if (this.sessions.remove(key) != null) {
+                record = append(REMOVE, id, null, durability);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (record != null) {
+            record.await();
+        }
+    }
+
+    @Override
+    protected void doStart() {
+        if (!this.directory.exists() && !this.directory.mkdirs()) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), null);
+        }
+
+        long replayed = recover();
+
+        try {
+            openLog(this.generation + 1);
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), e);
+        }
+
+        // a log that could not be truncated was replayed up to its torn record, writes go to the new log
+        this.logFailure = null;
+
+        this.compactionRequested = replayed > this.compactionThreshold;
+        this.running = true;
+        this.compactor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("PicketBox Session Journal Compactor"));
+        this.writer = new DaemonThreadFactory("PicketBox Session Journal Writer").newThread(new Writer());
+        this.writer.start();
+    }
+
+    @Override
+    protected void doStop() {
+        this.running = false;
+
+        boolean interrupted = false;
+
+        while (this.writer.isAlive()) {
+            try {
+                this.writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        this.compactor.shutdown();
+
+        try {
+            this.compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+
+        try {
+            this.log.force(false);
+        } catch (IOException e) {
+            PicketBoxLogger.LOGGER.errorWritingSessionJournal(this.directory.getPath(), e);
+        } finally {
+            StreamUtil.safeClose(this.logStream);
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        super.doStop();
+    }
+
+    private ReentrantLock lockFor(Serializable key) {
+        int hash = key.hashCode();
+
+        hash ^= (hash >>> 16);
+
+        return this.locks[hash & (this.locks.length - 1)];
+    }
+
+    private JournalRecord append(byte type, SessionId<? extends Serializable> id, PicketBoxSession session,
+            Durability durability) {
+        if (!this.running) {
+            throw PicketBoxMessages.MESSAGES.instanceNotStarted();
+        }
+
+        if (this.logFailure != null) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), this.logFailure);
+        }
+
+        JournalRecord record;
+
+        try {
+            record = new JournalRecord(encode(this.codec.newEncoder(), type, id, session), durability);
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), e);
+        }
+
+        this.queue.add(record);
+
+        return record;
+    }
+
+    private JournalRecord appendDelta(SessionDelta delta, Durability durability) {
+        if (!this.running) {
+            throw PicketBoxMessages.MESSAGES.instanceNotStarted();
+        }
+
+        if (this.logFailure != null) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), this.logFailure);
+        }
+
+        JournalRecord record;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream output = new DataOutputStream(bytes);
+
+            output.writeByte(DELTA);
+            this.codec.newEncoder().writeDelta(output, delta);
+            output.flush();
+
+            record = new JournalRecord(frame(bytes.toByteArray()), durability);
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), e);
+        }
+
+        this.queue.add(record);
+
+        return record;
+    }
+
+    /**
+     * <p>
+     * Loads the latest snapshot and replays the logs written after it.
+     * </p>
+     *
+     * @return the number of log bytes replayed
+     */
+    private long recover() {
+        File snapshot = new File(this.directory, SNAPSHOT_FILE);
+        File tmpSnapshot = new File(this.directory, SNAPSHOT_FILE + ".tmp");
+        long snapshotGeneration = -1;
+
+        if (snapshot.exists()) {
+            snapshotGeneration = readSnapshot(snapshot);
+        } else if (tmpSnapshot.exists()) {
+            // crashed after removing the previous snapshot, but before renaming the new one
+            snapshotGeneration = readSnapshot(tmpSnapshot);
+
+            if (snapshotGeneration >= 0 && !tmpSnapshot.renameTo(snapshot)) {
+                throw PicketBoxMessages.MESSAGES.unableToStoreToFile(snapshot.getPath(), null);
+            }
+        }
+
+        if (snapshotGeneration < 0) {
+            this.sessions.clear();
+            snapshotGeneration = 0;
+        }
+
+        this.generation = snapshotGeneration;
+
+        long replayed = 0;
+
+        for (long logGeneration : listLogGenerations()) {
+            File logFile = logFile(logGeneration);
+
+            if (logGeneration < snapshotGeneration) {
+                logFile.delete();
+            } else {
+                replayed += replayLog(logFile);
+                this.generation = Math.max(this.generation, logGeneration);
+            }
+        }
+
+        return replayed;
+    }
+
+    private long readSnapshot(File file) {
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            long generation = readHeader(input);
+            Decoder decoder = this.codec.newDecoder();
+            int count = 0;
+
+            this.sessions.clear();
+
+            for (;;) {
+                byte[] body = readRecord(input);
+
+                if (body == null) {
+                    // a snapshot without its END record is incomplete
+                    this.sessions.clear();
+                    return -1;
+                }
+
+                if (body[0] == END) {
+                    if (new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1)).readInt() != count) {
+                        this.sessions.clear();
+                        return -1;
+                    }
+
+                    return generation;
+                }
+
+                apply(decoder, body);
+                count++;
+            }
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(file.getPath(), e);
+        } finally {
+            StreamUtil.safeClose(input);
+        }
+    }
+
+    private long replayLog(File file) {
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                readHeader(input);
+            } catch (EOFException e) {
+                // crashed right after creating the log
+                return 0;
+            }
+
+            long replayed = HEADER_SIZE;
+
+            for (;;) {
+                byte[] body = readRecord(input);
+
+                // the tail of the log may be torn by a crash, records after it were never acknowledged as synced
+                if (body == null) {
+                    return replayed;
+                }
+
+                apply(this.codec.newDecoder(), body);
+                replayed += RECORD_HEADER_SIZE + body.length;
+            }
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(file.getPath(), e);
+        } finally {
+            StreamUtil.safeClose(input);
+        }
+    }
+
+    private long readHeader(DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("Not a session journal file");
+        }
+
+        return input.readLong();
+    }
+
+    /**
+     * @return the body of the next record, or null if the end of the file or a torn record was reached.
+     */
+    private byte[] readRecord(DataInputStream input) throws IOException {
+        try {
+            int length = input.readInt();
+            int checksum = input.readInt();
+
+            if (length <= 0) {
+                return null;
+            }
+
+            byte[] body = new byte[length];
+
+            input.readFully(body);
+
+            CRC32 crc = new CRC32();
+
+            crc.update(body);
+
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+
+            return body;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void apply(Decoder decoder, byte[] body) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+
+        if (body[0] == PUT) {
+            PicketBoxSession session = decoder.readLazySession(input);
+
+            this.sessions.put(session.getId().getId(), session);
+        } else if (body[0] == REMOVE) {
+            this.sessions.remove(decoder.readId(input).getId());
+        } else if (body[0] == DELTA) {
+            SessionDelta delta = decoder.readDelta(input);
+            PicketBoxSession session = this.sessions.get(delta.getId().getId());
+
+            if (session != null) {
+                delta.applyTo(session.getAttributeMap());
+            }
+        }
+    }
+
+    private List<Long> listLogGenerations() {
+        List<Long> generations = new ArrayList<Long>();
+        String[] names = this.directory.list();
+
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(LOG_FILE_PREFIX) && name.endsWith(LOG_FILE_SUFFIX)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(LOG_FILE_PREFIX.length(),
+                                name.length() - LOG_FILE_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not a log file
+                    }
+                }
+            }
+        }
+
+        Long[] sorted = generations.toArray(new Long[generations.size()]);
+
+        Arrays.sort(sorted);
+
+        return Arrays.asList(sorted);
+    }
+
+    private File logFile(long generation) {
+        return new File(this.directory, LOG_FILE_PREFIX + generation + LOG_FILE_SUFFIX);
+    }
+
+    private void openLog(long generation) throws IOException {
+        File file = logFile(generation);
+
+        this.logStream = new FileOutputStream(file, true);
+        this.log = this.logStream.getChannel();
+        this.generation = generation;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+
+        writeFully(header);
+
+        this.logSize = HEADER_SIZE;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.log.write(buffer);
+        }
+    }
+
+    /**
+     * <p>
+     * Switches to a new log and schedules a snapshot of the live sessions. Only called by the writer thread.
+     * </p>
+     */
+    private void rotate() throws IOException {
+        this.log.force(false);
+        StreamUtil.safeClose(this.logStream);
+
+        openLog(this.generation + 1);
+
+        final long snapshotGeneration = this.generation;
+
+        this.compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(snapshotGeneration);
+                } catch (IOException e) {
+                    PicketBoxLogger.LOGGER.errorWritingSessionJournal(directory.getPath(), e);
+                } finally {
+                    compacting.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Writes all live sessions to a new snapshot and deletes the logs it supersedes. Every change not included in the snapshot
+     * was applied after the switch to the log of the given generation, so it is replayed from that log.
+     * </p>
+     */
+    private void compact(long snapshotGeneration) throws IOException {
+        File tmpSnapshot = new File(this.directory, SNAPSHOT_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpSnapshot);
+        DataOutputStream output = null;
+
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(fos));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(snapshotGeneration);
+
+            Encoder encoder = this.codec.newEncoder();
+            int count = 0;
+
+            for (PicketBoxSession session : this.sessions.values()) {
+                output.write(encode(encoder, PUT, session.getId(), session).array());
+                count++;
+            }
+
+            ByteArrayOutputStream end = new ByteArrayOutputStream(5);
+            DataOutputStream endOutput = new DataOutputStream(end);
+
+            endOutput.writeByte(END);
+            endOutput.writeInt(count);
+
+            output.write(frame(end.toByteArray()).array());
+            output.flush();
+            fos.getFD().sync();
+        } finally {
+            StreamUtil.safeClose(output != null ? output : fos);
+        }
+
+        File snapshot = new File(this.directory, SNAPSHOT_FILE);
+
+        if (snapshot.exists() && !snapshot.delete()) {
+            throw new IOException("Could not delete " + snapshot);
+        }
+
+        if (!tmpSnapshot.renameTo(snapshot)) {
+            throw new IOException("Could not rename " + tmpSnapshot + " to " + snapshot);
+        }
+
+        for (long logGeneration : listLogGenerations()) {
+            if (logGeneration < snapshotGeneration) {
+                logFile(logGeneration).delete();
+            }
+        }
+    }
+
+    private static ByteBuffer encode(Encoder encoder, byte type, SessionId<? extends Serializable> id,
+            PicketBoxSession session) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeByte(type);
+
+        if (session != null) {
+            encoder.writeSession(output, session);
+        } else {
+            encoder.writeId(output, id);
+        }
+
+        output.flush();
+
+        return frame(bytes.toByteArray());
+    }
+
+    private static ByteBuffer frame(byte[] body) {
+        CRC32 crc = new CRC32();
+
+        crc.update(body);
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+
+        buffer.putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+
+        return buffer;
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            List<JournalRecord> batch = new ArrayList<JournalRecord>(MAX_BATCH_SIZE);
+            long lastSync = System.currentTimeMillis();
+            boolean unsynced = false;
+
+            while (running || !queue.isEmpty()) {
+                try {
+                    JournalRecord first = queue.poll(groupCommitInterval, TimeUnit.MILLISECONDS);
+
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    }
+                } catch (InterruptedException e) {
+                    // stop() waits for the queue to be drained
+                }
+
+                IOException failure = null;
+                long committedSize = logSize;
+
+                try {
+                    boolean syncRequested = false;
+
+                    for (JournalRecord record : batch) {
+                        logSize += record.buffer.remaining();
+                        writeFully(record.buffer);
+
+                        if (record.durability == Durability.SYNC) {
+                            syncRequested = true;
+                        } else if (record.durability == Durability.BATCHED) {
+                            unsynced = true;
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+
+                    if (syncRequested || (unsynced && now - lastSync >= groupCommitInterval)) {
+                        log.force(false);
+                        lastSync = now;
+                        unsynced = false;
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    PicketBoxLogger.LOGGER.errorWritingSessionJournal(directory.getPath(), e);
+                    discardBatch(committedSize);
+                }
+
+                for (JournalRecord record : batch) {
+                    record.complete(failure);
+                }
+
+                batch.clear();
+
+                if ((compactionRequested || logSize >= compactionThreshold) && compacting.compareAndSet(false, true)) {
+                    compactionRequested = false;
+
+                    try {
+                        rotate();
+                    } catch (IOException e) {
+                        compacting.set(false);
+                        PicketBoxLogger.LOGGER.errorWritingSessionJournal(directory.getPath(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Cuts a partially written batch off the log, so the records appended after it are not hidden behind a torn record when
+     * the log is replayed. If the log can not be truncated, every later write fails until the store is restarted.
+     * </p>
+     */
+    private void discardBatch(long committedSize) {
+        try {
+            this.log.truncate(committedSize);
+            this.logSize = committedSize;
+        } catch (IOException e) {
+            this.logFailure = e;
+            PicketBoxLogger.LOGGER.errorWritingSessionJournal(this.directory.getPath(), e);
+        }
+    }
+
+    private final class JournalRecord {
+
+        private final ByteBuffer buffer;
+        private final Durability durability;
+        private final CountDownLatch synced;
+        private volatile IOException failure;
+
+        JournalRecord(ByteBuffer buffer, Durability durability) {
+            this.buffer = buffer;
+            this.durability = durability;
+            this.synced = durability == Durability.SYNC ? new CountDownLatch(1) : null;
+        }
+
+        void complete(IOException failure) {
+            this.failure = failure;
+
+            if (this.synced != null) {
+                this.synced.countDown();
+            }
+        }
+
+        void await() {
+            if (this.synced == null) {
+                return;
+            }
+
+            boolean interrupted = false;
+
+            for (;;) {
+                try {
+                    this.synced.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (this.failure != null) {
+                throw PicketBoxMessages.MESSAGES.unableToStoreToFile(directory.getPath(), this.failure);
+            }
+        }
+    }
+}
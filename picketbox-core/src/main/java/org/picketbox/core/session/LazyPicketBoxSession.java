@@ -0,0 +1,132 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentMap;
+
+import org.picketbox.core.PicketBoxSubject;
+
+/**
+ * <p>
+ * A {@link PicketBoxSession} read by the {@link PicketBoxSessionCodec} whose subject and attributes are only decoded when they
+ * are first accessed. Its id, validity, access times and principal name are decoded eagerly, so checking that a session exists
+ * and is valid does not pay for its attributes. A session written back to a store before being accessed keeps its encoded body
+ * as is.
+ * </p>
+ */
+final class LazyPicketBoxSession extends PicketBoxSession {
+
+    private static final long serialVersionUID = -3204619874311367720L;
+
+    private final String principalName;
+    private transient volatile Body body;
+
+    LazyPicketBoxSession(SessionId<? extends Serializable> id, long creationTime, String principalName, String[] table,
+            byte[] data) {
+        super(id, null, creationTime);
+        this.principalName = principalName;
+        this.body = new Body(table, data);
+    }
+
+    @Override
+    public PicketBoxSubject getSubject() {
+        materialize();
+        return super.getSubject();
+    }
+
+    @Override
+    public String getPrincipalName() {
+        return this.principalName;
+    }
+
+    @Override
+    protected ConcurrentMap<String, Object> getAttributeMap() {
+        materialize();
+        return super.getAttributeMap();
+    }
+
+    @Override
+    protected void setAttributeMap(ConcurrentMap<String, Object> attributes) {
+        materialize();
+        super.setAttributeMap(attributes);
+    }
+
+    /**
+     * @return the encoded subject and attributes, or null if they were decoded already
+     */
+    Body getBody() {
+        return this.body;
+    }
+
+    private void materialize() {
+        if (this.body == null) {
+            return;
+        }
+
+        synchronized (this) {
+            Body body = this.body;
+
+            if (body == null) {
+                return;
+            }
+
+            try {
+                this.subject = PicketBoxSessionCodec.readBody(body.table, body.data, this.attributes);
+            } catch (IOException e) {
+                throw new IllegalStateException("Corrupted session " + getId(), e);
+            }
+
+            // publishes the subject and attributes to the threads reading the volatile body
+            this.body = null;
+        }
+    }
+
+    /**
+     * <p>
+     * Decodes the session before Java serialization writes the fields it inherits.
+     * </p>
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        materialize();
+        return this;
+    }
+
+    /**
+     * <p>
+     * The encoded subject and attributes, with the strings they refer to.
+     * </p>
+     */
+    static final class Body {
+
+        final String[] table;
+        final byte[] data;
+
+        private Body(String[] table, byte[] data) {
+            this.table = table;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,833 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxMessages;
+import org.picketbox.core.util.StreamUtil;
+
+/**
+ * <p>
+ * A {@link SessionStore} backed by a memory-mapped file, which can be shared by several JVMs running on the same host.
+ * </p>
+ * <p>
+ * The file is divided in fixed-size slots that form an open-addressing hash table keyed by session id, using linear probing.
+ * A lookup is a hash probe in mapped memory and does not issue any system call. Every slot is guarded by a sequence number that
+ * writers make odd while they modify the slot; readers retry when the sequence is odd or changed while they were reading, and
+ * also verify the checksum of the slot content, so a reader never returns a partially written session. Writers serialize
+ * through an exclusive lock on the file, which is shared with the other processes mapping it. A slot left odd by a process that
+ * crashed while writing it is invalidated by the next process that starts, or by the first reader giving up on it.
+ * </p>
+ * <p>
+ * Sessions are stored in the compact format of {@link PicketBoxSessionCodec} and every {@link #load(SessionId)} returns a new
+ * instance, so changes to a session must be written back with {@link #update(PicketBoxSession)}. A session whose encoded
+ * form is larger than the slot payload is rejected.
+ * </p>
+ */
+public class MappedFileSessionStore extends AbstractPicketBoxLifeCycle implements SessionStore {
+
+    private static final int MAGIC = 0x50424D53;
+    private static final int VERSION = 3;
+    private static final int FILE_HEADER_SIZE = 64;
+
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_USED = 1;
+    private static final int STATE_DELETED = 2;
+
+    // slot layout
+    private static final int SEQUENCE = 0;
+    private static final int STATE = 4;
+    private static final int KEY_HASH = 8;
+    private static final int KEY_LENGTH = 12;
+    private static final int DATA_LENGTH = 16;
+    private static final int CHECKSUM = 20;
+    private static final int SESSION_VERSION = 24;
+    private static final int KEY = 32;
+    private static final int MAX_KEY_LENGTH = 128;
+    private static final int DATA = KEY + MAX_KEY_LENGTH;
+
+    private static final int MAX_READ_RETRIES = 1000;
+
+    private static final int STORE = 0;
+    private static final int STORE_IF_ABSENT = 1;
+    private static final int UPDATE = 2;
+    private static final long ANY_VERSION = Long.MIN_VALUE;
+
+    /**
+     * Written by writers and read by readers around the sequence of a slot. The volatile accesses act as memory fences, so the
+     * sequence is ordered with the content of the slot, which is written and read with plain accesses.
+     */
+    private static volatile int fence;
+
+    /**
+     * File locks are held by the whole JVM, so stores mapping the same file in one JVM share the same lock.
+     */
+    private static final ConcurrentMap<String, ReentrantLock> WRITE_LOCKS = new ConcurrentHashMap<String, ReentrantLock>();
+
+    private final String fileName;
+    private final int slotCount;
+    private final int slotSize;
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+    private ReentrantLock writeLock;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * <p>
+     * Creates a store with 65536 slots of 4KB.
+     * </p>
+     *
+     * @param fileName the file shared by all the processes using this store
+     */
+    public MappedFileSessionStore(String fileName) {
+        this(fileName, 65536, 4096);
+    }
+
+    /**
+     * @param fileName the file shared by all the processes using this store. All of them must use the same slot configuration.
+     * @param slotCount the maximum number of sessions
+     * @param slotSize the size of a slot in bytes, which bounds the size of a serialized session
+     */
+    public MappedFileSessionStore(String fileName, int slotCount, int slotSize) {
+        if (fileName == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("fileName");
+        }
+
+        if (slotCount <= 0 || slotSize <= DATA) {
+            throw new IllegalArgumentException("Invalid slot configuration: " + slotCount + " slots of " + slotSize + " bytes");
+        }
+
+        if ((long) slotCount * slotSize + FILE_HEADER_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Mapped session file can not be larger than 2GB");
+        }
+
+        this.fileName = fileName;
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#load(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public PicketBoxSession load(SessionId<? extends Serializable> key) {
+        SlotContent content = read(key, true);
+
+        if (content == null) {
+            return null;
+        }
+
+        PicketBoxSession session = deserialize(content.data);
+
+        session.version = content.version;
+
+        return session;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#getVersion(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public long getVersion(SessionId<? extends Serializable> key) {
+        SlotContent content = read(key, false);
+
+        return content != null ? content.version : -1;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void store(PicketBoxSession session) {
+        write(session, STORE, ANY_VERSION);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#storeIfAbsent(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public boolean storeIfAbsent(PicketBoxSession session) {
+        return write(session, STORE_IF_ABSENT, ANY_VERSION);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        write(session, UPDATE, ANY_VERSION);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, long expectedVersion) {
+        return write(session, UPDATE, expectedVersion);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession,
+     * org.picketbox.core.session.SessionDelta, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion) {
+        // sessions are rewritten as a whole in their slot
+        return update(session, expectedVersion);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        checkIfStarted();
+
+        byte[] keyBytes = keyBytes(id.getId());
+        int hash = hash(keyBytes);
+        FileLock lock = lock();
+
+        try {
+            ByteBuffer view = this.buffer.duplicate();
+            int slot = find(view, hash, keyBytes);
+
+            if (slot < 0) {
+                return;
+            }
+
+            beginWrite(view, slot);
+            view.putInt(slot + STATE, STATE_DELETED);
+            endWrite(view, slot);
+
+            clearTrailingTombstones(view, slot, hash);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns a cursor going through the slots of the file one at a time. Nothing is copied besides the session being returned,
+     * and no lock is taken.
+     * </p>
+     */
+    @Override
+    public Iterator<PicketBoxSession> cursor() {
+        checkIfStarted();
+
+        final ByteBuffer view = this.buffer.duplicate();
+
+        return new SessionCursor(this) {
+
+            private int index;
+
+            @Override
+            protected PicketBoxSession advance() {
+                while (this.index < slotCount) {
+                    SlotContent content = readSlot(view, slotOffsetOf(this.index++));
+
+                    if (content != null) {
+                        PicketBoxSession session = deserialize(content.data);
+
+                        session.version = content.version;
+
+                        return session;
+                    }
+                }
+
+                return null;
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Counts the used slots of the file.
+     * </p>
+     */
+    @Override
+    public int count() {
+        checkIfStarted();
+
+        ByteBuffer view = this.buffer.duplicate();
+        int count = 0;
+
+        for (int i = 0; i < this.slotCount; i++) {
+            if (view.getInt(slotOffsetOf(i) + STATE) == STATE_USED) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#removeIf(org.picketbox.core.session.SessionPredicate)
+     */
+    @Override
+    public int removeIf(SessionPredicate predicate) {
+        return SessionCursor.removeIf(this, predicate);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#forEachBatch(int,
+     * org.picketbox.core.session.SessionBatchHandler)
+     */
+    @Override
+    public void forEachBatch(int batchSize, SessionBatchHandler handler) {
+        SessionCursor.forEachBatch(this, batchSize, handler);
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            File file = new File(this.fileName);
+            String path = file.getCanonicalPath();
+
+            WRITE_LOCKS.putIfAbsent(path, new ReentrantLock());
+
+            this.writeLock = WRITE_LOCKS.get(path);
+
+            long size = FILE_HEADER_SIZE + (long) this.slotCount * this.slotSize;
+
+            this.file = new RandomAccessFile(file, "rw");
+            this.channel = this.file.getChannel();
+
+            FileLock lock = lock();
+
+            try {
+                if (this.file.length() < size) {
+                    this.file.setLength(size);
+                }
+
+                this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+                int magic = this.buffer.getInt(0);
+
+                if (magic == 0) {
+                    this.buffer.putInt(4, VERSION);
+                    this.buffer.putInt(8, this.slotCount);
+                    this.buffer.putInt(12, this.slotSize);
+                    this.buffer.putInt(0, MAGIC);
+                } else if (magic != MAGIC || this.buffer.getInt(4) != VERSION || this.buffer.getInt(8) != this.slotCount
+                        || this.buffer.getInt(12) != this.slotSize) {
+                    throw new IOException("Session file " + this.fileName + " has an incompatible layout");
+                } else {
+                    ByteBuffer view = this.buffer.duplicate();
+
+                    for (int i = 0; i < this.slotCount; i++) {
+                        repairSlot(view, slotOffsetOf(i), false);
+                    }
+                }
+            } finally {
+                unlock(lock);
+            }
+        } catch (IOException e) {
+            StreamUtil.safeClose(this.file);
+            throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(this.fileName, e);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        this.buffer.force();
+        StreamUtil.safeClose(this.file);
+        this.buffer = null;
+        this.channel = null;
+        this.file = null;
+    }
+
+    /**
+     * @param mode whether the session is stored, stored if absent or updated
+     * @param expectedVersion the version an update expects, or {@link #ANY_VERSION}
+     * @return true if the session was written
+     */
+    private boolean write(PicketBoxSession session, int mode, long expectedVersion) {
+        checkIfStarted();
+
+        Serializable id = session.getId().getId();
+        byte[] keyBytes = keyBytes(id);
+        byte[] data = serialize(session);
+        int hash = hash(keyBytes);
+
+        if (data.length > this.slotSize - DATA) {
+            throw PicketBoxMessages.MESSAGES.sessionTooLarge(id, data.length);
+        }
+
+        FileLock lock = lock();
+
+        try {
+            ByteBuffer view = this.buffer.duplicate();
+            int slot = find(view, hash, keyBytes);
+
+            if (slot < 0) {
+                if (mode == UPDATE) {
+                    return false;
+                }
+
+                slot = findFreeSlot(view, hash);
+
+                if (slot < 0) {
+                    throw PicketBoxMessages.MESSAGES.sessionStoreFull(this.fileName);
+                }
+            } else if (mode == STORE_IF_ABSENT) {
+                return false;
+            } else if (mode == STORE) {
+                throw PicketBoxMessages.MESSAGES.duplicateSessionId(id);
+            }
+
+            long version = session.version;
+
+            if (mode == UPDATE) {
+                long storedVersion = view.getLong(slot + SESSION_VERSION);
+
+                if (expectedVersion != ANY_VERSION && storedVersion != expectedVersion) {
+                    return false;
+                }
+
+                version = storedVersion + 1;
+            }
+
+            CRC32 crc = new CRC32();
+
+            crc.update(keyBytes);
+            crc.update(data);
+
+            beginWrite(view, slot);
+
+            view.putInt(slot + KEY_HASH, hash);
+            view.putInt(slot + KEY_LENGTH, keyBytes.length);
+            view.putInt(slot + DATA_LENGTH, data.length);
+            view.putInt(slot + CHECKSUM, (int) crc.getValue());
+            view.putLong(slot + SESSION_VERSION, version);
+            view.position(slot + KEY);
+            view.put(keyBytes);
+            view.position(slot + DATA);
+            view.put(data);
+            view.putInt(slot + STATE, STATE_USED);
+
+            endWrite(view, slot);
+
+            session.version = version;
+
+            return true;
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * <p>
+     * Reads the slot holding the given key, retrying while it is being written.
+     * </p>
+     *
+     * @param withData whether the session data is read, or only its version
+     * @return the content of the slot, or null if not found
+     */
+    private SlotContent read(SessionId<? extends Serializable> key, boolean withData) {
+        checkIfStarted();
+
+        byte[] keyBytes = keyBytes(key.getId());
+        int hash = hash(keyBytes);
+        ByteBuffer view = this.buffer.duplicate();
+
+        for (int i = 0; i < this.slotCount; i++) {
+            int slot = slotOffset(hash, i);
+            SlotContent content = null;
+            int state = STATE_EMPTY;
+            boolean consistent = false;
+            boolean repaired = false;
+
+            for (int retry = 0; !consistent; retry++) {
+                if (retry == MAX_READ_RETRIES) {
+                    if (repaired) {
+                        break;
+                    }
+
+                    repair(view, slot);
+                    repaired = true;
+                    retry = 0;
+                }
+
+                int sequence = readSequence(view, slot);
+
+                if ((sequence & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+
+                state = view.getInt(slot + STATE);
+                content = null;
+
+                boolean matched = state == STATE_USED && matches(view, slot, hash, keyBytes);
+
+                if (matched) {
+                    content = new SlotContent(view.getLong(slot + SESSION_VERSION), withData ? readData(view, slot) : null);
+                }
+
+                // a matching slot that fails its checksum is being written by another process
+                consistent = readSequence(view, slot) == sequence && (!matched || !withData || content.data != null);
+            }
+
+            if (!consistent) {
+                throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(this.fileName, null);
+            }
+
+            if (state == STATE_EMPTY) {
+                return null;
+            }
+
+            if (content != null) {
+                return content;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * <p>
+     * Reads the session held by a slot, retrying while it is being written.
+     * </p>
+     *
+     * @return the content of the slot, or null if it does not hold a session
+     */
+    private SlotContent readSlot(ByteBuffer view, int slot) {
+        for (int retry = 0; retry < 2 * MAX_READ_RETRIES; retry++) {
+            if (retry == MAX_READ_RETRIES) {
+                repair(view, slot);
+            }
+
+            int sequence = readSequence(view, slot);
+
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            if (view.getInt(slot + STATE) != STATE_USED) {
+                return null;
+            }
+
+            SlotContent content = new SlotContent(view.getLong(slot + SESSION_VERSION), readData(view, slot));
+
+            if (readSequence(view, slot) == sequence && content.data != null) {
+                return content;
+            }
+        }
+
+        throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(this.fileName, null);
+    }
+
+    /**
+     * @return the offset of the slot holding the given key, or -1 if not found. Must be called holding the write lock.
+     */
+    private int find(ByteBuffer view, int hash, byte[] keyBytes) {
+        for (int i = 0; i < this.slotCount; i++) {
+            int slot = slotOffset(hash, i);
+            int state = view.getInt(slot + STATE);
+
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+
+            if (state == STATE_USED && matches(view, slot, hash, keyBytes)) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the offset of the first empty or deleted slot in the probe sequence. Must be called holding the write lock.
+     */
+    private int findFreeSlot(ByteBuffer view, int hash) {
+        for (int i = 0; i < this.slotCount; i++) {
+            int slot = slotOffset(hash, i);
+
+            if (view.getInt(slot + STATE) != STATE_USED) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * <p>
+     * Turns the tombstones ending a probe sequence back into empty slots, so lookups of missing keys stay short. No live entry
+     * can be reached through them, since the next slot is empty.
+     * </p>
+     */
+    private void clearTrailingTombstones(ByteBuffer view, int slot, int hash) {
+        int index = (slot - FILE_HEADER_SIZE) / this.slotSize;
+
+        if (view.getInt(slotOffsetOf((index + 1) % this.slotCount) + STATE) != STATE_EMPTY) {
+            return;
+        }
+
+        for (int i = 0; i < this.slotCount; i++) {
+            int current = slotOffsetOf((index - i + this.slotCount) % this.slotCount);
+
+            if (view.getInt(current + STATE) != STATE_DELETED) {
+                return;
+            }
+
+            beginWrite(view, current);
+            view.putInt(current + STATE, STATE_EMPTY);
+            endWrite(view, current);
+        }
+    }
+
+    private boolean matches(ByteBuffer view, int slot, int hash, byte[] keyBytes) {
+        if (view.getInt(slot + KEY_HASH) != hash || view.getInt(slot + KEY_LENGTH) != keyBytes.length) {
+            return false;
+        }
+
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (view.get(slot + KEY + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the payload of the slot, or null if it is inconsistent.
+     */
+    private byte[] readData(ByteBuffer view, int slot) {
+        int keyLength = view.getInt(slot + KEY_LENGTH);
+        int dataLength = view.getInt(slot + DATA_LENGTH);
+
+        if (keyLength < 0 || keyLength > MAX_KEY_LENGTH || dataLength < 0 || dataLength > this.slotSize - DATA) {
+            return null;
+        }
+
+        byte[] key = new byte[keyLength];
+        byte[] data = new byte[dataLength];
+
+        view.position(slot + KEY);
+        view.get(key);
+        view.position(slot + DATA);
+        view.get(data);
+
+        CRC32 crc = new CRC32();
+
+        crc.update(key);
+        crc.update(data);
+
+        if ((int) crc.getValue() != view.getInt(slot + CHECKSUM)) {
+            return null;
+        }
+
+        return data;
+    }
+
+    /**
+     * <p>
+     * Makes the sequence of a slot odd. The sequence is forced odd rather than incremented, so a slot left odd by a crashed
+     * writer does not turn even while it is written again. Must be called holding the write lock.
+     * </p>
+     */
+    private void beginWrite(ByteBuffer view, int slot) {
+        view.putInt(slot + SEQUENCE, view.getInt(slot + SEQUENCE) | 1);
+        fence = 0;
+    }
+
+    /**
+     * <p>
+     * Makes the sequence of a slot even again, once its content is written. Must be called holding the write lock.
+     * </p>
+     */
+    private void endWrite(ByteBuffer view, int slot) {
+        fence = 0;
+        view.putInt(slot + SEQUENCE, (view.getInt(slot + SEQUENCE) | 1) + 1);
+        fence = 0;
+    }
+
+    /**
+     * <p>
+     * Reads the sequence of a slot, ordered with the reads of the slot content before and after it.
+     * </p>
+     */
+    private int readSequence(ByteBuffer view, int slot) {
+        // fence is always zero, only its volatile reads matter
+        return fence + view.getInt(slot + SEQUENCE) + fence;
+    }
+
+    /**
+     * <p>
+     * Invalidates a slot that a reader could not read consistently, taking the write lock so it can not be written meanwhile.
+     * </p>
+     */
+    private void repair(ByteBuffer view, int slot) {
+        FileLock lock = lock();
+
+        try {
+            repairSlot(view, slot, true);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * <p>
+     * Invalidates a slot whose sequence is odd while nobody is writing it, which was left by a writer that crashed. Its
+     * session is dropped and the slot becomes a tombstone. Must be called holding the write lock.
+     * </p>
+     *
+     * @param checkData whether a slot whose session fails its checksum is invalidated too
+     */
+    private void repairSlot(ByteBuffer view, int slot, boolean checkData) {
+        int state = view.getInt(slot + STATE);
+        boolean torn = (view.getInt(slot + SEQUENCE) & 1) != 0;
+
+        if (!torn && (!checkData || state != STATE_USED || readData(view, slot) != null)) {
+            return;
+        }
+
+        beginWrite(view, slot);
+
+        if (state != STATE_EMPTY) {
+            view.putInt(slot + STATE, STATE_DELETED);
+        }
+
+        endWrite(view, slot);
+    }
+
+    private int slotOffset(int hash, int probe) {
+        return slotOffsetOf((int) (((hash & 0xFFFFFFFFL) + probe) % this.slotCount));
+    }
+
+    private int slotOffsetOf(int index) {
+        return FILE_HEADER_SIZE + index * this.slotSize;
+    }
+
+    /**
+     * <p>
+     * Acquires the write lock, first among the threads of this JVM and then among the processes sharing the file.
+     * </p>
+     */
+    private FileLock lock() {
+        this.writeLock.lock();
+
+        try {
+            return this.channel.lock(0, FILE_HEADER_SIZE, false);
+        } catch (IOException e) {
+            this.writeLock.unlock();
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.fileName, e);
+        }
+    }
+
+    private void unlock(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.fileName, e);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private static int hash(byte[] keyBytes) {
+        int hash = 0x811C9DC5;
+
+        for (byte b : keyBytes) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+
+        return hash;
+    }
+
+    private static byte[] keyBytes(Serializable id) {
+        byte[] bytes = PicketBoxSessionCodec.encodeKey(id);
+
+        if (bytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Session id is too long: " + id);
+        }
+
+        return bytes;
+    }
+
+    private byte[] serialize(PicketBoxSession session) {
+        return this.codec.encode(session);
+    }
+
+    private PicketBoxSession deserialize(byte[] data) {
+        try {
+            return this.codec.decodeLazy(data);
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(this.fileName, e);
+        }
+    }
+
+    private static class SlotContent {
+
+        private final long version;
+        private final byte[] data;
+
+        SlotContent(long version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+}
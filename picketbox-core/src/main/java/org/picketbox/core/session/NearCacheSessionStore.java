@@ -0,0 +1,457 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxMessages;
+
+/**
+ * <p>
+ * A {@link SessionStore} decorator that keeps the recently used sessions of a persistent or remote store in a local cache, so
+ * retrieving a session on every request does not go to the store.
+ * </p>
+ * <p>
+ * The cache is bounded, evicting the least recently used sessions, and its entries expire after a time to live, which bounds
+ * how long a session changed by another node without notice can be served. Local updates and removals go through to the
+ * store, refresh the cache and are published to the other nodes through an optional {@link SessionInvalidationChannel}; the
+ * sessions invalidated by the other nodes are evicted.
+ * </p>
+ * <p>
+ * The hit ratio of the cache and the time it saved, estimated from the average latency of the loads served by the store, are
+ * reported.
+ * </p>
+ */
+public class NearCacheSessionStore extends AbstractPicketBoxLifeCycle implements SessionStore {
+
+    private static final int SEGMENTS = 16;
+
+    private final SessionStore delegate;
+    private final long timeToLive;
+    private final SessionInvalidationChannel channel;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong missTime = new AtomicLong();
+    private final SessionInvalidationChannel.Listener invalidationListener = new SessionInvalidationChannel.Listener() {
+        @Override
+        public void onInvalidation(SessionId<? extends Serializable> id) {
+            invalidate(id);
+        }
+    };
+
+    /**
+     * @param delegate the cached store
+     * @param maxEntries the maximum number of cached sessions
+     * @param timeToLive how long a session is cached
+     * @param unit the unit of the time to live
+     */
+    public NearCacheSessionStore(SessionStore delegate, int maxEntries, long timeToLive, TimeUnit unit) {
+        this(delegate, maxEntries, timeToLive, unit, null);
+    }
+
+    /**
+     * @param delegate the cached store
+     * @param maxEntries the maximum number of cached sessions
+     * @param timeToLive how long a session is cached
+     * @param unit the unit of the time to live
+     * @param channel the channel used to invalidate the sessions cached by other nodes, or null
+     */
+    public NearCacheSessionStore(SessionStore delegate, int maxEntries, long timeToLive, TimeUnit unit,
+            SessionInvalidationChannel channel) {
+        if (delegate == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("delegate");
+        }
+
+        if (maxEntries <= 0 || timeToLive <= 0) {
+            throw new IllegalArgumentException("Invalid near cache configuration: " + maxEntries + " entries, " + timeToLive
+                    + " " + unit);
+        }
+
+        this.delegate = delegate;
+        this.timeToLive = unit.toNanos(timeToLive);
+        this.channel = channel;
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment((maxEntries + SEGMENTS - 1) / SEGMENTS);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#load(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public PicketBoxSession load(SessionId<? extends Serializable> key) {
+        checkIfStarted();
+
+        Serializable id = key.getId();
+        Segment segment = segmentFor(id);
+        long now = System.nanoTime();
+        PicketBoxSession session = segment.get(id, now);
+
+        if (session != null) {
+            this.hits.incrementAndGet();
+            return session;
+        }
+
+        long generation = segment.getGeneration();
+
+        session = this.delegate.load(key);
+
+        long end = System.nanoTime();
+
+        this.misses.incrementAndGet();
+        this.missTime.addAndGet(end - now);
+
+        if (session != null) {
+            // a session updated or invalidated during the load may be stale, it is loaded again on the next access
+            segment.putIfUnchanged(id, session, end, generation);
+        }
+
+        return session;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void store(PicketBoxSession session) {
+        checkIfStarted();
+
+        this.delegate.store(session);
+
+        Serializable id = session.getId().getId();
+
+        segmentFor(id).put(id, session, System.nanoTime());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#storeIfAbsent(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public boolean storeIfAbsent(PicketBoxSession session) {
+        checkIfStarted();
+
+        if (!this.delegate.storeIfAbsent(session)) {
+            return false;
+        }
+
+        Serializable id = session.getId().getId();
+
+        segmentFor(id).put(id, session, System.nanoTime());
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        checkIfStarted();
+
+        this.delegate.update(session);
+
+        Serializable id = session.getId().getId();
+
+        segmentFor(id).put(id, session, System.nanoTime());
+
+        if (this.channel != null) {
+            this.channel.publish(this.invalidationListener, session.getId());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, long expectedVersion) {
+        return update(session, null, expectedVersion);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession,
+     * org.picketbox.core.session.SessionDelta, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion) {
+        checkIfStarted();
+
+        boolean updated = delta != null ? this.delegate.update(session, delta, expectedVersion) : this.delegate.update(session,
+                expectedVersion);
+
+        if (!updated) {
+            // the cached copy is the one that lost the race
+            invalidate(session.getId());
+            return false;
+        }
+
+        Serializable id = session.getId().getId();
+
+        segmentFor(id).put(id, session, System.nanoTime());
+
+        if (this.channel != null) {
+            this.channel.publish(this.invalidationListener, session.getId());
+        }
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        checkIfStarted();
+
+        invalidate(id);
+        this.delegate.remove(id);
+
+        if (this.channel != null) {
+            this.channel.publish(this.invalidationListener, id);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#getVersion(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public long getVersion(SessionId<? extends Serializable> id) {
+        return this.delegate.getVersion(id);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#cursor()
+     */
+    @Override
+    public Iterator<PicketBoxSession> cursor() {
+        return SessionCursor.of(this, this.delegate.cursor());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#count()
+     */
+    @Override
+    public int count() {
+        return this.delegate.count();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#removeIf(org.picketbox.core.session.SessionPredicate)
+     */
+    @Override
+    public int removeIf(SessionPredicate predicate) {
+        return SessionCursor.removeIf(this, predicate);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#forEachBatch(int,
+     * org.picketbox.core.session.SessionBatchHandler)
+     */
+    @Override
+    public void forEachBatch(int batchSize, SessionBatchHandler handler) {
+        SessionCursor.forEachBatch(this, batchSize, handler);
+    }
+
+    /**
+     * <p>
+     * Evicts a session from the cache.
+     * </p>
+     *
+     * @param id
+     */
+    public void invalidate(SessionId<? extends Serializable> id) {
+        segmentFor(id.getId()).remove(id.getId());
+    }
+
+    /**
+     * @return the number of loads served by the cache
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of loads served by the store
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the ratio of loads served by the cache, between 0 and 1
+     */
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + this.misses.get();
+
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @param unit
+     * @return the time saved by the cache, estimated as the number of hits times the average latency of the store loads
+     */
+    public long getSavedTime(TimeUnit unit) {
+        long misses = this.misses.get();
+
+        if (misses == 0) {
+            return 0;
+        }
+
+        return unit.convert(this.hits.get() * (this.missTime.get() / misses), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    protected void doStart() {
+        this.delegate.start();
+
+        if (this.channel != null) {
+            this.channel.subscribe(this.invalidationListener);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        if (this.channel != null) {
+            this.channel.unsubscribe(this.invalidationListener);
+        }
+
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+
+        this.delegate.stop();
+    }
+
+    private Segment segmentFor(Serializable id) {
+        int hash = id.hashCode();
+
+        return this.segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * <p>
+     * A LRU map of cached sessions, guarded by its own monitor.
+     * </p>
+     */
+    private final class Segment {
+
+        private final Map<Serializable, CachedSession> entries;
+
+        // incremented by every change, so a load can tell whether the segment changed while it was in progress
+        private long generation;
+
+        private Segment(final int maxEntries) {
+            this.entries = new LinkedHashMap<Serializable, CachedSession>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Serializable, CachedSession> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        private synchronized PicketBoxSession get(Serializable id, long now) {
+            CachedSession cached = this.entries.get(id);
+
+            if (cached == null) {
+                return null;
+            }
+
+            if (now - cached.cachedAt >= timeToLive) {
+                this.entries.remove(id);
+                return null;
+            }
+
+            return cached.session;
+        }
+
+        private synchronized long getGeneration() {
+            return this.generation;
+        }
+
+        private synchronized void put(Serializable id, PicketBoxSession session, long now) {
+            this.entries.put(id, new CachedSession(session, now));
+            this.generation++;
+        }
+
+        private synchronized void putIfUnchanged(Serializable id, PicketBoxSession session, long now, long generation) {
+            if (this.generation == generation) {
+                this.entries.put(id, new CachedSession(session, now));
+            }
+        }
+
+        private synchronized void remove(Serializable id) {
+            this.entries.remove(id);
+            this.generation++;
+        }
+
+        private synchronized void clear() {
+            this.entries.clear();
+        }
+    }
+
+    private static class CachedSession {
+
+        private final PicketBoxSession session;
+        private final long cachedAt;
+
+        CachedSession(PicketBoxSession session, long cachedAt) {
+            this.session = session;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
@@ -0,0 +1,855 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxMessages;
+
+/**
+ * <p>
+ * A {@link SessionStore} that keeps sessions outside of the Java heap, so it can hold tens of millions of sessions without
+ * increasing the heap usage or the garbage collection time.
+ * </p>
+ * <p>
+ * Sessions are encoded with {@link PicketBoxSessionCodec} into direct memory slabs, which are allocated on demand up to the
+ * configured maximum memory. Slab memory is handed out in power of two chunks by a buddy allocator: larger free chunks are
+ * split when no chunk of the requested size is available, and freed chunks are merged with their free buddies. Sessions
+ * are located through open-addressing hash tables that also live in direct memory, split in segments guarded by their own
+ * read/write lock. The only per-session objects on the heap are the materialized sessions of a small LRU cache per segment,
+ * which holds the working set.
+ * </p>
+ * <p>
+ * A session returned by {@link #load(SessionId)} is shared with other callers only while it stays in the cache, so changes
+ * to a session must be written back with {@link #update(PicketBoxSession)}. The contents of the store are discarded when it
+ * is stopped.
+ * </p>
+ */
+public class OffHeapSessionStore extends AbstractPicketBoxLifeCycle implements SessionStore {
+
+    private static final int MAX_SLAB_SIZE = 64 * 1024 * 1024;
+    private static final int MIN_CHUNK_SHIFT = 6;
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    // a record holds the key length, the data length, the session version, the key and the data
+    private static final int RECORD_VERSION = 8;
+
+    // index entry layout
+    private static final int ENTRY_ADDRESS = 0;
+    private static final int ENTRY_HASH = 8;
+    private static final int ENTRY_SIZE = 16;
+
+    private static final int STORE = 0;
+    private static final int STORE_IF_ABSENT = 1;
+    private static final int UPDATE = 2;
+    private static final long ANY_VERSION = Long.MIN_VALUE;
+
+    private final long maxMemory;
+    private final int maxSessions;
+    private final int cacheSize;
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    private Allocator allocator;
+    private Segment[] segments;
+    private int segmentShift;
+
+    /**
+     * <p>
+     * Creates a store for up to one million sessions in 256MB, caching 16384 sessions on the heap.
+     * </p>
+     */
+    public OffHeapSessionStore() {
+        this(256L * 1024 * 1024, 1024 * 1024, 16384);
+    }
+
+    /**
+     * @param maxMemory the maximum memory used by the encoded sessions, in bytes
+     * @param maxSessions the maximum number of sessions, which sizes the index. The index takes about 21 bytes per session in
+     *        addition to the maximum memory.
+     * @param cacheSize the maximum number of materialized sessions kept on the heap
+     */
+    public OffHeapSessionStore(long maxMemory, int maxSessions, int cacheSize) {
+        if (maxMemory < (1 << MIN_CHUNK_SHIFT) || maxSessions <= 0 || cacheSize < 0) {
+            throw new IllegalArgumentException("Invalid off-heap store configuration: " + maxMemory + " bytes, " + maxSessions
+                    + " sessions, " + cacheSize + " cached sessions");
+        }
+
+        this.maxMemory = maxMemory;
+        this.maxSessions = maxSessions;
+        this.cacheSize = cacheSize;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#load(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public PicketBoxSession load(SessionId<? extends Serializable> key) {
+        checkIfStarted();
+
+        Serializable id = key.getId();
+        byte[] keyBytes = PicketBoxSessionCodec.encodeKey(id);
+        int hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.readLock().lock();
+
+        try {
+            PicketBoxSession session = segment.getCached(id);
+
+            if (session != null) {
+                this.cacheHits.incrementAndGet();
+                return session;
+            }
+
+            this.cacheMisses.incrementAndGet();
+
+            int entry = segment.find(hash, keyBytes);
+
+            if (entry < 0) {
+                return null;
+            }
+
+            session = decode(segment.index.getLong(entry + ENTRY_ADDRESS));
+            segment.cache(id, session);
+
+            return session;
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void store(PicketBoxSession session) {
+        write(session, STORE, ANY_VERSION);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#storeIfAbsent(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public boolean storeIfAbsent(PicketBoxSession session) {
+        return write(session, STORE_IF_ABSENT, ANY_VERSION);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        write(session, UPDATE, ANY_VERSION);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, long expectedVersion) {
+        return write(session, UPDATE, expectedVersion);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession,
+     * org.picketbox.core.session.SessionDelta, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion) {
+        // sessions are rewritten as a whole in their slot
+        return update(session, expectedVersion);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        checkIfStarted();
+
+        byte[] keyBytes = PicketBoxSessionCodec.encodeKey(id.getId());
+        int hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.writeLock().lock();
+
+        try {
+            segment.uncache(id.getId());
+
+            int entry = segment.find(hash, keyBytes);
+
+            if (entry >= 0) {
+                this.allocator.free(segment.index.getLong(entry + ENTRY_ADDRESS));
+                segment.delete(entry);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#getVersion(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public long getVersion(SessionId<? extends Serializable> id) {
+        checkIfStarted();
+
+        byte[] keyBytes = PicketBoxSessionCodec.encodeKey(id.getId());
+        int hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.readLock().lock();
+
+        try {
+            int entry = segment.find(hash, keyBytes);
+
+            if (entry < 0) {
+                return -1;
+            }
+
+            return recordVersion(segment.index.getLong(entry + ENTRY_ADDRESS));
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * <p>
+     * Returns a weakly consistent cursor over the stored sessions. Segments are decoded one at a time while holding their read
+     * lock, so only the sessions of one segment are on the heap at once.
+     * </p>
+     */
+    @Override
+    public Iterator<PicketBoxSession> cursor() {
+        checkIfStarted();
+
+        return new SessionCursor(this) {
+
+            private final List<PicketBoxSession> segmentSessions = new ArrayList<PicketBoxSession>();
+            private int segment;
+            private int position;
+
+            @Override
+            protected PicketBoxSession advance() {
+                while (this.position == this.segmentSessions.size()) {
+                    if (this.segment == segments.length) {
+                        return null;
+                    }
+
+                    this.segmentSessions.clear();
+                    this.position = 0;
+                    segments[this.segment++].decodeTo(this.segmentSessions);
+                }
+
+                return this.segmentSessions.get(this.position++);
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#count()
+     */
+    @Override
+    public int count() {
+        return size();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#removeIf(org.picketbox.core.session.SessionPredicate)
+     */
+    @Override
+    public int removeIf(SessionPredicate predicate) {
+        return SessionCursor.removeIf(this, predicate);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#forEachBatch(int,
+     * org.picketbox.core.session.SessionBatchHandler)
+     */
+    @Override
+    public void forEachBatch(int batchSize, SessionBatchHandler handler) {
+        SessionCursor.forEachBatch(this, batchSize, handler);
+    }
+
+    /**
+     * @return the number of sessions in the store
+     */
+    public int size() {
+        int size = 0;
+
+        for (Segment segment : this.segments) {
+            segment.lock.readLock().lock();
+
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the number of bytes taken by the encoded sessions, including the unused tail of their chunks
+     */
+    public long getUsedMemory() {
+        return this.allocator.getUsedMemory();
+    }
+
+    /**
+     * @return the number of bytes of the slabs allocated so far
+     */
+    public long getAllocatedMemory() {
+        return this.allocator.getAllocatedMemory();
+    }
+
+    /**
+     * @return the number of loads served by the on-heap cache
+     */
+    public long getCacheHits() {
+        return this.cacheHits.get();
+    }
+
+    /**
+     * @return the number of loads that had to decode the session from off-heap memory
+     */
+    public long getCacheMisses() {
+        return this.cacheMisses.get();
+    }
+
+    @Override
+    protected void doStart() {
+        int segmentCount = 1;
+
+        while (segmentCount < Math.max(16, Runtime.getRuntime().availableProcessors() * 4)) {
+            segmentCount <<= 1;
+        }
+
+        int segmentCapacity = 1;
+
+        // keeps the load factor of the index under 0.75
+        while (segmentCapacity * 3L < (this.maxSessions / segmentCount + 1) * 4L) {
+            segmentCapacity <<= 1;
+        }
+
+        this.allocator = new Allocator(this.maxMemory);
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+
+        int segmentCacheSize = (this.cacheSize + segmentCount - 1) / segmentCount;
+
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment(segmentCapacity, segmentCacheSize);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        // the direct buffers are released when they are garbage collected
+        this.segments = null;
+        this.allocator = null;
+    }
+
+    /**
+     * @param mode whether the session is stored, stored if absent or updated
+     * @param expectedVersion the version an update expects, or {@link #ANY_VERSION}
+     * @return true if the session was written
+     */
+    private boolean write(PicketBoxSession session, int mode, long expectedVersion) {
+        checkIfStarted();
+
+        Serializable id = session.getId().getId();
+        byte[] keyBytes = PicketBoxSessionCodec.encodeKey(id);
+        byte[] data = this.codec.encode(session);
+        int hash = hash(keyBytes);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.writeLock().lock();
+
+        try {
+            int entry = segment.find(hash, keyBytes);
+
+            if (entry < 0) {
+                if (mode == UPDATE) {
+                    return false;
+                }
+
+                if (segment.isFull()) {
+                    throw PicketBoxMessages.MESSAGES.sessionStoreFull("off-heap index");
+                }
+            } else if (mode == STORE_IF_ABSENT) {
+                return false;
+            } else if (mode == STORE) {
+                throw PicketBoxMessages.MESSAGES.duplicateSessionId(id);
+            }
+
+            long version = session.version;
+
+            if (entry >= 0) {
+                long storedVersion = recordVersion(segment.index.getLong(entry + ENTRY_ADDRESS));
+
+                if (expectedVersion != ANY_VERSION && storedVersion != expectedVersion) {
+                    return false;
+                }
+
+                version = storedVersion + 1;
+            }
+
+            long address = this.allocator.allocate(id, RECORD_HEADER_SIZE + keyBytes.length + data.length);
+            ByteBuffer view = this.allocator.view(address);
+
+            view.putInt(keyBytes.length);
+            view.putInt(data.length);
+            view.putLong(version);
+            view.put(keyBytes);
+            view.put(data);
+
+            if (entry < 0) {
+                segment.insert(hash, address);
+            } else {
+                this.allocator.free(segment.index.getLong(entry + ENTRY_ADDRESS));
+                segment.index.putLong(entry + ENTRY_ADDRESS, address);
+            }
+
+            session.version = version;
+            segment.cache(id, session);
+
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    private PicketBoxSession decode(long address) {
+        ByteBuffer view = this.allocator.view(address);
+        int keyLength = view.getInt();
+        byte[] data = new byte[view.getInt()];
+        long version = view.getLong();
+
+        view.position(view.position() + keyLength);
+        view.get(data);
+
+        try {
+            PicketBoxSession session = this.codec.decodeLazy(data);
+
+            session.version = version;
+
+            return session;
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupted off-heap session", e);
+        }
+    }
+
+    private long recordVersion(long address) {
+        ByteBuffer view = this.allocator.view(address);
+
+        return view.getLong(view.position() + RECORD_VERSION);
+    }
+
+    private boolean matches(long address, byte[] keyBytes) {
+        ByteBuffer view = this.allocator.view(address);
+
+        if (view.getInt() != keyBytes.length) {
+            return false;
+        }
+
+        view.position(view.position() + RECORD_HEADER_SIZE - 4);
+
+        for (byte b : keyBytes) {
+            if (view.get() != b) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private Segment segmentFor(int hash) {
+        return this.segments[hash >>> this.segmentShift];
+    }
+
+    private static int hash(byte[] keyBytes) {
+        int hash = 0x811C9DC5;
+
+        for (byte b : keyBytes) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+
+        return hash;
+    }
+
+    /**
+     * <p>
+     * An open-addressing hash table with linear probing, stored in a direct buffer. Entries hold the address of a record and
+     * the hash of its key; an address of zero marks a free entry. Deletions shift the following entries back, so lookups never
+     * go through tombstones.
+     * </p>
+     */
+    private final class Segment {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final ByteBuffer index;
+        private final int mask;
+        private final int threshold;
+        private final Map<Serializable, PicketBoxSession> cache;
+        private int size;
+
+        private Segment(int capacity, final int maxCached) {
+            this.index = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE);
+            this.mask = capacity - 1;
+            this.threshold = capacity - capacity / 8;
+            this.cache = new LinkedHashMap<Serializable, PicketBoxSession>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Serializable, PicketBoxSession> eldest) {
+                    return size() > maxCached;
+                }
+            };
+        }
+
+        /**
+         * @return the offset of the entry for the given key, or -1
+         */
+        private int find(int hash, byte[] keyBytes) {
+            for (int i = hash & this.mask;; i = (i + 1) & this.mask) {
+                int entry = i * ENTRY_SIZE;
+                long address = this.index.getLong(entry + ENTRY_ADDRESS);
+
+                if (address == 0) {
+                    return -1;
+                }
+
+                if (this.index.getInt(entry + ENTRY_HASH) == hash && matches(address, keyBytes)) {
+                    return entry;
+                }
+            }
+        }
+
+        private boolean isFull() {
+            return this.size >= this.threshold;
+        }
+
+        private void insert(int hash, long address) {
+            int i = hash & this.mask;
+
+            while (this.index.getLong(i * ENTRY_SIZE + ENTRY_ADDRESS) != 0) {
+                i = (i + 1) & this.mask;
+            }
+
+            this.index.putInt(i * ENTRY_SIZE + ENTRY_HASH, hash);
+            this.index.putLong(i * ENTRY_SIZE + ENTRY_ADDRESS, address);
+            this.size++;
+        }
+
+        private void delete(int entry) {
+            int hole = entry / ENTRY_SIZE;
+
+            for (int i = (hole + 1) & this.mask;; i = (i + 1) & this.mask) {
+                long address = this.index.getLong(i * ENTRY_SIZE + ENTRY_ADDRESS);
+
+                if (address == 0) {
+                    break;
+                }
+
+                int hash = this.index.getInt(i * ENTRY_SIZE + ENTRY_HASH);
+                int home = hash & this.mask;
+
+                // moves the entry into the hole unless its home lies cyclically between the hole and its position
+                if (((i - home) & this.mask) >= ((i - hole) & this.mask)) {
+                    this.index.putInt(hole * ENTRY_SIZE + ENTRY_HASH, hash);
+                    this.index.putLong(hole * ENTRY_SIZE + ENTRY_ADDRESS, address);
+                    hole = i;
+                }
+            }
+
+            this.index.putLong(hole * ENTRY_SIZE + ENTRY_ADDRESS, 0);
+            this.size--;
+        }
+
+        private void decodeTo(List<PicketBoxSession> sessions) {
+            this.lock.readLock().lock();
+
+            try {
+                for (int i = 0; i <= this.mask; i++) {
+                    long address = this.index.getLong(i * ENTRY_SIZE + ENTRY_ADDRESS);
+
+                    if (address != 0) {
+                        sessions.add(decode(address));
+                    }
+                }
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        private PicketBoxSession getCached(Serializable id) {
+            synchronized (this.cache) {
+                return this.cache.get(id);
+            }
+        }
+
+        private void cache(Serializable id, PicketBoxSession session) {
+            synchronized (this.cache) {
+                this.cache.put(id, session);
+            }
+        }
+
+        private void uncache(Serializable id) {
+            synchronized (this.cache) {
+                this.cache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * A buddy allocator handing out power of two chunks of direct memory slabs. Addresses hold the slab number plus one in
+     * their high int and the offset in the slab in their low int, so no valid address is zero. Slabs are carved in chunks
+     * aligned on their size, and a larger free chunk is split in halves when no chunk of the requested size is free. A freed
+     * chunk is merged with its buddy, the other half of the chunk it was split from, whenever the buddy is free too, so the
+     * memory freed by small sessions can hold larger ones again.
+     * </p>
+     * <p>
+     * A free chunk holds a marker in place of the key length of a record, its size class, and the addresses of the previous
+     * and next chunks in the doubly linked free list of its size class.
+     * </p>
+     */
+    private static final class Allocator {
+
+        private static final int FREE = -1;
+        private static final int FREE_SIZE_CLASS = 4;
+        private static final int FREE_PREVIOUS = 8;
+        private static final int FREE_NEXT = 16;
+
+        private final long maxMemory;
+        private final int slabSize;
+        private final ByteBuffer[] slabs;
+        private final long[] freeLists;
+        private int slabCount;
+        private long allocatedMemory;
+        private long usedMemory;
+
+        private Allocator(long maxMemory) {
+            this.maxMemory = maxMemory;
+            this.slabSize = (int) Math.min(maxMemory, MAX_SLAB_SIZE);
+            // the last slab takes the remainder of the maximum memory
+            this.slabs = new ByteBuffer[(int) ((maxMemory + this.slabSize - 1) / this.slabSize)];
+            this.freeLists = new long[Integer.numberOfTrailingZeros(Integer.highestOneBit(this.slabSize)) + 1];
+        }
+
+        private synchronized long allocate(Serializable id, int size) {
+            int sizeClass = sizeClass(size);
+
+            if (sizeClass >= this.freeLists.length) {
+                throw PicketBoxMessages.MESSAGES.sessionTooLarge(id, size);
+            }
+
+            long address = take(sizeClass);
+
+            while (address == 0 && this.slabCount < this.slabs.length) {
+                addSlab();
+                address = take(sizeClass);
+            }
+
+            if (address == 0) {
+                throw PicketBoxMessages.MESSAGES.sessionStoreFull("off-heap memory");
+            }
+
+            this.usedMemory += 1 << sizeClass;
+
+            return address;
+        }
+
+        private synchronized void free(long address) {
+            ByteBuffer slab = slab(address);
+            int offset = (int) address;
+            int sizeClass = sizeClass(RECORD_HEADER_SIZE + slab.getInt(offset) + slab.getInt(offset + 4));
+
+            this.usedMemory -= 1 << sizeClass;
+
+            while (sizeClass < this.freeLists.length - 1) {
+                int buddy = offset ^ (1 << sizeClass);
+
+                if (buddy + (1 << sizeClass) > slab.capacity() || slab.getInt(buddy) != FREE
+                        || slab.getInt(buddy + FREE_SIZE_CLASS) != sizeClass) {
+                    break;
+                }
+
+                unlink(sizeClass, (address & 0xFFFFFFFF00000000L) | buddy);
+                offset &= ~(1 << sizeClass);
+                sizeClass++;
+            }
+
+            link(sizeClass, (address & 0xFFFFFFFF00000000L) | offset);
+        }
+
+        private synchronized long getUsedMemory() {
+            return this.usedMemory;
+        }
+
+        private synchronized long getAllocatedMemory() {
+            return this.allocatedMemory;
+        }
+
+        /**
+         * <p>
+         * Returns a buffer positioned at the given address. The slab was published to the caller through the lock of the
+         * segment that holds the address, or through the lock of this allocator.
+         * </p>
+         */
+        private ByteBuffer view(long address) {
+            ByteBuffer view = slab(address).duplicate();
+
+            view.position((int) address);
+
+            return view;
+        }
+
+        private ByteBuffer slab(long address) {
+            return this.slabs[(int) (address >>> 32) - 1];
+        }
+
+        private void addSlab() {
+            int slab = this.slabCount;
+            int capacity = (int) Math.min(this.slabSize, this.maxMemory - (long) slab * this.slabSize);
+            int offset = 0;
+
+            this.slabs[slab] = ByteBuffer.allocateDirect(capacity);
+            this.slabCount++;
+            this.allocatedMemory += capacity;
+
+            // the largest chunks come first, so every chunk is aligned on its size
+            for (int sizeClass = this.freeLists.length - 1; sizeClass >= MIN_CHUNK_SHIFT; sizeClass--) {
+                if (capacity - offset >= 1 << sizeClass) {
+                    link(sizeClass, address(slab, offset));
+                    offset += 1 << sizeClass;
+                }
+            }
+        }
+
+        /**
+         * @return a free chunk of the given size class, split from a larger free chunk whose other halves go to the free lists,
+         *         or zero if there is none
+         */
+        private long take(int sizeClass) {
+            for (int larger = sizeClass; larger < this.freeLists.length; larger++) {
+                long address = this.freeLists[larger];
+
+                if (address != 0) {
+                    unlink(larger, address);
+
+                    for (int half = larger - 1; half >= sizeClass; half--) {
+                        link(half, address + (1 << half));
+                    }
+
+                    // clears the marker, the chunk must not be taken for a free buddy before its record is written
+                    slab(address).putInt((int) address, 0);
+
+                    return address;
+                }
+            }
+
+            return 0;
+        }
+
+        private void link(int sizeClass, long address) {
+            ByteBuffer slab = slab(address);
+            int offset = (int) address;
+            long next = this.freeLists[sizeClass];
+
+            slab.putInt(offset, FREE);
+            slab.putInt(offset + FREE_SIZE_CLASS, sizeClass);
+            slab.putLong(offset + FREE_PREVIOUS, 0);
+            slab.putLong(offset + FREE_NEXT, next);
+
+            if (next != 0) {
+                slab(next).putLong((int) next + FREE_PREVIOUS, address);
+            }
+
+            this.freeLists[sizeClass] = address;
+        }
+
+        private void unlink(int sizeClass, long address) {
+            ByteBuffer slab = slab(address);
+            int offset = (int) address;
+            long previous = slab.getLong(offset + FREE_PREVIOUS);
+            long next = slab.getLong(offset + FREE_NEXT);
+
+            if (previous == 0) {
+                this.freeLists[sizeClass] = next;
+            } else {
+                slab(previous).putLong((int) previous + FREE_NEXT, next);
+            }
+
+            if (next != 0) {
+                slab(next).putLong((int) next + FREE_PREVIOUS, previous);
+            }
+        }
+
+        private static long address(int slab, int offset) {
+            return ((long) (slab + 1) << 32) | offset;
+        }
+
+        private static int sizeClass(int size) {
+            return Math.max(MIN_CHUNK_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxLogger;
+
+/**
+ * <p>
+ * A {@link SessionStore} partitioning the sessions among the members of a {@link SessionClusterMembership}. Session ids are
+ * mapped to an owner node and a number of backup nodes by a {@link ConsistentHashRing}, and every operation is routed to
+ * them: writes go to the owner and the backups, loads are served by the first of them holding the session. Each node keeps the
+ * sessions it owns or backs up in its local store.
+ * </p>
+ * <p>
+ * When a node joins or leaves, every member rebuilds the ring and moves the local sessions whose owners changed, which with
+ * virtual nodes is only a fraction of them. A node leaving the cluster hands its sessions over to their new owners first, and
+ * the sessions of a node that failed are restored from its backups. Writes racing with a rebalance may need to be repeated.
+ * </p>
+ */
+public class PartitionedSessionStore extends AbstractPicketBoxLifeCycle implements SessionStore {
+
+    private final String nodeId;
+    private final AbstractSessionStore localStore;
+    private final SessionClusterMembership membership;
+    private final int virtualNodes;
+    private final int copies;
+    private final AtomicLong movedSessions = new AtomicLong();
+    private final AtomicLong remoteLoads = new AtomicLong();
+    private final SessionClusterMembership.Listener listener = new SessionClusterMembership.Listener() {
+        @Override
+        public void onMembershipChange(Set<String> members) {
+            rebalance(members);
+        }
+    };
+    private volatile ConsistentHashRing ring = new ConsistentHashRing(Collections.<String> emptySet(), 0);
+
+    /**
+     * @param nodeId the name of this node
+     * @param localStore the store holding the sessions owned or backed up by this node
+     * @param membership
+     * @param virtualNodes the number of points of each node on the ring
+     * @param backups the number of nodes holding a copy of a session besides its owner
+     */
+    public PartitionedSessionStore(String nodeId, AbstractSessionStore localStore, SessionClusterMembership membership,
+            int virtualNodes, int backups) {
+        if (virtualNodes <= 0 || backups < 0) {
+            throw new IllegalArgumentException("Invalid number of virtual nodes or backups: " + virtualNodes + ", " + backups);
+        }
+
+        this.nodeId = nodeId;
+        this.localStore = localStore;
+        this.membership = membership;
+        this.virtualNodes = virtualNodes;
+        this.copies = backups + 1;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#load(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public PicketBoxSession load(SessionId<? extends Serializable> key) {
+        for (String owner : this.ring.getOwners(key.getId(), this.copies)) {
+            SessionStore store = storeOf(owner);
+
+            if (store != null) {
+                if (store != this.localStore) {
+                    this.remoteLoads.incrementAndGet();
+                }
+
+                PicketBoxSession session = store.load(key);
+
+                if (session != null) {
+                    return session;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void store(PicketBoxSession session) {
+        List<String> owners = this.ring.getOwners(session.getId().getId(), this.copies);
+
+        for (int i = 0; i < owners.size(); i++) {
+            SessionStore store = storeOf(owners.get(i));
+
+            if (store == null) {
+                continue;
+            }
+
+            if (i == 0) {
+                store.store(session);
+            } else {
+                try {
+                    store.store(session);
+                } catch (RuntimeException e) {
+                    PicketBoxLogger.LOGGER.errorReplicatingSessions(owners.get(i), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Stores the session in its owner if absent there, then copies it to the backups.
+     * </p>
+     */
+    @Override
+    public boolean storeIfAbsent(PicketBoxSession session) {
+        List<String> owners = this.ring.getOwners(session.getId().getId(), this.copies);
+        boolean stored = false;
+
+        for (String owner : owners) {
+            SessionStore store = storeOf(owner);
+
+            if (store == null) {
+                continue;
+            }
+
+            if (!stored) {
+                if (!store.storeIfAbsent(session)) {
+                    return false;
+                }
+
+                stored = true;
+            } else {
+                try {
+                    store.store(session);
+                } catch (RuntimeException e) {
+                    PicketBoxLogger.LOGGER.errorReplicatingSessions(owner, e);
+                }
+            }
+        }
+
+        return stored;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        List<String> owners = this.ring.getOwners(session.getId().getId(), this.copies);
+
+        for (int i = 0; i < owners.size(); i++) {
+            SessionStore store = storeOf(owners.get(i));
+
+            if (store == null) {
+                continue;
+            }
+
+            if (i == 0) {
+                store.update(session);
+            } else {
+                try {
+                    store.update(session);
+                } catch (RuntimeException e) {
+                    PicketBoxLogger.LOGGER.errorReplicatingSessions(owners.get(i), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Updates the session in its owner if the version matches there, then copies it to the backups. The session keeps the
+     * version given by its owner.
+     * </p>
+     */
+    @Override
+    public boolean update(PicketBoxSession session, long expectedVersion) {
+        return update(session, null, expectedVersion);
+    }
+
+    /**
+     * <p>
+     * Writes the delta to the owner of the session, then copies the session to the backups, as
+     * {@link #update(PicketBoxSession, long)} does.
+     * </p>
+     */
+    @Override
+    public boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion) {
+        List<String> owners = this.ring.getOwners(session.getId().getId(), this.copies);
+        boolean updated = false;
+        long version = 0;
+
+        for (String owner : owners) {
+            SessionStore store = storeOf(owner);
+
+            if (store == null) {
+                continue;
+            }
+
+            if (!updated) {
+                if (!(delta != null ? store.update(session, delta, expectedVersion) : store.update(session, expectedVersion))) {
+                    return false;
+                }
+
+                updated = true;
+                version = session.version;
+            } else {
+                try {
+                    store.update(session);
+                } catch (RuntimeException e) {
+                    PicketBoxLogger.LOGGER.errorReplicatingSessions(owner, e);
+                }
+            }
+        }
+
+        if (updated) {
+            session.version = version;
+        }
+
+        return updated;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        for (String owner : this.ring.getOwners(id.getId(), this.copies)) {
+            SessionStore store = storeOf(owner);
+
+            if (store != null) {
+                store.remove(id);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#getVersion(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public long getVersion(SessionId<? extends Serializable> id) {
+        for (String owner : this.ring.getOwners(id.getId(), this.copies)) {
+            SessionStore store = storeOf(owner);
+
+            if (store != null) {
+                long version = store.getVersion(id);
+
+                if (version >= 0) {
+                    return version;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * <p>
+     * Returns a cursor over the sessions of the whole cluster. The stores of the members are gone through one after the other,
+     * each returning the sessions it is the owner of, so backup copies are skipped. Sessions moved by a rebalance during the
+     * iteration may be missed or returned twice.
+     * </p>
+     */
+    @Override
+    public Iterator<PicketBoxSession> cursor() {
+        final Iterator<String> members = this.membership.getMembers().iterator();
+
+        return new SessionCursor(this) {
+
+            private String member;
+            private Iterator<PicketBoxSession> sessions;
+
+            @Override
+            protected PicketBoxSession advance() {
+                while (true) {
+                    while (this.sessions != null && this.sessions.hasNext()) {
+                        PicketBoxSession session = this.sessions.next();
+                        List<String> owners = ring.getOwners(session.getId().getId(), 1);
+
+                        if (!owners.isEmpty() && owners.get(0).equals(this.member)) {
+                            return session;
+                        }
+                    }
+
+                    if (!members.hasNext()) {
+                        return null;
+                    }
+
+                    this.member = members.next();
+
+                    SessionStore store = storeOf(this.member);
+
+                    this.sessions = store != null ? store.cursor() : null;
+                }
+            }
+        };
+    }
+
+    /**
+     * <p>
+     * Counts the sessions of the whole cluster, going through the stores of all the members.
+     * </p>
+     */
+    @Override
+    public int count() {
+        return SessionCursor.count(this);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#removeIf(org.picketbox.core.session.SessionPredicate)
+     */
+    @Override
+    public int removeIf(SessionPredicate predicate) {
+        return SessionCursor.removeIf(this, predicate);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#forEachBatch(int,
+     * org.picketbox.core.session.SessionBatchHandler)
+     */
+    @Override
+    public void forEachBatch(int batchSize, SessionBatchHandler handler) {
+        SessionCursor.forEachBatch(this, batchSize, handler);
+    }
+
+    /**
+     * @param id
+     * @return the names of the owner and backup nodes of a session
+     */
+    public List<String> getOwners(SessionId<? extends Serializable> id) {
+        return this.ring.getOwners(id.getId(), this.copies);
+    }
+
+    /**
+     * @return the number of sessions held by this node
+     */
+    public int getLocalSessionCount() {
+        return this.localStore.sessions.size();
+    }
+
+    /**
+     * @return the number of sessions this node copied to other nodes while rebalancing
+     */
+    public long getMovedSessions() {
+        return this.movedSessions.get();
+    }
+
+    /**
+     * @return the number of loads routed to other nodes
+     */
+    public long getRemoteLoads() {
+        return this.remoteLoads.get();
+    }
+
+    @Override
+    protected void doStart() {
+        this.localStore.start();
+        this.membership.join(this.nodeId, this.localStore, this.listener);
+    }
+
+    @Override
+    protected void doStop() {
+        this.membership.leave(this.nodeId);
+
+        // hands the local sessions over to their owners in the ring without this node
+        rebalance(this.membership.getMembers());
+
+        this.localStore.stop();
+    }
+
+    /**
+     * <p>
+     * Rebuilds the ring and copies the local sessions whose owners changed to the owners missing them, dropping them from the
+     * local store when this node no longer owns them.
+     * </p>
+     */
+    private synchronized void rebalance(Set<String> members) {
+        ConsistentHashRing previous = this.ring;
+        ConsistentHashRing ring = new ConsistentHashRing(members, this.virtualNodes);
+
+        this.ring = ring;
+
+        // the iteration is weakly consistent, sessions can be removed meanwhile
+        for (PicketBoxSession session : this.localStore.sessions.values()) {
+            Serializable key = session.getId().getId();
+            List<String> owners = ring.getOwners(key, this.copies);
+
+            if (owners.equals(previous.getOwners(key, this.copies))) {
+                continue;
+            }
+
+            for (String owner : owners) {
+                SessionStore store = owner.equals(this.nodeId) ? null : this.membership.getStore(owner);
+
+                try {
+                    if (store != null && store.getVersion(session.getId()) < 0) {
+                        store.store(session);
+                        this.movedSessions.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    PicketBoxLogger.LOGGER.errorReplicatingSessions(owner, e);
+                }
+            }
+
+            if (!owners.contains(this.nodeId)) {
+                this.localStore.remove(session.getId());
+            }
+        }
+    }
+
+    private SessionStore storeOf(String owner) {
+        return owner.equals(this.nodeId) ? this.localStore : this.membership.getStore(owner);
+    }
+}
@@ -21,11 +21,13 @@
  */
 package org.picketbox.core.session;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -43,6 +45,11 @@ public class PicketBoxSession implements Serializable {
 
     private static final long serialVersionUID = 2149908831443524877L;
 
+    /**
+     * Access times are only recorded with this granularity, so hot sessions do not write to memory on every read.
+     */
+    private static final long ACCESS_TIME_GRANULARITY = 1000;
+
     protected ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<String, Object>();
 
     protected SessionId<? extends Serializable> id;
@@ -51,7 +58,29 @@ public class PicketBoxSession implements Serializable {
 
     protected PicketBoxSubject subject;
 
-    protected transient List<PicketBoxSessionListener> listeners = new ArrayList<PicketBoxSessionListener>();
+    /**
+     * The listeners shared by all the sessions of a {@link SessionManager}.
+     */
+    protected transient volatile PicketBoxSessionListenerRegistry listenerRegistry = PicketBoxSessionListenerRegistry.EMPTY;
+
+    /**
+     * The listeners added to this session only, replaced as a whole on every change.
+     */
+    protected transient volatile PicketBoxSessionListener[] listeners = PicketBoxSessionListenerRegistry.NO_LISTENERS;
+
+    /**
+     * The attributes set or removed since the session was last written to its store.
+     */
+    protected transient Set<String> dirtyAttributes = newDirtyAttributes();
+
+    /**
+     * Not final, sessions serialized before it was recorded are given their load time instead.
+     */
+    protected long creationTime;
+
+    protected volatile long lastAccessedTime;
+
+    protected transient volatile long version;
 
     public PicketBoxSession() {
         this(new DefaultSessionId());
@@ -66,7 +95,17 @@ public class PicketBoxSession implements Serializable {
      * Usable by {@link PicketBoxSessionManager#create()}
      */
     public PicketBoxSession(SessionId<? extends Serializable> id) {
+        this(id, null, System.currentTimeMillis());
+    }
+
+    /**
+     * Usable by stores restoring a persisted session
+     */
+    PicketBoxSession(SessionId<? extends Serializable> id, PicketBoxSubject subject, long creationTime) {
         this.id = id;
+        this.subject = subject;
+        this.creationTime = creationTime;
+        this.lastAccessedTime = creationTime;
     }
 
     /**
@@ -85,7 +124,20 @@ public class PicketBoxSession implements Serializable {
      */
     public void removeAttribute(String key) throws PicketBoxSessionException {
         checkIfIsInvalid();
-        attributes.remove(key);
+        getAttributeMap().remove(key);
+        this.dirtyAttributes.add(key);
+        PicketBoxSessionListener[] shared = this.listenerRegistry.getListeners();
+        for (int i = 0; i < shared.length; i++) {
+            if (shared[i] instanceof PicketBoxSessionAttributeListener) {
+                ((PicketBoxSessionAttributeListener) shared[i]).onRemoveAttribute(this, key);
+            }
+        }
+        PicketBoxSessionListener[] own = this.listeners;
+        for (int i = 0; i < own.length; i++) {
+            if (own[i] instanceof PicketBoxSessionAttributeListener) {
+                ((PicketBoxSessionAttributeListener) own[i]).onRemoveAttribute(this, key);
+            }
+        }
     }
 
     /**
@@ -97,9 +149,17 @@ public class PicketBoxSession implements Serializable {
      */
     public void setAttribute(String key, Object val) throws PicketBoxSessionException {
         checkIfIsInvalid();
-        attributes.put(key, val);
-        for (PicketBoxSessionListener listener : listeners) {
-            listener.onSetAttribute(this, key, val);
+        touch();
+        getAttributeMap().put(key, val);
+        // marked after the change, so whoever takes the mark writes the new value
+        this.dirtyAttributes.add(key);
+        PicketBoxSessionListener[] shared = this.listenerRegistry.getListeners();
+        for (int i = 0; i < shared.length; i++) {
+            shared[i].onSetAttribute(this, key, val);
+        }
+        PicketBoxSessionListener[] own = this.listeners;
+        for (int i = 0; i < own.length; i++) {
+            own[i].onSetAttribute(this, key, val);
         }
     }
 
@@ -111,7 +171,7 @@ public class PicketBoxSession implements Serializable {
      */
     public Map<String, Object> getAttributes() throws PicketBoxSessionException {
         checkIfIsInvalid();
-        return Collections.unmodifiableMap(attributes);
+        return Collections.unmodifiableMap(getAttributeMap());
     }
 
     /**
@@ -123,10 +183,16 @@ public class PicketBoxSession implements Serializable {
      */
     public Object getAttribute(String key) throws PicketBoxSessionException {
         checkIfIsInvalid();
-        for (PicketBoxSessionListener listener : listeners) {
-            listener.onGetAttribute(this);
+        touch();
+        PicketBoxSessionListener[] shared = this.listenerRegistry.getListeners();
+        for (int i = 0; i < shared.length; i++) {
+            shared[i].onGetAttribute(this);
         }
-        return attributes.get(key);
+        PicketBoxSessionListener[] own = this.listeners;
+        for (int i = 0; i < own.length; i++) {
+            own[i].onGetAttribute(this);
+        }
+        return getAttributeMap().get(key);
     }
 
     /**
@@ -158,13 +224,18 @@ public class PicketBoxSession implements Serializable {
     public void invalidate(boolean raiseEvent) throws PicketBoxSessionException {
         checkIfIsInvalid();
         if (raiseEvent) {
-            for (PicketBoxSessionListener listener : listeners) {
-                listener.onInvalidate(this);
+            PicketBoxSessionListener[] shared = this.listenerRegistry.getListeners();
+            for (int i = 0; i < shared.length; i++) {
+                shared[i].onInvalidate(this);
+            }
+            PicketBoxSessionListener[] own = this.listeners;
+            for (int i = 0; i < own.length; i++) {
+                own[i].onInvalidate(this);
             }
         }
-        this.attributes.clear();
-        if (this.subject != null) {
-            this.subject.invalidate();
+        getAttributeMap().clear();
+        if (getSubject() != null) {
+            getSubject().invalidate();
         }
         invalid = true;
     }
@@ -176,8 +247,56 @@ public class PicketBoxSession implements Serializable {
      */
     public void expire() throws PicketBoxSessionException {
         invalidate();
-        for (PicketBoxSessionListener listener : listeners) {
-            listener.onExpiration(this);
+        PicketBoxSessionListener[] shared = this.listenerRegistry.getListeners();
+        for (int i = 0; i < shared.length; i++) {
+            shared[i].onExpiration(this);
+        }
+        PicketBoxSessionListener[] own = this.listeners;
+        for (int i = 0; i < own.length; i++) {
+            own[i].onExpiration(this);
+        }
+    }
+
+    /**
+     * Get the time this session was created, in milliseconds since the epoch
+     *
+     * @return
+     */
+    public long getCreationTime() {
+        return this.creationTime;
+    }
+
+    /**
+     * Get the time this session was last accessed, in milliseconds since the epoch. The value is coarse grained, accesses
+     * happening within a second of the recorded time are not tracked.
+     *
+     * @return
+     */
+    public long getLastAccessedTime() {
+        return this.lastAccessedTime;
+    }
+
+    /**
+     * Get the version of this session in its {@link SessionStore}, which is incremented by the store on every update. It tells
+     * whether a copy of the session is stale without loading it again.
+     *
+     * @return
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * <p>
+     * Records an access to this session. This is a plain field write performed at most once per second, it does not touch any
+     * scheduler.
+     * </p>
+     */
+    public void touch() {
+        long now = System.currentTimeMillis();
+
+        if (now - this.lastAccessedTime >= ACCESS_TIME_GRANULARITY) {
+            this.lastAccessedTime = now;
         }
     }
 
@@ -188,23 +307,122 @@ public class PicketBoxSession implements Serializable {
         return subject;
     }
 
-    public boolean hasListener(Class<PicketBoxSessionStoreListener> class1) {
-        for (PicketBoxSessionListener listener : listeners) {
-            if (listener.getClass().equals(class1)) {
-                return true;
-            }
+    /**
+     * Get the name of the principal owning this session, if any
+     *
+     * @return
+     */
+    public String getPrincipalName() {
+        PicketBoxSubject subject = getSubject();
+
+        if (subject == null || subject.getUser() == null) {
+            return null;
         }
 
-        return false;
+        return subject.getUser().getName();
     }
 
     /**
-     * Add a session listener
+     * <p>
+     * Returns the map holding the attributes. All the accesses to the attributes go through this method, so subclasses can
+     * load them on demand.
+     * </p>
+     *
+     * @return
+     */
+    protected ConcurrentMap<String, Object> getAttributeMap() {
+        return this.attributes;
+    }
+
+    /**
+     * <p>
+     * Replaces the attributes of this session with the ones of another copy of it.
+     * </p>
+     *
+     * @param attributes
+     */
+    protected void setAttributeMap(ConcurrentMap<String, Object> attributes) {
+        this.attributes = attributes;
+    }
+
+    public boolean hasListener(Class<PicketBoxSessionStoreListener> class1) {
+        return this.listenerRegistry.contains(class1) || PicketBoxSessionListenerRegistry.contains(this.listeners, class1);
+    }
+
+    /**
+     * Add a listener to this session only. Listeners common to all the sessions belong to the
+     * {@link PicketBoxSessionListenerRegistry} of the manager.
      *
      * @param listener
      */
     protected void addListener(PicketBoxSessionListener listener) {
-        listeners.add(listener);
+        synchronized (this) {
+            this.listeners = PicketBoxSessionListenerRegistry.append(this.listeners, listener);
+        }
+    }
+
+    /**
+     * Get the registry holding the listeners shared with the other sessions of the same manager
+     *
+     * @return
+     */
+    PicketBoxSessionListenerRegistry getListenerRegistry() {
+        return this.listenerRegistry;
+    }
+
+    /**
+     * Set the registry holding the listeners shared with the other sessions of the same manager
+     *
+     * @param listenerRegistry
+     */
+    void setListenerRegistry(PicketBoxSessionListenerRegistry listenerRegistry) {
+        this.listenerRegistry = listenerRegistry;
+    }
+
+    /**
+     * <p>
+     * Takes the changes to the attributes of this session since it was last written to its store. Changes made concurrently
+     * are either in the returned delta or left for the next one.
+     * </p>
+     *
+     * @return
+     */
+    SessionDelta takeDelta() {
+        SessionDelta delta = new SessionDelta(getId());
+
+        for (Iterator<String> iterator = this.dirtyAttributes.iterator(); iterator.hasNext();) {
+            String key = iterator.next();
+
+            iterator.remove();
+
+            Object value = getAttributeMap().get(key);
+
+            if (value != null) {
+                delta.setAttribute(key, value);
+            } else {
+                delta.removeAttribute(key);
+            }
+        }
+
+        return delta;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        if (this.creationTime == 0) {
+            // serialized before the creation and access times were recorded, they would look expired since the epoch
+            this.creationTime = System.currentTimeMillis();
+            this.lastAccessedTime = this.creationTime;
+        }
+
+        this.listenerRegistry = PicketBoxSessionListenerRegistry.EMPTY;
+        this.listeners = PicketBoxSessionListenerRegistry.NO_LISTENERS;
+        this.dirtyAttributes = newDirtyAttributes();
+    }
+
+    private static Set<String> newDirtyAttributes() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     }
 
     /**
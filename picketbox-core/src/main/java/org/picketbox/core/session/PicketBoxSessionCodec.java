@@ -0,0 +1,811 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.auth.Subject;
+
+import org.picketbox.core.PicketBoxPrincipal;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.util.StreamUtil;
+
+/**
+ * <p>
+ * A compact, versioned binary format for {@link PicketBoxSession} and the types it references: {@link PicketBoxSubject},
+ * {@link DefaultSessionId} and {@link PicketBoxPrincipal}.
+ * </p>
+ * <p>
+ * The known types are written field by field, without class descriptors or collection internals. Numbers are written as
+ * variable length integers, and role names, attribute keys and principal names go through a dictionary: the first occurrence
+ * of a string is written in full and later ones as a reference to it. An {@link Encoder} and its matching {@link Decoder} share
+ * the dictionary across all the sessions they process, so a stream of sessions only pays once for the role names they have in
+ * common. Subclasses of the known types, sessions included, and unknown attribute values fall back to Java serialization.
+ * </p>
+ * <p>
+ * Every encoded session starts with the format version, so persisted data can be read after the format evolves.
+ * </p>
+ * <p>
+ * A session is written as a header, holding its id, validity, access times and principal name, followed by a length prefixed
+ * body holding its subject and attributes. The strings of the body are listed in the header, through the dictionary, and the
+ * body refers to them by position in that list, so it can be decoded independently of the other sessions of the stream:
+ * {@link Decoder#readLazySession(DataInput)} only decodes the header and leaves the body to be decoded when the subject or the
+ * attributes are first accessed. The header of a subclass of {@link PicketBoxSession} is followed by its serialized form
+ * instead, which is always decoded eagerly.
+ * </p>
+ */
+public class PicketBoxSessionCodec {
+
+    /**
+     * Current version of the format
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Version of the format before sessions were split in a header and a body
+     */
+    private static final int VERSION_WITHOUT_BODY = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_NATIVE = 1;
+    private static final int TAG_SERIALIZED = 2;
+    private static final int TAG_STRING = 3;
+    private static final int TAG_INTEGER = 4;
+    private static final int TAG_LONG = 5;
+    private static final int TAG_TRUE = 6;
+    private static final int TAG_FALSE = 7;
+    private static final int TAG_DOUBLE = 8;
+    private static final int TAG_BYTES = 9;
+
+    private static final int FLAG_INVALID = 1;
+    private static final int FLAG_AUTHENTICATED = 2;
+    private static final int FLAG_SERIALIZED = 4;
+
+    /**
+     * <p>
+     * Encodes a single session.
+     * </p>
+     *
+     * @param session
+     * @return
+     */
+    public byte[] encode(PicketBoxSession session) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        try {
+            newEncoder().writeSession(new DataOutputStream(bytes), session);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Decodes a session encoded by {@link #encode(PicketBoxSession)}.
+     * </p>
+     *
+     * @param data
+     * @return
+     * @throws IOException if the data is not a valid encoded session
+     */
+    public PicketBoxSession decode(byte[] data) throws IOException {
+        return newDecoder().readSession(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * <p>
+     * Decodes the header of a session encoded by {@link #encode(PicketBoxSession)}, its subject and attributes are decoded on
+     * demand.
+     * </p>
+     *
+     * @param data
+     * @return
+     * @throws IOException if the data is not a valid encoded session
+     */
+    public PicketBoxSession decodeLazy(byte[] data) throws IOException {
+        return newDecoder().readLazySession(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * <p>
+     * Creates an {@link Encoder} with an empty dictionary.
+     * </p>
+     *
+     * @return
+     */
+    public Encoder newEncoder() {
+        return new Encoder();
+    }
+
+    /**
+     * <p>
+     * Creates a {@link Decoder} with an empty dictionary. It must read the sessions in the order they were written by a single
+     * {@link Encoder}.
+     * </p>
+     *
+     * @return
+     */
+    public Decoder newDecoder() {
+        return new Decoder();
+    }
+
+    /**
+     * <p>
+     * Writes sessions, interning strings in a dictionary shared by all the sessions written by this instance. Not thread safe.
+     * </p>
+     */
+    public static final class Encoder {
+
+        private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        private final List<String> table;
+
+        private Encoder() {
+            this(null);
+        }
+
+        /**
+         * @param table receives the strings of a session body, which are then written as positions in the table
+         */
+        private Encoder(List<String> table) {
+            this.table = table;
+        }
+
+        /**
+         * @param output
+         * @param session
+         * @throws IOException
+         */
+        public void writeSession(DataOutput output, PicketBoxSession session) throws IOException {
+            // the fields of a subclass are unknown, they are only kept by its serialized form
+            boolean serialized = session.getClass() != PicketBoxSession.class
+                    && session.getClass() != LazyPicketBoxSession.class;
+
+            writeVarLong(output, VERSION);
+            output.writeByte((session.invalid ? FLAG_INVALID : 0) | (serialized ? FLAG_SERIALIZED : 0));
+            writeId(output, session.getId());
+            writeVarLong(output, session.getCreationTime());
+            writeVarLong(output, session.getLastAccessedTime() - session.getCreationTime());
+            writeInterned(output, session.getPrincipalName());
+
+            if (serialized) {
+                writeSerialized(output, session);
+                return;
+            }
+
+            String[] table = null;
+            byte[] body = null;
+
+            if (session instanceof LazyPicketBoxSession) {
+                // read both at once, the session may be decoded concurrently
+                LazyPicketBoxSession.Body encoded = ((LazyPicketBoxSession) session).getBody();
+
+                if (encoded != null) {
+                    table = encoded.table;
+                    body = encoded.data;
+                }
+            }
+
+            if (body == null) {
+                List<String> strings = new ArrayList<String>();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                Encoder encoder = new Encoder(strings);
+                DataOutputStream bodyOutput = new DataOutputStream(bytes);
+
+                encoder.writeSubject(bodyOutput, session.getSubject());
+                encoder.writeAttributes(bodyOutput, session.getAttributeMap());
+
+                table = strings.toArray(new String[strings.size()]);
+                body = bytes.toByteArray();
+            }
+
+            writeVarLong(output, table.length);
+
+            for (String value : table) {
+                writeInterned(output, value);
+            }
+
+            writeVarLong(output, body.length);
+            output.write(body);
+        }
+
+        /**
+         * @param output
+         * @param id
+         * @throws IOException
+         */
+        public void writeId(DataOutput output, SessionId<? extends Serializable> id) throws IOException {
+            if (id == null) {
+                output.writeByte(TAG_NULL);
+            } else if (id.getClass() == DefaultSessionId.class) {
+                output.writeByte(TAG_NATIVE);
+                writeString(output, ((DefaultSessionId) id).getId());
+            } else {
+                output.writeByte(TAG_SERIALIZED);
+                writeSerialized(output, id);
+            }
+        }
+
+        /**
+         * @param output
+         * @param delta
+         * @throws IOException
+         */
+        public void writeDelta(DataOutput output, SessionDelta delta) throws IOException {
+            writeId(output, delta.getId());
+            writeAttributes(output, delta.getAttributes());
+            writeVarLong(output, delta.getRemovedAttributes().size());
+
+            for (String key : delta.getRemovedAttributes()) {
+                writeInterned(output, key);
+            }
+        }
+
+        private void writeSubject(DataOutput output, PicketBoxSubject subject) throws IOException {
+            if (subject == null) {
+                output.writeByte(TAG_NULL);
+                return;
+            }
+
+            if (subject.getClass() != PicketBoxSubject.class) {
+                output.writeByte(TAG_SERIALIZED);
+                writeSerialized(output, subject);
+                return;
+            }
+
+            output.writeByte(TAG_NATIVE);
+            output.writeByte(subject.isAuthenticated() ? FLAG_AUTHENTICATED : 0);
+
+            writePrincipal(output, subject.getUser());
+
+            List<String> roleNames = subject.getRoleNames();
+
+            if (roleNames == null) {
+                writeVarLong(output, 0);
+            } else {
+                writeVarLong(output, roleNames.size());
+
+                for (String roleName : roleNames) {
+                    writeInterned(output, roleName);
+                }
+            }
+
+            writeAttributes(output, subject.getAttributes());
+
+            Subject jaasSubject = subject.getSubject();
+
+            if (jaasSubject == null) {
+                output.writeByte(TAG_NULL);
+            } else {
+                output.writeByte(TAG_SERIALIZED);
+                writeSerialized(output, jaasSubject);
+            }
+        }
+
+        private void writePrincipal(DataOutput output, Principal principal) throws IOException {
+            if (principal == null) {
+                output.writeByte(TAG_NULL);
+            } else if (principal.getClass() == PicketBoxPrincipal.class) {
+                output.writeByte(TAG_NATIVE);
+                writeInterned(output, principal.getName());
+            } else {
+                output.writeByte(TAG_SERIALIZED);
+                writeSerialized(output, principal);
+            }
+        }
+
+        private void writeAttributes(DataOutput output, Map<String, Object> attributes) throws IOException {
+            if (attributes == null) {
+                writeVarLong(output, 0);
+                return;
+            }
+
+            // the map may change concurrently, so entries are counted while they are copied
+            List<Entry<String, Object>> entries = new ArrayList<Entry<String, Object>>(attributes.entrySet());
+
+            writeVarLong(output, entries.size());
+
+            for (Entry<String, Object> entry : entries) {
+                writeInterned(output, entry.getKey());
+                writeValue(output, entry.getValue());
+            }
+        }
+
+        private void writeValue(DataOutput output, Object value) throws IOException {
+            if (value == null) {
+                output.writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                output.writeByte(TAG_STRING);
+                writeString(output, (String) value);
+            } else if (value instanceof Integer) {
+                output.writeByte(TAG_INTEGER);
+                writeVarLong(output, zigZag((Integer) value));
+            } else if (value instanceof Long) {
+                output.writeByte(TAG_LONG);
+                writeVarLong(output, zigZag((Long) value));
+            } else if (value instanceof Boolean) {
+                output.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Double) {
+                output.writeByte(TAG_DOUBLE);
+                output.writeDouble((Double) value);
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[]) value;
+
+                output.writeByte(TAG_BYTES);
+                writeVarLong(output, bytes.length);
+                output.write(bytes);
+            } else {
+                output.writeByte(TAG_SERIALIZED);
+                writeSerialized(output, value);
+            }
+        }
+
+        private void writeInterned(DataOutput output, String value) throws IOException {
+            if (value == null) {
+                writeVarLong(output, 0);
+                return;
+            }
+
+            Integer index = this.dictionary.get(value);
+
+            if (this.table != null) {
+                if (index == null) {
+                    index = this.table.size();
+                    this.table.add(value);
+                    this.dictionary.put(value, index);
+                }
+
+                writeVarLong(output, index + 1);
+                return;
+            }
+
+            if (index != null) {
+                writeVarLong(output, index + 2);
+            } else {
+                this.dictionary.put(value, this.dictionary.size());
+                writeVarLong(output, 1);
+                writeString(output, value);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Reads sessions written by an {@link Encoder}, rebuilding its dictionary as they are read. Not thread safe.
+     * </p>
+     */
+    public static final class Decoder {
+
+        private final List<String> dictionary = new ArrayList<String>();
+
+        private final String[] table;
+
+        private Decoder() {
+            this(null);
+        }
+
+        /**
+         * @param table the strings of a session body
+         */
+        private Decoder(String[] table) {
+            this.table = table;
+        }
+
+        /**
+         * @param input
+         * @return
+         * @throws IOException
+         */
+        public PicketBoxSession readSession(DataInput input) throws IOException {
+            return readSession(input, false);
+        }
+
+        /**
+         * <p>
+         * Reads a session, only decoding its subject and attributes when they are first accessed.
+         * </p>
+         *
+         * @param input
+         * @return
+         * @throws IOException
+         */
+        public PicketBoxSession readLazySession(DataInput input) throws IOException {
+            return readSession(input, true);
+        }
+
+        private PicketBoxSession readSession(DataInput input, boolean lazy) throws IOException {
+            long version = readVarLong(input);
+
+            if (version != VERSION && version != VERSION_WITHOUT_BODY) {
+                throw new IOException("Unsupported session format version: " + version);
+            }
+
+            int flags = input.readByte();
+            SessionId<? extends Serializable> id = readId(input);
+            long creationTime = readVarLong(input);
+            long lastAccessedTime = creationTime + readVarLong(input);
+            PicketBoxSession session;
+
+            if (version == VERSION_WITHOUT_BODY) {
+                session = new PicketBoxSession(id, readSubject(input), creationTime);
+                readAttributes(input, session.attributes);
+            } else {
+                String principalName = readInterned(input);
+
+                if ((flags & FLAG_SERIALIZED) != 0) {
+                    return (PicketBoxSession) readSerialized(input);
+                }
+
+                String[] table = new String[(int) readVarLong(input)];
+
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = readInterned(input);
+                }
+
+                int length = (int) readVarLong(input);
+
+                if (lazy) {
+                    byte[] body = new byte[length];
+
+                    input.readFully(body);
+
+                    session = new LazyPicketBoxSession(id, creationTime, principalName, table, body);
+                } else {
+                    Decoder decoder = new Decoder(table);
+
+                    session = new PicketBoxSession(id, decoder.readSubject(input), creationTime);
+                    decoder.readAttributes(input, session.attributes);
+                }
+            }
+
+            session.lastAccessedTime = lastAccessedTime;
+            session.invalid = (flags & FLAG_INVALID) != 0;
+
+            return session;
+        }
+
+        /**
+         * @param input
+         * @return
+         * @throws IOException
+         */
+        @SuppressWarnings("unchecked")
+        public SessionId<? extends Serializable> readId(DataInput input) throws IOException {
+            int tag = input.readByte();
+
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_NATIVE:
+                    return new DefaultSessionId(readString(input));
+                case TAG_SERIALIZED:
+                    return (SessionId<? extends Serializable>) readSerialized(input);
+                default:
+                    throw new IOException("Invalid session id tag: " + tag);
+            }
+        }
+
+        /**
+         * @param input
+         * @return
+         * @throws IOException
+         */
+        public SessionDelta readDelta(DataInput input) throws IOException {
+            SessionDelta delta = new SessionDelta(readId(input));
+            Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+            readAttributes(input, attributes);
+
+            for (Entry<String, Object> entry : attributes.entrySet()) {
+                delta.setAttribute(entry.getKey(), entry.getValue());
+            }
+
+            int count = (int) readVarLong(input);
+
+            for (int i = 0; i < count; i++) {
+                delta.removeAttribute(readInterned(input));
+            }
+
+            return delta;
+        }
+
+        private PicketBoxSubject readSubject(DataInput input) throws IOException {
+            int tag = input.readByte();
+
+            if (tag == TAG_NULL) {
+                return null;
+            }
+
+            if (tag == TAG_SERIALIZED) {
+                return (PicketBoxSubject) readSerialized(input);
+            }
+
+            if (tag != TAG_NATIVE) {
+                throw new IOException("Invalid subject tag: " + tag);
+            }
+
+            boolean authenticated = (input.readByte() & FLAG_AUTHENTICATED) != 0;
+            Principal user = readPrincipal(input);
+            int roleCount = (int) readVarLong(input);
+            List<String> roleNames = new ArrayList<String>(roleCount);
+
+            for (int i = 0; i < roleCount; i++) {
+                roleNames.add(readInterned(input));
+            }
+
+            PicketBoxSubject subject = RestoredSubjects.create(user, roleNames, authenticated);
+
+            Map<String, Object> attributes = new HashMap<String, Object>();
+
+            readAttributes(input, attributes);
+            subject.setAttributes(attributes);
+
+            if (input.readByte() == TAG_SERIALIZED) {
+                subject.setSubject((Subject) readSerialized(input));
+            }
+
+            return subject;
+        }
+
+        private Principal readPrincipal(DataInput input) throws IOException {
+            int tag = input.readByte();
+
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_NATIVE:
+                    return new PicketBoxPrincipal(readInterned(input));
+                case TAG_SERIALIZED:
+                    return (Principal) readSerialized(input);
+                default:
+                    throw new IOException("Invalid principal tag: " + tag);
+            }
+        }
+
+        private void readAttributes(DataInput input, Map<String, Object> attributes) throws IOException {
+            int count = (int) readVarLong(input);
+
+            for (int i = 0; i < count; i++) {
+                String key = readInterned(input);
+                Object value = readValue(input);
+
+                if (value != null) {
+                    attributes.put(key, value);
+                } else if (!(attributes instanceof ConcurrentMap)) {
+                    attributes.put(key, null);
+                }
+            }
+        }
+
+        private Object readValue(DataInput input) throws IOException {
+            int tag = input.readByte();
+
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_STRING:
+                    return readString(input);
+                case TAG_INTEGER:
+                    return (int) unZigZag(readVarLong(input));
+                case TAG_LONG:
+                    return unZigZag(readVarLong(input));
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_DOUBLE:
+                    return input.readDouble();
+                case TAG_BYTES:
+                    byte[] bytes = new byte[(int) readVarLong(input)];
+
+                    input.readFully(bytes);
+
+                    return bytes;
+                case TAG_SERIALIZED:
+                    return readSerialized(input);
+                default:
+                    throw new IOException("Invalid value tag: " + tag);
+            }
+        }
+
+        private String readInterned(DataInput input) throws IOException {
+            long reference = readVarLong(input);
+
+            if (reference == 0) {
+                return null;
+            }
+
+            if (this.table != null) {
+                if (reference > this.table.length) {
+                    throw new IOException("Invalid string table reference: " + reference);
+                }
+
+                return this.table[(int) reference - 1];
+            }
+
+            if (reference == 1) {
+                String value = readString(input);
+
+                this.dictionary.add(value);
+
+                return value;
+            }
+
+            int index = (int) (reference - 2);
+
+            if (index >= this.dictionary.size()) {
+                throw new IOException("Invalid dictionary reference: " + index);
+            }
+
+            return this.dictionary.get(index);
+        }
+    }
+
+    /**
+     * <p>
+     * Encodes the identifier of a session to the bytes used to key it in the stores that index sessions off the heap.
+     * </p>
+     *
+     * @param id
+     * @return
+     */
+    static byte[] encodeKey(Serializable id) {
+        if (id instanceof String) {
+            return ((String) id).getBytes(UTF_8);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+
+        try {
+            writeSerialized(new DataOutputStream(bytes), id);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Decodes the body of a session.
+     * </p>
+     *
+     * @param table the strings of the body
+     * @param body
+     * @param attributes the map receiving the attributes
+     * @return the subject
+     * @throws IOException
+     */
+    static PicketBoxSubject readBody(String[] table, byte[] body, Map<String, Object> attributes) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        Decoder decoder = new Decoder(table);
+        PicketBoxSubject subject = decoder.readSubject(input);
+
+        decoder.readAttributes(input, attributes);
+
+        return subject;
+    }
+
+    static void writeVarLong(DataOutput output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        output.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput input) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readByte();
+
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed variable length integer");
+    }
+
+    static void writeString(DataOutput output, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+
+        writeVarLong(output, bytes.length);
+        output.write(bytes);
+    }
+
+    static String readString(DataInput input) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(input)];
+
+        input.readFully(bytes);
+
+        return new String(bytes, UTF_8);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeSerialized(DataOutput output, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+
+        try {
+            oos.writeObject(value);
+        } finally {
+            StreamUtil.safeClose(oos);
+        }
+
+        writeVarLong(output, bytes.size());
+        output.write(bytes.toByteArray());
+    }
+
+    private static Object readSerialized(DataInput input) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(input)];
+
+        input.readFully(bytes);
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+        try {
+            return ois.readObject();
+        } catch (ClassNotFoundException e) {
+            IOException exception = new IOException("Could not deserialize session data");
+
+            exception.initCause(e);
+
+            throw exception;
+        } finally {
+            StreamUtil.safeClose(ois);
+        }
+    }
+}
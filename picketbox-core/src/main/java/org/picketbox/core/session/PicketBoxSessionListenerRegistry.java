@@ -0,0 +1,144 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.util.Collection;
+
+/**
+ * <p>
+ * Holds the {@link PicketBoxSessionListener} registered with a {@link SessionManager}. A single registry is shared by all the
+ * sessions of a manager, instead of each session keeping its own copy of the same listeners.
+ * </p>
+ * <p>
+ * The listeners are kept in an array that is replaced on every change, so notifying them takes no lock and allocates nothing.
+ * Listeners are expected to be registered at startup and rarely changed afterwards.
+ * </p>
+ */
+public final class PicketBoxSessionListenerRegistry {
+
+    static final PicketBoxSessionListener[] NO_LISTENERS = new PicketBoxSessionListener[0];
+
+    /**
+     * A registry without listeners, used by sessions not created by a {@link SessionManager}.
+     */
+    static final PicketBoxSessionListenerRegistry EMPTY = new PicketBoxSessionListenerRegistry();
+
+    private volatile PicketBoxSessionListener[] listeners = NO_LISTENERS;
+
+    public PicketBoxSessionListenerRegistry() {
+    }
+
+    /**
+     * @param listeners the initial listeners
+     */
+    public PicketBoxSessionListenerRegistry(Collection<? extends PicketBoxSessionListener> listeners) {
+        this.listeners = listeners.toArray(new PicketBoxSessionListener[listeners.size()]);
+    }
+
+    /**
+     * Register a listener. It is notified of the events of all the sessions sharing this registry.
+     *
+     * @param listener
+     */
+    public synchronized void add(PicketBoxSessionListener listener) {
+        if (this == EMPTY) {
+            throw new UnsupportedOperationException("The empty listener registry can not be changed.");
+        }
+
+        this.listeners = append(this.listeners, listener);
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param listener
+     * @return true if the listener was registered
+     */
+    public synchronized boolean remove(PicketBoxSessionListener listener) {
+        PicketBoxSessionListener[] current = this.listeners;
+
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                PicketBoxSessionListener[] updated = new PicketBoxSessionListener[current.length - 1];
+
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+
+                this.listeners = updated;
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the number of registered listeners
+     */
+    public int size() {
+        return this.listeners.length;
+    }
+
+    /**
+     * Check whether a listener of the given type is registered.
+     *
+     * @param type
+     * @return
+     */
+    public boolean contains(Class<? extends PicketBoxSessionListener> type) {
+        return contains(this.listeners, type);
+    }
+
+    /**
+     * Returns the current listeners. The array is shared and must not be modified.
+     *
+     * @return
+     */
+    PicketBoxSessionListener[] getListeners() {
+        return this.listeners;
+    }
+
+    static PicketBoxSessionListener[] append(PicketBoxSessionListener[] listeners, PicketBoxSessionListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener can not be null.");
+        }
+
+        PicketBoxSessionListener[] updated = new PicketBoxSessionListener[listeners.length + 1];
+
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+
+        return updated;
+    }
+
+    static boolean contains(PicketBoxSessionListener[] listeners, Class<? extends PicketBoxSessionListener> type) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].getClass().equals(type)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
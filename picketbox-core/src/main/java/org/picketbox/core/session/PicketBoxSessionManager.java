@@ -21,9 +21,9 @@
  */
 package org.picketbox.core.session;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
+import org.picketbox.core.PicketBoxLogger;
 import org.picketbox.core.PicketBoxMessages;
 import org.picketbox.core.exceptions.PicketBoxSessionException;
 
@@ -35,7 +35,8 @@ import org.picketbox.core.exceptions.PicketBoxSessionException;
  */
 public class PicketBoxSessionManager {
 
-    private static Timer timer = new Timer();
+    private static final HashedTimingWheel wheel = new HashedTimingWheel("PicketBox Session Expiration", 1, TimeUnit.SECONDS,
+            4096);
 
     private static long expiryValue = 5 * 60 * 1000; // 5 minutes
 
@@ -129,17 +130,17 @@ public class PicketBoxSessionManager {
      * @param session
      */
     private static void setTimer(final PicketBoxSession session) {
-        timer.schedule(new TimerTask() {
+        wheel.newTimeout(new Runnable() {
             @Override
             public void run() {
                 if (session.isValid()) {
                     try {
                         session.expire();
                     } catch (PicketBoxSessionException e) {
-                        e.printStackTrace();
+                        PicketBoxLogger.LOGGER.errorExpiringSession(String.valueOf(session.getId().getId()), e);
                     }
                 }
             }
-        }, expiryValue);
+        }, expiryValue, TimeUnit.MILLISECONDS);
     }
 }
\ No newline at end of file
@@ -26,17 +26,22 @@ package org.picketbox.core.session;
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
  *
  */
-public class PicketBoxSessionStoreListener implements PicketBoxSessionListener {
+public class PicketBoxSessionStoreListener implements PicketBoxSessionAttributeListener {
 
-    private SessionManager sessionManager;
+    private DefaultSessionManager sessionManager;
 
-    PicketBoxSessionStoreListener(SessionManager sessionManager) {
+    PicketBoxSessionStoreListener(DefaultSessionManager sessionManager) {
         this.sessionManager = sessionManager;
     }
 
     @Override
     public void onSetAttribute(PicketBoxSession session, String key, Object value) {
-        sessionManager.update(session);
+        sessionManager.updateAttributes(session);
+    }
+
+    @Override
+    public void onRemoveAttribute(PicketBoxSession session, String key) {
+        sessionManager.updateAttributes(session);
     }
 
     @Override
@@ -56,9 +61,22 @@ public class PicketBoxSessionStoreListener implements PicketBoxSessionListener {
 
     @Override
     public void onGetAttribute(PicketBoxSession currentSession) {
+        if (this.sessionManager.hasPendingChanges(currentSession)) {
+            // the store does not have the latest attributes yet
+            return;
+        }
+
+        // only reloads the attributes when the session was updated through another copy
+        if (!this.sessionManager.isStale(currentSession)) {
+            return;
+        }
+
         PicketBoxSession session = this.sessionManager.retrieve(currentSession.getId());
 
-        currentSession.attributes = session.attributes;
+        if (session != null && session != currentSession) {
+            currentSession.setAttributeMap(session.getAttributeMap());
+            currentSession.version = session.version;
+        }
     }
 
 }
@@ -0,0 +1,208 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Indexes the sessions managed by a {@link SessionManager} by the name of their principal, so all the sessions of a user can
+ * be found without scanning the store. Every operation costs time proportional to the number of sessions of the user.
+ * </p>
+ * <p>
+ * The sessions of a principal are kept in creation order and guarded by their own monitor. An empty set of sessions is
+ * removed from the index and marked as such, so a concurrent addition retries with a new set instead of losing its session.
+ * </p>
+ */
+class PrincipalSessionIndex {
+
+    private final ConcurrentMap<String, PrincipalSessions> sessionsByPrincipal;
+    private final ConcurrentMap<Serializable, String> principalsBySession;
+
+    PrincipalSessionIndex() {
+        this.sessionsByPrincipal = new ConcurrentHashMap<String, PrincipalSessions>();
+        this.principalsBySession = new ConcurrentHashMap<Serializable, String>();
+    }
+
+    /**
+     * <p>
+     * Adds a session to the index.
+     * </p>
+     *
+     * @param principalName
+     * @param id
+     * @param maxSessions the maximum number of sessions of the principal, or 0 for no limit
+     * @return the ids of the oldest sessions of the principal over the limit, which were removed from the index
+     */
+    List<SessionId<? extends Serializable>> add(String principalName, SessionId<? extends Serializable> id, int maxSessions) {
+        this.principalsBySession.put(id.getId(), principalName);
+
+        for (;;) {
+            PrincipalSessions sessions = this.sessionsByPrincipal.get(principalName);
+
+            if (sessions == null) {
+                PrincipalSessions created = new PrincipalSessions();
+
+                sessions = this.sessionsByPrincipal.putIfAbsent(principalName, created);
+
+                if (sessions == null) {
+                    sessions = created;
+                }
+            }
+
+            synchronized (sessions) {
+                if (sessions.removed) {
+                    continue;
+                }
+
+                sessions.ids.put(id.getId(), id);
+
+                if (maxSessions <= 0 || sessions.ids.size() <= maxSessions) {
+                    return Collections.emptyList();
+                }
+
+                List<SessionId<? extends Serializable>> evicted = new ArrayList<SessionId<? extends Serializable>>();
+                Iterator<SessionId<? extends Serializable>> iterator = sessions.ids.values().iterator();
+
+                while (sessions.ids.size() > maxSessions) {
+                    SessionId<? extends Serializable> oldest = iterator.next();
+
+                    iterator.remove();
+                    this.principalsBySession.remove(oldest.getId());
+                    evicted.add(oldest);
+                }
+
+                return evicted;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Removes a session from the index.
+     * </p>
+     *
+     * @param id
+     */
+    void remove(SessionId<? extends Serializable> id) {
+        String principalName = this.principalsBySession.remove(id.getId());
+
+        if (principalName == null) {
+            return;
+        }
+
+        PrincipalSessions sessions = this.sessionsByPrincipal.get(principalName);
+
+        if (sessions == null) {
+            return;
+        }
+
+        synchronized (sessions) {
+            sessions.ids.remove(id.getId());
+
+            if (sessions.ids.isEmpty() && !sessions.removed) {
+                sessions.removed = true;
+                this.sessionsByPrincipal.remove(principalName, sessions);
+            }
+        }
+    }
+
+    /**
+     * @param id
+     * @return true if the session with the given id is indexed
+     */
+    boolean contains(SessionId<? extends Serializable> id) {
+        return this.principalsBySession.containsKey(id.getId());
+    }
+
+    /**
+     * @param principalName
+     * @return the ids of the sessions of the principal, from the oldest to the newest
+     */
+    List<SessionId<? extends Serializable>> get(String principalName) {
+        PrincipalSessions sessions = this.sessionsByPrincipal.get(principalName);
+
+        if (sessions == null) {
+            return Collections.emptyList();
+        }
+
+        synchronized (sessions) {
+            return new ArrayList<SessionId<? extends Serializable>>(sessions.ids.values());
+        }
+    }
+
+    /**
+     * <p>
+     * Removes all the sessions of a principal from the index.
+     * </p>
+     *
+     * @param principalName
+     * @return the ids of the removed sessions
+     */
+    List<SessionId<? extends Serializable>> removeAll(String principalName) {
+        PrincipalSessions sessions = this.sessionsByPrincipal.remove(principalName);
+
+        if (sessions == null) {
+            return Collections.emptyList();
+        }
+
+        synchronized (sessions) {
+            sessions.removed = true;
+
+            List<SessionId<? extends Serializable>> ids;
+
+            ids = new ArrayList<SessionId<? extends Serializable>>(sessions.ids.values());
+
+            for (SessionId<? extends Serializable> id : ids) {
+                this.principalsBySession.remove(id.getId(), principalName);
+            }
+
+            sessions.ids.clear();
+
+            return ids;
+        }
+    }
+
+    void clear() {
+        this.sessionsByPrincipal.clear();
+        this.principalsBySession.clear();
+    }
+
+    private static class PrincipalSessions {
+
+        private final Map<Serializable, SessionId<? extends Serializable>> ids;
+        private boolean removed;
+
+        PrincipalSessions() {
+            this.ids = new LinkedHashMap<Serializable, SessionId<? extends Serializable>>();
+        }
+    }
+}
@@ -0,0 +1,627 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxLogger;
+
+/**
+ * <p>
+ * A {@link SessionStore} decorator replicating the sessions written to the local store to backup nodes, so the sessions of a
+ * node survive its failure. The backups of a node are the nodes following it in the sorted list of members of the
+ * {@link SessionReplicationTransport}, and they apply the replicated sessions to their own local store.
+ * </p>
+ * <p>
+ * Writes are replicated asynchronously. Stores, updates and removals, which include expirations, are queued and shipped by a
+ * background sender in batches, where the changes of a session are coalesced into its latest state. Attribute changes written
+ * with {@link #update(PicketBoxSession, SessionDelta, long)} are shipped as deltas, and merged with the other deltas of the
+ * session in the same batch. Batches larger than a threshold are compressed. The queue is bounded: when the backups lag behind,
+ * writing threads wait for room in the queue. Stores, updates and deltas still not queued after a while are dropped and
+ * counted, since a later write of the session ships its state again. Removals are never dropped, as nothing would ever remove
+ * the copy held by the backups: the removing thread waits until the removal is queued, or until the store is stopped.
+ * </p>
+ */
+public class ReplicatedSessionStore extends AbstractPicketBoxLifeCycle implements SessionStore {
+
+    static final int VERSION = 1;
+
+    private static final int PUT = 1;
+    private static final int REMOVE = 2;
+    private static final int DELTA = 3;
+    private static final int COMPRESSED = 1;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int COMPRESSION_THRESHOLD = 512;
+    private static final long QUEUE_TIMEOUT = 1000;
+    private static final long POLL_INTERVAL = 100;
+
+    private final SessionStore delegate;
+    private final String nodeId;
+    private final SessionReplicationTransport transport;
+    private final int backups;
+    private final BlockingQueue<Operation> queue;
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+    private final AtomicLong replicatedOperations = new AtomicLong();
+    private final AtomicLong droppedOperations = new AtomicLong();
+    private final AtomicLong receivedOperations = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final SessionReplicationTransport.Receiver receiver = new SessionReplicationTransport.Receiver() {
+        @Override
+        public void onMessage(String sender, byte[] message) {
+            apply(sender, message);
+        }
+    };
+    private volatile boolean running;
+    private ExecutorService sender;
+
+    /**
+     * @param delegate the local store
+     * @param nodeId the name of this node
+     * @param transport
+     * @param backups the number of nodes holding a copy of the sessions of this node
+     * @param maxPendingOperations the maximum number of operations waiting to be replicated
+     */
+    public ReplicatedSessionStore(SessionStore delegate, String nodeId, SessionReplicationTransport transport, int backups,
+            int maxPendingOperations) {
+        this.delegate = delegate;
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.backups = backups;
+        this.queue = new ArrayBlockingQueue<Operation>(maxPendingOperations);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#load(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public PicketBoxSession load(SessionId<? extends Serializable> key) {
+        return this.delegate.load(key);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void store(PicketBoxSession session) {
+        this.delegate.store(session);
+        enqueue(new Operation(session.getId(), session));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        this.delegate.update(session);
+        enqueue(new Operation(session.getId(), session));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#storeIfAbsent(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public boolean storeIfAbsent(PicketBoxSession session) {
+        if (!this.delegate.storeIfAbsent(session)) {
+            return false;
+        }
+
+        enqueue(new Operation(session.getId(), session));
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, long expectedVersion) {
+        if (!this.delegate.update(session, expectedVersion)) {
+            return false;
+        }
+
+        enqueue(new Operation(session.getId(), session));
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession,
+     * org.picketbox.core.session.SessionDelta, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion) {
+        if (!this.delegate.update(session, delta, expectedVersion)) {
+            return false;
+        }
+
+        enqueue(new Operation(session.getId(), delta));
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        this.delegate.remove(id);
+        enqueue(new Operation(id, (PicketBoxSession) null));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#getVersion(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public long getVersion(SessionId<? extends Serializable> id) {
+        return this.delegate.getVersion(id);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#cursor()
+     */
+    @Override
+    public Iterator<PicketBoxSession> cursor() {
+        return SessionCursor.of(this, this.delegate.cursor());
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#count()
+     */
+    @Override
+    public int count() {
+        return this.delegate.count();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#removeIf(org.picketbox.core.session.SessionPredicate)
+     */
+    @Override
+    public int removeIf(SessionPredicate predicate) {
+        return SessionCursor.removeIf(this, predicate);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#forEachBatch(int,
+     * org.picketbox.core.session.SessionBatchHandler)
+     */
+    @Override
+    public void forEachBatch(int batchSize, SessionBatchHandler handler) {
+        SessionCursor.forEachBatch(this, batchSize, handler);
+    }
+
+    /**
+     * @return the number of operations waiting to be replicated
+     */
+    public int getPendingOperations() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return the number of operations sent to the backups, after coalescing
+     */
+    public long getReplicatedOperations() {
+        return this.replicatedOperations.get();
+    }
+
+    /**
+     * @return the number of stores, updates and deltas that were not replicated because the queue stayed full
+     */
+    public long getDroppedOperations() {
+        return this.droppedOperations.get();
+    }
+
+    /**
+     * @return the number of operations replicated by other nodes and applied to the local store
+     */
+    public long getReceivedOperations() {
+        return this.receivedOperations.get();
+    }
+
+    /**
+     * @return the number of bytes sent to each backup
+     */
+    public long getSentBytes() {
+        return this.sentBytes.get();
+    }
+
+    /**
+     * @return the number of bytes the sent batches would have taken without compression
+     */
+    public long getUncompressedBytes() {
+        return this.uncompressedBytes.get();
+    }
+
+    @Override
+    protected void doStart() {
+        this.delegate.start();
+        this.running = true;
+        this.sender = Executors.newSingleThreadExecutor(new DaemonThreadFactory("PicketBox Session Replication"));
+        this.sender.execute(new Runnable() {
+            @Override
+            public void run() {
+                replicate();
+            }
+        });
+        this.transport.connect(this.nodeId, this.receiver);
+    }
+
+    @Override
+    protected void doStop() {
+        this.transport.disconnect(this.nodeId);
+        this.running = false;
+        this.sender.shutdown();
+
+        try {
+            this.sender.awaitTermination(QUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.delegate.stop();
+    }
+
+    /**
+     * <p>
+     * Queues an operation, waiting for room in the queue. Removals wait as long as the store is running, and an interrupted
+     * removal is still queued, with the interrupt status restored afterwards.
+     * </p>
+     */
+    private void enqueue(Operation operation) {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    if (this.queue.offer(operation, QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+
+                if (!operation.isRemoval() || !this.running) {
+                    this.droppedOperations.incrementAndGet();
+                    return;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Ships the queued operations until the store is stopped and the queue is empty. Only run by the sender thread.
+     * </p>
+     */
+    private void replicate() {
+        List<Operation> drained = new ArrayList<Operation>(MAX_BATCH_SIZE);
+        Map<Serializable, Operation> batch = new LinkedHashMap<Serializable, Operation>();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try {
+            while (this.running || !this.queue.isEmpty()) {
+                Operation first;
+
+                try {
+                    first = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                if (first == null) {
+                    continue;
+                }
+
+                drained.add(first);
+                this.queue.drainTo(drained, MAX_BATCH_SIZE - 1);
+
+                // later operations on a session replace the earlier ones, and move to the end of the batch
+                for (Operation operation : drained) {
+                    Serializable key = operation.id.getId();
+                    Operation previous = batch.remove(key);
+
+                    if (operation.delta != null && previous != null) {
+                        operation = previous.merge(operation);
+                    }
+
+                    batch.put(key, operation);
+                }
+
+                send(batch.values(), deflater);
+
+                drained.clear();
+                batch.clear();
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void send(Collection<Operation> operations, Deflater deflater) {
+        byte[] message;
+
+        try {
+            message = encode(operations, deflater);
+        } catch (IOException e) {
+            PicketBoxLogger.LOGGER.errorReplicatingSessions(this.nodeId, e);
+            return;
+        }
+
+        for (String backup : getBackups()) {
+            try {
+                this.transport.send(this.nodeId, backup, message);
+                this.sentBytes.addAndGet(message.length);
+            } catch (IOException e) {
+                PicketBoxLogger.LOGGER.errorReplicatingSessions(backup, e);
+            }
+        }
+
+        this.replicatedOperations.addAndGet(operations.size());
+    }
+
+    private byte[] encode(Collection<Operation> operations, Deflater deflater) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream output = new DataOutputStream(bytes);
+        PicketBoxSessionCodec.Encoder encoder = this.codec.newEncoder();
+
+        PicketBoxSessionCodec.writeVarLong(output, operations.size());
+
+        for (Operation operation : operations) {
+            if (operation.session != null) {
+                output.writeByte(PUT);
+                encoder.writeSession(output, operation.session);
+            } else if (operation.delta != null) {
+                output.writeByte(DELTA);
+                encoder.writeDelta(output, operation.delta);
+            } else {
+                output.writeByte(REMOVE);
+                encoder.writeId(output, operation.id);
+            }
+        }
+
+        byte[] body = bytes.toByteArray();
+        ByteArrayOutputStream message = new ByteArrayOutputStream(body.length + 8);
+        DataOutputStream header = new DataOutputStream(message);
+
+        this.uncompressedBytes.addAndGet(body.length);
+
+        header.writeByte(VERSION);
+
+        if (body.length < COMPRESSION_THRESHOLD) {
+            header.writeByte(0);
+            message.write(body);
+            return message.toByteArray();
+        }
+
+        header.writeByte(COMPRESSED);
+        PicketBoxSessionCodec.writeVarLong(header, body.length);
+
+        byte[] buffer = new byte[4096];
+
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            message.write(buffer, 0, deflater.deflate(buffer));
+        }
+
+        return message.toByteArray();
+    }
+
+    /**
+     * <p>
+     * Applies a batch replicated by another node to the local store, without replicating it again.
+     * </p>
+     */
+    private void apply(String sender, byte[] message) {
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(message));
+
+            if (input.readUnsignedByte() != VERSION) {
+                throw new IOException("Unsupported replication message version");
+            }
+
+            if (input.readUnsignedByte() == COMPRESSED) {
+                byte[] body = new byte[(int) PicketBoxSessionCodec.readVarLong(input)];
+                int offset = message.length - input.available();
+                Inflater inflater = new Inflater();
+
+                try {
+                    inflater.setInput(message, offset, message.length - offset);
+
+                    if (inflater.inflate(body) != body.length) {
+                        throw new IOException("Truncated replication message");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException(e.getMessage());
+                } finally {
+                    inflater.end();
+                }
+
+                input = new DataInputStream(new ByteArrayInputStream(body));
+            }
+
+            PicketBoxSessionCodec.Decoder decoder = this.codec.newDecoder();
+            long count = PicketBoxSessionCodec.readVarLong(input);
+
+            for (long i = 0; i < count; i++) {
+                int type = input.readUnsignedByte();
+
+                if (type == PUT) {
+                    PicketBoxSession session = decoder.readLazySession(input);
+
+                    if (this.delegate.getVersion(session.getId()) < 0) {
+                        this.delegate.store(session);
+                    } else {
+                        this.delegate.update(session);
+                    }
+                } else if (type == DELTA) {
+                    applyDelta(decoder.readDelta(input));
+                } else {
+                    this.delegate.remove(decoder.readId(input));
+                }
+
+                this.receivedOperations.incrementAndGet();
+            }
+        } catch (IOException e) {
+            PicketBoxLogger.LOGGER.errorApplyingReplicatedSessions(sender, e);
+        }
+    }
+
+    /**
+     * <p>
+     * Applies replicated attribute changes to the local copy of a session. Changes to a session this node does not have are
+     * dropped, the next full copy of the session brings them.
+     * </p>
+     */
+    private void applyDelta(SessionDelta delta) {
+        PicketBoxSession session = this.delegate.load(delta.getId());
+
+        while (session != null) {
+            delta.applyTo(session.getAttributeMap());
+
+            if (this.delegate.update(session, delta, session.getVersion())) {
+                return;
+            }
+
+            session = this.delegate.load(delta.getId());
+        }
+    }
+
+    /**
+     * @return the nodes following this one in the sorted list of members
+     */
+    private List<String> getBackups() {
+        List<String> members = new ArrayList<String>(this.transport.getMembers());
+        List<String> backups = new ArrayList<String>(this.backups);
+
+        Collections.sort(members);
+
+        int index = members.indexOf(this.nodeId);
+
+        for (int i = 1; i <= members.size() && backups.size() < this.backups; i++) {
+            String member = members.get((index + i) % members.size());
+
+            if (!member.equals(this.nodeId)) {
+                backups.add(member);
+            }
+        }
+
+        return backups;
+    }
+
+    private static final class Operation {
+
+        private final SessionId<? extends Serializable> id;
+        private final PicketBoxSession session;
+        private final SessionDelta delta;
+
+        private Operation(SessionId<? extends Serializable> id, PicketBoxSession session) {
+            this.id = id;
+            this.session = session;
+            this.delta = null;
+        }
+
+        private Operation(SessionId<? extends Serializable> id, SessionDelta delta) {
+            this.id = id;
+            this.session = null;
+            this.delta = delta;
+        }
+
+        private boolean isRemoval() {
+            return this.session == null && this.delta == null;
+        }
+
+        /**
+         * Combines this operation with a later delta of the same session.
+         */
+        private Operation merge(Operation later) {
+            if (this.session != null) {
+                // the whole session is shipped, with its latest attributes
+                return this;
+            }
+
+            if (this.delta == null) {
+                return later;
+            }
+
+            SessionDelta merged = new SessionDelta(this.id);
+
+            merged.merge(this.delta);
+            merged.merge(later.delta);
+
+            return new Operation(this.id, merged);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.security.SecureRandom;
+
+/**
+ * <p>
+ * The default {@link SessionIdGenerator}, which generates 128 random bits encoded as 22 characters of URL-safe base64,
+ * optionally followed by a dot and a node identifier that load balancers can use to route requests to the node owning the
+ * session.
+ * </p>
+ * <p>
+ * Each thread draws from its own {@link SecureRandom}, so concurrent logins do not contend on a shared generator. A thread
+ * replaces its generator with a freshly seeded one after a fixed number of identifiers, which bounds how much output is
+ * derived from a single seed.
+ * </p>
+ */
+public class SecureSessionIdGenerator implements SessionIdGenerator {
+
+    /**
+     * The number of identifiers a thread generates before reseeding
+     */
+    public static final int RESEED_INTERVAL = 1 << 16;
+
+    /**
+     * The length of an identifier, without node identifier
+     */
+    public static final int ID_LENGTH = 22;
+
+    static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final SecureSessionIdGenerator DEFAULT = new SecureSessionIdGenerator();
+
+    private final String suffix;
+    private final ThreadLocal<RandomSource> sources = new ThreadLocal<RandomSource>() {
+        @Override
+        protected RandomSource initialValue() {
+            return new RandomSource();
+        }
+    };
+
+    /**
+     * <p>
+     * Creates a generator without node identifier.
+     * </p>
+     */
+    public SecureSessionIdGenerator() {
+        this(null);
+    }
+
+    /**
+     * @param nodeId the identifier of this node appended to the session identifiers, made of URL-safe base64 characters, or
+     *        null
+     */
+    public SecureSessionIdGenerator(String nodeId) {
+        if (nodeId != null) {
+            if (nodeId.length() == 0) {
+                throw new IllegalArgumentException("Empty node id");
+            }
+
+            for (int i = 0; i < nodeId.length(); i++) {
+                if (nodeId.charAt(i) >= 128 || decode(nodeId.charAt(i)) < 0) {
+                    throw new IllegalArgumentException("Invalid node id: " + nodeId);
+                }
+            }
+
+            this.suffix = "." + nodeId;
+        } else {
+            this.suffix = null;
+        }
+    }
+
+    /**
+     * @return the generator used by {@link DefaultSessionId#DefaultSessionId()}
+     */
+    public static SecureSessionIdGenerator getDefault() {
+        return DEFAULT;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionIdGenerator#generateId()
+     */
+    @Override
+    public String generateId() {
+        String id = this.sources.get().nextId();
+
+        return this.suffix == null ? id : id.concat(this.suffix);
+    }
+
+    /**
+     * @param c
+     * @return the value of a URL-safe base64 character, or -1
+     */
+    static int decode(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        } else if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        } else if (c == '-') {
+            return 62;
+        } else if (c == '_') {
+            return 63;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param bytes
+     * @return the bytes encoded as unpadded URL-safe base64
+     */
+    static String toBase64(byte[] bytes) {
+        char[] chars = new char[(bytes.length * 4 + 2) / 3];
+        int c = 0;
+        int i = 0;
+
+        for (; i + 2 < bytes.length; i += 3) {
+            int group = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+
+            chars[c++] = ALPHABET[group >>> 18];
+            chars[c++] = ALPHABET[(group >>> 12) & 0x3F];
+            chars[c++] = ALPHABET[(group >>> 6) & 0x3F];
+            chars[c++] = ALPHABET[group & 0x3F];
+        }
+
+        if (i < bytes.length) {
+            int group = (bytes[i] & 0xFF) << 16 | (i + 1 < bytes.length ? (bytes[i + 1] & 0xFF) << 8 : 0);
+
+            chars[c++] = ALPHABET[group >>> 18];
+            chars[c++] = ALPHABET[(group >>> 12) & 0x3F];
+
+            if (i + 1 < bytes.length) {
+                chars[c] = ALPHABET[(group >>> 6) & 0x3F];
+            }
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * @param value
+     * @return the bytes of unpadded URL-safe base64, or null if the value is not valid
+     */
+    static byte[] fromBase64(String value) {
+        int length = value.length();
+
+        if (length % 4 == 1) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length * 3 / 4];
+        int b = 0;
+        int bits = 0;
+        int count = 0;
+
+        for (int i = 0; i < length; i++) {
+            int digit = decode(value.charAt(i));
+
+            if (digit < 0) {
+                return null;
+            }
+
+            bits = bits << 6 | digit;
+            count += 6;
+
+            if (count >= 8) {
+                count -= 8;
+                bytes[b++] = (byte) (bits >>> count);
+                bits &= (1 << count) - 1;
+            }
+        }
+
+        return bytes;
+    }
+
+    private static final class RandomSource {
+
+        private final byte[] bytes = new byte[16];
+        private final char[] chars = new char[ID_LENGTH];
+        private SecureRandom random = new SecureRandom();
+        private int generated;
+
+        String nextId() {
+            if (++this.generated > RESEED_INTERVAL) {
+                this.random = new SecureRandom();
+                this.generated = 1;
+            }
+
+            this.random.nextBytes(this.bytes);
+
+            int c = 0;
+
+            // unpadded base64 of 16 bytes: five groups of three bytes, then the last byte on two characters
+            for (int i = 0; i < 15; i += 3) {
+                int group = (this.bytes[i] & 0xFF) << 16 | (this.bytes[i + 1] & 0xFF) << 8 | (this.bytes[i + 2] & 0xFF);
+
+                this.chars[c++] = ALPHABET[group >>> 18];
+                this.chars[c++] = ALPHABET[(group >>> 12) & 0x3F];
+                this.chars[c++] = ALPHABET[(group >>> 6) & 0x3F];
+                this.chars[c++] = ALPHABET[group & 0x3F];
+            }
+
+            int last = this.bytes[15] & 0xFF;
+
+            this.chars[c++] = ALPHABET[last >>> 2];
+            this.chars[c] = ALPHABET[(last & 0x3) << 4];
+
+            return new String(this.chars);
+        }
+    }
+}
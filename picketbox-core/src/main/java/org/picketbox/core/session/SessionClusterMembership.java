@@ -0,0 +1,80 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.util.Set;
+
+/**
+ * <p>
+ * The members of a cluster of {@link PartitionedSessionStore} instances. Each member exposes its local {@link SessionStore},
+ * which the other members reach through {@link #getStore(String)}, and is notified whenever a node joins or leaves.
+ * </p>
+ *
+ * @see InProcessSessionClusterMembership
+ */
+public interface SessionClusterMembership {
+
+    /**
+     * <p>
+     * Adds a node to the cluster, and notifies all the listeners, including the one of the new node.
+     * </p>
+     *
+     * @param nodeId
+     * @param localStore the store holding the sessions owned by the node
+     * @param listener
+     */
+    void join(String nodeId, SessionStore localStore, Listener listener);
+
+    /**
+     * <p>
+     * Removes a node from the cluster, and notifies the listeners of the remaining nodes.
+     * </p>
+     *
+     * @param nodeId
+     */
+    void leave(String nodeId);
+
+    /**
+     * @return the names of the current members
+     */
+    Set<String> getMembers();
+
+    /**
+     * @param nodeId
+     * @return the store of a member as seen from the other nodes, or null if the node is not a member
+     */
+    SessionStore getStore(String nodeId);
+
+    /**
+     * <p>
+     * Notified of the changes of the members of the cluster.
+     * </p>
+     */
+    interface Listener {
+
+        /**
+         * @param members the names of the current members
+         */
+        void onMembershipChange(Set<String> members);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>
+ * Base class for the cursors returned by {@link SessionStore#cursor()}. Subclasses only find the next session, removals go
+ * through the store so it keeps its journal, replicas or caches up to date.
+ * </p>
+ * <p>
+ * Also implements the bulk operations of the stores on top of their cursor.
+ * </p>
+ */
+abstract class SessionCursor implements Iterator<PicketBoxSession> {
+
+    private final SessionStore store;
+    private PicketBoxSession next;
+    private PicketBoxSession current;
+
+    /**
+     * @param store the store the sessions are removed from
+     */
+    SessionCursor(SessionStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @return the next session, or null if there are no more sessions
+     */
+    protected abstract PicketBoxSession advance();
+
+    @Override
+    public boolean hasNext() {
+        if (this.next == null) {
+            this.next = advance();
+        }
+
+        return this.next != null;
+    }
+
+    @Override
+    public PicketBoxSession next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        this.current = this.next;
+        this.next = null;
+
+        return this.current;
+    }
+
+    @Override
+    public void remove() {
+        if (this.current == null) {
+            throw new IllegalStateException();
+        }
+
+        this.store.remove(this.current.getId());
+        this.current = null;
+    }
+
+    /**
+     * Adapts an iterator over sessions, which must tolerate concurrent changes.
+     *
+     * @param store the store the sessions are removed from
+     * @param sessions
+     * @return
+     */
+    static SessionCursor of(SessionStore store, final Iterator<PicketBoxSession> sessions) {
+        return new SessionCursor(store) {
+            @Override
+            protected PicketBoxSession advance() {
+                return sessions.hasNext() ? sessions.next() : null;
+            }
+        };
+    }
+
+    /**
+     * Counts the sessions of a store by going through its cursor.
+     *
+     * @param store
+     * @return
+     */
+    static int count(SessionStore store) {
+        int count = 0;
+
+        for (Iterator<PicketBoxSession> cursor = store.cursor(); cursor.hasNext(); cursor.next()) {
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes the sessions of a store matching a predicate, through its cursor.
+     *
+     * @param store
+     * @param predicate
+     * @return the number of removed sessions
+     */
+    static int removeIf(SessionStore store, SessionPredicate predicate) {
+        int removed = 0;
+
+        for (Iterator<PicketBoxSession> cursor = store.cursor(); cursor.hasNext();) {
+            if (predicate.matches(cursor.next())) {
+                cursor.remove();
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Hands the sessions of a store to a handler in batches, through its cursor.
+     *
+     * @param store
+     * @param batchSize
+     * @param handler
+     */
+    static void forEachBatch(SessionStore store, int batchSize, SessionBatchHandler handler) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+
+        List<PicketBoxSession> batch = new ArrayList<PicketBoxSession>(batchSize);
+
+        for (Iterator<PicketBoxSession> cursor = store.cursor(); cursor.hasNext();) {
+            batch.add(cursor.next());
+
+            if (batch.size() == batchSize) {
+                handler.handle(batch);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            handler.handle(batch);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.picketbox.core.PicketBoxMessages;
+
+/**
+ * <p>
+ * The attributes of a {@link PicketBoxSession} set or removed since it was last written to its {@link SessionStore}. Stores
+ * keeping sessions in encoded form persist or ship the delta instead of the whole session.
+ * </p>
+ * <p>
+ * An attribute is either set or removed, the latest change of an attribute replaces the previous one. Not thread safe.
+ * </p>
+ */
+public final class SessionDelta {
+
+    private final SessionId<? extends Serializable> id;
+    private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+    private final Set<String> removedAttributes = new LinkedHashSet<String>();
+
+    /**
+     * @param id the identifier of the changed session
+     */
+    public SessionDelta(SessionId<? extends Serializable> id) {
+        if (id == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("id");
+        }
+
+        this.id = id;
+    }
+
+    public SessionId<? extends Serializable> getId() {
+        return this.id;
+    }
+
+    /**
+     * @param key
+     * @param value
+     */
+    public void setAttribute(String key, Object value) {
+        this.removedAttributes.remove(key);
+        this.attributes.put(key, value);
+    }
+
+    /**
+     * @param key
+     */
+    public void removeAttribute(String key) {
+        this.attributes.remove(key);
+        this.removedAttributes.add(key);
+    }
+
+    /**
+     * @return the attributes set, with their new values
+     */
+    public Map<String, Object> getAttributes() {
+        return Collections.unmodifiableMap(this.attributes);
+    }
+
+    /**
+     * @return the names of the attributes removed
+     */
+    public Set<String> getRemovedAttributes() {
+        return Collections.unmodifiableSet(this.removedAttributes);
+    }
+
+    /**
+     * @return true if no attribute changed
+     */
+    public boolean isEmpty() {
+        return this.attributes.isEmpty() && this.removedAttributes.isEmpty();
+    }
+
+    /**
+     * <p>
+     * Adds the changes of a later delta of the same session to this one.
+     * </p>
+     *
+     * @param delta
+     */
+    public void merge(SessionDelta delta) {
+        for (String key : delta.removedAttributes) {
+            removeAttribute(key);
+        }
+
+        for (Map.Entry<String, Object> entry : delta.attributes.entrySet()) {
+            setAttribute(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * <p>
+     * Applies the changes to the attributes of a session.
+     * </p>
+     *
+     * @param attributes
+     */
+    void applyTo(Map<String, Object> attributes) {
+        for (String key : this.removedAttributes) {
+            attributes.remove(key);
+        }
+
+        attributes.putAll(this.attributes);
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.picketbox.core.PicketBoxMessages;
+import org.picketbox.core.util.StreamUtil;
+
+/**
+ * <p>
+ * The disk tier of a {@link TieredSessionStore}.
+ * </p>
+ * <p>
+ * Sessions are appended to a data file in the compact format of {@link PicketBoxSessionCodec}, each record being the length
+ * and version of the session followed by its encoded form. The location of the live records is kept in an index on the heap,
+ * so reading a session is a single positional read. Records of removed sessions are reclaimed by {@link #compact()}, which
+ * rewrites the live records to a new file once the dead ones take more space than them.
+ * </p>
+ * <p>
+ * The index is written to its own file by {@link #close()} and read back by {@link #open()}. Since it is only written on a
+ * clean shutdown, the data file is discarded when no valid index matches it.
+ * </p>
+ */
+final class SessionDiskTier {
+
+    static final String DATA_FILE = "sessions.data";
+    static final String INDEX_FILE = "sessions.index";
+
+    private static final int MAGIC = 0x50425444;
+    private static final int VERSION = 1;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private final File directory;
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+    private final ConcurrentMap<Serializable, Entry> index = new ConcurrentHashMap<Serializable, Entry>();
+
+    /**
+     * Reads hold the read lock, so the data file is not swapped under them. Writes, removals and compactions hold the write
+     * lock.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private volatile long size;
+    private volatile long deadBytes;
+
+    /**
+     * @param directory the directory of the data and index files
+     */
+    SessionDiskTier(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * <p>
+     * Opens the data file and loads its index.
+     * </p>
+     */
+    void open() {
+        if (!this.directory.exists() && !this.directory.mkdirs()) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), null);
+        }
+
+        File dataFile = new File(this.directory, DATA_FILE);
+        File indexFile = new File(this.directory, INDEX_FILE);
+
+        try {
+            this.file = new RandomAccessFile(dataFile, "rw");
+            this.channel = this.file.getChannel();
+            this.size = this.channel.size();
+            this.deadBytes = 0;
+            this.index.clear();
+
+            if (!indexFile.exists() || !loadIndex(indexFile)) {
+                this.index.clear();
+                this.channel.truncate(0);
+                this.size = 0;
+            }
+        } catch (IOException e) {
+            StreamUtil.safeClose(this.file);
+            throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(dataFile.getPath(), e);
+        }
+
+        // the index is stale as soon as the data file changes
+        if (indexFile.exists() && !indexFile.delete()) {
+            StreamUtil.safeClose(this.file);
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(indexFile.getPath(), null);
+        }
+    }
+
+    /**
+     * <p>
+     * Syncs the data file, writes the index and closes the files.
+     * </p>
+     */
+    void close() {
+        this.lock.writeLock().lock();
+
+        try {
+            this.channel.force(false);
+            writeIndex(new File(this.directory, INDEX_FILE));
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), e);
+        } finally {
+            StreamUtil.safeClose(this.file);
+            this.file = null;
+            this.channel = null;
+            this.index.clear();
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p>
+     * Appends a session to the data file, replacing any previous record of it.
+     * </p>
+     *
+     * @param session
+     */
+    void write(PicketBoxSession session) {
+        byte[] data = this.codec.encode(session);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+
+        buffer.putInt(data.length);
+        buffer.putLong(session.version);
+        buffer.put(data);
+        buffer.flip();
+
+        this.lock.writeLock().lock();
+
+        try {
+            long offset = this.size;
+
+            writeFully(this.channel, buffer, offset);
+
+            this.size = offset + buffer.limit();
+
+            Entry previous = this.index.put(session.getId().getId(), new Entry(offset, data.length, session.version));
+
+            if (previous != null) {
+                this.deadBytes += previous.recordSize();
+            }
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * <p>
+     * Reads a session. Every call returns a new instance, whose subject and attributes are decoded on demand.
+     * </p>
+     *
+     * @param key
+     * @return the session, or null if it is not in this tier
+     */
+    PicketBoxSession read(Serializable key) {
+        this.lock.readLock().lock();
+
+        try {
+            Entry entry = this.index.get(key);
+
+            if (entry == null) {
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+
+            readFully(this.channel, buffer, entry.offset + RECORD_HEADER_SIZE);
+
+            PicketBoxSession session = this.codec.decodeLazy(buffer.array());
+
+            session.version = entry.version;
+
+            return session;
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(this.directory.getPath(), e);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param key
+     * @return true if the session was in this tier
+     */
+    boolean remove(Serializable key) {
+        if (!this.index.containsKey(key)) {
+            return false;
+        }
+
+        this.lock.writeLock().lock();
+
+        try {
+            Entry entry = this.index.remove(key);
+
+            if (entry == null) {
+                return false;
+            }
+
+            this.deadBytes += entry.recordSize();
+
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    boolean contains(Serializable key) {
+        return this.index.containsKey(key);
+    }
+
+    /**
+     * @param key
+     * @return the version of the session, or -1 if it is not in this tier
+     */
+    long getVersion(Serializable key) {
+        Entry entry = this.index.get(key);
+
+        return entry != null ? entry.version : -1;
+    }
+
+    /**
+     * @return a weakly consistent iterator over the identifiers of the sessions in this tier
+     */
+    Iterator<Serializable> keys() {
+        return this.index.keySet().iterator();
+    }
+
+    int size() {
+        return this.index.size();
+    }
+
+    /**
+     * @return the size of the data file, in bytes
+     */
+    long getFileSize() {
+        return this.size;
+    }
+
+    /**
+     * <p>
+     * Rewrites the live records to a new data file if the dead ones take more space than them.
+     * </p>
+     *
+     * @return true if the data file was compacted
+     */
+    boolean compact() {
+        if (this.deadBytes < MIN_COMPACTION_SIZE || this.deadBytes < this.size - this.deadBytes) {
+            return false;
+        }
+
+        File dataFile = new File(this.directory, DATA_FILE);
+        File compactFile = new File(this.directory, DATA_FILE + ".compact");
+
+        this.lock.writeLock().lock();
+
+        RandomAccessFile target = null;
+
+        try {
+            target = new RandomAccessFile(compactFile, "rw");
+
+            FileChannel targetChannel = target.getChannel();
+            Map<Serializable, Entry> moved = new HashMap<Serializable, Entry>();
+            long offset = 0;
+
+            targetChannel.truncate(0);
+
+            for (Map.Entry<Serializable, Entry> mapEntry : this.index.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                ByteBuffer buffer = ByteBuffer.allocate(entry.recordSize());
+
+                readFully(this.channel, buffer, entry.offset);
+                buffer.flip();
+                writeFully(targetChannel, buffer, offset);
+
+                moved.put(mapEntry.getKey(), new Entry(offset, entry.length, entry.version));
+
+                offset += entry.recordSize();
+            }
+
+            targetChannel.force(false);
+            StreamUtil.safeClose(target);
+            target = null;
+            StreamUtil.safeClose(this.file);
+
+            if (!dataFile.delete() || !compactFile.renameTo(dataFile)) {
+                throw new IOException("Could not replace " + dataFile.getPath());
+            }
+
+            this.file = new RandomAccessFile(dataFile, "rw");
+            this.channel = this.file.getChannel();
+            this.index.putAll(moved);
+            this.size = offset;
+            this.deadBytes = 0;
+
+            return true;
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(dataFile.getPath(), e);
+        } finally {
+            StreamUtil.safeClose(target);
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private boolean loadIndex(File indexFile) {
+        try {
+            return readIndex(indexFile);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean readIndex(File indexFile) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readLong() != this.size) {
+                return false;
+            }
+
+            int count = input.readInt();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            long liveBytes = 0;
+
+            for (int i = 0; i < count; i++) {
+                long offset = input.readLong();
+
+                header.clear();
+                readFully(this.channel, header, offset);
+
+                int length = header.getInt(0);
+                long version = header.getLong(4);
+                ByteBuffer data = ByteBuffer.allocate(length);
+
+                readFully(this.channel, data, offset + RECORD_HEADER_SIZE);
+
+                // only the header of the session is decoded, to find its identifier
+                PicketBoxSession session = this.codec.decodeLazy(data.array());
+                Entry entry = new Entry(offset, length, version);
+
+                this.index.put(session.getId().getId(), entry);
+
+                liveBytes += entry.recordSize();
+            }
+
+            this.deadBytes = this.size - liveBytes;
+
+            return true;
+        } finally {
+            StreamUtil.safeClose(input);
+        }
+    }
+
+    private void writeIndex(File indexFile) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(this.size);
+            output.writeInt(this.index.size());
+
+            for (Entry entry : this.index.values()) {
+                output.writeLong(entry.offset);
+            }
+        } finally {
+            StreamUtil.safeClose(output);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+
+            if (read < 0) {
+                throw new IOException("Unexpected end of session data file");
+            }
+
+            offset += read;
+        }
+    }
+
+    /**
+     * The location of a record in the data file.
+     */
+    private static final class Entry {
+
+        private final long offset;
+        private final int length;
+        private final long version;
+
+        private Entry(long offset, int length, long version) {
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+        }
+
+        private int recordSize() {
+            return RECORD_HEADER_SIZE + this.length;
+        }
+    }
+}
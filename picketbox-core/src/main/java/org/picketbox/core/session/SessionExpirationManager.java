@@ -21,49 +21,208 @@
  */
 package org.picketbox.core.session;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxLogger;
 import org.picketbox.core.config.PicketBoxConfiguration;
 import org.picketbox.core.exceptions.PicketBoxSessionException;
 
 /**
- * A manager capable of creating PicketBox sessions
+ * <p>
+ * Schedules the expiration of {@link PicketBoxSession} instances.
+ * </p>
+ * <p>
+ * Two timeouts are supported and can be combined: an absolute lifetime, counted from the session creation, and an idle timeout,
+ * counted from the last access to the session. Accesses only update a coarse grained timestamp in the session, which the
+ * {@link DefaultSessionManager} writes back to the store. The expiration task only holds the session id: when it fires, it
+ * loads the session from the store, compares its timestamp with the idle timeout and, if the session was used in the meantime,
+ * schedules itself again for the remaining time. A session is therefore rescheduled at most once per idle period, no matter
+ * how often it is read, and a store handing out copies of the sessions, or shared by several processes, sees the accesses of
+ * all of them.
+ * </p>
+ * <p>
+ * Each instance owns its own {@link HashedTimingWheel}, created when this manager starts and shut down when it is stopped, so
+ * the manager can be started again. Expiration tasks are cancelled when the session is removed, so logged out sessions are not
+ * retained until their timeout fires.
+ * </p>
  *
  * @author anil saldhana
  * @since Jul 16, 2012
  */
-public class SessionExpirationManager {
-
-    private static Timer timer = new Timer();
+public class SessionExpirationManager extends AbstractPicketBoxLifeCycle {
 
     private final long expiryValue;
+    private final long idleTimeout;
+    private final DefaultSessionManager sessionManager;
+    private volatile HashedTimingWheel wheel;
+    private final ConcurrentMap<Serializable, HashedTimingWheel.Timeout> timeouts;
 
-    public SessionExpirationManager(PicketBoxConfiguration configuration) {
-        this.expiryValue = configuration.getSessionManager().getSessionTimeout() * 60 * 1000;
+    /**
+     * @param configuration
+     * @param sessionManager the manager the sessions are loaded from when their timeout fires
+     */
+    SessionExpirationManager(PicketBoxConfiguration configuration, DefaultSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+        this.expiryValue = configuration.getSessionManager().getSessionTimeout() * 60L * 1000;
+        this.idleTimeout = configuration.getSessionManager().getSessionIdleTimeout();
+        this.timeouts = new ConcurrentHashMap<Serializable, HashedTimingWheel.Timeout>();
     }
 
     /**
-     * Set a timer for the configured delay. If the delay is <= 0 no task will be scheduled.
+     * Set a timer for the configured delays. If both the absolute and idle timeouts are <= 0 no task will be scheduled.
      *
      * @param session
      */
     void setTimer(final PicketBoxSession session) {
-        if (this.expiryValue <= 0) {
+        HashedTimingWheel wheel = this.wheel;
+
+        // nothing is scheduled while this manager is stopped
+        if ((this.expiryValue <= 0 && this.idleTimeout <= 0) || wheel == null) {
             return;
         }
 
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (session.isValid()) {
-                    try {
-                        session.expire();
-                    } catch (PicketBoxSessionException e) {
-                        e.printStackTrace();
-                    }
+        ExpirationTask task = new ExpirationTask(session.getId(), wheel);
+        HashedTimingWheel.Timeout previous = this.timeouts.put(session.getId().getId(),
+                task.schedule(getExpirationTime(session) - System.currentTimeMillis()));
+
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    /**
+     * <p>
+     * Cancels the expiration previously scheduled for the session with the given id, if any.
+     * </p>
+     *
+     * @param id
+     */
+    void cancelTimer(SessionId<? extends Serializable> id) {
+        HashedTimingWheel.Timeout timeout = this.timeouts.remove(id.getId());
+
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * <p>
+     * Checks if the expiration of the session with the given id is taken care of, which is always the case when no timeout is
+     * configured.
+     * </p>
+     *
+     * @param id
+     * @return
+     */
+    boolean isScheduled(SessionId<? extends Serializable> id) {
+        return (this.expiryValue <= 0 && this.idleTimeout <= 0) || this.timeouts.containsKey(id.getId());
+    }
+
+    /**
+     * <p>
+     * Checks if the timeout of the given session passed, for example while it was kept in a snapshot or a journal.
+     * </p>
+     *
+     * @param session
+     * @return
+     */
+    boolean isExpired(PicketBoxSession session) {
+        return getExpirationTime(session) <= System.currentTimeMillis();
+    }
+
+    /**
+     * <p>
+     * Computes when the given session expires, considering its creation and last access times.
+     * </p>
+     *
+     * @param session
+     * @return the expiration time, in milliseconds since the epoch
+     */
+    long getExpirationTime(PicketBoxSession session) {
+        long expirationTime = Long.MAX_VALUE;
+
+        if (this.expiryValue > 0) {
+            expirationTime = session.getCreationTime() + this.expiryValue;
+        }
+
+        if (this.idleTimeout > 0) {
+            expirationTime = Math.min(expirationTime, session.getLastAccessedTime() + this.idleTimeout);
+        }
+
+        return expirationTime;
+    }
+
+    @Override
+    protected void doStart() {
+        // the wheel starts its worker thread when the first session is scheduled
+        this.wheel = new HashedTimingWheel("PicketBox Session Expiration", 1, TimeUnit.SECONDS, 4096);
+    }
+
+    @Override
+    protected void doStop() {
+        HashedTimingWheel wheel = this.wheel;
+
+        this.wheel = null;
+        wheel.stop();
+        this.timeouts.clear();
+    }
+
+    private class ExpirationTask implements Runnable {
+
+        private final SessionId<? extends Serializable> id;
+        private final HashedTimingWheel wheel;
+        private HashedTimingWheel.Timeout timeout;
+
+        ExpirationTask(SessionId<? extends Serializable> id, HashedTimingWheel wheel) {
+            this.id = id;
+            this.wheel = wheel;
+        }
+
+        HashedTimingWheel.Timeout schedule(long delay) {
+            this.timeout = this.wheel.newTimeout(this, Math.max(0, delay), TimeUnit.MILLISECONDS);
+            return this.timeout;
+        }
+
+        @Override
+        public void run() {
+            Serializable id = this.id.getId();
+            PicketBoxSession session = sessionManager.load(this.id);
+
+            if (session == null || !session.isValid()) {
+                timeouts.remove(id, this.timeout);
+                return;
+            }
+
+            long remaining = getExpirationTime(session) - System.currentTimeMillis();
+
+            if (remaining > 0) {
+                // the session was accessed since this task was scheduled
+                HashedTimingWheel.Timeout current = this.timeout;
+
+                if (!timeouts.replace(id, current, schedule(remaining))) {
+                    // the session was removed concurrently
+                    this.timeout.cancel();
                 }
+
+                return;
+            }
+
+            timeouts.remove(id, this.timeout);
+
+            try {
+                session.expire();
+            } catch (PicketBoxSessionException e) {
+                PicketBoxLogger.LOGGER.errorExpiringSession(String.valueOf(id), e);
             }
-        }, expiryValue);
+        }
+
+        @Override
+        public String toString() {
+            return "Expiration of session " + this.id.getId();
+        }
     }
-}
\ No newline at end of file
+}
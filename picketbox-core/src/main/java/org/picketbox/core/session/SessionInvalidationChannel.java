@@ -0,0 +1,70 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * Propagates the invalidation of cached sessions between the nodes sharing a {@link SessionStore}. A
+ * {@link NearCacheSessionStore} publishes an invalidation whenever it updates or removes a session, and evicts the sessions
+ * invalidated by the other nodes.
+ * </p>
+ *
+ * @see InJvmSessionInvalidationChannel
+ */
+public interface SessionInvalidationChannel {
+
+    /**
+     * <p>
+     * Notifies all the subscribed listeners but the sender that the session with the given id changed.
+     * </p>
+     *
+     * @param sender the listener of the publishing node, which is not notified
+     * @param id
+     */
+    void publish(Listener sender, SessionId<? extends Serializable> id);
+
+    /**
+     * @param listener
+     */
+    void subscribe(Listener listener);
+
+    /**
+     * @param listener
+     */
+    void unsubscribe(Listener listener);
+
+    /**
+     * <p>
+     * Receives the invalidations published by the other nodes.
+     * </p>
+     */
+    interface Listener {
+
+        /**
+         * @param id the id of the session that changed
+         */
+        void onInvalidation(SessionId<? extends Serializable> id);
+    }
+}
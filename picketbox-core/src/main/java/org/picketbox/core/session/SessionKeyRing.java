@@ -0,0 +1,188 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>
+ * The keys signing, and optionally encrypting, the tokens of a {@link StatelessSessionManager}. Each key has an identifier
+ * written in the tokens, so tokens issued before a rotation keep being verified with the key that signed them until it is
+ * retired. Keys are looked up by identifier in a table, and each thread reuses its own {@link Mac} and {@link Cipher}
+ * instances.
+ * </p>
+ */
+public class SessionKeyRing {
+
+    static final String MAC_ALGORITHM = "HmacSHA256";
+    static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+
+    private static final int MAX_KEYS = 256;
+    private static final int MIN_MAC_KEY_LENGTH = 16;
+
+    private volatile SessionKey[] keys = new SessionKey[MAX_KEYS];
+    private volatile SessionKey current;
+
+    /**
+     * @param keyId the identifier of the key, between 0 and 255
+     * @param macKey the HMAC-SHA256 key
+     */
+    public SessionKeyRing(int keyId, byte[] macKey) {
+        this(keyId, macKey, null);
+    }
+
+    /**
+     * @param keyId the identifier of the key, between 0 and 255
+     * @param macKey the HMAC-SHA256 key
+     * @param encryptionKey the AES key encrypting the tokens, or null to only sign them
+     */
+    public SessionKeyRing(int keyId, byte[] macKey, byte[] encryptionKey) {
+        rotate(keyId, macKey, encryptionKey);
+    }
+
+    /**
+     * <p>
+     * Adds a key and signs the new tokens with it. The previous keys still verify the tokens they signed.
+     * </p>
+     *
+     * @param keyId the identifier of the key, between 0 and 255
+     * @param macKey the HMAC-SHA256 key
+     * @param encryptionKey the AES key encrypting the tokens, or null to only sign them
+     */
+    public synchronized void rotate(int keyId, byte[] macKey, byte[] encryptionKey) {
+        if (keyId < 0 || keyId >= MAX_KEYS) {
+            throw new IllegalArgumentException("Key id must be between 0 and " + (MAX_KEYS - 1) + ": " + keyId);
+        }
+
+        if (macKey == null || macKey.length < MIN_MAC_KEY_LENGTH) {
+            throw new IllegalArgumentException("MAC key must have at least " + MIN_MAC_KEY_LENGTH + " bytes");
+        }
+
+        SessionKey key = new SessionKey(keyId, macKey, encryptionKey);
+        SessionKey[] keys = this.keys.clone();
+
+        keys[keyId] = key;
+
+        this.keys = keys;
+        this.current = key;
+    }
+
+    /**
+     * <p>
+     * Removes a key, the tokens it signed are no longer valid. The current key can not be retired.
+     * </p>
+     *
+     * @param keyId
+     */
+    public synchronized void retire(int keyId) {
+        if (this.current.id == keyId) {
+            throw new IllegalArgumentException("Can not retire the current key: " + keyId);
+        }
+
+        if (keyId >= 0 && keyId < MAX_KEYS) {
+            SessionKey[] keys = this.keys.clone();
+
+            keys[keyId] = null;
+
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * @return the identifier of the key signing the new tokens
+     */
+    public int getCurrentKeyId() {
+        return this.current.id;
+    }
+
+    SessionKey getCurrent() {
+        return this.current;
+    }
+
+    /**
+     * @param keyId
+     * @return the key with the given identifier, or null
+     */
+    SessionKey get(int keyId) {
+        return this.keys[keyId];
+    }
+
+    static final class SessionKey {
+
+        final int id;
+        final SecretKeySpec encryptionKey;
+        private final SecretKeySpec macKey;
+
+        private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac mac = Mac.getInstance(MAC_ALGORITHM);
+
+                    mac.init(macKey);
+
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+            @Override
+            protected Cipher initialValue() {
+                try {
+                    return Cipher.getInstance(CIPHER_ALGORITHM);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        SessionKey(int id, byte[] macKey, byte[] encryptionKey) {
+            this.id = id;
+            this.macKey = new SecretKeySpec(macKey, MAC_ALGORITHM);
+            this.encryptionKey = encryptionKey != null ? new SecretKeySpec(encryptionKey, "AES") : null;
+        }
+
+        byte[] sign(byte[] data, int offset, int length) {
+            Mac mac = this.macs.get();
+
+            mac.update(data, offset, length);
+
+            return mac.doFinal();
+        }
+
+        boolean encrypts() {
+            return this.encryptionKey != null;
+        }
+
+        Cipher cipher() {
+            return this.ciphers.get();
+        }
+    }
+}
@@ -23,6 +23,7 @@
 package org.picketbox.core.session;
 
 import java.io.Serializable;
+import java.util.List;
 
 import org.picketbox.core.PicketBoxLifecycle;
 import org.picketbox.core.PicketBoxSubject;
@@ -75,4 +76,33 @@ public interface SessionManager extends PicketBoxLifecycle {
      * @param session
      */
     void update(PicketBoxSession session);
+
+    /**
+     * <p>
+     * Writes the pending changes of a {@link PicketBoxSession} to the store, when they are not written on every update. Usually
+     * called at the end of a request.
+     * </p>
+     *
+     * @param session
+     */
+    void flush(PicketBoxSession session);
+
+    /**
+     * <p>
+     * Retrieves all the {@link PicketBoxSession} instances of a principal.
+     * </p>
+     *
+     * @param principalName
+     * @return the sessions of the principal, from the oldest to the newest
+     */
+    List<PicketBoxSession> retrieveByPrincipal(String principalName);
+
+    /**
+     * <p>
+     * Invalidates and removes all the {@link PicketBoxSession} instances of a principal.
+     * </p>
+     *
+     * @param principalName
+     */
+    void removeAllForPrincipal(String principalName);
 }
\ No newline at end of file
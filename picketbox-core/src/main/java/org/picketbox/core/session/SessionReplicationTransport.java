@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * <p>
+ * Carries the replication messages of {@link ReplicatedSessionStore} instances between the nodes of a cluster. Nodes are
+ * identified by name, and messages are opaque byte arrays delivered in the order they were sent to a given node.
+ * </p>
+ *
+ * @see InJvmSessionReplicationTransport
+ */
+public interface SessionReplicationTransport {
+
+    /**
+     * <p>
+     * Joins the cluster, the given receiver gets the messages sent to the node.
+     * </p>
+     *
+     * @param nodeId
+     * @param receiver
+     */
+    void connect(String nodeId, Receiver receiver);
+
+    /**
+     * <p>
+     * Leaves the cluster.
+     * </p>
+     *
+     * @param nodeId
+     */
+    void disconnect(String nodeId);
+
+    /**
+     * @return the names of the nodes currently connected, including the local one
+     */
+    Set<String> getMembers();
+
+    /**
+     * <p>
+     * Sends a message to a node.
+     * </p>
+     *
+     * @param sender the name of the sending node
+     * @param target the name of the receiving node
+     * @param message
+     * @throws IOException if the message could not be delivered
+     */
+    void send(String sender, String target, byte[] message) throws IOException;
+
+    /**
+     * <p>
+     * Receives the messages sent to a node.
+     * </p>
+     */
+    interface Receiver {
+
+        /**
+         * @param sender the name of the sending node
+         * @param message
+         */
+        void onMessage(String sender, byte[] message);
+    }
+}
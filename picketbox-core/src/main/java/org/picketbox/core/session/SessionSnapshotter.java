@@ -0,0 +1,434 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxLogger;
+import org.picketbox.core.PicketBoxMessages;
+import org.picketbox.core.session.PicketBoxSessionCodec.Decoder;
+import org.picketbox.core.session.PicketBoxSessionCodec.Encoder;
+import org.picketbox.core.util.StreamUtil;
+
+/**
+ * <p>
+ * Takes periodic snapshots of an {@link AbstractSessionStore} in the background and restores the latest one on start, so the
+ * sessions lost by a crash are bounded by the snapshot interval.
+ * </p>
+ * <p>
+ * Snapshots do not pause the threads using the store, see {@link AbstractSessionStore#snapshot(int, SessionBatchHandler)}.
+ * Sessions are streamed in the compact format of {@link PicketBoxSessionCodec} to several partition files, selected by the
+ * hash of the session id, and a snapshot becomes the latest one when its manifest is written, after all its partitions were
+ * synced to disk. On start the partitions of the latest snapshot are read in parallel, so restart time can be reduced by
+ * using more partitions.
+ * </p>
+ */
+public class SessionSnapshotter extends AbstractPicketBoxLifeCycle {
+
+    static final String MANIFEST_FILE = "sessions.snapshot";
+    static final String OLD_MANIFEST_FILE = MANIFEST_FILE + ".old";
+
+    private static final int MAGIC = 0x50425353;
+    private static final int VERSION = 1;
+    private static final int BATCH_SIZE = 256;
+
+    private final AbstractSessionStore store;
+    private final File directory;
+    private final long interval;
+    private final int partitions;
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+
+    private ScheduledExecutorService snapshotter;
+    private long generation;
+    private volatile long snapshotCount;
+    private volatile long lastSnapshotTime;
+    private volatile long lastSnapshotDuration;
+    private volatile int lastSnapshotSessions;
+
+    /**
+     * @param store the store to take snapshots of
+     * @param directory the directory where the snapshots are kept. It is created if it does not exist.
+     * @param interval the time between two snapshots, which bounds the sessions lost by a crash
+     * @param unit the unit of the interval
+     * @param partitions the number of files each snapshot is written to, and read from in parallel
+     */
+    public SessionSnapshotter(AbstractSessionStore store, String directory, long interval, TimeUnit unit, int partitions) {
+        if (store == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("store");
+        }
+
+        if (directory == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("directory");
+        }
+
+        if (unit == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("unit");
+        }
+
+        if (interval <= 0 || partitions <= 0) {
+            throw new IllegalArgumentException("Invalid snapshot configuration: interval " + interval + " " + unit + ", "
+                    + partitions + " partitions");
+        }
+
+        this.store = store;
+        this.directory = new File(directory);
+        this.interval = unit.toMillis(interval);
+        this.partitions = partitions;
+    }
+
+    /**
+     * <p>
+     * Takes a snapshot of the store now. Snapshots are serialized, a call made while another snapshot runs waits for it.
+     * </p>
+     *
+     * @return the number of sessions written
+     */
+    public synchronized int snapshot() {
+        long start = System.currentTimeMillis();
+        long generation = this.generation + 1;
+        final DataOutputStream[] outputs = new DataOutputStream[this.partitions];
+        final FileOutputStream[] files = new FileOutputStream[this.partitions];
+        final Encoder[] encoders = new Encoder[this.partitions];
+        final int[] counts = new int[this.partitions];
+
+        try {
+            for (int i = 0; i < this.partitions; i++) {
+                files[i] = new FileOutputStream(partitionFile(generation, i));
+                outputs[i] = new DataOutputStream(new BufferedOutputStream(files[i]));
+                encoders[i] = this.codec.newEncoder();
+
+                writeHeader(outputs[i], generation);
+            }
+
+            this.store.snapshot(BATCH_SIZE, new SessionBatchHandler() {
+                @Override
+                public void handle(List<PicketBoxSession> sessions) {
+                    try {
+                        for (int i = 0; i < sessions.size(); i++) {
+                            PicketBoxSession session = sessions.get(i);
+                            int partition = partitionOf(session.getId().getId());
+
+                            outputs[partition].writeBoolean(true);
+                            PicketBoxSessionCodec.writeVarLong(outputs[partition], session.version);
+                            encoders[partition].writeSession(outputs[partition], session);
+                            counts[partition]++;
+                        }
+                    } catch (IOException e) {
+                        throw PicketBoxMessages.MESSAGES.unableToStoreToFile(directory.getPath(), e);
+                    }
+                }
+            });
+
+            int count = 0;
+
+            for (int i = 0; i < this.partitions; i++) {
+                outputs[i].writeBoolean(false);
+                outputs[i].writeInt(counts[i]);
+                outputs[i].flush();
+                files[i].getFD().sync();
+                count += counts[i];
+            }
+
+            writeManifest(generation, count);
+
+            this.generation = generation;
+            this.snapshotCount++;
+            this.lastSnapshotTime = start;
+            this.lastSnapshotDuration = System.currentTimeMillis() - start;
+            this.lastSnapshotSessions = count;
+
+            return count;
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), e);
+        } finally {
+            for (int i = 0; i < this.partitions; i++) {
+                StreamUtil.safeClose(outputs[i] != null ? outputs[i] : files[i]);
+            }
+
+            deleteSnapshotsExcept(this.generation);
+        }
+    }
+
+    /**
+     * <p>
+     * Stores the sessions of the latest snapshot, reading its partitions in parallel. Sessions already in the store are kept.
+     * This is done when this snapshotter starts.
+     * </p>
+     *
+     * @return the number of sessions read
+     */
+    public synchronized int restore() {
+        File manifest = new File(this.directory, MANIFEST_FILE);
+
+        if (!manifest.exists()) {
+            // the manifest was being replaced when the process stopped
+            manifest = new File(this.directory, OLD_MANIFEST_FILE);
+
+            if (!manifest.exists()) {
+                return 0;
+            }
+        }
+
+        DataInputStream input = null;
+        final long generation;
+        int partitions;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Invalid snapshot manifest");
+            }
+
+            generation = input.readLong();
+            partitions = input.readInt();
+        } catch (IOException e) {
+            throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(manifest.getPath(), e);
+        } finally {
+            StreamUtil.safeClose(input);
+        }
+
+        this.generation = generation;
+
+        // the partitions of the snapshot may differ from the configured ones
+        int threads = Math.min(partitions, Runtime.getRuntime().availableProcessors());
+        ExecutorService readers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("PicketBox Session Restore"));
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(partitions);
+
+        try {
+            for (int i = 0; i < partitions; i++) {
+                final File file = partitionFile(generation, i);
+
+                results.add(readers.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return readPartition(file, generation);
+                    }
+                }));
+            }
+
+            int count = 0;
+
+            for (Future<Integer> result : results) {
+                count += result.get();
+            }
+
+            return count;
+        } catch (ExecutionException e) {
+            throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(this.directory.getPath(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw PicketBoxMessages.MESSAGES.unableToLoadFromFile(this.directory.getPath(), e);
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the number of snapshots taken so far
+     */
+    public long getSnapshotCount() {
+        return this.snapshotCount;
+    }
+
+    /**
+     * @return the time the last snapshot started, in milliseconds since the epoch, or 0 if none was taken
+     */
+    public long getLastSnapshotTime() {
+        return this.lastSnapshotTime;
+    }
+
+    /**
+     * @return how long the last snapshot took, in milliseconds
+     */
+    public long getLastSnapshotDuration() {
+        return this.lastSnapshotDuration;
+    }
+
+    /**
+     * @return the number of sessions written by the last snapshot
+     */
+    public int getLastSnapshotSessions() {
+        return this.lastSnapshotSessions;
+    }
+
+    @Override
+    protected void doStart() {
+        if (!this.directory.exists() && !this.directory.mkdirs()) {
+            throw PicketBoxMessages.MESSAGES.unableToStoreToFile(this.directory.getPath(), null);
+        }
+
+        restore();
+
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("PicketBox Session Snapshot"));
+        this.snapshotter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot();
+                } catch (RuntimeException e) {
+                    PicketBoxLogger.LOGGER.errorWritingSessionSnapshot(directory.getPath(), e);
+                }
+            }
+        }, this.interval, this.interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void doStop() {
+        this.snapshotter.shutdown();
+
+        try {
+            this.snapshotter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        snapshot();
+    }
+
+    private int readPartition(File file, long generation) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readLong() != generation) {
+                throw new IOException("Invalid snapshot partition " + file.getPath());
+            }
+
+            Decoder decoder = this.codec.newDecoder();
+            int count = 0;
+
+            while (input.readBoolean()) {
+                long version = PicketBoxSessionCodec.readVarLong(input);
+                PicketBoxSession session = decoder.readLazySession(input);
+
+                session.version = version;
+
+                this.store.storeIfAbsent(session);
+                count++;
+            }
+
+            if (input.readInt() != count) {
+                throw new IOException("Truncated snapshot partition " + file.getPath());
+            }
+
+            return count;
+        } finally {
+            StreamUtil.safeClose(input);
+        }
+    }
+
+    private void writeHeader(DataOutputStream output, long generation) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeLong(generation);
+    }
+
+    private void writeManifest(long generation, int count) throws IOException {
+        File tmpManifest = new File(this.directory, MANIFEST_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpManifest);
+        DataOutputStream output = null;
+
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(fos));
+
+            writeHeader(output, generation);
+            output.writeInt(this.partitions);
+            output.writeInt(count);
+            output.flush();
+            fos.getFD().sync();
+        } finally {
+            StreamUtil.safeClose(output != null ? output : fos);
+        }
+
+        File manifest = new File(this.directory, MANIFEST_FILE);
+
+        // replaces the previous manifest atomically where the platform renames over existing files
+        if (tmpManifest.renameTo(manifest)) {
+            return;
+        }
+
+        File oldManifest = new File(this.directory, OLD_MANIFEST_FILE);
+
+        // elsewhere the previous manifest is moved aside, and only deleted once the new one is in place
+        oldManifest.delete();
+
+        if (manifest.exists() && !manifest.renameTo(oldManifest)) {
+            throw new IOException("Could not rename " + manifest);
+        }
+
+        if (!tmpManifest.renameTo(manifest)) {
+            oldManifest.renameTo(manifest);
+            throw new IOException("Could not rename " + tmpManifest);
+        }
+
+        oldManifest.delete();
+    }
+
+    /**
+     * Deletes the partitions of the snapshots other than the given one, including the ones of a failed snapshot.
+     */
+    private void deleteSnapshotsExcept(long generation) {
+        File[] files = this.directory.listFiles();
+        String prefix = "sessions." + generation + ".";
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.getName().endsWith(".part") && !file.getName().startsWith(prefix)) {
+                file.delete();
+            }
+        }
+    }
+
+    private File partitionFile(long generation, int partition) {
+        return new File(this.directory, "sessions." + generation + "." + partition + ".part");
+    }
+
+    private int partitionOf(Serializable key) {
+        int hash = key.hashCode();
+
+        hash ^= (hash >>> 16);
+
+        return (hash & Integer.MAX_VALUE) % this.partitions;
+    }
+}
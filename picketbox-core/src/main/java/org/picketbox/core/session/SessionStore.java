@@ -23,6 +23,7 @@
 package org.picketbox.core.session;
 
 import java.io.Serializable;
+import java.util.Iterator;
 
 import org.picketbox.core.PicketBoxLifecycle;
 
@@ -53,6 +54,17 @@ public interface SessionStore extends PicketBoxLifecycle {
      */
     void store(PicketBoxSession session);
 
+    /**
+     * <p>
+     * Stores a {@link PicketBoxSession} unless a session with the same identifier is already stored, as a single atomic
+     * operation.
+     * </p>
+     *
+     * @param session
+     * @return true if the session was stored, false if its identifier is already taken
+     */
+    boolean storeIfAbsent(PicketBoxSession session);
+
     /**
      * <p>
      * Removes a {@link PicketBoxSession}.
@@ -71,4 +83,86 @@ public interface SessionStore extends PicketBoxLifecycle {
      */
     void update(PicketBoxSession session);
 
+    /**
+     * <p>
+     * Updates a {@link PicketBoxSession} only if its stored version is the expected one, as a single atomic operation. A
+     * concurrent update of the session through another copy makes it fail instead of being overwritten.
+     * </p>
+     *
+     * @param session
+     * @param expectedVersion the version of the stored session the given one derives from
+     * @return true if the session was updated, false if it was updated meanwhile or is not stored
+     */
+    boolean update(PicketBoxSession session, long expectedVersion);
+
+    /**
+     * <p>
+     * Updates a {@link PicketBoxSession} whose only changes since its stored version are the given attribute changes, only if
+     * its stored version is the expected one, as {@link #update(PicketBoxSession, long)} does. Stores writing sessions to a
+     * journal or to other nodes write the delta instead of the whole session.
+     * </p>
+     *
+     * @param session the session, with the changes already applied
+     * @param delta the attributes set or removed
+     * @param expectedVersion the version of the stored session the given one derives from
+     * @return true if the session was updated, false if it was updated meanwhile or is not stored
+     */
+    boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion);
+
+    /**
+     * <p>
+     * Returns the version of a stored {@link PicketBoxSession}, without loading it. A copy of the session whose
+     * {@link PicketBoxSession#getVersion()} differs is stale.
+     * </p>
+     *
+     * @param id
+     * @return the version, or -1 if the session is not stored
+     */
+    long getVersion(SessionId<? extends Serializable> id);
+
+    /**
+     * <p>
+     * Returns a cursor over the stored sessions. The cursor is weakly consistent: it never fails because of concurrent
+     * changes, returns the sessions present during the whole iteration, and may or may not return the sessions stored or
+     * removed meanwhile. The store is not copied as a whole and writers are not blocked while iterating.
+     * </p>
+     * <p>
+     * Removing a session through the cursor is the same as calling {@link #remove(SessionId)}.
+     * </p>
+     *
+     * @return
+     */
+    Iterator<PicketBoxSession> cursor();
+
+    /**
+     * <p>
+     * Returns the number of stored sessions. The value is an estimate if sessions are stored or removed concurrently.
+     * </p>
+     *
+     * @return
+     */
+    int count();
+
+    /**
+     * <p>
+     * Removes the sessions matching the given predicate, going through the store with a {@link #cursor()}. A session changed
+     * concurrently may be removed based on its previous state.
+     * </p>
+     *
+     * @param predicate
+     * @return the number of removed sessions
+     */
+    int removeIf(SessionPredicate predicate);
+
+    /**
+     * <p>
+     * Hands the stored sessions to the given handler in batches of at most the given size, going through the store with a
+     * {@link #cursor()}.
+     * </p>
+     *
+     * @param batchSize
+     * @param handler
+     */
+    void forEachBatch(int batchSize, SessionBatchHandler handler);
+
 }
\ No newline at end of file
@@ -0,0 +1,256 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxLogger;
+
+/**
+ * <p>
+ * Defers the writes of modified {@link PicketBoxSession} instances to the {@link SessionStore}.
+ * </p>
+ * <p>
+ * Instead of updating the store on every attribute change, sessions are marked dirty and written by a background flusher once
+ * per flush interval, in batches. All the changes made to a session between two flushes are coalesced into a single write of
+ * its latest state. A session can also be flushed right away, for example at the end of a request, with
+ * {@link #flush(PicketBoxSession)}.
+ * </p>
+ * <p>
+ * The number of sessions waiting to be written and the time the oldest of them waited in the last flush are exposed, so the
+ * write-behind lag can be monitored.
+ * </p>
+ */
+public class SessionWriteBehindManager extends AbstractPicketBoxLifeCycle {
+
+    private static final int BATCH_SIZE = 256;
+
+    private final SessionStore store;
+    private final long flushInterval;
+    private final ConcurrentMap<Serializable, DirtySession> dirtySessions = new ConcurrentHashMap<Serializable, DirtySession>();
+    private final AtomicLong markedUpdates = new AtomicLong();
+    private final AtomicLong flushedUpdates = new AtomicLong();
+    private volatile long lastFlushLag;
+    private ScheduledExecutorService flusher;
+
+    /**
+     * @param store the store the sessions are written to
+     * @param flushInterval the interval between two flushes, in milliseconds
+     */
+    public SessionWriteBehindManager(SessionStore store, long flushInterval) {
+        this.store = store;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * <p>
+     * Marks a session as modified. It is written to the store by the next flush.
+     * </p>
+     *
+     * @param session
+     */
+    void markDirty(PicketBoxSession session) {
+        checkIfStarted();
+
+        this.markedUpdates.incrementAndGet();
+
+        Serializable id = session.getId().getId();
+
+        // entries are replaced rather than modified, so a mark racing with the flush of the previous entry is never lost
+        for (;;) {
+            DirtySession dirty = this.dirtySessions.get(id);
+
+            if (dirty == null) {
+                if (this.dirtySessions.putIfAbsent(id, new DirtySession(session, System.currentTimeMillis())) == null) {
+                    return;
+                }
+            } else if (this.dirtySessions.replace(id, dirty, new DirtySession(session, dirty.dirtySince))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Checks if a session has changes that were not written to the store yet.
+     * </p>
+     *
+     * @param id
+     * @return
+     */
+    boolean isDirty(SessionId<? extends Serializable> id) {
+        return this.dirtySessions.containsKey(id.getId());
+    }
+
+    /**
+     * <p>
+     * Drops the pending changes of a session, which is being removed from the store.
+     * </p>
+     *
+     * @param id
+     */
+    void discard(SessionId<? extends Serializable> id) {
+        this.dirtySessions.remove(id.getId());
+    }
+
+    /**
+     * <p>
+     * Writes the pending changes of the given session to the store, if any.
+     * </p>
+     *
+     * @param session
+     */
+    public void flush(PicketBoxSession session) {
+        DirtySession dirty = this.dirtySessions.remove(session.getId().getId());
+
+        if (dirty != null) {
+            write(dirty);
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the pending changes of all sessions to the store.
+     * </p>
+     */
+    public void flush() {
+        long now = System.currentTimeMillis();
+        long lag = 0;
+        List<DirtySession> batch = new ArrayList<DirtySession>(BATCH_SIZE);
+        for (Entry<Serializable, DirtySession> entry : this.dirtySessions.entrySet()) {
+            DirtySession dirty = entry.getValue();
+
+            // sessions marked dirty after this point are written by the next flush
+            if (!this.dirtySessions.remove(entry.getKey(), dirty)) {
+                continue;
+            }
+
+            batch.add(dirty);
+            lag = Math.max(lag, now - dirty.dirtySince);
+
+            if (batch.size() == BATCH_SIZE) {
+                writeBatch(batch);
+            }
+        }
+
+        writeBatch(batch);
+
+        this.lastFlushLag = lag;
+    }
+
+    /**
+     * @return the number of sessions waiting to be written to the store
+     */
+    public int getQueueDepth() {
+        return this.dirtySessions.size();
+    }
+
+    /**
+     * @return how long the oldest session written by the last flush waited, in milliseconds
+     */
+    public long getLastFlushLag() {
+        return this.lastFlushLag;
+    }
+
+    /**
+     * @return the number of session changes marked so far
+     */
+    public long getMarkedUpdates() {
+        return this.markedUpdates.get();
+    }
+
+    /**
+     * @return the number of writes issued to the store so far. The difference with {@link #getMarkedUpdates()} is the number
+     *         of writes saved by coalescing.
+     */
+    public long getFlushedUpdates() {
+        return this.flushedUpdates.get();
+    }
+
+    @Override
+    protected void doStart() {
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("PicketBox Session Write-Behind"));
+        this.flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, this.flushInterval, this.flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void doStop() {
+        this.flusher.shutdown();
+
+        try {
+            this.flusher.awaitTermination(this.flushInterval + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+    }
+
+    private void writeBatch(List<DirtySession> batch) {
+        for (DirtySession dirty : batch) {
+            write(dirty);
+        }
+
+        batch.clear();
+    }
+
+    private void write(DirtySession dirty) {
+        PicketBoxSession session = dirty.session;
+
+        try {
+            this.store.update(session);
+            this.flushedUpdates.incrementAndGet();
+        } catch (RuntimeException e) {
+            PicketBoxLogger.LOGGER.errorFlushingSession(String.valueOf(session.getId().getId()), e);
+
+            // retried by the next flush, unless the session was marked dirty again in the meantime
+            this.dirtySessions.putIfAbsent(session.getId().getId(), dirty);
+        }
+    }
+
+    private static class DirtySession {
+
+        private final long dirtySince;
+        private final PicketBoxSession session;
+
+        DirtySession(PicketBoxSession session, long dirtySince) {
+            this.session = session;
+            this.dirtySince = dirtySince;
+        }
+    }
+}
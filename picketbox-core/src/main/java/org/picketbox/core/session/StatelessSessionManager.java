@@ -0,0 +1,447 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxPrincipal;
+import org.picketbox.core.PicketBoxSubject;
+
+/**
+ * <p>
+ * A {@link SessionManager} keeping no server side state. The identifier of a session is a signed token carrying the principal,
+ * roles, issue time and expiration of the session, so retrieving a session is a signature check and a decode without any
+ * {@link SessionStore} access. Tokens are signed with HMAC-SHA256 and, when the current key of the {@link SessionKeyRing} has
+ * an encryption key, encrypted with AES-CBC before being signed.
+ * </p>
+ * <p>
+ * Session attributes are not part of the token and only live as long as the retrieved instance. Removed sessions are kept in
+ * a small in-memory revocation list until their tokens expire.
+ * </p>
+ */
+public class StatelessSessionManager extends AbstractPicketBoxLifeCycle implements SessionManager {
+
+    static final int VERSION = 1;
+
+    private static final int ENCRYPTED = 1;
+    private static final int HEADER_LENGTH = 3;
+    private static final int IV_LENGTH = 16;
+
+    /**
+     * HMAC-SHA256 truncated to 128 bits, which keeps the tokens short
+     */
+    private static final int MAC_LENGTH = 16;
+
+    private final SessionKeyRing keyRing;
+    private final long timeToLive;
+    private final SessionClock clock;
+    private final List<PicketBoxSessionListener> listeners;
+    private volatile PicketBoxSessionListenerRegistry listenerRegistry;
+    private final ConcurrentMap<Long, Long> revokedTokens = new ConcurrentHashMap<Long, Long>();
+    private final ConcurrentMap<String, Long> revokedPrincipals = new ConcurrentHashMap<String, Long>();
+    private volatile long nextPurge;
+
+    private final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    /**
+     * @param keyRing the keys signing the tokens
+     * @param timeToLive how long a token is valid
+     * @param unit
+     */
+    public StatelessSessionManager(SessionKeyRing keyRing, long timeToLive, TimeUnit unit) {
+        this(keyRing, timeToLive, unit, new ArrayList<PicketBoxSessionListener>());
+    }
+
+    /**
+     * @param keyRing the keys signing the tokens
+     * @param timeToLive how long a token is valid
+     * @param unit
+     * @param listeners the listeners added to the sessions
+     */
+    public StatelessSessionManager(SessionKeyRing keyRing, long timeToLive, TimeUnit unit,
+            List<PicketBoxSessionListener> listeners) {
+        this(keyRing, timeToLive, unit, listeners, SessionClock.SYSTEM);
+    }
+
+    /**
+     * @param keyRing the keys signing the tokens
+     * @param timeToLive how long a token is valid
+     * @param unit
+     * @param listeners the listeners added to the sessions
+     * @param clock the clock issuing and expiring the tokens
+     */
+    public StatelessSessionManager(SessionKeyRing keyRing, long timeToLive, TimeUnit unit,
+            List<PicketBoxSessionListener> listeners, SessionClock clock) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive: " + timeToLive);
+        }
+
+        this.keyRing = keyRing;
+        this.timeToLive = unit.toMillis(timeToLive);
+        this.listeners = listeners;
+        this.clock = clock;
+        this.listenerRegistry = new PicketBoxSessionListenerRegistry(listeners);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionManager#create(org.picketbox.core.PicketBoxSubject)
+     */
+    @Override
+    public PicketBoxSession create(PicketBoxSubject authenticatedSubject) {
+        if (authenticatedSubject.getUser() == null) {
+            throw new IllegalArgumentException("Subject has no principal. Session can not be created.");
+        }
+
+        long now = this.clock.currentTimeMillis();
+        String token;
+
+        try {
+            token = createToken(authenticatedSubject, this.random.get().nextLong(), now, now + this.timeToLive);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId(token), authenticatedSubject, now);
+
+        PicketBoxSessionListenerRegistry listenerRegistry = this.listenerRegistry;
+        PicketBoxSessionListener[] listeners = listenerRegistry.getListeners();
+
+        session.setListenerRegistry(listenerRegistry);
+
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onCreate(session);
+        }
+
+        authenticatedSubject.setSession(session);
+
+        return session;
+    }
+
+    /**
+     * <p>
+     * Verifies the token of the given identifier and rebuilds its session.
+     * </p>
+     *
+     * @return the session, or null if the token is not valid, expired or revoked
+     */
+    @Override
+    public PicketBoxSession retrieve(SessionId<? extends Serializable> id) {
+        Token token = verify(id);
+
+        if (token == null || token.expires <= this.clock.currentTimeMillis() || isRevoked(token)) {
+            return null;
+        }
+
+        PicketBoxSubject subject = RestoredSubjects.create(new PicketBoxPrincipal(token.principal), token.roles, true);
+
+        PicketBoxSession session = new PicketBoxSession(id, subject, token.issued);
+
+        session.setListenerRegistry(this.listenerRegistry);
+
+        subject.setSession(session);
+
+        return session;
+    }
+
+    /**
+     * <p>
+     * Revokes the token of the given session until it expires.
+     * </p>
+     */
+    @Override
+    public void remove(PicketBoxSession session) {
+        if (session == null) {
+            return;
+        }
+
+        Token token = verify(session.getId());
+
+        if (token != null) {
+            this.revokedTokens.put(token.tokenId, token.expires);
+            purge();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionManager#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        // nothing to write, the token is immutable
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionManager#flush(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void flush(PicketBoxSession session) {
+    }
+
+    /**
+     * <p>
+     * Sessions are not tracked, so no session is ever returned.
+     * </p>
+     */
+    @Override
+    public List<PicketBoxSession> retrieveByPrincipal(String principalName) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * <p>
+     * Revokes all the tokens of a principal issued so far.
+     * </p>
+     */
+    @Override
+    public void removeAllForPrincipal(String principalName) {
+        this.revokedPrincipals.put(principalName, this.clock.currentTimeMillis());
+        purge();
+    }
+
+    /**
+     * @return the number of revoked tokens and principals that did not expire yet
+     */
+    public int getRevocationCount() {
+        return this.revokedTokens.size() + this.revokedPrincipals.size();
+    }
+
+    @Override
+    protected void doStart() {
+        // picks up the listeners configured after this manager was created
+        this.listenerRegistry = new PicketBoxSessionListenerRegistry(this.listeners);
+    }
+
+    @Override
+    protected void doStop() {
+        this.revokedTokens.clear();
+        this.revokedPrincipals.clear();
+    }
+
+    private String createToken(PicketBoxSubject subject, long tokenId, long issued, long expires) throws IOException,
+            GeneralSecurityException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        DataOutputStream output = new DataOutputStream(body);
+
+        output.writeLong(tokenId);
+        PicketBoxSessionCodec.writeVarLong(output, issued);
+        PicketBoxSessionCodec.writeVarLong(output, expires - issued);
+        PicketBoxSessionCodec.writeString(output, subject.getUser().getName());
+
+        List<String> roles = subject.getRoleNames();
+
+        PicketBoxSessionCodec.writeVarLong(output, roles.size());
+
+        for (String role : roles) {
+            PicketBoxSessionCodec.writeString(output, role);
+        }
+
+        SessionKeyRing.SessionKey key = this.keyRing.getCurrent();
+        ByteArrayOutputStream token = new ByteArrayOutputStream(body.size() + 64);
+
+        token.write(VERSION);
+        token.write(key.id);
+
+        if (key.encrypts()) {
+            byte[] iv = new byte[IV_LENGTH];
+
+            this.random.get().nextBytes(iv);
+
+            Cipher cipher = key.cipher();
+
+            cipher.init(Cipher.ENCRYPT_MODE, key.encryptionKey, new IvParameterSpec(iv));
+
+            token.write(ENCRYPTED);
+            token.write(iv);
+            token.write(cipher.doFinal(body.toByteArray()));
+        } else {
+            token.write(0);
+            body.writeTo(token);
+        }
+
+        // encrypt-then-MAC, the signature covers the header, the IV and the cipher text
+        byte[] signed = token.toByteArray();
+
+        token.write(key.sign(signed, 0, signed.length), 0, MAC_LENGTH);
+
+        return SecureSessionIdGenerator.toBase64(token.toByteArray());
+    }
+
+    /**
+     * @param id
+     * @return the content of a token whose signature is valid, or null
+     */
+    private Token verify(SessionId<? extends Serializable> id) {
+        if (id == null || !(id.getId() instanceof String)) {
+            return null;
+        }
+
+        byte[] token = SecureSessionIdGenerator.fromBase64((String) id.getId());
+
+        if (token == null || token.length < HEADER_LENGTH + MAC_LENGTH || token[0] != VERSION) {
+            return null;
+        }
+
+        SessionKeyRing.SessionKey key = this.keyRing.get(token[1] & 0xFF);
+        boolean encrypted = token[2] == ENCRYPTED;
+
+        if (key == null || encrypted != key.encrypts() || (!encrypted && token[2] != 0)) {
+            return null;
+        }
+
+        int signedLength = token.length - MAC_LENGTH;
+        byte[] mac = key.sign(token, 0, signedLength);
+        int difference = 0;
+
+        // compares the whole signature so the time taken does not tell how many bytes matched
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            difference |= mac[i] ^ token[signedLength + i];
+        }
+
+        if (difference != 0) {
+            return null;
+        }
+
+        try {
+            byte[] body;
+            int offset;
+            int length;
+
+            if (encrypted) {
+                if (signedLength < HEADER_LENGTH + IV_LENGTH) {
+                    return null;
+                }
+
+                Cipher cipher = key.cipher();
+
+                cipher.init(Cipher.DECRYPT_MODE, key.encryptionKey, new IvParameterSpec(token, HEADER_LENGTH, IV_LENGTH));
+
+                body = cipher.doFinal(token, HEADER_LENGTH + IV_LENGTH, signedLength - HEADER_LENGTH - IV_LENGTH);
+                offset = 0;
+                length = body.length;
+            } else {
+                body = token;
+                offset = HEADER_LENGTH;
+                length = signedLength - HEADER_LENGTH;
+            }
+
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(body, offset, length));
+            Token content = new Token();
+
+            content.tokenId = input.readLong();
+            content.issued = PicketBoxSessionCodec.readVarLong(input);
+            content.expires = content.issued + PicketBoxSessionCodec.readVarLong(input);
+            content.principal = PicketBoxSessionCodec.readString(input);
+
+            int roleCount = (int) PicketBoxSessionCodec.readVarLong(input);
+
+            content.roles = new ArrayList<String>(roleCount);
+
+            for (int i = 0; i < roleCount; i++) {
+                content.roles.add(PicketBoxSessionCodec.readString(input));
+            }
+
+            return content;
+        } catch (GeneralSecurityException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private boolean isRevoked(Token token) {
+        if (this.revokedTokens.containsKey(token.tokenId)) {
+            return true;
+        }
+
+        Long revokedAt = this.revokedPrincipals.get(token.principal);
+
+        return revokedAt != null && token.issued <= revokedAt;
+    }
+
+    /**
+     * <p>
+     * Drops the revocations of tokens that expired anyway, at most once per token lifetime.
+     * </p>
+     */
+    private void purge() {
+        long now = this.clock.currentTimeMillis();
+
+        if (now < this.nextPurge) {
+            return;
+        }
+
+        this.nextPurge = now + this.timeToLive;
+
+        for (Iterator<Map.Entry<Long, Long>> iterator = this.revokedTokens.entrySet().iterator(); iterator.hasNext();) {
+            if (iterator.next().getValue() <= now) {
+                iterator.remove();
+            }
+        }
+
+        for (Iterator<Map.Entry<String, Long>> iterator = this.revokedPrincipals.entrySet().iterator(); iterator.hasNext();) {
+            if (iterator.next().getValue() + this.timeToLive <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Token {
+        long tokenId;
+        long issued;
+        long expires;
+        String principal;
+        List<String> roles;
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.core.session;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.PicketBoxLogger;
+import org.picketbox.core.PicketBoxMessages;
+
+/**
+ * <p>
+ * A {@link SessionStore} keeping the sessions in use on the heap and passivating idle sessions to a local disk tier, so heap
+ * residency tracks the working set instead of the total number of sessions.
+ * </p>
+ * <p>
+ * A background task passivates the sessions that were not accessed within the idle time, and then the least recently accessed
+ * sessions while there are more than the maximum number of active sessions in memory. Passivated sessions are appended to a
+ * data file in the compact format of {@link PicketBoxSessionCodec} and located through an index, see {@link SessionDiskTier}.
+ * Loading or updating a passivated session activates it: it is moved back to memory and counts as an access.
+ * </p>
+ * <p>
+ * Moves between the tiers and writes to a session are serialized on a lock striped by session id, loads of active sessions do
+ * not lock. On stop every active session is passivated and the index is written, so the sessions are activated on demand
+ * after the next start.
+ * </p>
+ */
+public class TieredSessionStore extends AbstractPicketBoxLifeCycle implements SessionStore {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final InMemorySessionStore memory = new InMemorySessionStore();
+    private final SessionDiskTier disk;
+    private final String directory;
+    private final long idleTime;
+    private final int maxActiveSessions;
+    private final ReentrantLock[] locks;
+    private final AtomicLong passivations = new AtomicLong();
+    private final AtomicLong activations = new AtomicLong();
+
+    private long passivationInterval;
+    private ScheduledExecutorService passivator;
+
+    /**
+     * @param directory the directory of the disk tier. It is created if it does not exist.
+     * @param idleTime the time after which a session that was not accessed is passivated
+     * @param unit the unit of the idle time
+     * @param maxActiveSessions the maximum number of sessions kept in memory, or 0 for no limit
+     */
+    public TieredSessionStore(String directory, long idleTime, TimeUnit unit, int maxActiveSessions) {
+        if (directory == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("directory");
+        }
+
+        if (unit == null) {
+            throw PicketBoxMessages.MESSAGES.invalidNullArgument("unit");
+        }
+
+        if (idleTime <= 0 || maxActiveSessions < 0) {
+            throw new IllegalArgumentException("Invalid tier configuration: idle time " + idleTime + " " + unit
+                    + ", maximum active sessions " + maxActiveSessions);
+        }
+
+        this.directory = directory;
+        this.disk = new SessionDiskTier(new File(directory));
+        this.idleTime = unit.toMillis(idleTime);
+        this.maxActiveSessions = maxActiveSessions;
+        this.passivationInterval = Math.max(100, Math.min(this.idleTime / 2, 10000));
+        this.locks = new ReentrantLock[LOCK_STRIPES];
+
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * <p>
+     * Sets how often, in milliseconds, idle sessions are passivated. Defaults to half the idle time, between 100ms and 10s.
+     * </p>
+     *
+     * @param passivationInterval
+     */
+    public void setPassivationInterval(long passivationInterval) {
+        this.passivationInterval = passivationInterval;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#load(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public PicketBoxSession load(SessionId<? extends Serializable> key) {
+        PicketBoxSession session = this.memory.load(key);
+
+        if (session != null || !this.disk.contains(key.getId())) {
+            return session;
+        }
+
+        ReentrantLock lock = lockFor(key.getId());
+
+        lock.lock();
+
+        try {
+            session = this.memory.load(key);
+
+            if (session == null) {
+                session = this.disk.read(key.getId());
+
+                if (session != null) {
+                    session.touch();
+                    activate(session);
+                }
+            }
+
+            return session;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void store(PicketBoxSession session) {
+        if (!storeIfAbsent(session) && this.memory.load(session.getId()) != session) {
+            throw PicketBoxMessages.MESSAGES.duplicateSessionId(session.getId().getId());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#storeIfAbsent(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public boolean storeIfAbsent(PicketBoxSession session) {
+        checkIfStarted();
+
+        ReentrantLock lock = lockFor(session.getId().getId());
+
+        lock.lock();
+
+        try {
+            return !this.disk.contains(session.getId().getId()) && this.memory.storeIfAbsent(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        ReentrantLock lock = lockFor(id.getId());
+
+        lock.lock();
+
+        try {
+            this.memory.remove(id);
+            this.disk.remove(id.getId());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        Serializable key = session.getId().getId();
+        ReentrantLock lock = lockFor(key);
+
+        lock.lock();
+
+        try {
+            if (!this.memory.replace(session)) {
+                long version = this.disk.getVersion(key);
+
+                if (version >= 0) {
+                    session.version = version + 1;
+                    activate(session);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, long expectedVersion) {
+        Serializable key = session.getId().getId();
+        ReentrantLock lock = lockFor(key);
+
+        lock.lock();
+
+        try {
+            long version = this.disk.getVersion(key);
+
+            if (version < 0 || version != expectedVersion) {
+                return this.memory.replace(session, expectedVersion);
+            }
+
+            session.version = expectedVersion + 1;
+            activate(session);
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession,
+     * org.picketbox.core.session.SessionDelta, long)
+     */
+    @Override
+    public boolean update(PicketBoxSession session, SessionDelta delta, long expectedVersion) {
+        // active sessions are kept as is, and passivated ones are activated with the given session
+        return update(session, expectedVersion);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#getVersion(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public long getVersion(SessionId<? extends Serializable> id) {
+        long version = this.memory.getVersion(id);
+
+        return version >= 0 ? version : this.disk.getVersion(id.getId());
+    }
+
+    /**
+     * <p>
+     * Returns a cursor over the active sessions and then over the passivated ones. Passivated sessions are read from the disk
+     * tier without being activated, so changes to them must be written back with {@link #update(PicketBoxSession)}.
+     * </p>
+     */
+    @Override
+    public Iterator<PicketBoxSession> cursor() {
+        checkIfStarted();
+
+        final Iterator<PicketBoxSession> active = this.memory.cursor();
+        final Iterator<Serializable> passivated = this.disk.keys();
+
+        return new SessionCursor(this) {
+            @Override
+            protected PicketBoxSession advance() {
+                if (active.hasNext()) {
+                    return active.next();
+                }
+
+                while (passivated.hasNext()) {
+                    PicketBoxSession session = disk.read(passivated.next());
+
+                    if (session != null) {
+                        return session;
+                    }
+                }
+
+                return null;
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#count()
+     */
+    @Override
+    public int count() {
+        return this.memory.count() + this.disk.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#removeIf(org.picketbox.core.session.SessionPredicate)
+     */
+    @Override
+    public int removeIf(SessionPredicate predicate) {
+        return SessionCursor.removeIf(this, predicate);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#forEachBatch(int,
+     * org.picketbox.core.session.SessionBatchHandler)
+     */
+    @Override
+    public void forEachBatch(int batchSize, SessionBatchHandler handler) {
+        SessionCursor.forEachBatch(this, batchSize, handler);
+    }
+
+    /**
+     * <p>
+     * Passivates the sessions that were not accessed within the idle time, and then the least recently accessed sessions
+     * while there are more active sessions than allowed. This is done periodically in the background.
+     * </p>
+     *
+     * @return the number of passivated sessions
+     */
+    public int passivateIdleSessions() {
+        checkIfStarted();
+
+        long idleSince = System.currentTimeMillis() - this.idleTime;
+        int passivated = 0;
+
+        for (Iterator<PicketBoxSession> cursor = this.memory.cursor(); cursor.hasNext();) {
+            PicketBoxSession session = cursor.next();
+
+            if (session.getLastAccessedTime() <= idleSince && passivate(session, idleSince)) {
+                passivated++;
+            }
+        }
+
+        if (this.maxActiveSessions > 0) {
+            passivated += passivateLeastRecentlyAccessed();
+        }
+
+        this.disk.compact();
+
+        return passivated;
+    }
+
+    /**
+     * @return the number of sessions in memory
+     */
+    public int getActiveSessionCount() {
+        return this.memory.count();
+    }
+
+    /**
+     * @return the number of sessions in the disk tier
+     */
+    public int getPassivatedSessionCount() {
+        return this.disk.size();
+    }
+
+    /**
+     * @return the number of sessions moved to the disk tier so far
+     */
+    public long getPassivations() {
+        return this.passivations.get();
+    }
+
+    /**
+     * @return the number of sessions moved back to memory so far
+     */
+    public long getActivations() {
+        return this.activations.get();
+    }
+
+    /**
+     * @return the size of the data file of the disk tier, in bytes, including the space not reclaimed yet
+     */
+    public long getDiskSize() {
+        return this.disk.getFileSize();
+    }
+
+    @Override
+    protected void doStart() {
+        this.disk.open();
+        this.memory.start();
+        this.passivator = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("PicketBox Session Passivator"));
+        this.passivator.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    passivateIdleSessions();
+                } catch (RuntimeException e) {
+                    PicketBoxLogger.LOGGER.errorPassivatingSessions(directory, e);
+                }
+            }
+        }, this.passivationInterval, this.passivationInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void doStop() {
+        this.passivator.shutdown();
+
+        try {
+            this.passivator.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Iterator<PicketBoxSession> cursor = this.memory.cursor(); cursor.hasNext();) {
+            passivate(cursor.next(), Long.MAX_VALUE);
+        }
+
+        this.memory.stop();
+        this.disk.close();
+    }
+
+    /**
+     * Passivates the surplus of active sessions, starting with the least recently accessed ones.
+     */
+    private int passivateLeastRecentlyAccessed() {
+        int active = this.memory.count();
+        int excess = active - this.maxActiveSessions;
+
+        if (excess <= 0) {
+            return 0;
+        }
+
+        long[] accessTimes = new long[active];
+        int count = 0;
+
+        for (Iterator<PicketBoxSession> cursor = this.memory.cursor(); cursor.hasNext() && count < active;) {
+            accessTimes[count++] = cursor.next().getLastAccessedTime();
+        }
+
+        Arrays.sort(accessTimes, 0, count);
+
+        long idleSince = accessTimes[Math.min(excess, count) - 1];
+        int passivated = 0;
+
+        for (Iterator<PicketBoxSession> cursor = this.memory.cursor(); cursor.hasNext() && passivated < excess;) {
+            PicketBoxSession session = cursor.next();
+
+            if (session.getLastAccessedTime() <= idleSince && passivate(session, idleSince)) {
+                passivated++;
+            }
+        }
+
+        return passivated;
+    }
+
+    /**
+     * Moves a session to the disk tier, unless it was replaced or accessed since it was found idle.
+     */
+    private boolean passivate(PicketBoxSession session, long idleSince) {
+        Serializable key = session.getId().getId();
+        ReentrantLock lock = lockFor(key);
+
+        lock.lock();
+
+        try {
+            if (this.memory.sessions.get(key) != session || session.getLastAccessedTime() > idleSince) {
+                return false;
+            }
+
+            this.disk.write(session);
+            this.memory.sessions.remove(key, session);
+            this.passivations.incrementAndGet();
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves a session to memory. Only called with the lock of the session held.
+     */
+    private void activate(PicketBoxSession session) {
+        this.memory.sessions.put(session.getId().getId(), session);
+        this.disk.remove(session.getId().getId());
+        this.activations.incrementAndGet();
+    }
+
+    private ReentrantLock lockFor(Serializable key) {
+        int hash = key.hashCode();
+
+        hash ^= (hash >>> 16);
+
+        return this.locks[hash & (this.locks.length - 1)];
+    }
+}
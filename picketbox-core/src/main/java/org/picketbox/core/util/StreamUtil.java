@@ -21,6 +21,7 @@
  */
 package org.picketbox.core.util;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -70,4 +71,13 @@ public class StreamUtil {
         } catch (IOException e) {
         }
     }
+
+    public static void safeClose(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,209 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.session.AsyncSessionEventDispatcher;
+import org.picketbox.core.session.AsyncSessionEventDispatcher.OverflowPolicy;
+import org.picketbox.core.session.DefaultSessionManager;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.PicketBoxSessionListener;
+import org.picketbox.core.session.PicketBoxSessionListenerRegistry;
+
+/**
+ * <p>
+ * Tests the {@link AsyncSessionEventDispatcher}.
+ * </p>
+ */
+public class AsyncSessionEventDispatcherTestCase {
+
+    private static final int SESSIONS = 16;
+    private static final int UPDATES = 200;
+
+    /**
+     * <p>
+     * Tests if the events of each session are delivered in order, off the threads raising them, while many sessions are
+     * changed concurrently.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPerSessionOrdering() throws Exception {
+        final Map<PicketBoxSession, List<Object>> received = new ConcurrentHashMap<PicketBoxSession, List<Object>>();
+        final Map<String, Boolean> threads = new ConcurrentHashMap<String, Boolean>();
+
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().asyncListeners(4, 64, OverflowPolicy.BLOCK).listener(new RecordingListener() {
+            @Override
+            public void onSetAttribute(PicketBoxSession session, String key, Object value) {
+                // each session is only ever handled by one thread
+                received.get(session).add(value);
+                threads.put(Thread.currentThread().getName(), Boolean.TRUE);
+            }
+        });
+
+        final DefaultSessionManager sessionManager = new DefaultSessionManager(builder.build());
+
+        sessionManager.start();
+
+        Thread[] writers = new Thread[SESSIONS];
+
+        for (int i = 0; i < SESSIONS; i++) {
+            final PicketBoxSession session = sessionManager.create(new AuthenticatedSubject());
+
+            received.put(session, new ArrayList<Object>());
+
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < UPDATES; j++) {
+                            session.setAttribute("counter", j);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            writers[i].start();
+        }
+
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        AsyncSessionEventDispatcher dispatcher = sessionManager.getEventDispatcher();
+
+        // stopping delivers the pending events
+        sessionManager.stop();
+
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(SESSIONS * UPDATES + SESSIONS, dispatcher.getDispatchedEvents());
+        assertTrue(dispatcher.getMaxDispatchLatency(TimeUnit.NANOSECONDS) > 0);
+        assertFalse(threads.containsKey(Thread.currentThread().getName()));
+
+        for (List<Object> values : received.values()) {
+            assertEquals(UPDATES, values.size());
+
+            for (int j = 0; j < UPDATES; j++) {
+                assertEquals(j, values.get(j));
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the events are dropped and counted when the queue is full and the {@link OverflowPolicy#DISCARD} policy applies.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDiscardWhenFull() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        PicketBoxSessionListenerRegistry listeners = new PicketBoxSessionListenerRegistry();
+
+        listeners.add(new RecordingListener() {
+            @Override
+            public void onSetAttribute(PicketBoxSession session, String key, Object value) {
+                entered.countDown();
+
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        AsyncSessionEventDispatcher dispatcher = new AsyncSessionEventDispatcher(listeners, 1, 1, OverflowPolicy.DISCARD);
+
+        dispatcher.start();
+
+        PicketBoxSession session = new PicketBoxSession();
+
+        // the first event blocks the thread, the second one fills the queue
+        dispatcher.onSetAttribute(session, "counter", 1);
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        dispatcher.onSetAttribute(session, "counter", 2);
+        dispatcher.onSetAttribute(session, "counter", 3);
+
+        assertEquals(1, dispatcher.getQueueDepth());
+        assertEquals(1, dispatcher.getDiscardedEvents());
+
+        release.countDown();
+        dispatcher.stop();
+
+        assertEquals(2, dispatcher.getDispatchedEvents());
+    }
+
+    private static class RecordingListener implements PicketBoxSessionListener {
+
+        @Override
+        public void onCreate(PicketBoxSession session) {
+        }
+
+        @Override
+        public void onSetAttribute(PicketBoxSession session, String key, Object value) {
+        }
+
+        @Override
+        public void onInvalidate(PicketBoxSession session) {
+        }
+
+        @Override
+        public void onExpiration(PicketBoxSession session) {
+        }
+
+        @Override
+        public void onGetAttribute(PicketBoxSession picketBoxSession) {
+        }
+    }
+
+    private static class AuthenticatedSubject extends PicketBoxSubject {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean isAuthenticated() {
+            return true;
+        }
+    }
+}
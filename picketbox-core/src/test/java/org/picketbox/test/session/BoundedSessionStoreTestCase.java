@@ -0,0 +1,173 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.config.PicketBoxConfiguration;
+import org.picketbox.core.session.BoundedSessionStore;
+import org.picketbox.core.session.BoundedSessionStore.EvictionPolicy;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.DefaultSessionManager;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.PicketBoxSessionListener;
+import org.picketbox.core.session.SessionManager;
+
+/**
+ * <p>
+ * Tests the {@link BoundedSessionStore}.
+ * </p>
+ */
+public class BoundedSessionStoreTestCase {
+
+    @Test
+    public void testLeastRecentlyUsedSessionIsEvicted() throws Exception {
+        ExpirationCounter counter = new ExpirationCounter();
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().boundedSessionStore(10, 0, EvictionPolicy.LRU).listener(counter);
+
+        PicketBoxConfiguration configuration = builder.build();
+        BoundedSessionStore store = (BoundedSessionStore) configuration.getSessionManager().getStore();
+        SessionManager sessionManager = new DefaultSessionManager(configuration);
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        sessionManager.start();
+
+        for (int i = 0; i < 10; i++) {
+            sessions.add(sessionManager.create(new PicketBoxSubject()));
+        }
+
+        // makes the first session the most recently used
+        assertNotNull(sessionManager.retrieve(sessions.get(0).getId()));
+        sessions.get(0).setAttribute("attribute", "value");
+
+        sessionManager.create(new PicketBoxSubject());
+
+        assertEquals(10, store.size());
+        assertEquals(1, store.getEvictionCount());
+        assertEquals(1, counter.expirations);
+        assertNotNull(sessionManager.retrieve(sessions.get(0).getId()));
+        assertNull(sessionManager.retrieve(sessions.get(1).getId()));
+        assertFalse(sessions.get(1).isValid());
+
+        sessionManager.stop();
+    }
+
+    @Test
+    public void testFrequentlyUsedSessionsSurviveAFlood() throws Exception {
+        BoundedSessionStore store = new BoundedSessionStore(100, 0, EvictionPolicy.TINY_LFU);
+        List<PicketBoxSession> active = new ArrayList<PicketBoxSession>();
+
+        store.start();
+
+        for (int i = 0; i < 50; i++) {
+            PicketBoxSession session = createSession();
+
+            store.store(session);
+            active.add(session);
+        }
+
+        for (int round = 0; round < 5; round++) {
+            for (PicketBoxSession session : active) {
+                store.update(session);
+            }
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            store.store(createSession());
+        }
+
+        int survivors = 0;
+
+        for (PicketBoxSession session : active) {
+            if (store.load(session.getId()) != null) {
+                survivors++;
+            }
+        }
+
+        assertEquals(100, store.size());
+        assertTrue("only " + survivors + " active sessions survived", survivors >= 45);
+
+        store.stop();
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        BoundedSessionStore store = new BoundedSessionStore(0, 10000, EvictionPolicy.LRU);
+
+        store.start();
+
+        for (int i = 0; i < 1000; i++) {
+            PicketBoxSession session = createSession();
+
+            session.setAttribute("payload", new byte[100]);
+            store.store(session);
+        }
+
+        assertTrue(store.getWeight() <= 10000);
+        assertTrue(store.size() < 100);
+        assertTrue(store.getEvictionCount() > 900);
+
+        store.stop();
+    }
+
+    private PicketBoxSession createSession() {
+        return new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+    }
+
+    private static class ExpirationCounter implements PicketBoxSessionListener {
+
+        private int expirations;
+
+        @Override
+        public void onCreate(PicketBoxSession session) {
+        }
+
+        @Override
+        public void onGetAttribute(PicketBoxSession session) {
+        }
+
+        @Override
+        public void onSetAttribute(PicketBoxSession session, String key, Object value) {
+        }
+
+        @Override
+        public void onInvalidate(PicketBoxSession session) {
+        }
+
+        @Override
+        public void onExpiration(PicketBoxSession session) {
+            this.expirations++;
+        }
+    }
+}
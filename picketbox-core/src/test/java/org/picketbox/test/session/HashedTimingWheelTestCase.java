@@ -0,0 +1,133 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.session.HashedTimingWheel;
+import org.picketbox.core.session.HashedTimingWheel.Timeout;
+
+/**
+ * <p>
+ * Tests the {@link HashedTimingWheel}.
+ * </p>
+ */
+public class HashedTimingWheelTestCase {
+
+    private HashedTimingWheel wheel;
+
+    @Before
+    public void onSetup() {
+        this.wheel = new HashedTimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @After
+    public void onTearDown() {
+        this.wheel.stop();
+    }
+
+    @Test
+    public void testTimeoutFires() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        Timeout timeout = this.wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(timeout.isExpired());
+        assertEquals(0, this.wheel.pendingTimeouts());
+    }
+
+    @Test
+    public void testTimeoutSpanningSeveralRounds() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        // 8 buckets of 10ms, the timeout needs more than two rounds
+        this.wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 250, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+    }
+
+    @Test
+    public void testCancelledTimeoutDoesNotFire() throws Exception {
+        final AtomicInteger fired = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        Timeout timeout = this.wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                fired.incrementAndGet();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        this.wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, fired.get());
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStoppedWheelRejectsTimeouts() throws Exception {
+        this.wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        this.wheel.stop();
+
+        this.wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.exceptions.PicketBoxSessionException;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.InMemorySessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SecureSessionIdGenerator;
+import org.picketbox.core.session.SessionBatchHandler;
+import org.picketbox.core.session.SessionPredicate;
+
+/**
+ * <p>
+ * Tests the {@link InMemorySessionStore} semantics under concurrent access.
+ * </p>
+ */
+public class InMemorySessionStoreTestCase {
+
+    private static final int THREADS = 16;
+    private static final int SESSIONS_PER_THREAD = 2000;
+
+    private InMemorySessionStore store;
+
+    @Before
+    public void onSetup() {
+        this.store = new InMemorySessionStore();
+        this.store.start();
+    }
+
+    @Test
+    public void testStoreLoadRemove() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+        this.store.store(session);
+
+        assertSame(session, this.store.load(session.getId()));
+
+        this.store.remove(session.getId());
+
+        assertNull(this.store.load(session.getId()));
+    }
+
+    @Test
+    public void testUpdateDoesNotResurrectRemovedSession() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+        this.store.store(session);
+        this.store.remove(session.getId());
+        this.store.update(session);
+
+        assertNull(this.store.load(session.getId()));
+    }
+
+    @Test
+    public void testDuplicateSessionIdIsRejected() throws Exception {
+        DefaultSessionId id = new DefaultSessionId();
+
+        this.store.store(new PicketBoxSession(new PicketBoxSubject(), id));
+
+        try {
+            this.store.store(new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId(id.getId())));
+            fail("Duplicate session id should be rejected.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+
+                        for (int j = 0; j < SESSIONS_PER_THREAD; j++) {
+                            PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+                            store.store(session);
+
+                            if (store.load(session.getId()) != session) {
+                                failures.incrementAndGet();
+                            }
+
+                            store.update(session);
+
+                            if (j % 2 == 0) {
+                                store.remove(session.getId());
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+
+        PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+        this.store.store(session);
+
+        assertNotNull(this.store.load(session.getId()));
+    }
+
+    @Test
+    public void testIdFormats() throws Exception {
+        String base64 = new SecureSessionIdGenerator().generateId();
+        String[] ids = new String[] { base64, base64 + ".node1", base64 + ".node2", UUID.randomUUID().toString(),
+                "f81d4fae-7dec-11d0-a765-00a0c91e6bf6", "F81D4FAE-7DEC-11D0-A765-00A0C91E6BF6", "not-a-compact-id" };
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (String id : ids) {
+            PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId(id));
+
+            this.store.store(session);
+            sessions.add(session);
+        }
+
+        for (PicketBoxSession session : sessions) {
+            assertSame(session, this.store.load(session.getId()));
+        }
+
+        assertNull(this.store.load(new DefaultSessionId(base64 + ".node3")));
+
+        // removing the identifier owning the slot lets the colliding ones take it over
+        this.store.remove(sessions.get(0).getId());
+        this.store.remove(sessions.get(4).getId());
+
+        assertNull(this.store.load(sessions.get(0).getId()));
+        assertNull(this.store.load(sessions.get(4).getId()));
+        assertSame(sessions.get(1), this.store.load(sessions.get(1).getId()));
+        assertSame(sessions.get(2), this.store.load(sessions.get(2).getId()));
+        assertSame(sessions.get(5), this.store.load(sessions.get(5).getId()));
+
+        this.store.remove(sessions.get(1).getId());
+
+        assertSame(sessions.get(2), this.store.load(sessions.get(2).getId()));
+    }
+
+    @Test
+    public void testManySessions() throws Exception {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < 50000; i++) {
+            PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+            this.store.store(session);
+            sessions.add(session);
+        }
+
+        for (int i = 0; i < sessions.size(); i += 2) {
+            this.store.remove(sessions.get(i).getId());
+        }
+
+        for (int i = 0; i < sessions.size(); i++) {
+            PicketBoxSession loaded = this.store.load(sessions.get(i).getId());
+
+            if (i % 2 == 0) {
+                assertNull(loaded);
+            } else {
+                assertSame(sessions.get(i), loaded);
+            }
+        }
+    }
+
+    @Test
+    public void testSingleWinnerOfConcurrentCompareAndSet() throws Exception {
+        final PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+        assertTrue(this.store.storeIfAbsent(session));
+        assertFalse(this.store.storeIfAbsent(new PicketBoxSession(new PicketBoxSubject(), session.getId())));
+
+        final long version = session.getVersion();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger winners = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PicketBoxSession copy = new PicketBoxSession(new PicketBoxSubject(), session.getId());
+
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    if (store.update(copy, version)) {
+                        winners.incrementAndGet();
+                    }
+                }
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, winners.get());
+        assertEquals(version + 1, this.store.getVersion(session.getId()));
+    }
+
+    @Test
+    public void testBulkOperations() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+            session.setAttribute("index", i);
+            this.store.store(session);
+        }
+
+        assertEquals(1000, this.store.count());
+
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger batched = new AtomicInteger();
+
+        this.store.forEachBatch(64, new SessionBatchHandler() {
+            @Override
+            public void handle(List<PicketBoxSession> sessions) {
+                assertTrue(sessions.size() <= 64);
+                batches.incrementAndGet();
+                batched.addAndGet(sessions.size());
+            }
+        });
+
+        assertEquals(16, batches.get());
+        assertEquals(1000, batched.get());
+
+        int removed = this.store.removeIf(new SessionPredicate() {
+            @Override
+            public boolean matches(PicketBoxSession session) {
+                try {
+                    return (Integer) session.getAttribute("index") % 2 == 0;
+                } catch (PicketBoxSessionException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        assertEquals(500, removed);
+        assertEquals(500, this.store.count());
+
+        for (Iterator<PicketBoxSession> cursor = this.store.cursor(); cursor.hasNext();) {
+            assertEquals(1, (Integer) cursor.next().getAttribute("index") % 2);
+        }
+    }
+
+    @Test
+    public void testCursorWithConcurrentWriters() throws Exception {
+        final List<PicketBoxSession> stable = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < 5000; i++) {
+            PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+            this.store.store(session);
+            stable.add(session);
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+                    store.store(session);
+                    store.remove(session.getId());
+                }
+            }
+        });
+
+        writer.start();
+
+        try {
+            Set<PicketBoxSession> seen = new HashSet<PicketBoxSession>();
+
+            for (Iterator<PicketBoxSession> cursor = this.store.cursor(); cursor.hasNext();) {
+                seen.add(cursor.next());
+            }
+
+            // the sessions present during the whole iteration are all returned
+            assertTrue(seen.containsAll(stable));
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.picketbox.test.session.SessionTestSupport.createSession;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.session.JournaledFileSessionStore;
+import org.picketbox.core.session.JournaledFileSessionStore.Durability;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionDelta;
+
+/**
+ * <p>
+ * Tests the {@link JournaledFileSessionStore} recovery, compaction and durability modes.
+ * </p>
+ */
+public class JournaledFileSessionStoreTestCase {
+
+    private File directory;
+
+    @Before
+    public void onSetup() {
+        this.directory = new File(System.getProperty("java.io.tmpdir"), "pbox-journal-" + System.nanoTime());
+    }
+
+    @After
+    public void onTearDown() {
+        File[] files = this.directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        this.directory.delete();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        JournaledFileSessionStore store = createStore();
+
+        PicketBoxSession kept = createSession("kept");
+        PicketBoxSession removed = createSession("removed");
+
+        store.store(kept);
+        store.store(removed, Durability.SYNC);
+
+        kept.setAttribute("attribute", "value");
+        store.update(kept);
+        store.remove(removed.getId());
+
+        store.stop();
+
+        store = createStore();
+
+        PicketBoxSession recovered = store.load(kept.getId());
+
+        assertNotNull(recovered);
+        assertEquals("value", recovered.getAttribute("attribute"));
+        assertEquals("kept", recovered.getSubject().getUser().getName());
+        assertNull(store.load(removed.getId()));
+
+        store.stop();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        JournaledFileSessionStore store = new JournaledFileSessionStore(this.directory.getPath());
+
+        store.setCompactionThreshold(16 * 1024);
+        store.start();
+
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < 500; i++) {
+            PicketBoxSession session = createSession("user" + i);
+
+            store.store(session, Durability.NONE);
+
+            if (i % 2 == 0) {
+                store.remove(session.getId(), Durability.NONE);
+            } else {
+                sessions.add(session);
+            }
+        }
+
+        store.stop();
+
+        assertTrue(new File(this.directory, "sessions.snapshot").exists());
+
+        store = createStore();
+
+        for (PicketBoxSession session : sessions) {
+            assertNotNull(store.load(session.getId()));
+        }
+
+        store.stop();
+    }
+
+    @Test
+    public void testDeltasAreJournaled() throws Exception {
+        JournaledFileSessionStore store = createStore();
+        PicketBoxSession session = createSession("user");
+
+        session.setAttribute("data", new byte[32 * 1024]);
+        session.setAttribute("color", "blue");
+        store.store(session);
+        store.stop();
+
+        long size = directorySize();
+
+        store = createStore();
+        session = store.load(session.getId());
+
+        for (int i = 0; i < 10; i++) {
+            SessionDelta delta = new SessionDelta(session.getId());
+
+            session.setAttribute("counter", i);
+            delta.setAttribute("counter", i);
+
+            assertTrue(store.update(session, delta, session.getVersion()));
+        }
+
+        SessionDelta delta = new SessionDelta(session.getId());
+
+        session.removeAttribute("color");
+        delta.removeAttribute("color");
+
+        assertTrue(store.update(session, delta, session.getVersion()));
+
+        store.stop();
+
+        // each record holds the changed attribute, not the whole session
+        assertTrue(directorySize() - size < 4096);
+
+        store = createStore();
+
+        PicketBoxSession recovered = store.load(session.getId());
+
+        assertEquals(9, recovered.getAttribute("counter"));
+        assertNull(recovered.getAttribute("color"));
+        assertEquals(32 * 1024, ((byte[]) recovered.getAttribute("data")).length);
+
+        store.stop();
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        JournaledFileSessionStore store = createStore();
+        PicketBoxSession session = createSession("user");
+
+        store.store(session, Durability.SYNC);
+        store.stop();
+
+        File[] logs = this.directory.listFiles();
+
+        for (File log : logs) {
+            if (log.getName().endsWith(".log")) {
+                FileOutputStream output = new FileOutputStream(log, true);
+
+                output.write(new byte[] { 0, 0, 0, 42, 1, 2, 3 });
+                output.close();
+            }
+        }
+
+        store = createStore();
+
+        assertNotNull(store.load(session.getId()));
+
+        store.stop();
+    }
+
+    @Test
+    public void testWritesResumeAfterRestart() throws Exception {
+        JournaledFileSessionStore store = createStore();
+        Field logFailure = JournaledFileSessionStore.class.getDeclaredField("logFailure");
+
+        // the log could not be truncated after a failed write
+        logFailure.setAccessible(true);
+        logFailure.set(store, new IOException("Simulated truncation failure"));
+
+        try {
+            store.store(createSession("user"));
+            fail("Writes must fail until the store is restarted");
+        } catch (IllegalStateException expected) {
+        }
+
+        store.stop();
+        store.start();
+
+        PicketBoxSession session = createSession("user");
+
+        store.store(session, Durability.SYNC);
+        store.stop();
+
+        store = createStore();
+
+        assertNotNull(store.load(session.getId()));
+
+        store.stop();
+    }
+
+    private long directorySize() {
+        long size = 0;
+
+        for (File file : this.directory.listFiles()) {
+            size += file.length();
+        }
+
+        return size;
+    }
+
+    private JournaledFileSessionStore createStore() {
+        JournaledFileSessionStore store = new JournaledFileSessionStore(this.directory.getPath());
+
+        store.start();
+
+        return store;
+    }
+}
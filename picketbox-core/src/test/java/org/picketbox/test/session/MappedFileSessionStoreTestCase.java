@@ -0,0 +1,233 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.picketbox.test.session.SessionTestSupport.createSession;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.session.MappedFileSessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionPredicate;
+
+/**
+ * <p>
+ * Tests the {@link MappedFileSessionStore}. Two store instances mapping the same file stand for two JVMs sharing it.
+ * </p>
+ */
+public class MappedFileSessionStoreTestCase {
+
+    private File file;
+    private MappedFileSessionStore first;
+    private MappedFileSessionStore second;
+
+    @Before
+    public void onSetup() {
+        this.file = new File(System.getProperty("java.io.tmpdir"), "pbox-mapped-" + System.nanoTime());
+        this.first = new MappedFileSessionStore(this.file.getPath(), 1024, 2048);
+        this.second = new MappedFileSessionStore(this.file.getPath(), 1024, 2048);
+        this.first.start();
+        this.second.start();
+    }
+
+    @After
+    public void onTearDown() {
+        this.first.stop();
+        this.second.stop();
+        this.file.delete();
+    }
+
+    @Test
+    public void testSessionsAreShared() throws Exception {
+        PicketBoxSession session = createSession("user");
+
+        this.first.store(session);
+
+        PicketBoxSession shared = this.second.load(session.getId());
+
+        assertNotNull(shared);
+        assertEquals("user", shared.getSubject().getUser().getName());
+
+        shared.setAttribute("attribute", "value");
+        this.second.update(shared);
+
+        assertEquals("value", this.first.load(session.getId()).getAttribute("attribute"));
+
+        this.first.remove(session.getId());
+
+        assertNull(this.second.load(session.getId()));
+    }
+
+    @Test
+    public void testSlotsAreReused() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            PicketBoxSession session = createSession("user" + i);
+
+            this.first.store(session);
+            assertNotNull(this.second.load(session.getId()));
+            this.second.remove(session.getId());
+        }
+    }
+
+    @Test
+    public void testSlotLeftByCrashedWriter() throws Exception {
+        PicketBoxSession session = createSession("user");
+
+        this.first.store(session);
+        tearUsedSlots();
+
+        // the reader gives up waiting for the writer and invalidates the slot
+        assertNull(this.second.load(session.getId()));
+
+        this.first.store(session);
+
+        assertNotNull(this.second.load(session.getId()));
+
+        this.second.stop();
+        tearUsedSlots();
+        this.second.start();
+
+        // the slot is invalidated on start
+        assertNull(this.first.load(session.getId()));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 8; i++) {
+            final MappedFileSessionStore store = i % 2 == 0 ? this.first : this.second;
+            final MappedFileSessionStore other = i % 2 == 0 ? this.second : this.first;
+
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            PicketBoxSession session = createSession("user" + j);
+
+                            store.store(session);
+
+                            if (other.load(session.getId()) == null) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+    }
+
+    @Test
+    public void testLargeSessionIsRejected() throws Exception {
+        PicketBoxSession session = createSession("user");
+
+        session.setAttribute("large", new byte[4096]);
+
+        try {
+            this.first.store(session);
+            fail("Session larger than a slot should be rejected.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBulkOperations() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            this.first.store(createSession("user" + (i % 4)));
+        }
+
+        assertEquals(100, this.second.count());
+
+        int removed = this.second.removeIf(new SessionPredicate() {
+            @Override
+            public boolean matches(PicketBoxSession session) {
+                return "user0".equals(session.getPrincipalName());
+            }
+        });
+
+        assertEquals(25, removed);
+        assertEquals(75, this.first.count());
+
+        int count = 0;
+
+        for (Iterator<PicketBoxSession> cursor = this.first.cursor(); cursor.hasNext(); count++) {
+            PicketBoxSession session = cursor.next();
+
+            assertEquals(session.getVersion(), this.second.getVersion(session.getId()));
+        }
+
+        assertEquals(75, count);
+    }
+
+    /**
+     * <p>
+     * Leaves the sequence of every used slot odd, as a writer crashing in the middle of a write would.
+     * </p>
+     */
+    private void tearUsedSlots() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+
+        try {
+            for (long slot = 64; slot < raf.length(); slot += 2048) {
+                raf.seek(slot + 4);
+
+                if (raf.readInt() == 1) {
+                    raf.seek(slot);
+
+                    int sequence = raf.readInt();
+
+                    raf.seek(slot);
+                    raf.writeInt(sequence | 1);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+}
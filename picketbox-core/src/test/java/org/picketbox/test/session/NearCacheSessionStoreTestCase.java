@@ -0,0 +1,146 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.config.PicketBoxConfiguration;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.InJvmSessionInvalidationChannel;
+import org.picketbox.core.session.MappedFileSessionStore;
+import org.picketbox.core.session.NearCacheSessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+
+/**
+ * <p>
+ * Tests the {@link NearCacheSessionStore}. Two caches in front of a shared {@link MappedFileSessionStore} stand for two nodes.
+ * </p>
+ */
+public class NearCacheSessionStoreTestCase {
+
+    private File file;
+    private NearCacheSessionStore first;
+    private NearCacheSessionStore second;
+
+    @Before
+    public void onSetup() {
+        InJvmSessionInvalidationChannel channel = new InJvmSessionInvalidationChannel();
+
+        this.file = new File(System.getProperty("java.io.tmpdir"), "pbox-near-cache-" + System.nanoTime());
+        this.first = new NearCacheSessionStore(new MappedFileSessionStore(this.file.getPath(), 1024, 2048), 100, 1,
+                TimeUnit.HOURS, channel);
+        this.second = new NearCacheSessionStore(new MappedFileSessionStore(this.file.getPath(), 1024, 2048), 100, 1,
+                TimeUnit.HOURS, channel);
+        this.first.start();
+        this.second.start();
+    }
+
+    @After
+    public void onTearDown() {
+        this.first.stop();
+        this.second.stop();
+        this.file.delete();
+    }
+
+    @Test
+    public void testLoadsAreServedFromCache() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+        this.first.store(session);
+
+        PicketBoxSession copy = this.second.load(session.getId());
+
+        assertNotSame(session, copy);
+
+        for (int i = 0; i < 9; i++) {
+            assertSame(copy, this.second.load(session.getId()));
+        }
+
+        assertEquals(9, this.second.getHits());
+        assertEquals(1, this.second.getMisses());
+        assertEquals(0.9d, this.second.getHitRatio(), 0.001d);
+        assertTrue(this.second.getSavedTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void testChangesInvalidateOtherNodes() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+        this.first.store(session);
+        this.second.load(session.getId());
+
+        session.setAttribute("attribute", "value");
+        this.first.update(session);
+
+        assertEquals("value", this.second.load(session.getId()).getAttribute("attribute"));
+
+        this.first.remove(session.getId());
+
+        assertNull(this.second.load(session.getId()));
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        MappedFileSessionStore delegate = new MappedFileSessionStore(this.file.getPath(), 1024, 2048);
+        NearCacheSessionStore store = new NearCacheSessionStore(delegate, 100, 100, TimeUnit.MILLISECONDS);
+
+        store.start();
+
+        try {
+            PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+            store.store(session);
+
+            assertSame(session, store.load(session.getId()));
+
+            Thread.sleep(200);
+
+            assertNotSame(session, store.load(session.getId()));
+            assertEquals(1, store.getMisses());
+        } finally {
+            store.stop();
+        }
+    }
+
+    @Test
+    public void testConfigurationWithoutStore() throws Exception {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().nearCache(100, 1, TimeUnit.MINUTES);
+
+        PicketBoxConfiguration configuration = builder.build();
+
+        assertTrue(configuration.getSessionManager().getStore() instanceof NearCacheSessionStore);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.picketbox.test.session.SessionTestSupport.createSession;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.session.OffHeapSessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionBatchHandler;
+import org.picketbox.core.session.SessionPredicate;
+
+/**
+ * <p>
+ * Tests the {@link OffHeapSessionStore}.
+ * </p>
+ */
+public class OffHeapSessionStoreTestCase {
+
+    private OffHeapSessionStore store;
+
+    @Before
+    public void onSetup() {
+        this.store = new OffHeapSessionStore(1024 * 1024, 10000, 16);
+        this.store.start();
+    }
+
+    @After
+    public void onTearDown() {
+        this.store.stop();
+    }
+
+    @Test
+    public void testBulkOperations() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            this.store.store(createSession("user" + (i % 10)));
+        }
+
+        final List<PicketBoxSession> exported = new ArrayList<PicketBoxSession>();
+
+        this.store.forEachBatch(100, new SessionBatchHandler() {
+            @Override
+            public void handle(List<PicketBoxSession> sessions) {
+                exported.addAll(sessions);
+            }
+        });
+
+        assertEquals(1000, exported.size());
+
+        int removed = this.store.removeIf(new SessionPredicate() {
+            @Override
+            public boolean matches(PicketBoxSession session) {
+                return !"user1".equals(session.getPrincipalName());
+            }
+        });
+
+        assertEquals(900, removed);
+        assertEquals(100, this.store.count());
+    }
+
+    @Test
+    public void testStoreLoadUpdateRemove() throws Exception {
+        PicketBoxSession session = createSession("user");
+
+        this.store.store(session);
+
+        assertSame(session, this.store.load(session.getId()));
+
+        session.setAttribute("attribute", "value");
+        this.store.update(session);
+
+        this.store.remove(session.getId());
+
+        assertNull(this.store.load(session.getId()));
+        assertEquals(0, this.store.size());
+        assertEquals(0, this.store.getUsedMemory());
+    }
+
+    @Test
+    public void testSessionsEvictedFromCacheAreDecoded() throws Exception {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < 1000; i++) {
+            PicketBoxSession session = createSession("user" + i);
+
+            session.setAttribute("index", i);
+            this.store.store(session);
+            sessions.add(session);
+        }
+
+        assertEquals(1000, this.store.size());
+
+        PicketBoxSession first = sessions.get(0);
+        PicketBoxSession loaded = this.store.load(first.getId());
+
+        assertNotNull(loaded);
+        assertNotSame(first, loaded);
+        assertEquals("user0", loaded.getSubject().getUser().getName());
+        assertEquals(0, loaded.getAttribute("index"));
+        assertTrue(this.store.getCacheMisses() > 0);
+
+        for (int i = 0; i < sessions.size(); i += 2) {
+            this.store.remove(sessions.get(i).getId());
+        }
+
+        for (int i = 1; i < sessions.size(); i += 2) {
+            assertEquals(i, this.store.load(sessions.get(i).getId()).getAttribute("index"));
+        }
+
+        assertEquals(500, this.store.size());
+    }
+
+    @Test
+    public void testMemoryIsBounded() throws Exception {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        try {
+            for (int i = 0; i < 10000; i++) {
+                PicketBoxSession session = createSession("user" + i);
+
+                session.setAttribute("payload", new byte[1000]);
+                this.store.store(session);
+                sessions.add(session);
+            }
+
+            fail("Store should be full");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertTrue(this.store.getAllocatedMemory() <= 1024 * 1024);
+
+        // freed memory is reused
+        this.store.remove(sessions.get(0).getId());
+        this.store.store(createSession("other"));
+    }
+
+    @Test
+    public void testWholeMemoryIsUsed() throws Exception {
+        OffHeapSessionStore store = new OffHeapSessionStore(96 * 1024, 1000, 0);
+
+        store.start();
+
+        try {
+            try {
+                for (int i = 0; i < 1000; i++) {
+                    PicketBoxSession session = createSession("user" + i);
+
+                    session.setAttribute("payload", new byte[1000]);
+                    store.store(session);
+                }
+
+                fail("Store should be full");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            assertEquals(96 * 1024, store.getAllocatedMemory());
+            assertTrue(store.getUsedMemory() > 64 * 1024);
+        } finally {
+            store.stop();
+        }
+    }
+
+    @Test
+    public void testFreedChunksAreMerged() throws Exception {
+        OffHeapSessionStore store = new OffHeapSessionStore(64 * 1024, 1000, 0);
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        store.start();
+
+        try {
+            try {
+                for (int i = 0; i < 1000; i++) {
+                    PicketBoxSession session = createSession("user" + i);
+
+                    store.store(session);
+                    sessions.add(session);
+                }
+
+                fail("Store should be full");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            for (PicketBoxSession session : sessions) {
+                store.remove(session.getId());
+            }
+
+            // only fits in a chunk merged back from the small ones
+            PicketBoxSession large = createSession("large");
+
+            large.setAttribute("payload", new byte[20000]);
+            store.store(large);
+
+            assertNotNull(store.load(large.getId()));
+        } finally {
+            store.stop();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.InMemorySessionStore;
+import org.picketbox.core.session.InProcessSessionClusterMembership;
+import org.picketbox.core.session.PartitionedSessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionPredicate;
+
+/**
+ * <p>
+ * Tests the routing and rebalancing of the {@link PartitionedSessionStore}, with several nodes in one process.
+ * </p>
+ */
+public class PartitionedSessionStoreTestCase {
+
+    private static final int SESSIONS = 600;
+
+    private InProcessSessionClusterMembership membership;
+    private List<PartitionedSessionStore> nodes = new ArrayList<PartitionedSessionStore>();
+    private List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+    @Before
+    public void onSetup() throws Exception {
+        this.membership = new InProcessSessionClusterMembership();
+
+        for (int i = 1; i <= 3; i++) {
+            addNode("node" + i);
+        }
+
+        for (int i = 0; i < SESSIONS; i++) {
+            PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+            session.setAttribute("index", i);
+            this.nodes.get(i % 3).store(session);
+            this.sessions.add(session);
+        }
+    }
+
+    @After
+    public void onTearDown() {
+        for (PartitionedSessionStore node : this.nodes) {
+            if (node.started()) {
+                node.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        assertAllSessionsAvailable();
+
+        for (PartitionedSessionStore node : this.nodes) {
+            // each node holds about two thirds of the sessions, as owner or backup
+            assertTrue(node.getLocalSessionCount() > SESSIONS / 3);
+            assertTrue(node.getLocalSessionCount() < SESSIONS);
+        }
+
+        PicketBoxSession session = this.sessions.get(0);
+
+        session.setAttribute("index", -1);
+        this.nodes.get(1).update(session);
+
+        assertEquals(-1, this.nodes.get(2).load(session.getId()).getAttribute("index"));
+
+        this.nodes.get(2).remove(session.getId());
+
+        for (PartitionedSessionStore node : this.nodes) {
+            assertNull(node.load(session.getId()));
+        }
+    }
+
+    @Test
+    public void testJoinMovesFewSessions() throws Exception {
+        PartitionedSessionStore node4 = addNode("node4");
+
+        assertAllSessionsAvailable();
+
+        long moved = 0;
+
+        for (PartitionedSessionStore node : this.nodes) {
+            moved += node.getMovedSessions();
+        }
+
+        // the new node takes about a quarter of the copies, the other sessions stay in place
+        assertTrue(node4.getLocalSessionCount() > 0);
+        assertTrue("Moved " + moved, moved < SESSIONS);
+    }
+
+    @Test
+    public void testLeave() throws Exception {
+        this.nodes.get(1).stop();
+
+        assertAllSessionsAvailable();
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        // the node disappears without handing its sessions over, they are restored from the backups
+        this.membership.leave("node2");
+
+        assertAllSessionsAvailable();
+    }
+
+    @Test
+    public void testUpdateWithFailingBackup() throws Exception {
+        PartitionedSessionStore node4 = new PartitionedSessionStore("node4", new InMemorySessionStore() {
+            @Override
+            public void update(PicketBoxSession session) {
+                throw new IllegalStateException("Backup unavailable");
+            }
+
+            @Override
+            public boolean update(PicketBoxSession session, long expectedVersion) {
+                throw new IllegalStateException("Backup unavailable");
+            }
+        }, this.membership, 64, 1);
+
+        node4.start();
+        this.nodes.add(node4);
+
+        for (PicketBoxSession session : this.sessions) {
+            List<String> owners = node4.getOwners(session.getId());
+
+            if (!owners.get(1).equals("node4")) {
+                continue;
+            }
+
+            session.setAttribute("index", -1);
+
+            PartitionedSessionStore node1 = this.nodes.get(0);
+
+            node1.update(session);
+
+            assertTrue(node1.update(session, node1.getVersion(session.getId())));
+
+            // the owner holds the change, the failure of the backup is only logged
+            assertEquals(-1, node1.load(session.getId()).getAttribute("index"));
+            return;
+        }
+
+        fail("No session is backed up by node4");
+    }
+
+    @Test
+    public void testClusterWideBulkOperations() throws Exception {
+        // backup copies are not counted
+        assertEquals(SESSIONS, this.nodes.get(0).count());
+
+        int removed = this.nodes.get(1).removeIf(new SessionPredicate() {
+            @Override
+            public boolean matches(PicketBoxSession session) {
+                return session.getId().equals(sessions.get(0).getId()) || session.getId().equals(sessions.get(1).getId());
+            }
+        });
+
+        assertEquals(2, removed);
+        assertEquals(SESSIONS - 2, this.nodes.get(2).count());
+
+        for (PartitionedSessionStore node : this.nodes) {
+            assertNull(node.load(this.sessions.get(0).getId()));
+            assertEquals(-1, node.getVersion(this.sessions.get(1).getId()));
+        }
+    }
+
+    private PartitionedSessionStore addNode(String name) {
+        PartitionedSessionStore node = new PartitionedSessionStore(name, new InMemorySessionStore(), this.membership, 64, 1);
+
+        node.start();
+        this.nodes.add(node);
+
+        return node;
+    }
+
+    private void assertAllSessionsAvailable() throws Exception {
+        int copies = 0;
+
+        for (PartitionedSessionStore node : this.nodes) {
+            if (this.membership.getMembers().contains(getName(node))) {
+                copies += node.getLocalSessionCount();
+            }
+        }
+
+        assertEquals(SESSIONS * 2, copies);
+
+        for (PartitionedSessionStore node : this.nodes) {
+            if (!this.membership.getMembers().contains(getName(node))) {
+                continue;
+            }
+
+            for (PicketBoxSession session : this.sessions) {
+                PicketBoxSession loaded = node.load(session.getId());
+
+                assertNotNull(loaded);
+                assertEquals(session.getAttribute("index"), loaded.getAttribute("index"));
+            }
+        }
+    }
+
+    private String getName(PartitionedSessionStore node) {
+        return "node" + (this.nodes.indexOf(node) + 1);
+    }
+}
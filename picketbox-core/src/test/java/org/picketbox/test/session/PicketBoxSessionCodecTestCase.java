@@ -0,0 +1,264 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.picketbox.core.PicketBoxPrincipal;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.PicketBoxSessionCodec;
+import org.picketbox.core.session.PicketBoxSessionCodec.Decoder;
+import org.picketbox.core.session.PicketBoxSessionCodec.Encoder;
+
+/**
+ * <p>
+ * Tests the {@link PicketBoxSessionCodec}.
+ * </p>
+ */
+public class PicketBoxSessionCodecTestCase {
+
+    private final PicketBoxSessionCodec codec = new PicketBoxSessionCodec();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        PicketBoxSession session = createSession("user");
+        Date date = new Date();
+
+        session.setAttribute("string", "value");
+        session.setAttribute("int", -42);
+        session.setAttribute("long", Long.MAX_VALUE);
+        session.setAttribute("boolean", true);
+        session.setAttribute("double", 1.5d);
+        session.setAttribute("bytes", new byte[] { 1, 2, 3 });
+        session.setAttribute("date", date);
+
+        PicketBoxSession decoded = this.codec.decode(this.codec.encode(session));
+
+        assertEquals(session.getId(), decoded.getId());
+        assertEquals(session.getCreationTime(), decoded.getCreationTime());
+        assertEquals(session.getLastAccessedTime(), decoded.getLastAccessedTime());
+        assertTrue(decoded.isValid());
+        assertEquals("value", decoded.getAttribute("string"));
+        assertEquals(-42, decoded.getAttribute("int"));
+        assertEquals(Long.MAX_VALUE, decoded.getAttribute("long"));
+        assertEquals(Boolean.TRUE, decoded.getAttribute("boolean"));
+        assertEquals(1.5d, decoded.getAttribute("double"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) decoded.getAttribute("bytes"));
+        assertEquals(date, decoded.getAttribute("date"));
+
+        PicketBoxSubject subject = decoded.getSubject();
+
+        assertTrue(subject.isAuthenticated());
+        assertEquals("user", subject.getUser().getName());
+        assertEquals(Arrays.asList("admin", "manager"), subject.getRoleNames());
+        assertEquals("attributeValue", subject.getAttributes().get("subjectAttribute"));
+        assertNull(subject.getSubject());
+    }
+
+    @Test
+    public void testSmallerThanJavaSerialization() throws Exception {
+        PicketBoxSession session = createSession("user");
+
+        session.setAttribute("attribute", "value");
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(serialized);
+
+        oos.writeObject(session);
+        oos.close();
+
+        int encoded = this.codec.encode(session).length;
+
+        assertTrue("encoded " + encoded + " bytes, serialized " + serialized.size() + " bytes",
+                encoded * 4 < serialized.size());
+    }
+
+    @Test
+    public void testDictionarySharedAcrossSessions() throws Exception {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < 10; i++) {
+            sessions.add(createSession("user" + i));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        Encoder encoder = this.codec.newEncoder();
+
+        encoder.writeSession(output, sessions.get(0));
+
+        int first = bytes.size();
+
+        for (int i = 1; i < sessions.size(); i++) {
+            encoder.writeSession(output, sessions.get(i));
+        }
+
+        assertTrue((bytes.size() - first) / (sessions.size() - 1) < first);
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Decoder decoder = this.codec.newDecoder();
+
+        for (PicketBoxSession session : sessions) {
+            PicketBoxSession decoded = decoder.readSession(input);
+
+            assertEquals(session.getId(), decoded.getId());
+            assertEquals(session.getSubject().getUser().getName(), decoded.getSubject().getUser().getName());
+            assertEquals(session.getSubject().getRoleNames(), decoded.getSubject().getRoleNames());
+        }
+    }
+
+    @Test
+    public void testSubclassesFallBackToSerialization() throws Exception {
+        CustomSubject subject = new CustomSubject();
+
+        subject.setUser(new PicketBoxPrincipal("user"));
+        subject.setCustomField("custom");
+
+        PicketBoxSession session = new PicketBoxSession(subject, new DefaultSessionId());
+
+        session.invalidate(false);
+
+        PicketBoxSession decoded = this.codec.decode(this.codec.encode(session));
+
+        assertFalse(decoded.isValid());
+        assertEquals("custom", ((CustomSubject) decoded.getSubject()).getCustomField());
+    }
+
+    @Test
+    public void testSessionSubclassesFallBackToSerialization() throws Exception {
+        CustomSession session = new CustomSession(SessionTestSupport.createSubject("john"));
+
+        session.setCustomField("custom");
+        session.setAttribute("attribute", "value");
+
+        PicketBoxSession decoded = this.codec.decode(this.codec.encode(session));
+
+        assertTrue(decoded instanceof CustomSession);
+        assertEquals("custom", ((CustomSession) decoded).getCustomField());
+        assertEquals(session.getId(), decoded.getId());
+        assertEquals("value", decoded.getAttribute("attribute"));
+        assertEquals("john", decoded.getSubject().getUser().getName());
+    }
+
+    @Test
+    public void testLazyDecoding() throws Exception {
+        PicketBoxSession session = createSession("john");
+
+        session.setAttribute("counted", new CountedValue());
+
+        CountedValue.reads = 0;
+
+        PicketBoxSession lazy = this.codec.decodeLazy(this.codec.encode(session));
+
+        assertEquals(session.getId(), lazy.getId());
+        assertTrue(lazy.isValid());
+        assertEquals("john", lazy.getPrincipalName());
+        assertEquals(session.getCreationTime(), lazy.getCreationTime());
+        assertEquals(0, CountedValue.reads);
+
+        // a session written back before being accessed keeps its encoded body
+        PicketBoxSession copy = this.codec.decode(this.codec.encode(lazy));
+
+        assertEquals(1, CountedValue.reads);
+        assertTrue(copy.getAttribute("counted") instanceof CountedValue);
+        assertEquals(Arrays.asList("admin", "manager"), copy.getSubject().getRoleNames());
+
+        assertTrue(lazy.getAttribute("counted") instanceof CountedValue);
+        assertEquals("john", lazy.getSubject().getUser().getName());
+        assertEquals(2, CountedValue.reads);
+    }
+
+    private PicketBoxSession createSession(String userName) {
+        PicketBoxSubject subject = SessionTestSupport.createAuthenticatedSubject(userName, "admin", "manager");
+
+        subject.setAttributes(Collections.<String, Object> singletonMap("subjectAttribute", "attributeValue"));
+
+        return new PicketBoxSession(subject, new DefaultSessionId());
+    }
+
+    public static class CustomSubject extends PicketBoxSubject {
+
+        private static final long serialVersionUID = 1L;
+
+        private String customField;
+
+        public String getCustomField() {
+            return this.customField;
+        }
+
+        public void setCustomField(String customField) {
+            this.customField = customField;
+        }
+    }
+
+    public static class CustomSession extends PicketBoxSession {
+
+        private static final long serialVersionUID = 1L;
+
+        private String customField;
+
+        public CustomSession(PicketBoxSubject subject) {
+            super(subject, new DefaultSessionId());
+        }
+
+        public String getCustomField() {
+            return this.customField;
+        }
+
+        public void setCustomField(String customField) {
+            this.customField = customField;
+        }
+    }
+
+    public static class CountedValue implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private static int reads;
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            reads++;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.DefaultSessionManager;
+import org.picketbox.core.session.MappedFileSessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionManager;
+
+/**
+ * <p>
+ * Tests the lookup of sessions by principal and the limit of concurrent sessions per principal of the
+ * {@link DefaultSessionManager}.
+ * </p>
+ */
+public class PrincipalSessionsTestCase {
+
+    private SessionManager sessionManager;
+
+    @Before
+    public void onSetup() {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().inMemorySessionStore().maxSessionsPerPrincipal(2);
+
+        this.sessionManager = new DefaultSessionManager(builder.build());
+        this.sessionManager.start();
+    }
+
+    @After
+    public void onTearDown() {
+        this.sessionManager.stop();
+    }
+
+    @Test
+    public void testRetrieveByPrincipal() throws Exception {
+        PicketBoxSession first = this.sessionManager.create(createSubject("john"));
+        PicketBoxSession second = this.sessionManager.create(createSubject("john"));
+
+        this.sessionManager.create(createSubject("mary"));
+
+        List<PicketBoxSession> sessions = this.sessionManager.retrieveByPrincipal("john");
+
+        assertEquals(2, sessions.size());
+        assertEquals(first.getId(), sessions.get(0).getId());
+        assertEquals(second.getId(), sessions.get(1).getId());
+
+        first.invalidate();
+
+        assertEquals(1, this.sessionManager.retrieveByPrincipal("john").size());
+        assertTrue(this.sessionManager.retrieveByPrincipal("nobody").isEmpty());
+    }
+
+    @Test
+    public void testOldestSessionIsInvalidatedOverTheLimit() throws Exception {
+        PicketBoxSession first = this.sessionManager.create(createSubject("john"));
+        PicketBoxSession second = this.sessionManager.create(createSubject("john"));
+        PicketBoxSession third = this.sessionManager.create(createSubject("john"));
+
+        assertFalse(first.isValid());
+        assertNull(this.sessionManager.retrieve(first.getId()));
+        assertTrue(second.isValid());
+        assertTrue(third.isValid());
+        assertEquals(2, this.sessionManager.retrieveByPrincipal("john").size());
+    }
+
+    @Test
+    public void testRemoveAllForPrincipal() throws Exception {
+        PicketBoxSession first = this.sessionManager.create(createSubject("john"));
+        PicketBoxSession second = this.sessionManager.create(createSubject("john"));
+        PicketBoxSession other = this.sessionManager.create(createSubject("mary"));
+
+        this.sessionManager.removeAllForPrincipal("john");
+
+        assertFalse(first.isValid());
+        assertFalse(second.isValid());
+        assertNull(this.sessionManager.retrieve(second.getId()));
+        assertTrue(this.sessionManager.retrieveByPrincipal("john").isEmpty());
+        assertTrue(other.isValid());
+        assertEquals(1, this.sessionManager.retrieveByPrincipal("mary").size());
+    }
+
+    @Test
+    public void testStoredSessionsAreIndexedOnStart() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "pbox-principals-" + System.nanoTime());
+        MappedFileSessionStore store = new MappedFileSessionStore(file.getPath(), 1024, 2048);
+
+        try {
+            store.start();
+
+            // written by another JVM sharing the file
+            store.store(new PicketBoxSession(createSubject("john"), new DefaultSessionId()));
+            store.store(new PicketBoxSession(createSubject("john"), new DefaultSessionId()));
+
+            PicketBoxSession other = new PicketBoxSession(createSubject("mary"), new DefaultSessionId());
+
+            store.store(other);
+
+            ConfigurationBuilder builder = new ConfigurationBuilder();
+
+            builder.sessionManager().store(new MappedFileSessionStore(file.getPath(), 1024, 2048)).maxSessionsPerPrincipal(2);
+
+            SessionManager manager = new DefaultSessionManager(builder.build());
+
+            manager.start();
+
+            try {
+                assertEquals(2, manager.retrieveByPrincipal("john").size());
+
+                manager.create(createSubject("john"));
+
+                assertEquals(2, manager.retrieveByPrincipal("john").size());
+
+                manager.removeAllForPrincipal("mary");
+
+                assertNull(store.load(other.getId()));
+            } finally {
+                manager.stop();
+            }
+        } finally {
+            store.stop();
+            file.delete();
+        }
+    }
+
+    private PicketBoxSubject createSubject(String userName) {
+        return SessionTestSupport.createAuthenticatedSubject(userName);
+    }
+}
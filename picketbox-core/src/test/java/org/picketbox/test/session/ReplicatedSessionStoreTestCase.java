@@ -0,0 +1,295 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.config.PicketBoxConfiguration;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.InJvmSessionReplicationTransport;
+import org.picketbox.core.session.InMemorySessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.ReplicatedSessionStore;
+import org.picketbox.core.session.SessionDelta;
+import org.picketbox.core.session.SessionId;
+
+/**
+ * <p>
+ * Tests the {@link ReplicatedSessionStore}. Three stores connected through an {@link InJvmSessionReplicationTransport} stand
+ * for three nodes, each backed up by the next one.
+ * </p>
+ */
+public class ReplicatedSessionStoreTestCase {
+
+    private InJvmSessionReplicationTransport transport;
+    private ReplicatedSessionStore node1;
+    private ReplicatedSessionStore node2;
+    private ReplicatedSessionStore node3;
+
+    @Before
+    public void onSetup() {
+        this.transport = new InJvmSessionReplicationTransport();
+        this.node1 = new ReplicatedSessionStore(new InMemorySessionStore(), "node1", this.transport, 1, 1000);
+        this.node2 = new ReplicatedSessionStore(new InMemorySessionStore(), "node2", this.transport, 1, 1000);
+        this.node3 = new ReplicatedSessionStore(new InMemorySessionStore(), "node3", this.transport, 1, 1000);
+        this.node1.start();
+        this.node2.start();
+        this.node3.start();
+    }
+
+    @After
+    public void onTearDown() {
+        this.node1.stop();
+        this.node2.stop();
+        this.node3.stop();
+    }
+
+    @Test
+    public void testReplicationToBackup() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+        session.setAttribute("color", "blue");
+        this.node1.store(session);
+
+        PicketBoxSession copy = waitForSession(this.node2, session.getId(), "color", "blue");
+
+        assertNull(this.node3.load(session.getId()));
+
+        session.setAttribute("color", "red");
+        this.node1.update(session);
+
+        waitForSession(this.node2, session.getId(), "color", "red");
+
+        this.node1.remove(session.getId());
+
+        for (int i = 0; i < 100 && this.node2.load(copy.getId()) != null; i++) {
+            Thread.sleep(20);
+        }
+
+        assertNull(this.node2.load(session.getId()));
+    }
+
+    @Test
+    public void testDeltasAreReplicated() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+        session.setAttribute("data", new byte[32 * 1024]);
+        session.setAttribute("color", "blue");
+        this.node1.store(session);
+
+        waitForSession(this.node2, session.getId(), "color", "blue");
+        waitForReplicatedOperations(this.node1, 1);
+
+        long sentBytes = this.node1.getSentBytes();
+        SessionDelta delta = new SessionDelta(session.getId());
+
+        session.setAttribute("shape", "circle");
+        session.removeAttribute("color");
+        delta.setAttribute("shape", "circle");
+        delta.removeAttribute("color");
+
+        assertTrue(this.node1.update(session, delta, session.getVersion()));
+
+        PicketBoxSession copy = waitForSession(this.node2, session.getId(), "shape", "circle");
+
+        waitForReplicatedOperations(this.node1, 2);
+
+        assertNull(copy.getAttribute("color"));
+        assertEquals(32 * 1024, ((byte[]) copy.getAttribute("data")).length);
+        assertTrue(this.node1.getSentBytes() - sentBytes < 1024);
+    }
+
+    @Test
+    public void testBatchesAreCompressed() throws Exception {
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < 100; i++) {
+            value.append("some repetitive attribute value ");
+        }
+
+        PicketBoxSession last = null;
+
+        for (int i = 0; i < 50; i++) {
+            last = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+            last.setAttribute("value", value.toString());
+            this.node3.store(last);
+        }
+
+        // node1 follows node3 in the ring
+        waitForSession(this.node1, last.getId(), "value", value.toString());
+
+        assertTrue(this.node3.getSentBytes() < this.node3.getUncompressedBytes());
+        assertEquals(0, this.node3.getDroppedOperations());
+    }
+
+    @Test
+    public void testBackpressureWhenBackupLags() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        InJvmSessionReplicationTransport slowTransport = new InJvmSessionReplicationTransport() {
+            @Override
+            public void send(String sender, String target, byte[] message) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.send(sender, target, message);
+            }
+        };
+        ReplicatedSessionStore primary = new ReplicatedSessionStore(new InMemorySessionStore(), "primary", slowTransport, 1, 1);
+        ReplicatedSessionStore backup = new ReplicatedSessionStore(new InMemorySessionStore(), "secondary", slowTransport, 1,
+                1);
+
+        primary.start();
+        backup.start();
+
+        try {
+            // the blocked sender holds at most two operations and the queue one more
+            for (int i = 0; i < 4; i++) {
+                primary.store(new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId()));
+            }
+
+            assertTrue(primary.getDroppedOperations() > 0);
+        } finally {
+            release.countDown();
+            primary.stop();
+            backup.stop();
+        }
+    }
+
+    @Test
+    public void testRemovalIsNotDroppedWhenBackupLags() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        InJvmSessionReplicationTransport slowTransport = new InJvmSessionReplicationTransport() {
+            @Override
+            public void send(String sender, String target, byte[] message) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.send(sender, target, message);
+            }
+        };
+        final ReplicatedSessionStore primary = new ReplicatedSessionStore(new InMemorySessionStore(), "primary", slowTransport,
+                1, 1);
+        ReplicatedSessionStore backup = new ReplicatedSessionStore(new InMemorySessionStore(), "secondary", slowTransport, 1,
+                1);
+
+        primary.start();
+        backup.start();
+
+        try {
+            final PicketBoxSession session = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+            primary.store(session);
+
+            for (int i = 0; i < 3; i++) {
+                primary.store(new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId()));
+            }
+
+            long dropped = primary.getDroppedOperations();
+            Thread remover = new Thread() {
+                @Override
+                public void run() {
+                    primary.remove(session.getId());
+                }
+            };
+
+            remover.start();
+            remover.join(1500);
+
+            // still waiting for room in the queue, past the time after which a store is dropped
+            assertTrue(remover.isAlive());
+
+            release.countDown();
+            remover.join();
+
+            assertEquals(dropped, primary.getDroppedOperations());
+
+            for (int i = 0; i < 100 && primary.getPendingOperations() > 0; i++) {
+                Thread.sleep(20);
+            }
+
+            Thread.sleep(200);
+
+            assertNull(backup.load(session.getId()));
+        } finally {
+            release.countDown();
+            primary.stop();
+            backup.stop();
+        }
+    }
+
+    @Test
+    public void testConfigurationWithoutStore() throws Exception {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().replication("node1", this.transport, 1, 16);
+
+        PicketBoxConfiguration configuration = builder.build();
+
+        assertTrue(configuration.getSessionManager().getStore() instanceof ReplicatedSessionStore);
+    }
+
+    private void waitForReplicatedOperations(ReplicatedSessionStore store, long operations) throws Exception {
+        for (int i = 0; i < 100 && store.getReplicatedOperations() < operations; i++) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(operations, store.getReplicatedOperations());
+    }
+
+    private PicketBoxSession waitForSession(ReplicatedSessionStore store, SessionId<?> id, String key, Object value)
+            throws Exception {
+        for (int i = 0; i < 100; i++) {
+            PicketBoxSession copy = store.load(id);
+
+            if (copy != null && value.equals(copy.getAttribute(key))) {
+                return copy;
+            }
+
+            Thread.sleep(20);
+        }
+
+        PicketBoxSession copy = store.load(id);
+
+        assertNotNull(copy);
+        assertEquals(value, copy.getAttribute(key));
+
+        return copy;
+    }
+}
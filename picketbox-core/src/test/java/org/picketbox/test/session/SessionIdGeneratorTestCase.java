@@ -0,0 +1,120 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+import org.picketbox.core.PicketBoxPrincipal;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.session.DefaultSessionManager;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SecureSessionIdGenerator;
+
+/**
+ * <p>
+ * Tests the format and uniqueness of the identifiers generated by the {@link SecureSessionIdGenerator}.
+ * </p>
+ */
+public class SessionIdGeneratorTestCase {
+
+    @Test
+    public void testFormat() {
+        SecureSessionIdGenerator generator = new SecureSessionIdGenerator();
+
+        for (int i = 0; i < 1000; i++) {
+            String id = generator.generateId();
+
+            assertEquals(SecureSessionIdGenerator.ID_LENGTH, id.length());
+            assertTrue(id, id.matches("[A-Za-z0-9_-]{21}[AQgw]"));
+        }
+    }
+
+    @Test
+    public void testNodeId() {
+        String id = new SecureSessionIdGenerator("node-1").generateId();
+
+        assertEquals(SecureSessionIdGenerator.ID_LENGTH + ".node-1".length(), id.length());
+        assertTrue(id.endsWith(".node-1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidNodeId() {
+        new SecureSessionIdGenerator("node.1");
+    }
+
+    @Test
+    public void testUniqueAcrossThreads() throws Exception {
+        final SecureSessionIdGenerator generator = new SecureSessionIdGenerator();
+        final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final int idsPerThread = 20000;
+        Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < idsPerThread; j++) {
+                        ids.add(generator.generateId());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threads.length * idsPerThread, ids.size());
+    }
+
+    @Test
+    public void testConfiguredGenerator() {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().inMemorySessionStore().nodeId("node1");
+
+        DefaultSessionManager sessionManager = new DefaultSessionManager(builder.build());
+
+        sessionManager.start();
+
+        try {
+            PicketBoxSubject subject = new PicketBoxSubject();
+
+            subject.setUser(new PicketBoxPrincipal("john"));
+
+            PicketBoxSession session = sessionManager.create(subject);
+
+            assertTrue(session.getId().getId().toString().endsWith(".node1"));
+        } finally {
+            sessionManager.stop();
+        }
+    }
+}
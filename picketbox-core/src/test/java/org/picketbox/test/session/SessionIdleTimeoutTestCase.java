@@ -0,0 +1,242 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.DefaultSessionManager;
+import org.picketbox.core.session.InMemorySessionStore;
+import org.picketbox.core.session.MappedFileSessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionManager;
+
+/**
+ * <p>
+ * Tests the idle timeout of sessions managed by the {@link DefaultSessionManager}.
+ * </p>
+ */
+public class SessionIdleTimeoutTestCase {
+
+    private SessionManager sessionManager;
+
+    @Before
+    public void onSetup() {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().inMemorySessionStore().sessionIdleTimeout(2, TimeUnit.SECONDS);
+
+        this.sessionManager = new DefaultSessionManager(builder.build());
+        this.sessionManager.start();
+    }
+
+    @After
+    public void onTearDown() {
+        this.sessionManager.stop();
+    }
+
+    @Test
+    public void testAccessedSessionIsKeptAlive() throws Exception {
+        PicketBoxSession session = this.sessionManager.create(new PicketBoxSubject());
+
+        long end = System.currentTimeMillis() + 4000;
+
+        while (System.currentTimeMillis() < end) {
+            assertNotNull(this.sessionManager.retrieve(session.getId()));
+            Thread.sleep(200);
+        }
+
+        assertTrue(session.isValid());
+    }
+
+    @Test
+    public void testRestartedManagerExpiresSessions() throws Exception {
+        this.sessionManager.stop();
+        this.sessionManager.start();
+
+        PicketBoxSession session = this.sessionManager.create(new PicketBoxSubject());
+
+        long end = System.currentTimeMillis() + 6000;
+
+        while (session.isValid() && System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+        }
+
+        assertFalse(session.isValid());
+    }
+
+    @Test
+    public void testStoredSessionsPastTheirTimeoutExpire() throws Exception {
+        InMemorySessionStore store = new InMemorySessionStore();
+        PicketBoxSession idle = createIdleSession();
+        PicketBoxSession active = new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId());
+
+        // written before this manager started, for example restored from a snapshot
+        store.store(idle);
+        store.store(active);
+
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().store(store).sessionIdleTimeout(2, TimeUnit.SECONDS);
+
+        SessionManager manager = new DefaultSessionManager(builder.build());
+
+        manager.start();
+
+        try {
+            assertFalse(idle.isValid());
+            assertNull(store.load(idle.getId()));
+            assertNotNull(manager.retrieve(active.getId()));
+
+            // written after this manager started, for example replicated from another node
+            PicketBoxSession replicated = createIdleSession();
+
+            store.store(replicated);
+
+            assertNull(manager.retrieve(replicated.getId()));
+            assertNull(store.load(replicated.getId()));
+
+            long end = System.currentTimeMillis() + 6000;
+
+            while (active.isValid() && System.currentTimeMillis() < end) {
+                Thread.sleep(100);
+            }
+
+            // scheduled when the manager started
+            assertFalse(active.isValid());
+        } finally {
+            manager.stop();
+        }
+    }
+
+    @Test
+    public void testAccessedCopyIsKeptAlive() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "pbox-idle-" + System.nanoTime());
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        // the store hands out a new copy of the session on every load
+        builder.sessionManager().store(new MappedFileSessionStore(file.getPath(), 1024, 2048))
+                .sessionIdleTimeout(2, TimeUnit.SECONDS);
+
+        SessionManager manager = new DefaultSessionManager(builder.build());
+
+        manager.start();
+
+        try {
+            PicketBoxSession session = manager.create(new PicketBoxSubject());
+
+            long end = System.currentTimeMillis() + 4000;
+
+            while (System.currentTimeMillis() < end) {
+                assertNotNull(manager.retrieve(session.getId()));
+                Thread.sleep(200);
+            }
+        } finally {
+            manager.stop();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLegacySessionsAreAdopted() throws Exception {
+        File file = new File(System.getProperty("java.io.tmpdir"), "pbox-legacy-" + System.nanoTime());
+
+        // written with Java serialization before sessions recorded their creation and access times
+        copy(getClass().getResourceAsStream("/session/legacy-sessions.dat"), file);
+
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().fileSessionStore(file.getPath()).sessionIdleTimeout(2, TimeUnit.SECONDS);
+
+        SessionManager manager = new DefaultSessionManager(builder.build());
+        long start = System.currentTimeMillis();
+
+        manager.start();
+
+        try {
+            PicketBoxSession session = manager.retrieve(new DefaultSessionId("legacy"));
+
+            assertNotNull(session);
+            assertTrue(session.isValid());
+            assertTrue(session.getCreationTime() >= start);
+            assertEquals("value", session.getAttribute("attribute"));
+        } finally {
+            manager.stop();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testIdleSessionExpires() throws Exception {
+        PicketBoxSession session = this.sessionManager.create(new PicketBoxSubject());
+
+        long end = System.currentTimeMillis() + 6000;
+
+        while (session.isValid() && System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+        }
+
+        assertFalse(session.isValid());
+        assertNull(this.sessionManager.retrieve(session.getId()));
+    }
+
+    private void copy(InputStream input, File file) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+
+        try {
+            byte[] buffer = new byte[1024];
+            int read;
+
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } finally {
+            output.close();
+            input.close();
+        }
+    }
+
+    private PicketBoxSession createIdleSession() {
+        return new PicketBoxSession(new PicketBoxSubject(), new DefaultSessionId()) {
+            {
+                this.lastAccessedTime = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1);
+            }
+        };
+    }
+}
@@ -35,6 +35,7 @@ import org.picketbox.core.config.ConfigurationBuilder;
 import org.picketbox.core.session.DefaultSessionManager;
 import org.picketbox.core.session.PicketBoxSession;
 import org.picketbox.core.session.PicketBoxSessionListener;
+import org.picketbox.core.session.PicketBoxSessionListenerRegistry;
 import org.picketbox.core.session.SessionManager;
 
 /**
@@ -172,6 +173,64 @@ public class SessionManagerTestCase {
         Assert.assertNull(getStoredSession(session));
     }
 
+    /**
+     * <p>
+     * Tests if the listeners are shared by all the sessions of a manager, so a listener registered after the sessions were
+     * created is notified of their events.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSharedListenerRegistry() throws Exception {
+        PicketBoxSession first = createSession();
+        PicketBoxSession second = createSession();
+
+        PicketBoxSessionListenerRegistry registry = ((DefaultSessionManager) this.sessionManager).getListenerRegistry();
+
+        // the configured listener and the one writing the changes to the store
+        assertEquals(2, registry.size());
+
+        final int[] setAttributeCalls = new int[1];
+
+        PicketBoxSessionListener counter = new PicketBoxSessionListener() {
+
+            @Override
+            public void onSetAttribute(PicketBoxSession session, String key, Object value) {
+                setAttributeCalls[0]++;
+            }
+
+            @Override
+            public void onInvalidate(PicketBoxSession session) {
+            }
+
+            @Override
+            public void onGetAttribute(PicketBoxSession picketBoxSession) {
+            }
+
+            @Override
+            public void onExpiration(PicketBoxSession session) {
+            }
+
+            @Override
+            public void onCreate(PicketBoxSession session) {
+            }
+        };
+
+        registry.add(counter);
+
+        first.setAttribute("test", "test");
+        second.setAttribute("test", "test");
+
+        assertEquals(2, setAttributeCalls[0]);
+
+        assertTrue(registry.remove(counter));
+
+        first.setAttribute("test", "other");
+
+        assertEquals(2, setAttributeCalls[0]);
+    }
+
     private PicketBoxSession createSession() {
         PicketBoxSubject subject = new PicketBoxSubject() {
 
@@ -0,0 +1,258 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.picketbox.test.session.SessionTestSupport.createSession;
+import static org.picketbox.test.session.SessionTestSupport.createSubject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.session.DefaultSessionManager;
+import org.picketbox.core.session.InMemorySessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionSnapshotter;
+
+/**
+ * <p>
+ * Tests the background snapshots of the {@link SessionSnapshotter} and their restore on start.
+ * </p>
+ */
+public class SessionSnapshotterTestCase {
+
+    private File directory;
+
+    @Before
+    public void onSetup() {
+        this.directory = new File(System.getProperty("java.io.tmpdir"), "pbox-snapshot-" + System.nanoTime());
+    }
+
+    @After
+    public void onTearDown() {
+        File[] files = this.directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        this.directory.delete();
+    }
+
+    @Test
+    public void testSnapshotAndRestore() throws Exception {
+        InMemorySessionStore store = new InMemorySessionStore();
+
+        store.start();
+
+        SessionSnapshotter snapshotter = createSnapshotter(store, 4);
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < 100; i++) {
+            PicketBoxSession session = createSession("user" + i);
+
+            session.setAttribute("index", i);
+            store.store(session);
+            store.update(session);
+            sessions.add(session);
+        }
+
+        assertEquals(100, snapshotter.snapshot());
+        assertEquals(1, snapshotter.getSnapshotCount());
+        assertEquals(100, snapshotter.getLastSnapshotSessions());
+
+        store.remove(sessions.get(0).getId());
+
+        snapshotter.stop();
+        store.stop();
+
+        // restored with fewer partitions than the snapshot was written with
+        InMemorySessionStore restored = new InMemorySessionStore();
+
+        restored.start();
+        createSnapshotter(restored, 2);
+
+        assertEquals(99, restored.count());
+        assertNull(restored.load(sessions.get(0).getId()));
+
+        for (int i = 1; i < sessions.size(); i++) {
+            PicketBoxSession session = restored.load(sessions.get(i).getId());
+
+            assertNotNull(session);
+            assertEquals(i, session.getAttribute("index"));
+            assertEquals("user" + i, session.getSubject().getUser().getName());
+            assertEquals(sessions.get(i).getVersion(), session.getVersion());
+        }
+    }
+
+    @Test
+    public void testSnapshotWithConcurrentWrites() throws Exception {
+        final InMemorySessionStore store = new InMemorySessionStore();
+
+        store.start();
+
+        SessionSnapshotter snapshotter = createSnapshotter(store, 4);
+        final List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < 2000; i++) {
+            PicketBoxSession session = createSession("user" + i);
+
+            store.store(session);
+            sessions.add(session);
+        }
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    store.remove(sessions.get(i).getId());
+                    store.store(createSession("new" + i));
+                }
+            }
+        };
+
+        writer.start();
+        snapshotter.snapshot();
+        writer.join();
+
+        InMemorySessionStore restored = new InMemorySessionStore();
+
+        restored.start();
+        createSnapshotter(restored, 4);
+
+        // the sessions no one wrote to are always in the snapshot
+        for (int i = 1000; i < sessions.size(); i++) {
+            assertNotNull(restored.load(sessions.get(i).getId()));
+        }
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        DefaultSessionManager manager = createManager();
+
+        manager.start();
+
+        PicketBoxSession session = manager.create(createSubject("user"));
+
+        session.setAttribute("attribute", "value");
+
+        manager.stop();
+
+        manager = createManager();
+        manager.start();
+
+        PicketBoxSession restored = manager.retrieve(session.getId());
+
+        assertNotNull(restored);
+        assertEquals("value", restored.getAttribute("attribute"));
+
+        manager.stop();
+    }
+
+    @Test
+    public void testRestoredSessionsPastTheirTimeoutExpire() throws Exception {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().inMemorySessionStore().snapshots(this.directory.getPath(), 1, TimeUnit.HOURS, 2)
+                .sessionIdleTimeout(1, TimeUnit.SECONDS);
+
+        DefaultSessionManager manager = new DefaultSessionManager(builder.build());
+
+        manager.start();
+
+        PicketBoxSession session = manager.create(createSubject("user"));
+
+        manager.stop();
+
+        Thread.sleep(1500);
+
+        manager = new DefaultSessionManager(builder.build());
+        manager.start();
+
+        try {
+            assertNull(manager.retrieve(session.getId()));
+            assertEquals(0, manager.retrieveByPrincipal("user").size());
+        } finally {
+            manager.stop();
+        }
+    }
+
+    @Test
+    public void testRestoreWhileManifestIsReplaced() throws Exception {
+        InMemorySessionStore store = new InMemorySessionStore();
+
+        store.start();
+
+        SessionSnapshotter snapshotter = createSnapshotter(store, 2);
+
+        store.store(createSession("user1"));
+        snapshotter.snapshot();
+        store.store(createSession("user2"));
+        snapshotter.snapshot();
+        snapshotter.stop();
+        store.stop();
+
+        File manifest = new File(this.directory, "sessions.snapshot");
+
+        assertFalse(new File(this.directory, "sessions.snapshot.tmp").exists());
+        assertFalse(new File(this.directory, "sessions.snapshot.old").exists());
+
+        // stopped after the previous manifest was moved aside, before the new one was renamed
+        assertTrue(manifest.renameTo(new File(this.directory, "sessions.snapshot.old")));
+
+        InMemorySessionStore restored = new InMemorySessionStore();
+
+        restored.start();
+        createSnapshotter(restored, 2);
+
+        assertEquals(2, restored.count());
+    }
+
+    private DefaultSessionManager createManager() {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().inMemorySessionStore().snapshots(this.directory.getPath(), 1, TimeUnit.HOURS, 2);
+
+        return new DefaultSessionManager(builder.build());
+    }
+
+    private SessionSnapshotter createSnapshotter(InMemorySessionStore store, int partitions) {
+        SessionSnapshotter snapshotter = new SessionSnapshotter(store, this.directory.getPath(), 1, TimeUnit.HOURS, partitions);
+
+        snapshotter.start();
+
+        return snapshotter;
+    }
+}
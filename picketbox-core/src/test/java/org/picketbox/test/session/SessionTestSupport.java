@@ -0,0 +1,85 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import java.util.Arrays;
+
+import org.picketbox.core.PicketBoxPrincipal;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+
+/**
+ * <p>
+ * Fixtures shared by the session store tests.
+ * </p>
+ */
+final class SessionTestSupport {
+
+    private SessionTestSupport() {
+    }
+
+    /**
+     * @param userName
+     * @return a new session whose subject has the given user
+     */
+    static PicketBoxSession createSession(String userName) {
+        return new PicketBoxSession(createSubject(userName), new DefaultSessionId());
+    }
+
+    /**
+     * @param userName
+     * @return a new subject with the given user
+     */
+    static PicketBoxSubject createSubject(String userName) {
+        PicketBoxSubject subject = new PicketBoxSubject();
+
+        subject.setUser(new PicketBoxPrincipal(userName));
+
+        return subject;
+    }
+
+    /**
+     * @param userName
+     * @param roleNames
+     * @return a new authenticated subject with the given user and roles
+     */
+    static PicketBoxSubject createAuthenticatedSubject(String userName, String... roleNames) {
+        return AuthenticatedSubject.create(userName, roleNames);
+    }
+
+    /**
+     * Reaches the factory {@link PicketBoxSubject} keeps for subclasses, so tests get a plain authenticated subject.
+     */
+    private static final class AuthenticatedSubject extends PicketBoxSubject {
+
+        private static final long serialVersionUID = 1L;
+
+        private AuthenticatedSubject() {
+        }
+
+        static PicketBoxSubject create(String userName, String... roleNames) {
+            return restore(new PicketBoxPrincipal(userName), Arrays.asList(roleNames), true);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.session.DefaultSessionManager;
+import org.picketbox.core.session.MappedFileSessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.core.session.SessionManager;
+
+/**
+ * <p>
+ * Tests that session attributes are only reloaded from the store when the stored version of the session changed. Two session
+ * managers sharing a {@link MappedFileSessionStore} hold different copies of the same session.
+ * </p>
+ */
+public class SessionVersionTestCase {
+
+    private File file;
+    private CountingSessionStore firstStore;
+    private SessionManager first;
+    private SessionManager second;
+
+    @Before
+    public void onSetup() {
+        this.file = new File(System.getProperty("java.io.tmpdir"), "pbox-version-" + System.nanoTime());
+        this.firstStore = new CountingSessionStore(this.file.getPath());
+        this.first = createSessionManager(this.firstStore);
+        this.second = createSessionManager(new MappedFileSessionStore(this.file.getPath(), 1024, 2048));
+    }
+
+    @After
+    public void onTearDown() {
+        this.first.stop();
+        this.second.stop();
+        this.file.delete();
+    }
+
+    @Test
+    public void testUnchangedSessionIsNotReloaded() throws Exception {
+        PicketBoxSession session = this.first.create(new PicketBoxSubject());
+
+        session.setAttribute("attribute", "value");
+
+        int loads = this.firstStore.loads.get();
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value", session.getAttribute("attribute"));
+        }
+
+        assertEquals(loads, this.firstStore.loads.get());
+    }
+
+    @Test
+    public void testSessionUpdatedThroughAnotherCopyIsReloaded() throws Exception {
+        PicketBoxSession session = this.first.create(new PicketBoxSubject());
+
+        session.setAttribute("attribute", "value");
+
+        PicketBoxSession copy = this.second.retrieve(session.getId());
+
+        assertNotSame(session, copy);
+        assertEquals(session.getVersion(), copy.getVersion());
+
+        copy.setAttribute("attribute", "other value");
+
+        assertTrue(copy.getVersion() > session.getVersion());
+        assertEquals("other value", session.getAttribute("attribute"));
+        assertEquals(copy.getVersion(), session.getVersion());
+    }
+
+    @Test
+    public void testCreateIsSingleStoreOperation() throws Exception {
+        PicketBoxSession session = this.first.create(new PicketBoxSubject());
+
+        assertEquals(0, this.firstStore.loads.get());
+        assertFalse(this.firstStore.storeIfAbsent(session));
+    }
+
+    @Test
+    public void testCompareAndSetUpdate() throws Exception {
+        PicketBoxSession session = this.first.create(new PicketBoxSubject());
+        PicketBoxSession copy = this.second.retrieve(session.getId());
+        long version = session.getVersion();
+
+        assertTrue(this.firstStore.update(session, version));
+        assertEquals(version + 1, session.getVersion());
+
+        // the copy derives from the previous version
+        assertFalse(this.firstStore.update(copy, version));
+        assertEquals(version, copy.getVersion());
+    }
+
+    @Test
+    public void testConcurrentUpdatesAreMerged() throws Exception {
+        PicketBoxSession session = this.first.create(new PicketBoxSubject());
+        PicketBoxSession copy = this.second.retrieve(session.getId());
+
+        session.setAttribute("first", "value");
+        copy.setAttribute("second", "value");
+
+        PicketBoxSession stored = this.second.retrieve(session.getId());
+
+        assertEquals("value", stored.getAttribute("first"));
+        assertEquals("value", stored.getAttribute("second"));
+        assertEquals(stored.getVersion(), copy.getVersion());
+    }
+
+    @Test
+    public void testRemovedAttributeIsWritten() throws Exception {
+        PicketBoxSession session = this.first.create(new PicketBoxSubject());
+
+        session.setAttribute("attribute", "value");
+        session.setAttribute("other", "value");
+        session.removeAttribute("attribute");
+
+        PicketBoxSession copy = this.second.retrieve(session.getId());
+
+        assertNull(copy.getAttribute("attribute"));
+        assertEquals("value", copy.getAttribute("other"));
+        assertEquals(session.getVersion(), copy.getVersion());
+    }
+
+    private SessionManager createSessionManager(MappedFileSessionStore store) {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().store(store);
+
+        SessionManager sessionManager = new DefaultSessionManager(builder.build());
+
+        sessionManager.start();
+
+        return sessionManager;
+    }
+
+    private static class CountingSessionStore extends MappedFileSessionStore {
+
+        private final AtomicInteger loads = new AtomicInteger();
+
+        CountingSessionStore(String fileName) {
+            super(fileName, 1024, 2048);
+        }
+
+        @Override
+        public PicketBoxSession load(SessionId<? extends Serializable> key) {
+            this.loads.incrementAndGet();
+            return super.load(key);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.session.DefaultSessionManager;
+import org.picketbox.core.session.InMemorySessionStore;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionWriteBehindManager;
+
+/**
+ * <p>
+ * Tests the write-behind of session changes by the {@link DefaultSessionManager}.
+ * </p>
+ */
+public class SessionWriteBehindTestCase {
+
+    private final CountingSessionStore store = new CountingSessionStore();
+    private DefaultSessionManager sessionManager;
+
+    @After
+    public void onTearDown() {
+        this.sessionManager.stop();
+    }
+
+    @Test
+    public void testUpdatesAreCoalescedUntilFlushed() throws Exception {
+        startSessionManager(1, TimeUnit.HOURS);
+
+        PicketBoxSession session = this.sessionManager.create(new PicketBoxSubject());
+
+        for (int i = 0; i < 5; i++) {
+            session.setAttribute("attribute" + i, i);
+        }
+
+        SessionWriteBehindManager writeBehindManager = this.sessionManager.getSessionWriteBehindManager();
+
+        assertEquals(0, this.store.updates.get());
+        assertEquals(1, writeBehindManager.getQueueDepth());
+        assertEquals(4, session.getAttribute("attribute4"));
+
+        this.sessionManager.flush(session);
+
+        assertEquals(1, this.store.updates.get());
+        assertEquals(0, writeBehindManager.getQueueDepth());
+        assertEquals(5, writeBehindManager.getMarkedUpdates());
+        assertEquals(1, writeBehindManager.getFlushedUpdates());
+    }
+
+    @Test
+    public void testSessionsAreFlushedPeriodically() throws Exception {
+        startSessionManager(100, TimeUnit.MILLISECONDS);
+
+        PicketBoxSession first = this.sessionManager.create(new PicketBoxSubject());
+        PicketBoxSession second = this.sessionManager.create(new PicketBoxSubject());
+
+        first.setAttribute("attribute", "value");
+        first.setAttribute("attribute", "other value");
+        second.setAttribute("attribute", "value");
+
+        long end = System.currentTimeMillis() + 5000;
+
+        while (this.store.updates.get() < 2 && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(2, this.store.updates.get());
+        assertEquals(0, this.sessionManager.getSessionWriteBehindManager().getQueueDepth());
+        assertTrue(this.sessionManager.getSessionWriteBehindManager().getLastFlushLag() >= 0);
+    }
+
+    @Test
+    public void testPendingUpdatesAreFlushedOnStop() throws Exception {
+        startSessionManager(1, TimeUnit.HOURS);
+
+        PicketBoxSession session = this.sessionManager.create(new PicketBoxSubject());
+
+        session.setAttribute("attribute", "value");
+
+        this.sessionManager.stop();
+
+        assertEquals(1, this.store.updates.get());
+
+        this.sessionManager.start();
+    }
+
+    private void startSessionManager(long writeBehindInterval, TimeUnit unit) {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().store(this.store).writeBehind(writeBehindInterval, unit);
+
+        this.sessionManager = new DefaultSessionManager(builder.build());
+        this.sessionManager.start();
+    }
+
+    private static class CountingSessionStore extends InMemorySessionStore {
+
+        private final AtomicInteger updates = new AtomicInteger();
+
+        @Override
+        public void update(PicketBoxSession session) {
+            this.updates.incrementAndGet();
+            super.update(session);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.picketbox.core.PicketBoxSubject;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.config.PicketBoxConfiguration;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.PicketBoxSessionListener;
+import org.picketbox.core.session.SessionClock;
+import org.picketbox.core.session.SessionKeyRing;
+import org.picketbox.core.session.StatelessSessionManager;
+
+/**
+ * <p>
+ * Tests the signed tokens, key rotation and revocation of the {@link StatelessSessionManager}.
+ * </p>
+ */
+public class StatelessSessionManagerTestCase {
+
+    private static final byte[] MAC_KEY = "0123456789abcdef0123456789abcdef".getBytes();
+    private static final byte[] OTHER_MAC_KEY = "fedcba9876543210fedcba9876543210".getBytes();
+    private static final byte[] ENCRYPTION_KEY = "0123456789abcdef".getBytes();
+
+    @Test
+    public void testSignedToken() throws Exception {
+        StatelessSessionManager manager = new StatelessSessionManager(new SessionKeyRing(1, MAC_KEY), 1, TimeUnit.HOURS);
+        PicketBoxSession session = manager.create(createSubject("john"));
+
+        PicketBoxSession retrieved = manager.retrieve(session.getId());
+
+        assertNotNull(retrieved);
+        assertEquals("john", retrieved.getSubject().getUser().getName());
+        assertEquals(Arrays.asList("admin", "user"), retrieved.getSubject().getRoleNames());
+        assertTrue(retrieved.getSubject().isAuthenticated());
+        assertEquals(session.getCreationTime(), retrieved.getCreationTime());
+
+        String token = (String) session.getId().getId();
+        char c = token.charAt(10);
+        String tampered = token.substring(0, 10) + (c == 'A' ? 'B' : 'A') + token.substring(11);
+
+        assertNull(manager.retrieve(new DefaultSessionId(tampered)));
+        assertNull(manager.retrieve(new DefaultSessionId("not a token")));
+        assertNull(new StatelessSessionManager(new SessionKeyRing(1, OTHER_MAC_KEY), 1, TimeUnit.HOURS).retrieve(session
+                .getId()));
+    }
+
+    @Test
+    public void testEncryptedToken() throws Exception {
+        SessionKeyRing keyRing = new SessionKeyRing(1, MAC_KEY, ENCRYPTION_KEY);
+        StatelessSessionManager manager = new StatelessSessionManager(keyRing, 1, TimeUnit.HOURS);
+        PicketBoxSession session = manager.create(createSubject("john"));
+
+        assertEquals("john", manager.retrieve(session.getId()).getSubject().getUser().getName());
+        assertNull(new StatelessSessionManager(new SessionKeyRing(1, MAC_KEY), 1, TimeUnit.HOURS).retrieve(session.getId()));
+    }
+
+    @Test
+    public void testKeyRotation() throws Exception {
+        SessionKeyRing keyRing = new SessionKeyRing(1, MAC_KEY);
+        StatelessSessionManager manager = new StatelessSessionManager(keyRing, 1, TimeUnit.HOURS);
+        PicketBoxSession before = manager.create(createSubject("john"));
+
+        keyRing.rotate(2, OTHER_MAC_KEY, ENCRYPTION_KEY);
+
+        PicketBoxSession after = manager.create(createSubject("john"));
+
+        assertNotNull(manager.retrieve(before.getId()));
+        assertNotNull(manager.retrieve(after.getId()));
+
+        keyRing.retire(1);
+
+        assertNull(manager.retrieve(before.getId()));
+        assertNotNull(manager.retrieve(after.getId()));
+    }
+
+    @Test
+    public void testRevocation() throws Exception {
+        StatelessSessionManager manager = new StatelessSessionManager(new SessionKeyRing(1, MAC_KEY), 1, TimeUnit.HOURS);
+        PicketBoxSession first = manager.create(createSubject("john"));
+        PicketBoxSession second = manager.create(createSubject("john"));
+        PicketBoxSession other = manager.create(createSubject("mary"));
+
+        manager.remove(first);
+
+        assertNull(manager.retrieve(first.getId()));
+        assertNotNull(manager.retrieve(second.getId()));
+
+        manager.removeAllForPrincipal("john");
+
+        assertNull(manager.retrieve(second.getId()));
+        assertNotNull(manager.retrieve(other.getId()));
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+        SessionClock clock = new SessionClock() {
+            @Override
+            public long currentTimeMillis() {
+                return now.get();
+            }
+        };
+        StatelessSessionManager manager = new StatelessSessionManager(new SessionKeyRing(1, MAC_KEY), 1, TimeUnit.MINUTES,
+                new ArrayList<PicketBoxSessionListener>(), clock);
+        PicketBoxSession session = manager.create(createSubject("john"));
+
+        now.addAndGet(TimeUnit.MINUTES.toMillis(1) - 1);
+
+        assertNotNull(manager.retrieve(session.getId()));
+
+        now.incrementAndGet();
+
+        assertNull(manager.retrieve(session.getId()));
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().statelessSessions(new SessionKeyRing(1, MAC_KEY), 30, TimeUnit.MINUTES);
+
+        PicketBoxConfiguration configuration = builder.build();
+
+        assertTrue(configuration.getSessionManager().getManager() instanceof StatelessSessionManager);
+    }
+
+    private PicketBoxSubject createSubject(String name) {
+        return SessionTestSupport.createAuthenticatedSubject(name, "admin", "user");
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.picketbox.test.session.SessionTestSupport.createSession;
+import static org.picketbox.test.session.SessionTestSupport.createSubject;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.config.ConfigurationBuilder;
+import org.picketbox.core.session.DefaultSessionManager;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.core.session.TieredSessionStore;
+
+/**
+ * <p>
+ * Tests the passivation and activation of sessions by the {@link TieredSessionStore}.
+ * </p>
+ */
+public class TieredSessionStoreTestCase {
+
+    private File directory;
+
+    @Before
+    public void onSetup() {
+        this.directory = new File(System.getProperty("java.io.tmpdir"), "pbox-tiered-" + System.nanoTime());
+    }
+
+    @After
+    public void onTearDown() {
+        File[] files = this.directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        this.directory.delete();
+    }
+
+    @Test
+    public void testIdleSessionsArePassivated() throws Exception {
+        TieredSessionStore store = createStore(100, TimeUnit.MILLISECONDS, 0);
+        PicketBoxSession first = createSession("first");
+        PicketBoxSession second = createSession("second");
+
+        first.setAttribute("attribute", "value");
+        store.store(first);
+        store.store(second);
+
+        Thread.sleep(200);
+
+        assertEquals(2, store.passivateIdleSessions());
+        assertEquals(0, store.getActiveSessionCount());
+        assertEquals(2, store.getPassivatedSessionCount());
+        assertEquals(2, store.count());
+        assertTrue(store.getDiskSize() > 0);
+
+        PicketBoxSession activated = store.load(first.getId());
+
+        assertNotNull(activated);
+        assertEquals("value", activated.getAttribute("attribute"));
+        assertEquals("first", activated.getSubject().getUser().getName());
+        assertEquals(1, store.getActivations());
+        assertEquals(1, store.getActiveSessionCount());
+        assertEquals(1, store.getPassivatedSessionCount());
+
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (Iterator<PicketBoxSession> cursor = store.cursor(); cursor.hasNext();) {
+            sessions.add(cursor.next());
+        }
+
+        assertEquals(2, sessions.size());
+
+        store.remove(second.getId());
+
+        assertNull(store.load(second.getId()));
+        assertEquals(1, store.count());
+
+        store.stop();
+    }
+
+    @Test
+    public void testLeastRecentlyAccessedSessionsArePassivated() throws Exception {
+        TieredSessionStore store = createStore(1, TimeUnit.HOURS, 2);
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < 5; i++) {
+            PicketBoxSession session = createSession("user" + i);
+
+            store.store(session);
+            sessions.add(session);
+        }
+
+        assertEquals(3, store.passivateIdleSessions());
+        assertEquals(2, store.getActiveSessionCount());
+        assertEquals(3, store.getPassivations());
+
+        for (PicketBoxSession session : sessions) {
+            assertNotNull(store.load(session.getId()));
+        }
+
+        assertEquals(5, store.getActiveSessionCount());
+
+        store.stop();
+    }
+
+    @Test
+    public void testUpdateOfPassivatedSession() throws Exception {
+        TieredSessionStore store = createStore(100, TimeUnit.MILLISECONDS, 0);
+        PicketBoxSession session = createSession("user");
+
+        store.store(session);
+
+        Thread.sleep(200);
+
+        store.passivateIdleSessions();
+
+        long version = store.getVersion(session.getId());
+
+        assertFalse(store.update(session, version + 1));
+        assertFalse(store.storeIfAbsent(session));
+
+        session.setAttribute("attribute", "value");
+
+        assertTrue(store.update(session, version));
+        assertEquals(version + 1, store.getVersion(session.getId()));
+        assertEquals(0, store.getPassivatedSessionCount());
+        assertEquals("value", store.load(session.getId()).getAttribute("attribute"));
+
+        store.stop();
+    }
+
+    @Test
+    public void testSessionsSurviveRestart() throws Exception {
+        TieredSessionStore store = createStore(1, TimeUnit.HOURS, 0);
+        PicketBoxSession session = createSession("user");
+
+        session.setAttribute("attribute", "value");
+        store.store(session);
+        store.update(session);
+
+        long version = store.getVersion(session.getId());
+
+        store.stop();
+
+        store = createStore(1, TimeUnit.HOURS, 0);
+
+        assertEquals(1, store.getPassivatedSessionCount());
+        assertEquals(version, store.getVersion(session.getId()));
+
+        PicketBoxSession restored = store.load(session.getId());
+
+        assertNotNull(restored);
+        assertEquals("value", restored.getAttribute("attribute"));
+
+        store.stop();
+    }
+
+    @Test
+    public void testPassivatedSessionIsNotReachableFromManager() throws Exception {
+        TieredSessionStore store = new TieredSessionStore(this.directory.getPath(), 100, TimeUnit.MILLISECONDS, 0);
+
+        store.setPassivationInterval(TimeUnit.HOURS.toMillis(1));
+
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.sessionManager().store(store).sessionTimeout(30).sessionIdleTimeout(10);
+
+        DefaultSessionManager manager = new DefaultSessionManager(builder.build());
+
+        manager.start();
+
+        try {
+            PicketBoxSession session = manager.create(createSubject("user"));
+            SessionId<?> id = session.getId();
+            WeakReference<PicketBoxSession> reference = new WeakReference<PicketBoxSession>(session);
+
+            session = null;
+
+            Thread.sleep(200);
+
+            assertEquals(1, store.passivateIdleSessions());
+
+            // neither the expiration schedule nor the principal index keep the session on the heap
+            for (int i = 0; i < 50 && reference.get() != null; i++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+
+            assertNull(reference.get());
+            assertNotNull(manager.retrieve(id));
+            assertEquals(1, manager.retrieveByPrincipal("user").size());
+        } finally {
+            manager.stop();
+        }
+    }
+
+    private TieredSessionStore createStore(long idleTime, TimeUnit unit, int maxActiveSessions) {
+        TieredSessionStore store = new TieredSessionStore(this.directory.getPath(), idleTime, unit, maxActiveSessions);
+
+        // passivations are triggered by the tests
+        store.setPassivationInterval(TimeUnit.HOURS.toMillis(1));
+        store.start();
+
+        return store;
+    }
+}